@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.lang.reflect.Field;
+
+import org.mockito.Mockito;
+
+/**
+ * Helpers shared by the benchmarks. DAOs and services are stubbed with stub-only mocks, which do not record their
+ * invocations, so that a benchmark running millions of invocations does not run out of memory.
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    static <T> T stub(final Class<T> clazz) {
+        return Mockito.mock(clazz, Mockito.withSettings().stubOnly());
+    }
+
+    static void setField(final Object target, final String name, final Object value) throws ReflectiveOperationException {
+        Class<?> clazz = target.getClass();
+        while (clazz != null) {
+            try {
+                Field field = clazz.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                clazz = clazz.getSuperclass();
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    // PEM like text of the given number of lines, standing in for certificates and keys
+    static String pem(final String type, final int lines) {
+        StringBuilder pem = new StringBuilder("-----BEGIN ").append(type).append("-----\n");
+        for (int i = 0; i < lines; i++) {
+            pem.append("MIIDXTCCAkWgAwIBAgIJAKoK/heBjcOuMA0GCSqGSIb3DQEBBQUAMEUxCzAJBgNV").append('\n');
+        }
+        return pem.append("-----END ").append(type).append("-----").toString();
+    }
+}
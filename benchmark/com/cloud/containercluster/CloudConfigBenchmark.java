@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks rendering the master and node cloud-configs shipped in conf/ into the user data of the cluster VMs,
+ * with and without compressing the user data. Run from the project directory so that conf/ is found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloudConfigBenchmark {
+
+    @Param({"master", "node"})
+    public String role;
+
+    private CloudConfigTemplate template;
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("master".equals(role)) {
+            template = CloudConfigTemplate.load("conf/k8s-master.yml");
+            values.put("k8s_master.apiserver.crt", BenchmarkSupport.pem("CERTIFICATE", 20));
+            values.put("k8s_master.apiserver.key", BenchmarkSupport.pem("RSA PRIVATE KEY", 25));
+            values.put("k8s_master.ca.crt", BenchmarkSupport.pem("CERTIFICATE", 18));
+            values.put("k8s_master.cluster.ip", "--apiserver-cert-extra-sans=10.1.1.1");
+            values.put("k8s_master.cluster.token", "abcdef.0123456789abcdef");
+            values.put("k8s_master.ms.ssh.pub.key", "- \"ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAABAQC ms\"");
+        } else {
+            template = CloudConfigTemplate.load("conf/k8s-node.yml", "write-files:");
+            values.put("k8s_master.default_ip", "10.1.1.10");
+            values.put("k8s_master.cluster.token", "abcdef.0123456789abcdef");
+        }
+        values.put("ccs.callback.url", "");
+    }
+
+    @Benchmark
+    public String render() {
+        return template.render(values);
+    }
+
+    @Benchmark
+    public String renderBase64() throws IOException {
+        return template.renderBase64(values, false);
+    }
+
+    @Benchmark
+    public String renderBase64Gzip() throws IOException {
+        return template.renderBase64(values, true);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Benchmarks the check the state scanner runs on every container cluster, that all the VMs of the cluster are in the
+ * state of the cluster, for growing numbers of VMs, including loading the VM map and the VMs of the cluster. All VMs
+ * are running so that every VM of the cluster is checked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterDesiredStateBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int vms;
+
+    private ContainerClusterManagerImpl manager;
+    private ContainerClusterVO cluster;
+
+    @Setup
+    public void setUp() {
+        manager = new ContainerClusterManagerImpl();
+        manager._containerClusterVmMapDao = BenchmarkSupport.stub(ContainerClusterVmMapDao.class);
+
+        cluster = new ContainerClusterVO();
+        cluster.setId(1L);
+        cluster.setName("bench-cluster");
+        cluster.setNodeCount(vms - 1);
+        cluster.setState(ContainerCluster.State.Running);
+
+        final List<ContainerClusterVmMapVO> vmMap = new ArrayList<ContainerClusterVmMapVO>();
+        final List<VMInstanceVO> clusterVms = new ArrayList<VMInstanceVO>();
+        for (long vmId = 1; vmId <= vms; vmId++) {
+            vmMap.add(new ContainerClusterVmMapVO(1L, vmId));
+            final VMInstanceVO vm = BenchmarkSupport.stub(VMInstanceVO.class);
+            when(vm.getId()).thenReturn(vmId);
+            when(vm.getState()).thenReturn(VirtualMachine.State.Running);
+            clusterVms.add(vm);
+        }
+        when(manager._containerClusterVmMapDao.listByClusterIds(anyListOf(Long.class))).thenReturn(vmMap);
+        when(manager._containerClusterVmMapDao.listVmsIncludingRemoved(anyListOf(Long.class))).thenReturn(clusterVms);
+    }
+
+    @Benchmark
+    public boolean isClusterInDesiredState() {
+        return manager.isClusterInDesiredState(cluster, VirtualMachine.State.Running);
+    }
+}
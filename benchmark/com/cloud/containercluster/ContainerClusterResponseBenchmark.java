@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.api.command.user.containercluster.ListContainerClusterCmd;
+import org.apache.cloudstack.api.response.ContainerClusterResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.context.CallContext;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.containercluster.dao.ContainerClusterDao;
+import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
+import com.cloud.dc.DataCenter.NetworkType;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.dao.NetworkDao;
+import com.cloud.network.dao.NetworkVO;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.User;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.dao.UserVmDao;
+/**
+ * Benchmarks building the API response of one container cluster, and listing all the container clusters of a zone
+ * as a root admin, for growing numbers of clusters and of VMs per cluster.
+ *
+ * The state is per thread as the list API reads the caller from the thread local CallContext.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContainerClusterResponseBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int clusters;
+
+    @Param({"3", "50"})
+    public int vmsPerCluster;
+
+    private ContainerClusterManagerImpl manager;
+    private ListContainerClusterCmd listCmd;
+
+    @Setup
+    public void setUp() {
+        manager = new ContainerClusterManagerImpl();
+        manager._containerClusterDao = BenchmarkSupport.stub(ContainerClusterDao.class);
+        manager._containerClusterVmMapDao = BenchmarkSupport.stub(ContainerClusterVmMapDao.class);
+        manager._srvOfferingDao = BenchmarkSupport.stub(ServiceOfferingDao.class);
+        manager._networkDao = BenchmarkSupport.stub(NetworkDao.class);
+        manager._userVmDao = BenchmarkSupport.stub(UserVmDao.class);
+        manager._accountMgr = BenchmarkSupport.stub(AccountManager.class);
+
+        manager._dcDao = BenchmarkSupport.stub(DataCenterDao.class);
+        manager._templateDao = BenchmarkSupport.stub(VMTemplateDao.class);
+        when(manager._dcDao.findById(anyLong())).thenReturn(new DataCenterVO(1L, "bench-zone", "bench", "", "", "", "", "", "", 1L, NetworkType.Advanced, "", ""));
+        final VMTemplateVO template = BenchmarkSupport.stub(VMTemplateVO.class);
+        when(template.getUuid()).thenReturn("template-uuid");
+        when(manager._templateDao.findByIdIncludingRemoved(anyLong())).thenReturn(template);
+
+        when(manager._srvOfferingDao.findById(anyLong()))
+                .thenReturn(new ServiceOfferingVO("bench", 2, 1000, 2048, 0, 0, true, "bench", null, false, true, "", true, VirtualMachine.Type.User, true));
+        final NetworkVO network = BenchmarkSupport.stub(NetworkVO.class);
+        when(network.getUuid()).thenReturn("network-uuid");
+        when(network.getName()).thenReturn("bench-network");
+        when(manager._networkDao.findByIdIncludingRemoved(anyLong())).thenReturn(network);
+
+        final Map<Long, ContainerClusterVO> clustersById = new HashMap<Long, ContainerClusterVO>();
+        final Map<Long, List<ContainerClusterVmMapVO>> vmMaps = new HashMap<Long, List<ContainerClusterVmMapVO>>();
+        final Map<Long, UserVmVO> vms = new HashMap<Long, UserVmVO>();
+        long vmId = 1;
+        for (long id = 1; id <= clusters; id++) {
+            ContainerClusterVO cluster = new ContainerClusterVO();
+            cluster.setId(id);
+            cluster.setName("cluster-" + id);
+            cluster.setNodeCount(vmsPerCluster - 1);
+            cluster.setState(ContainerCluster.State.Running);
+            clustersById.put(id, cluster);
+            List<ContainerClusterVmMapVO> vmMap = new ArrayList<ContainerClusterVmMapVO>();
+            for (int i = 0; i < vmsPerCluster; i++, vmId++) {
+                vmMap.add(new ContainerClusterVmMapVO(id, vmId));
+                vms.put(vmId, new UserVmVO(vmId, "i-2-" + vmId + "-VM", "vm-" + vmId, 1L, HypervisorType.KVM, 1L, false, false, 1L, 2L, 2L, 1L,
+                        null, "vm-" + vmId, null));
+            }
+            vmMaps.put(id, vmMap);
+        }
+        when(manager._containerClusterDao.findById(anyLong())).thenAnswer(new Answer<ContainerClusterVO>() {
+            @Override
+            public ContainerClusterVO answer(InvocationOnMock invocation) {
+                return clustersById.get(invocation.getArguments()[0]);
+            }
+        });
+        when(manager._containerClusterDao.search(any(SearchCriteria.class), any(Filter.class)))
+                .thenReturn(new ArrayList<ContainerClusterVO>(clustersById.values()));
+        when(manager._containerClusterVmMapDao.listByClusterId(anyLong())).thenAnswer(new Answer<List<ContainerClusterVmMapVO>>() {
+            @Override
+            public List<ContainerClusterVmMapVO> answer(InvocationOnMock invocation) {
+                return vmMaps.get(invocation.getArguments()[0]);
+            }
+        });
+        when(manager._userVmDao.findById(anyLong())).thenAnswer(new Answer<UserVmVO>() {
+            @Override
+            public UserVmVO answer(InvocationOnMock invocation) {
+                return vms.get(invocation.getArguments()[0]);
+            }
+        });
+
+        listCmd = BenchmarkSupport.stub(ListContainerClusterCmd.class);
+        when(listCmd.getId()).thenReturn(null);
+        when(listCmd.getStartIndex()).thenReturn(0L);
+        when(listCmd.getPageSizeVal()).thenReturn((long)clusters);
+
+        CallContext.register(BenchmarkSupport.stub(User.class), BenchmarkSupport.stub(Account.class));
+    }
+
+    @TearDown
+    public void tearDown() {
+        CallContext.unregister();
+    }
+
+    @Benchmark
+    public ContainerClusterResponse createContainerClusterResponse() {
+        return manager.createContainerClusterResponse(1L);
+    }
+
+    @Benchmark
+    public ListResponse<ContainerClusterResponse> listContainerClusters() {
+        return manager.listContainerClusters(listCmd);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.containercluster.dao.ContainerClusterCapacityDao;
+import com.cloud.containercluster.dao.ContainerClusterCapacityReservationDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.dc.DataCenter.NetworkType;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.deploy.DeployDestination;
+import com.cloud.exception.InsufficientServerCapacityException;
+import com.cloud.host.Host.Type;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Benchmarks planning the hosts of the VMs of a container cluster with each placement strategy on zones of growing
+ * size, where hosts have room for 0 to 7 cluster VMs and are grouped in clusters of HOSTS_PER_CLUSTER, both on the
+ * capacity index as is and right after a VM was started on one of the hosts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlanBenchmark {
+
+    static final int HOSTS_PER_CLUSTER = 16;
+
+    @Param({"100", "1000", "10000"})
+    public int hosts;
+
+    @Param({"3", "20"})
+    public int clusterSize;
+
+    @Param({"BestFit", "Spread", "AntiAffinity"})
+    public String strategy;
+
+    private ContainerClusterManagerImpl manager;
+    private ServiceOfferingVO offering;
+    private long changedHost;
+
+    @Setup
+    public void setUp() {
+        manager = new ContainerClusterManagerImpl();
+        manager._resourceMgr = BenchmarkSupport.stub(ResourceManager.class);
+        manager._dcDao = BenchmarkSupport.stub(DataCenterDao.class);
+        manager._capacityLedger = new ContainerClusterCapacityLedger();
+        manager._capacityLedger._reservationDao = BenchmarkSupport.stub(ContainerClusterCapacityReservationDao.class);
+        manager._capacityIndex = new ContainerClusterCapacityIndex();
+        manager._capacityIndex._resourceMgr = manager._resourceMgr;
+        manager._capacityIndex._containerClusterCapacityDao = BenchmarkSupport.stub(ContainerClusterCapacityDao.class);
+        final ContainerClusterCapacityDao capacityDao = manager._capacityIndex._containerClusterCapacityDao;
+        manager._globalConfigDao = BenchmarkSupport.stub(ConfigurationDao.class);
+        when(manager._globalConfigDao.getValue(CcsConfig.ContainerClusterPlacementStrategy.key())).thenReturn(strategy);
+
+        offering = new ServiceOfferingVO("bench", 2, 1000, 2048, 0, 0, true, "bench", null, false, true, "", true, VirtualMachine.Type.User, true);
+
+        final List<HostVO> zoneHosts = new ArrayList<HostVO>();
+        for (long id = 1; id <= hosts; id++) {
+            HostVO host = new HostVO(id, "host" + id, Type.Routing, "", "", "", "", "", "", "", "", "", "", "", "", "", Status.Up, "1.0", "", new Date(),
+                    1L, 1L, 1L, 1L, "", 1L, StoragePoolType.Filesystem);
+            host.setClusterId((id - 1) / HOSTS_PER_CLUSTER + 1);
+            host.setUuid("host-uuid-" + id);
+            host.setResourceState(ResourceState.Enabled);
+            zoneHosts.add(host);
+        }
+        when(manager._resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1L)).thenReturn(zoneHosts);
+        final List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        for (HostVO host : zoneHosts) {
+            final long room = host.getId() % 8;
+            capacities.add(new CapacityVO(host.getId(), 1L, 1L, host.getClusterId(), 0, room * 2000, Capacity.CAPACITY_TYPE_CPU));
+            capacities.add(new CapacityVO(host.getId(), 1L, 1L, host.getClusterId(), 0, room * 2048L << 20, Capacity.CAPACITY_TYPE_MEMORY));
+        }
+        when(capacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
+        when(capacityDao.listCpuAndMemoryCapacitiesOfHosts(anyListOf(Long.class))).thenAnswer(new Answer<List<CapacityVO>>() {
+            @Override
+            public List<CapacityVO> answer(InvocationOnMock invocation) {
+                final List<CapacityVO> hostCapacities = new ArrayList<CapacityVO>();
+                for (Object hostId : (List<?>)invocation.getArguments()[0]) {
+                    hostCapacities.add(capacities.get((int)((Long)hostId - 1) * 2));
+                    hostCapacities.add(capacities.get((int)((Long)hostId - 1) * 2 + 1));
+                }
+                return hostCapacities;
+            }
+        });
+        when(capacityDao.listOvercommitRatios(anyListOf(Long.class))).thenAnswer(new Answer<List<ClusterDetailsVO>>() {
+            @Override
+            public List<ClusterDetailsVO> answer(InvocationOnMock invocation) {
+                final List<ClusterDetailsVO> ratios = new ArrayList<ClusterDetailsVO>();
+                for (Object clusterId : (List<?>)invocation.getArguments()[0]) {
+                    ratios.add(new ClusterDetailsVO((Long)clusterId, ContainerClusterCapacitySnapshot.CPU_OVERCOMMIT_RATIO, "1"));
+                    ratios.add(new ClusterDetailsVO((Long)clusterId, ContainerClusterCapacitySnapshot.MEMORY_OVERCOMMIT_RATIO, "1"));
+                }
+                return ratios;
+            }
+        });
+        when(manager._dcDao.findById(1L)).thenReturn(new DataCenterVO(1L, "bench-zone", "bench", "", "", "", "", "", "", 1L, NetworkType.Advanced, "", ""));
+    }
+
+    @Benchmark
+    public DeployDestination plan() throws InsufficientServerCapacityException {
+        return manager.plan(clusterSize, 1L, offering);
+    }
+
+    @Benchmark
+    public DeployDestination planAfterVmStarted() throws InsufficientServerCapacityException {
+        changedHost = changedHost % hosts + 1;
+        manager._capacityIndex.hostChanged(1L, changedHost);
+        return manager.plan(clusterSize, 1L, offering);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cloud.containercluster.dao.ContainerClusterDao;
+import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
+import com.cloud.hypervisor.Hypervisor;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Benchmarks a run of the state scanner over growing numbers of running container clusters of a master and two nodes
+ * each, all in their desired state, with every query taking ROUND_TRIP_MICROS as a database round trip would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StateScanBenchmark {
+
+    static final long ROUND_TRIP_MICROS = 200;
+    static final int VMS_PER_CLUSTER = 3;
+
+    @Param({"100", "1000", "5000"})
+    public int clusters;
+
+    private ContainerClusterManagerImpl.ContainerClusterStatusScanner scanner;
+
+    private abstract static class RoundTrip<T> implements Answer<T> {
+        @Override
+        public T answer(InvocationOnMock invocation) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(ROUND_TRIP_MICROS));
+            return select((List<?>)invocation.getArguments()[0]);
+        }
+
+        abstract T select(List<?> ids);
+    }
+
+    @Setup
+    public void setUp() {
+        final ContainerClusterManagerImpl manager = new ContainerClusterManagerImpl();
+        manager._containerClusterDao = BenchmarkSupport.stub(ContainerClusterDao.class);
+        manager._containerClusterVmMapDao = BenchmarkSupport.stub(ContainerClusterVmMapDao.class);
+
+        final List<ContainerClusterVO> containerClusters = new ArrayList<ContainerClusterVO>();
+        final List<ContainerClusterVmMapVO> vmMaps = new ArrayList<ContainerClusterVmMapVO>();
+        final List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        for (long clusterId = 1; clusterId <= clusters; clusterId++) {
+            final ContainerClusterVO cluster = new ContainerClusterVO();
+            cluster.setId(clusterId);
+            cluster.setName("bench-cluster-" + clusterId);
+            cluster.setNodeCount(VMS_PER_CLUSTER - 1);
+            cluster.setState(ContainerCluster.State.Running);
+            containerClusters.add(cluster);
+            for (int i = 0; i < VMS_PER_CLUSTER; i++) {
+                final long vmId = (clusterId - 1) * VMS_PER_CLUSTER + i + 1;
+                vmMaps.add(new ContainerClusterVmMapVO(clusterId, vmId));
+                final UserVmVO vm = new UserVmVO(vmId, "i-2-" + vmId + "-VM", "bench-vm-" + vmId, 1L, Hypervisor.HypervisorType.Simulator, 1L, false, false,
+                        1L, 2L, 2L, 1L, null, "bench-vm-" + vmId, null);
+                vm.setState(VirtualMachine.State.Running);
+                vms.add(vm);
+            }
+        }
+        when(manager._containerClusterDao.findContainerClustersInStates(anyListOf(ContainerCluster.State.class))).thenAnswer(new Answer<List<ContainerClusterVO>>() {
+            @Override
+            public List<ContainerClusterVO> answer(InvocationOnMock invocation) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(ROUND_TRIP_MICROS));
+                return containerClusters;
+            }
+        });
+        when(manager._containerClusterVmMapDao.listByClusterIds(anyListOf(Long.class))).thenAnswer(new RoundTrip<List<ContainerClusterVmMapVO>>() {
+            @Override
+            List<ContainerClusterVmMapVO> select(List<?> ids) {
+                final Set<Object> clusterIds = new HashSet<Object>(ids);
+                final List<ContainerClusterVmMapVO> selected = new ArrayList<ContainerClusterVmMapVO>();
+                for (ContainerClusterVmMapVO vmMap : vmMaps) {
+                    if (clusterIds.contains(vmMap.getClusterId())) {
+                        selected.add(vmMap);
+                    }
+                }
+                return selected;
+            }
+        });
+        when(manager._containerClusterVmMapDao.listVmsIncludingRemoved(anyListOf(Long.class))).thenAnswer(new RoundTrip<List<VMInstanceVO>>() {
+            @Override
+            List<VMInstanceVO> select(List<?> ids) {
+                final List<VMInstanceVO> selected = new ArrayList<VMInstanceVO>();
+                for (Object vmId : ids) {
+                    selected.add(vms.get((int)((Long)vmId - 1)));
+                }
+                return selected;
+            }
+        });
+        scanner = manager.new ContainerClusterStatusScanner();
+    }
+
+    @Benchmark
+    public void scan() {
+        scanner.reallyRun();
+    }
+}
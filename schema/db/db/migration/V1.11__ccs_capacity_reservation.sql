@@ -0,0 +1,32 @@
+-- Copyright 2016 ShapeBlue Ltd
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+use cloud;
+
+CREATE TABLE IF NOT EXISTS `cloud`.`sb_ccs_capacity_reservation` (
+    `id` bigint unsigned NOT NULL auto_increment COMMENT 'id',
+    `cluster_id` bigint unsigned NOT NULL COMMENT 'cluster the capacity is held for',
+    `vm_index` int unsigned NOT NULL COMMENT 'index of the vm of the cluster in its placement, 0 for the master',
+    `zone_id` bigint unsigned NOT NULL COMMENT 'zone of the host',
+    `host_id` bigint unsigned NOT NULL COMMENT 'host the capacity is held on',
+    `mgmt_server_id` bigint unsigned NOT NULL COMMENT 'management server provisioning the cluster',
+    `cpu` bigint unsigned NOT NULL COMMENT 'cpu held in MHz',
+    `ram` bigint unsigned NOT NULL COMMENT 'ram held in bytes',
+    `created` datetime COMMENT 'date the capacity was reserved',
+
+    PRIMARY KEY(`id`),
+    UNIQUE KEY `uc_capacity_reservation__cluster_vm` (`cluster_id`, `vm_index`),
+    INDEX `i_capacity_reservation__zone_id` (`zone_id`),
+    CONSTRAINT `capacity_reservation_cluster__id` FOREIGN KEY `capacity_reservation_cluster__id`(`cluster_id`) REFERENCES `sb_ccs_container_cluster`(`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -0,0 +1,23 @@
+-- Copyright 2016 ShapeBlue Ltd
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+use cloud;
+
+ALTER TABLE `cloud`.`sb_ccs_container_cluster_details` ADD COLUMN `callback_token` varchar(255) COMMENT 'token the cluster VMs use to report bootstrap progress to the management server';
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server',
+'cloud.container.cluster.callback.url', NULL, 'Base URL (like http://<management server ip>:8099) at which container cluster VMs report their bootstrap progress to the management server. Callbacks are disabled if empty.', NULL, NULL, NULL, 0);
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server',
+'cloud.container.cluster.callback.port', '8099', 'Port on which the management server listens for bootstrap progress callbacks from container cluster VMs.', '8099', NULL, NULL, 0);
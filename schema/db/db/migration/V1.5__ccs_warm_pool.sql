@@ -0,0 +1,40 @@
+-- Copyright 2016 ShapeBlue Ltd
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+use cloud;
+
+CREATE TABLE IF NOT EXISTS `cloud`.`sb_ccs_warm_pool_vm` (
+    `id` bigint unsigned NOT NULL auto_increment COMMENT 'id',
+    `vm_id` bigint unsigned NOT NULL COMMENT 'pre-deployed stopped vm waiting to be claimed by a container cluster',
+    `zone_id` bigint unsigned NOT NULL COMMENT 'zone of the vm',
+    `template_id` bigint unsigned NOT NULL COMMENT 'template the vm is deployed from',
+    `service_offering_id` bigint unsigned NOT NULL COMMENT 'service offering of the vm',
+    `created` datetime NOT NULL COMMENT 'date the vm was added to the pool',
+
+    PRIMARY KEY(`id`),
+    UNIQUE KEY `uc_warm_pool_vm__vm_id` (`vm_id`),
+    INDEX `i_warm_pool_vm__zone_template_offering` (`zone_id`, `template_id`, `service_offering_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server',
+'cloud.container.cluster.warm.pool.networks', NULL, 'Comma separated UUIDs of the networks, one per zone, that pre-deployed container cluster node VMs are parked on. The warm pool is disabled if empty.', NULL, NULL, NULL, 0);
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server',
+'cloud.container.cluster.warm.pool.service.offerings', NULL, 'Comma separated UUIDs of the service offerings to keep pre-deployed container cluster node VMs for.', NULL, NULL, NULL, 0);
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server',
+'cloud.container.cluster.warm.pool.min.size', '2', 'Number of pre-deployed container cluster node VMs per zone and service offering below which the warm pool gets refilled.', '2', NULL, NULL, 0);
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server',
+'cloud.container.cluster.warm.pool.max.size', '4', 'Number of pre-deployed container cluster node VMs per zone and service offering the warm pool gets refilled up to.', '4', NULL, NULL, 0);
@@ -0,0 +1,31 @@
+-- Copyright 2016 ShapeBlue Ltd
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--      http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+
+use cloud;
+
+CREATE TABLE IF NOT EXISTS `cloud`.`sb_ccs_container_cluster_phase_stat` (
+    `id` bigint unsigned NOT NULL auto_increment COMMENT 'id',
+    `cluster_id` bigint unsigned NOT NULL COMMENT 'cluster id',
+    `zone_id` bigint unsigned NOT NULL COMMENT 'zone of the cluster',
+    `operation` varchar(32) NOT NULL COMMENT 'cluster operation the phase is part of (Create, Start, Stop, Delete)',
+    `phase` varchar(64) NOT NULL COMMENT 'name of the timed phase',
+    `vm_id` bigint unsigned COMMENT 'vm the phase was run for, if any',
+    `started` datetime NOT NULL COMMENT 'date the phase started',
+    `duration_ms` bigint unsigned NOT NULL COMMENT 'time the phase took in milliseconds',
+    `success` tinyint(1) unsigned NOT NULL COMMENT 'whether the phase succeeded',
+
+    PRIMARY KEY(`id`),
+    INDEX `i_container_cluster_phase_stat__zone_started` (`zone_id`, `started`),
+    CONSTRAINT `container_cluster_phase_stat_cluster__id` FOREIGN KEY `container_cluster_phase_stat_cluster__id`(`cluster_id`) REFERENCES `sb_ccs_container_cluster`(`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
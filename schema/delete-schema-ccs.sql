@@ -14,6 +14,9 @@
 
 use cloud;
 
+DROP TABLE IF EXISTS `cloud`.`sb_ccs_container_cluster_phase_stat`;
+DROP TABLE IF EXISTS `cloud`.`sb_ccs_warm_pool_vm`;
+DROP TABLE IF EXISTS `cloud`.`sb_ccs_container_cluster_provisioning_step`;
 DROP TABLE IF EXISTS `cloud`.`sb_ccs_container_cluster_vm_map`;
 DROP TABLE IF EXISTS `cloud`.`sb_ccs_container_cluster_details`;
 DROP TABLE IF EXISTS `cloud`.`sb_ccs_container_cluster`;
@@ -23,6 +26,17 @@ DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.template
 DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.master.cloudconfig';
 DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.node.cloudconfig';
 DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.network.offering';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.provisioning.workers';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.callback.url';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.callback.port';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.keypair.pool.size';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.warm.pool.networks';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.warm.pool.service.offerings';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.warm.pool.min.size';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.warm.pool.max.size';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.userdata.compress';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.userdata.max.length';
+DELETE FROM `cloud`.`configuration` WHERE name='cloud.container.cluster.placement.strategy';
 
 SET @ccs_ntwk_offering_id = (select id from network_offerings where name='DefaultNetworkOfferingforContainerService' and removed IS NULL);
 
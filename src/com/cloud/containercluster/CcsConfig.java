@@ -25,7 +25,18 @@ public enum CcsConfig {
     ContainerClusterMasterCloudConfig("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.master.cloudconfig", null, "file location path of the cloud config used for creating       container cluster master node", null, null),
     ContainerClusterNodeCloudConfig("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.node.cloudconfig", null, "file location path of the cloud config used for creating           container cluster node", null, null),
     ContainerClusterNetworkOffering("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.network.offering", null, "Name of the network offering that will be used to create           isolated network in which container cluster VMs will be launched.", null, null),
-    ContainerClusterBinariesIsoName("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.binaries.iso.name", null, "Name of the ISO that contains k8s binaries and docker images for offline installation.", null, null);
+    ContainerClusterBinariesIsoName("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.binaries.iso.name", null, "Name of the ISO that contains k8s binaries and docker images for offline installation.", null, null),
+    ContainerClusterProvisioningWorkers("Advanced", ManagementServer.class, Integer.class, "cloud.container.cluster.provisioning.workers", "10", "Maximum number of container cluster VMs that are deployed and started concurrently by a management server.", null, null),
+    ContainerClusterCallbackUrl("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.callback.url", null, "Base URL (like http://<management server ip>:8099) at which container cluster VMs report their bootstrap progress to the management server. Callbacks are disabled if empty.", null, null),
+    ContainerClusterCallbackPort("Advanced", ManagementServer.class, Integer.class, "cloud.container.cluster.callback.port", "8099", "Port on which the management server listens for bootstrap progress callbacks from container cluster VMs.", null, null),
+    ContainerClusterKeyPairPoolSize("Advanced", ManagementServer.class, Integer.class, "cloud.container.cluster.keypair.pool.size", "4", "Number of key pairs for container cluster master certificates that a management server generates ahead of time. 0 disables the pool.", null, null),
+    ContainerClusterWarmPoolNetworks("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.warm.pool.networks", null, "Comma separated UUIDs of the networks, one per zone, that pre-deployed container cluster node VMs are parked on. The warm pool is disabled if empty.", null, null),
+    ContainerClusterWarmPoolServiceOfferings("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.warm.pool.service.offerings", null, "Comma separated UUIDs of the service offerings to keep pre-deployed container cluster node VMs for.", null, null),
+    ContainerClusterWarmPoolMinSize("Advanced", ManagementServer.class, Integer.class, "cloud.container.cluster.warm.pool.min.size", "2", "Number of pre-deployed container cluster node VMs per zone and service offering below which the warm pool gets refilled.", null, null),
+    ContainerClusterWarmPoolMaxSize("Advanced", ManagementServer.class, Integer.class, "cloud.container.cluster.warm.pool.max.size", "4", "Number of pre-deployed container cluster node VMs per zone and service offering the warm pool gets refilled up to.", null, null),
+    ContainerClusterUserDataCompress("Advanced", ManagementServer.class, Boolean.class, "cloud.container.cluster.userdata.compress", "false", "Whether the cloud-config of container cluster VMs is gzip compressed before it is Base64 encoded into the VM user data.", null, null),
+    ContainerClusterUserDataMaxLength("Advanced", ManagementServer.class, Integer.class, "cloud.container.cluster.userdata.max.length", "32768", "Maximum length of the Base64 encoded user data of container cluster VMs. Creating a cluster fails early if the rendered cloud-config exceeds it.", null, null),
+    ContainerClusterPlacementStrategy("Advanced", ManagementServer.class, String.class, "cloud.container.cluster.placement.strategy", "Spread", "Strategy by which the hosts of container cluster VMs are planned: BestFit packs them onto as few hosts as possible, Spread puts them on as many hosts as possible, AntiAffinity puts every VM on a host of its own or fails.", "BestFit,Spread,AntiAffinity", null);
 
 
     private final String _category;
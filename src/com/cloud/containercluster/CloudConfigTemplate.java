@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+
+/**
+ * CloudConfigTemplate is a cloud-config file parsed once into literal text and {{ placeholder }} segments, so that
+ * it can be rendered many times without re-reading the file or copying the whole document for every placeholder.
+ *
+ * A multi-line value rendered into a placeholder that is the first thing on its line gets each of its following lines
+ * indented like the placeholder, so values like PEM certificates can be passed as is. Placeholders without a value are
+ * rendered unchanged. Besides placeholders, a template can have insertion points at given marker lines (like
+ * 'write-files:'); a value given for a marker is rendered right after the first occurrence of the marker.
+ */
+public class CloudConfigTemplate {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{\\s*([\\w.]+)\\s*\\}\\}");
+
+    // templates loaded from files, keyed by path and invalidated when the file changes
+    private static final Map<String, CloudConfigTemplate> s_templateCache = new ConcurrentHashMap<String, CloudConfigTemplate>();
+
+    private static class Segment {
+        final String text;
+        final String name;
+        final String indent;
+
+        Segment(String text, String name, String indent) {
+            this.text = text;
+            this.name = name;
+            this.indent = indent;
+        }
+    }
+
+    private final List<Segment> _segments;
+    private final int _length;
+    private final long _lastModified;
+    private final long _size;
+
+    private CloudConfigTemplate(List<Segment> segments, int length, long lastModified, long size) {
+        _segments = segments;
+        _length = length;
+        _lastModified = lastModified;
+        _size = size;
+    }
+
+    /**
+     * Returns the template for the cloud-config file at the path, parsing the file only if it was not parsed
+     * before or if it changed since.
+     */
+    public static CloudConfigTemplate load(final String path, final String... markers) throws IOException {
+        final Path file = Paths.get(path);
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+        final long size = Files.size(file);
+        final String key = path + '\0' + String.join("\0", markers);
+        CloudConfigTemplate template = s_templateCache.get(key);
+        if (template == null || template._lastModified != lastModified || template._size != size) {
+            template = parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), lastModified, size, markers);
+            s_templateCache.put(key, template);
+        }
+        return template;
+    }
+
+    public static CloudConfigTemplate parse(final String text, final String... markers) {
+        return parse(text, 0, text.length(), markers);
+    }
+
+    private static CloudConfigTemplate parse(final String text, final long lastModified, final long size, final String... markers) {
+        final List<Segment> segments = new ArrayList<Segment>();
+
+        // split off the marker insertion points first, then the placeholders in between
+        final List<int[]> markerPositions = new ArrayList<int[]>();
+        for (int i = 0; i < markers.length; i++) {
+            int idx = text.indexOf(markers[i]);
+            if (idx >= 0) {
+                markerPositions.add(new int[] {idx, i});
+            }
+        }
+        Collections.sort(markerPositions, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] p1, int[] p2) {
+                return Integer.compare(p1[0], p2[0]);
+            }
+        });
+
+        int pos = 0;
+        for (int[] markerPosition : markerPositions) {
+            if (markerPosition[0] < pos) {
+                continue;
+            }
+            final String marker = markers[markerPosition[1]];
+            parsePlaceholders(text, pos, markerPosition[0], segments);
+            segments.add(new Segment(null, marker, null));
+            pos = markerPosition[0] + marker.length();
+        }
+        parsePlaceholders(text, pos, text.length(), segments);
+
+        return new CloudConfigTemplate(Collections.unmodifiableList(segments), text.length(), lastModified, size);
+    }
+
+    private static void parsePlaceholders(final String text, final int start, final int end, final List<Segment> segments) {
+        final Matcher matcher = PLACEHOLDER.matcher(text).region(start, end);
+        int pos = start;
+        while (matcher.find()) {
+            if (matcher.start() > pos) {
+                segments.add(new Segment(text.substring(pos, matcher.start()), null, null));
+            }
+            segments.add(new Segment(matcher.group(), matcher.group(1), indentOf(text, matcher.start())));
+            pos = matcher.end();
+        }
+        if (pos < end) {
+            segments.add(new Segment(text.substring(pos, end), null, null));
+        }
+    }
+
+    // whitespace before the placeholder if it is the first thing on its line, null otherwise
+    private static String indentOf(final String text, final int placeholderStart) {
+        int lineStart = text.lastIndexOf('\n', placeholderStart - 1) + 1;
+        for (int i = lineStart; i < placeholderStart; i++) {
+            if (text.charAt(i) != ' ') {
+                return null;
+            }
+        }
+        return text.substring(lineStart, placeholderStart);
+    }
+
+    public void render(final Map<String, String> values, final Writer out) throws IOException {
+        for (Segment segment : _segments) {
+            if (segment.name == null) {
+                out.write(segment.text);
+                continue;
+            }
+            final String value = values.get(segment.name);
+            if (segment.text == null) {
+                // marker insertion point
+                out.write(segment.name);
+                if (value != null) {
+                    out.write(value);
+                }
+            } else if (value == null) {
+                out.write(segment.text);
+            } else if (segment.indent == null || segment.indent.isEmpty() || value.indexOf('\n') < 0) {
+                out.write(value);
+            } else {
+                int pos = 0;
+                int nl;
+                while ((nl = value.indexOf('\n', pos)) >= 0) {
+                    out.write(value, pos, nl + 1 - pos);
+                    out.write(segment.indent);
+                    pos = nl + 1;
+                }
+                out.write(value, pos, value.length() - pos);
+            }
+        }
+    }
+
+    public String render(final Map<String, String> values) {
+        final StringWriter out = new StringWriter(_length + 8192);
+        try {
+            render(values, out);
+        } catch (IOException e) {
+            // not thrown by StringWriter
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders the template as Base64 encoded UTF-8, ready to be passed as user data, without building the rendered
+     * document as an intermediate string.
+     */
+    public String renderBase64(final Map<String, String> values) throws IOException {
+        return renderBase64(values, false);
+    }
+
+    /**
+     * Renders the template as Base64 encoded UTF-8, gzip compressed before encoding if asked to. cloud-init and
+     * coreos-cloudinit both detect and inflate gzip compressed user data.
+     */
+    public String renderBase64(final Map<String, String> values, final boolean gzip) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(gzip ? _length / 2 : (_length + 8192) * 4 / 3);
+        OutputStream encoded = new Base64OutputStream(buffer, true, 0, null);
+        if (gzip) {
+            encoded = new GZIPOutputStream(encoded);
+        }
+        try (Writer out = new OutputStreamWriter(encoded, StandardCharsets.UTF_8)) {
+            render(values, out);
+        }
+        return buffer.toString(StandardCharsets.US_ASCII.name());
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.common.base.Strings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ContainerClusterCallbackListener accepts the bootstrap milestone callbacks made by the cloud-config scripts of the
+ * container cluster VMs, so that provisioning can move on as soon as a milestone is reached on the VM instead of
+ * waiting for the next poll from the management server. A callback is only accepted for a cluster whose provisioning
+ * is in progress on this management server, and only once per milestone, with the token of the milestone.
+ *
+ * The token of a milestone is derived from a secret of the cluster that never leaves the management server, and is
+ * only rendered into the user data of the VM that reports the milestone. Both milestones are reported by the master,
+ * so the user data of the nodes carries no token. A token is spent by its first callback, so one seen on the wire
+ * cannot be replayed.
+ *
+ * Registrations are kept in memory by the management server provisioning the cluster, and the callback URL is one
+ * setting for all management servers, so callbacks only ever reach the management server that listens on its address.
+ * Other management servers do not listen, render no callback URL into the user data of the clusters they provision,
+ * and poll those clusters as before. A callback for a cluster not being provisioned by this management server, such as
+ * one whose create got resumed by another, is answered with 404, and its provisioning falls back to polling as well.
+ *
+ * Callbacks only cut short the waits for the API server and the add-ons. The management server still fetches the
+ * kube config over SSH from the public IP of the cluster, and watches the add-ons through the API server on that IP,
+ * so it has to be able to reach the public network of the cluster either way.
+ */
+public class ContainerClusterCallbackListener extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterCallbackListener.class);
+
+    static final String CALLBACK_PATH = "/ccs/callback";
+
+    public enum Milestone {
+        KubeadmInit("kubeadm-init"),
+        AddOnsDeployed("addons-deployed");
+
+        private final String _name;
+
+        Milestone(String name) {
+            _name = name;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        static Milestone fromName(String name) {
+            for (Milestone milestone : values()) {
+                if (milestone._name.equals(name)) {
+                    return milestone;
+                }
+            }
+            return null;
+        }
+    }
+
+    static class Registration {
+        final String secret;
+        final Map<Milestone, CompletableFuture<Boolean>> milestones = new ConcurrentHashMap<Milestone, CompletableFuture<Boolean>>();
+        // milestones whose token is spent
+        final Set<Milestone> reported = ConcurrentHashMap.newKeySet();
+
+        Registration(String secret) {
+            this.secret = secret;
+        }
+
+        CompletableFuture<Boolean> milestone(Milestone milestone) {
+            CompletableFuture<Boolean> future = milestones.get(milestone);
+            if (future == null) {
+                milestones.putIfAbsent(milestone, new CompletableFuture<Boolean>());
+                future = milestones.get(milestone);
+            }
+            return future;
+        }
+    }
+
+    @Inject
+    protected ConfigurationDao _globalConfigDao;
+
+    // cluster uuid -> registration of the cluster being provisioned
+    private final Map<String, Registration> _registrations = new ConcurrentHashMap<String, Registration>();
+
+    private HttpServer _server;
+    private ExecutorService _executor;
+    private String _callbackUrl;
+
+    /**
+     * Returns the URL the VMs of the given cluster should call on reaching a milestone, or null if callbacks are
+     * disabled. The scripts append the milestone, its token and the host name as query parameters.
+     */
+    public String getCallbackUrl(final String clusterUuid) {
+        if (_server == null) {
+            return null;
+        }
+        return _callbackUrl + CALLBACK_PATH + "?cluster=" + clusterUuid;
+    }
+
+    /**
+     * Returns the token the VM reporting the milestone must call back with, or null if callbacks are disabled or the
+     * cluster has no secret.
+     */
+    public String getToken(final String secret, final Milestone milestone) {
+        if (_server == null || Strings.isNullOrEmpty(secret)) {
+            return null;
+        }
+        return deriveToken(secret, milestone);
+    }
+
+    // HMAC-SHA256 of the milestone keyed with the secret of the cluster
+    static String deriveToken(final String secret, final Milestone milestone) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return Hex.encodeHexString(mac.doFinal(milestone.getName().getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new CloudRuntimeException("Failed to derive the callback token of milestone " + milestone.getName(), e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return _server != null;
+    }
+
+    // starts accepting callbacks for the cluster, until unregister is called once its provisioning is over
+    public void register(final String clusterUuid, final String secret) {
+        if (!Strings.isNullOrEmpty(secret)) {
+            _registrations.put(clusterUuid, new Registration(secret));
+        }
+    }
+
+    public void unregister(final String clusterUuid) {
+        Registration registration = _registrations.remove(clusterUuid);
+        if (registration != null) {
+            for (CompletableFuture<Boolean> future : registration.milestones.values()) {
+                future.complete(false);
+            }
+        }
+    }
+
+    /**
+     * Returns a future that completes with true once any VM of the cluster reports the milestone, or with false if
+     * the cluster is unregistered first. Returns null if the cluster is not registered.
+     */
+    public CompletableFuture<Boolean> awaitMilestone(final String clusterUuid, final Milestone milestone) {
+        Registration registration = _registrations.get(clusterUuid);
+        if (registration == null) {
+            return null;
+        }
+        return registration.milestone(milestone);
+    }
+
+    @Override
+    public boolean start() {
+        _callbackUrl = _globalConfigDao.getValue(CcsConfig.ContainerClusterCallbackUrl.key());
+        if (Strings.isNullOrEmpty(_callbackUrl)) {
+            s_logger.info("Container cluster provisioning callbacks are disabled as " + CcsConfig.ContainerClusterCallbackUrl.key() + " is not set");
+            return true;
+        }
+        if (_callbackUrl.endsWith("/")) {
+            _callbackUrl = _callbackUrl.substring(0, _callbackUrl.length() - 1);
+        }
+        int port = NumbersUtil.parseInt(_globalConfigDao.getValue(CcsConfig.ContainerClusterCallbackPort.key()), 8099);
+        // only listen on the interface the VMs are told to call back on
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(new URL(_callbackUrl).getHost());
+            _server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        } catch (IOException e) {
+            // as is the case on every management server but the one the callback URL points at
+            s_logger.info("Not listening for container cluster provisioning callbacks on " + _callbackUrl + " port " + port + " due to " + e
+                    + ", the clusters provisioned by this management server are polled instead");
+            return true;
+        }
+        _executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("Container-Cluster-Callback"));
+        _server.setExecutor(_executor);
+        _server.createContext(CALLBACK_PATH, new CallbackHandler());
+        _server.start();
+        s_logger.info("Listening for container cluster provisioning callbacks on " + address.getHostAddress() + " port " + port);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_server != null) {
+            _server.stop(0);
+            _executor.shutdown();
+            _server = null;
+        }
+        for (String clusterUuid : _registrations.keySet()) {
+            unregister(clusterUuid);
+        }
+        return true;
+    }
+
+    // returns the HTTP status to respond with
+    int handleCallback(final Map<String, String> params) {
+        String clusterUuid = params.get("cluster");
+        Milestone milestone = Milestone.fromName(params.get("milestone"));
+        if (clusterUuid == null || milestone == null) {
+            return 400;
+        }
+        Registration registration = _registrations.get(clusterUuid);
+        if (registration == null) {
+            return 404;
+        }
+        String token = params.get("token");
+        String expected = deriveToken(registration.secret, milestone);
+        if (token == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            s_logger.warn("Rejected provisioning callback for container cluster " + clusterUuid + " with an invalid token");
+            return 403;
+        }
+        if (!registration.reported.add(milestone)) {
+            s_logger.warn("Rejected provisioning callback for container cluster " + clusterUuid + " with the already spent token of milestone "
+                    + milestone.getName());
+            return 403;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Container cluster " + clusterUuid + " VM " + params.get("host") + " reported milestone " + milestone.getName());
+        }
+        registration.milestone(milestone).complete(true);
+        return 204;
+    }
+
+    static Map<String, String> parseQuery(final String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            if (idx <= 0) {
+                continue;
+            }
+            try {
+                params.put(URLDecoder.decode(param.substring(0, idx), "UTF-8"), URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                s_logger.trace("Ignoring malformed callback parameter " + param);
+            }
+        }
+        return params;
+    }
+
+    private class CallbackHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                int status = 405;
+                if ("POST".equals(exchange.getRequestMethod()) || "GET".equals(exchange.getRequestMethod())) {
+                    status = handleCallback(parseQuery(exchange.getRequestURI().getRawQuery()));
+                }
+                exchange.sendResponseHeaders(status, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.containercluster.dao.ContainerClusterCapacityDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.Host;
+import com.cloud.host.Host.Type;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.resource.ResourceListener;
+import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
+import com.cloud.resource.ServerResource;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.fsm.StateListener;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * ContainerClusterCapacityIndex keeps the free CPU and RAM of the hosts of each zone container clusters are planned in,
+ * ordered by free CPU and then free RAM, so that planning starts from a ready capacity snapshot instead of loading the
+ * hosts, their capacities and the overcommit ratios of their clusters every time.
+ *
+ * A zone is loaded in full when it is first planned in. From then on, the hosts VMs are started on, stopped on or
+ * moved off are looked up again the next time the zone is planned in, and the zone is loaded in full again when hosts
+ * are added, removed or put into or out of maintenance, and every RESYNC_INTERVAL_SECONDS to pick up any change the
+ * events do not tell of, like changed overcommit ratios, hosts going down or capacity given back by the capacity
+ * checker.
+ *
+ * Hosts that are not Up and Enabled have no room for any VM. A snapshot may be asked for the hosts of one hypervisor
+ * type and host tag only, the way the deployment planner would look for hosts of the template and the offering.
+ */
+public class ContainerClusterCapacityIndex extends ComponentLifecycleBase implements StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualMachine> {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterCapacityIndex.class);
+
+    static final long RESYNC_INTERVAL_SECONDS = 300;
+
+    private static final Comparator<HostCapacity> FREE_CAPACITY_ORDER = new Comparator<HostCapacity>() {
+        @Override
+        public int compare(HostCapacity h1, HostCapacity h2) {
+            int order = Long.compare(h1.freeCpu, h2.freeCpu);
+            if (order == 0) {
+                order = Long.compare(h1.freeRam, h2.freeRam);
+            }
+            return order != 0 ? order : Long.compare(h1.hostId, h2.hostId);
+        }
+    };
+
+    @Inject
+    protected ResourceManager _resourceMgr;
+    @Inject
+    protected ContainerClusterCapacityDao _containerClusterCapacityDao;
+    @Inject
+    protected HostDao _hostDao;
+
+    private final Map<Long, ZoneIndex> _zones = new ConcurrentHashMap<Long, ZoneIndex>();
+    private final HostListener _hostListener = new HostListener();
+    private ScheduledExecutorService _resyncExecutor;
+
+    static class HostCapacity {
+        final long hostId;
+        final Long clusterId;
+        final HypervisorType hypervisorType;
+        // Up and Enabled when the zone was last loaded
+        final boolean usable;
+        final long freeCpu;
+        final long freeRam;
+
+        HostCapacity(long hostId, Long clusterId, HypervisorType hypervisorType, boolean usable, long freeCpu, long freeRam) {
+            this.hostId = hostId;
+            this.clusterId = clusterId;
+            this.hypervisorType = hypervisorType;
+            this.usable = usable;
+            this.freeCpu = freeCpu;
+            this.freeRam = freeRam;
+        }
+    }
+
+    static class ZoneIndex {
+        final long zoneId;
+        // changed while holding the zone index only
+        final TreeSet<HostCapacity> byFreeCapacity = new TreeSet<HostCapacity>(FREE_CAPACITY_ORDER);
+        final Map<Long, HostCapacity> hosts = new HashMap<Long, HostCapacity>();
+        Map<Long, Float> cpuRatios = new HashMap<Long, Float>();
+        Map<Long, Float> memoryRatios = new HashMap<Long, Float>();
+
+        // hosts to look up again, and whether to load the zone in full instead
+        final Set<Long> changedHosts = ConcurrentHashMap.newKeySet();
+        volatile boolean stale = true;
+        // built from the index on demand, null once the index changed
+        volatile ContainerClusterCapacitySnapshot snapshot;
+
+        ZoneIndex(long zoneId) {
+            this.zoneId = zoneId;
+        }
+    }
+
+    @Override
+    public boolean start() {
+        VirtualMachine.State.getStateMachine().registerListener(this);
+        _resourceMgr.registerResourceEvent(ResourceListener.EVENT_DISCOVER_AFTER | ResourceListener.EVENT_DELETE_HOST_AFTER
+                | ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER | ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, _hostListener);
+        _resyncExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Container-Cluster-Capacity-Index"));
+        _resyncExecutor.scheduleWithFixedDelay(new ResyncTask(), RESYNC_INTERVAL_SECONDS, RESYNC_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _resourceMgr.unregisterResourceEvent(_hostListener);
+        if (_resyncExecutor != null) {
+            _resyncExecutor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the capacity of the hosts of the zone, ordered by free CPU. Only the hosts that changed since the last
+     * call are looked up, if any.
+     */
+    public ContainerClusterCapacitySnapshot getSnapshot(final long zoneId) {
+        final ZoneIndex zone = getZone(zoneId);
+        final ContainerClusterCapacitySnapshot snapshot = zone.snapshot;
+        if (snapshot != null && !zone.stale && zone.changedHosts.isEmpty()) {
+            return snapshot;
+        }
+        synchronized (zone) {
+            if (zone.stale) {
+                resync(zone);
+            } else if (!zone.changedHosts.isEmpty()) {
+                refresh(zone);
+            }
+            if (zone.snapshot == null) {
+                zone.snapshot = buildSnapshot(zone);
+            }
+            return zone.snapshot;
+        }
+    }
+
+    /**
+     * Returns the capacity of the hosts of the zone of the given hypervisor type that have the given host tag, either
+     * of which may be null to not look at it, ordered by free CPU.
+     */
+    public ContainerClusterCapacitySnapshot getSnapshot(final long zoneId, final HypervisorType hypervisorType, final String hostTag) {
+        final ContainerClusterCapacitySnapshot snapshot = getSnapshot(zoneId);
+        final boolean anyHypervisor = hypervisorType == null || hypervisorType == HypervisorType.None || hypervisorType == HypervisorType.Any;
+        final boolean anyTag = hostTag == null || hostTag.isEmpty();
+        if (anyHypervisor && anyTag) {
+            return snapshot;
+        }
+        Set<Long> taggedHostIds = null;
+        if (!anyTag) {
+            taggedHostIds = new HashSet<Long>();
+            for (HostVO host : _hostDao.listByHostTag(Type.Routing, null, null, zoneId, hostTag)) {
+                taggedHostIds.add(host.getId());
+            }
+        }
+        final Set<Long> hostIds = new HashSet<Long>();
+        final ZoneIndex zone = getZone(zoneId);
+        synchronized (zone) {
+            for (HostCapacity host : zone.hosts.values()) {
+                if ((anyHypervisor || hypervisorType == host.hypervisorType) && (taggedHostIds == null || taggedHostIds.contains(host.hostId))) {
+                    hostIds.add(host.hostId);
+                }
+            }
+        }
+        return snapshot.retain(hostIds);
+    }
+
+    /**
+     * Has the capacity of the host looked up again the next time the zone is planned in.
+     */
+    public void hostChanged(final long zoneId, final long hostId) {
+        final ZoneIndex zone = _zones.get(zoneId);
+        if (zone != null) {
+            zone.changedHosts.add(hostId);
+        }
+    }
+
+    /**
+     * Has the zone loaded in full the next time it is planned in, or all zones if none is given.
+     */
+    public void zoneChanged(final Long zoneId) {
+        for (ZoneIndex zone : _zones.values()) {
+            if (zoneId == null || zoneId == zone.zoneId) {
+                zone.stale = true;
+            }
+        }
+    }
+
+    private ZoneIndex getZone(final long zoneId) {
+        ZoneIndex zone = _zones.get(zoneId);
+        if (zone == null) {
+            final ZoneIndex newZone = new ZoneIndex(zoneId);
+            zone = _zones.putIfAbsent(zoneId, newZone);
+            if (zone == null) {
+                zone = newZone;
+            }
+        }
+        return zone;
+    }
+
+    // loads the hosts of the zone with their capacities and the overcommit ratios of their clusters, in three queries
+    private void resync(final ZoneIndex zone) {
+        zone.stale = false;
+        zone.changedHosts.clear();
+        final List<HostVO> hosts = _resourceMgr.listAllHostsInOneZoneByType(Type.Routing, zone.zoneId);
+        final Set<Long> clusterIds = new HashSet<Long>();
+        for (HostVO host : hosts) {
+            if (host.getClusterId() != null) {
+                clusterIds.add(host.getClusterId());
+            }
+        }
+        final List<ClusterDetailsVO> overcommitRatios = clusterIds.isEmpty() ? new ArrayList<ClusterDetailsVO>()
+                : _containerClusterCapacityDao.listOvercommitRatios(new ArrayList<Long>(clusterIds));
+        final List<CapacityVO> capacities = _containerClusterCapacityDao.listHostCpuAndMemoryCapacities(zone.zoneId);
+
+        zone.cpuRatios = ContainerClusterCapacitySnapshot.getOvercommitRatios(overcommitRatios, ContainerClusterCapacitySnapshot.CPU_OVERCOMMIT_RATIO);
+        zone.memoryRatios = ContainerClusterCapacitySnapshot.getOvercommitRatios(overcommitRatios, ContainerClusterCapacitySnapshot.MEMORY_OVERCOMMIT_RATIO);
+        final Map<Long, CapacityVO> cpuCapacities = ContainerClusterCapacitySnapshot.getCapacities(capacities, Capacity.CAPACITY_TYPE_CPU);
+        final Map<Long, CapacityVO> memoryCapacities = ContainerClusterCapacitySnapshot.getCapacities(capacities, Capacity.CAPACITY_TYPE_MEMORY);
+        zone.byFreeCapacity.clear();
+        zone.hosts.clear();
+        for (HostVO host : hosts) {
+            final boolean usable = host.getStatus() == Status.Up && host.getResourceState() == ResourceState.Enabled;
+            put(zone, getHostCapacity(zone, host.getId(), host.getClusterId(), host.getHypervisorType(), usable, cpuCapacities.get(host.getId()),
+                    memoryCapacities.get(host.getId())));
+        }
+        zone.snapshot = null;
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded the capacity of " + hosts.size() + " hosts of zone " + zone.zoneId);
+        }
+    }
+
+    // looks up the capacities of the hosts that changed, in one query
+    private void refresh(final ZoneIndex zone) {
+        final List<Long> hostIds = new ArrayList<Long>();
+        for (Long hostId : zone.changedHosts) {
+            // a host changing again from here on is looked up the next time
+            zone.changedHosts.remove(hostId);
+            if (!zone.hosts.containsKey(hostId)) {
+                // not known in this zone yet
+                resync(zone);
+                return;
+            }
+            hostIds.add(hostId);
+        }
+        final List<CapacityVO> capacities = _containerClusterCapacityDao.listCpuAndMemoryCapacitiesOfHosts(hostIds);
+        final Map<Long, CapacityVO> cpuCapacities = ContainerClusterCapacitySnapshot.getCapacities(capacities, Capacity.CAPACITY_TYPE_CPU);
+        final Map<Long, CapacityVO> memoryCapacities = ContainerClusterCapacitySnapshot.getCapacities(capacities, Capacity.CAPACITY_TYPE_MEMORY);
+        for (Long hostId : hostIds) {
+            final HostCapacity old = zone.hosts.get(hostId);
+            zone.byFreeCapacity.remove(old);
+            put(zone, getHostCapacity(zone, hostId, old.clusterId, old.hypervisorType, old.usable, cpuCapacities.get(hostId), memoryCapacities.get(hostId)));
+        }
+        zone.snapshot = null;
+    }
+
+    private static HostCapacity getHostCapacity(final ZoneIndex zone, final long hostId, final Long clusterId, final HypervisorType hypervisorType,
+                                                final boolean usable, final CapacityVO cpu, final CapacityVO memory) {
+        if (!usable || cpu == null || memory == null) {
+            return new HostCapacity(hostId, clusterId, hypervisorType, usable, -1, -1);
+        }
+        return new HostCapacity(hostId, clusterId, hypervisorType, usable, ContainerClusterCapacitySnapshot.getFree(cpu, zone.cpuRatios.get(clusterId)),
+                ContainerClusterCapacitySnapshot.getFree(memory, zone.memoryRatios.get(clusterId)));
+    }
+
+    private static void put(final ZoneIndex zone, final HostCapacity host) {
+        zone.hosts.put(host.hostId, host);
+        zone.byFreeCapacity.add(host);
+    }
+
+    private static ContainerClusterCapacitySnapshot buildSnapshot(final ZoneIndex zone) {
+        final long[] hostIds = new long[zone.byFreeCapacity.size()];
+        final long[] freeCpu = new long[hostIds.length];
+        final long[] freeRam = new long[hostIds.length];
+        int h = 0;
+        for (HostCapacity host : zone.byFreeCapacity) {
+            hostIds[h] = host.hostId;
+            freeCpu[h] = host.freeCpu;
+            freeRam[h] = host.freeRam;
+            h++;
+        }
+        return new ContainerClusterCapacitySnapshot(hostIds, freeCpu, freeRam, true);
+    }
+
+    @Override
+    public boolean preStateTransitionEvent(VirtualMachine.State oldState, VirtualMachine.Event event, VirtualMachine.State newState, VirtualMachine vm,
+                                           boolean status, Object opaque) {
+        return true;
+    }
+
+    // the VM took up or gave back capacity on its current or its last host
+    @Override
+    public boolean postStateTransitionEvent(StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event> transition, VirtualMachine vm,
+                                            boolean status, Object opaque) {
+        if (status && transition.getCurrentState() != transition.getToState()) {
+            if (vm.getHostId() != null) {
+                hostChanged(vm.getDataCenterId(), vm.getHostId());
+            }
+            if (vm.getLastHostId() != null) {
+                hostChanged(vm.getDataCenterId(), vm.getLastHostId());
+            }
+        }
+        return true;
+    }
+
+    private class HostListener implements ResourceListener {
+        @Override
+        public void processDiscoverEventBefore(Long dcid, Long podId, Long clusterId, URI uri, String username, String password, List<String> hostTags) {
+        }
+
+        @Override
+        public void processDiscoverEventAfter(Map<? extends ServerResource, Map<String, String>> resources) {
+            zoneChanged(null);
+        }
+
+        @Override
+        public void processDeleteHostEventBefore(Host host) {
+        }
+
+        @Override
+        public void processDeletHostEventAfter(Host host) {
+            zoneChanged(host.getDataCenterId());
+        }
+
+        @Override
+        public void processCancelMaintenaceEventBefore(Long hostId) {
+        }
+
+        @Override
+        public void processCancelMaintenaceEventAfter(Long hostId) {
+            zoneChanged(null);
+        }
+
+        @Override
+        public void processPrepareMaintenaceEventBefore(Long hostId) {
+        }
+
+        @Override
+        public void processPrepareMaintenaceEventAfter(Long hostId) {
+            zoneChanged(null);
+        }
+    }
+
+    private class ResyncTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            for (ZoneIndex zone : _zones.values()) {
+                try {
+                    synchronized (zone) {
+                        resync(zone);
+                    }
+                } catch (Exception e) {
+                    s_logger.warn("Failed to load the capacity of the hosts of zone " + zone.zoneId + " due to " + e);
+                    zone.stale = true;
+                }
+            }
+        }
+    }
+}
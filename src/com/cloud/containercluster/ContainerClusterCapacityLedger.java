@@ -0,0 +1,317 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.apache.log4j.Logger;
+
+import com.cloud.containercluster.dao.ContainerClusterCapacityReservationDao;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallbackNoReturn;
+import com.cloud.utils.db.TransactionStatus;
+
+/**
+ * ContainerClusterCapacityLedger holds the CPU and RAM planned for the VMs of the container clusters being provisioned
+ * on their hosts, from the time the hosts are planned until the VMs are started and so show up in the used capacity
+ * of the hosts. Capacity held for one cluster is not free for the others, so of two clusters planned at the same time
+ * against the same free capacity the one that does not fit fails right away rather than when its VMs are started.
+ *
+ * Reserving the VMs of a cluster is atomic over all of their hosts. Hosts are guarded by a fixed set of locks, each
+ * guarding the hosts whose id hashes to it, which are taken in order so that clusters planned at the same time only
+ * wait for each other if they share a lock.
+ *
+ * The capacity held by this management server is kept in memory, and recorded in the database for the other
+ * management servers to take off their snapshots too. Reservations of clusters in the same zone on different
+ * management servers are only atomic with respect to each other if they are made under a lock on the zone, which
+ * the manager takes. The rows of a management server are dropped when it starts, and by the others once it is down.
+ */
+public class ContainerClusterCapacityLedger extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterCapacityLedger.class);
+
+    static final int STRIPES = 64;
+
+    @Inject
+    protected ContainerClusterCapacityReservationDao _reservationDao;
+
+    long _msId = ManagementServerNode.getManagementServerId();
+
+    private final ReentrantLock[] _stripes = new ReentrantLock[STRIPES];
+
+    // CPU in MHz and RAM in bytes held on the hosts, only changed with the lock of the host held
+    private final Map<Long, long[]> _heldByHost = new ConcurrentHashMap<Long, long[]>();
+
+    private final Map<Long, Reservation> _reservations = new ConcurrentHashMap<Long, Reservation>();
+
+    static class Reservation {
+        final ContainerClusterPlacement placement;
+        final long cpu;
+        final long ram;
+        // whether the VM still holds capacity on its host
+        final boolean[] holding;
+
+        Reservation(ContainerClusterPlacement placement, int vmCount, long cpu, long ram) {
+            this.placement = placement;
+            this.cpu = cpu;
+            this.ram = ram;
+            this.holding = new boolean[vmCount];
+            Arrays.fill(holding, true);
+        }
+    }
+
+    public ContainerClusterCapacityLedger() {
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public boolean start() {
+        // the clusters this management server was provisioning before it restarted are provisioned again, if at all,
+        // with capacity reserved anew
+        _reservationDao.removeByManagementServerId(_msId);
+        return true;
+    }
+
+    private static int getStripe(final long hostId) {
+        return (int)((hostId ^ (hostId >>> 32)) & (STRIPES - 1));
+    }
+
+    /**
+     * Returns the snapshot of the zone with the capacity held on its hosts, by this management server or any other,
+     * taken off their free capacity. The snapshot itself is returned if no capacity is held.
+     */
+    public ContainerClusterCapacitySnapshot deduct(final long zoneId, final ContainerClusterCapacitySnapshot snapshot) {
+        final Map<Long, long[]> heldElsewhere = getHeldElsewhere(zoneId);
+        if (_heldByHost.isEmpty() && heldElsewhere.isEmpty()) {
+            return snapshot;
+        }
+        final long[] heldCpu = new long[snapshot.size()];
+        final long[] heldRam = new long[snapshot.size()];
+        for (int h = 0; h < snapshot.size(); h++) {
+            if (snapshot.getFreeCpu(h) < 0 || snapshot.getFreeRam(h) < 0) {
+                continue;
+            }
+            final long[] held = _heldByHost.get(snapshot.getHostId(h));
+            final long[] elsewhere = heldElsewhere.get(snapshot.getHostId(h));
+            heldCpu[h] = (held == null ? 0 : held[0]) + (elsewhere == null ? 0 : elsewhere[0]);
+            heldRam[h] = (held == null ? 0 : held[1]) + (elsewhere == null ? 0 : elsewhere[1]);
+        }
+        return snapshot.less(heldCpu, heldRam);
+    }
+
+    /**
+     * Holds the CPU and RAM of the first vmCount VMs of the placement on their hosts for the cluster, if the hosts
+     * have room for them in the snapshot of the zone the placement was planned on, besides the capacity held already
+     * by any management server. Any capacity held for the cluster before is given up first. Returns whether the
+     * capacity is now held.
+     */
+    public boolean reserve(final long clusterId, final long zoneId, final ContainerClusterCapacitySnapshot snapshot,
+                           final ContainerClusterPlacement placement, final int vmCount, final long cpu, final long ram) {
+        release(clusterId);
+        final Map<Long, long[]> heldElsewhere = getHeldElsewhere(zoneId);
+
+        final Map<Integer, Integer> vmsByHost = new HashMap<Integer, Integer>();
+        final boolean[] stripes = new boolean[STRIPES];
+        for (int vm = 0; vm < vmCount; vm++) {
+            final int host = placement.getHostIndex(vm);
+            final Integer vms = vmsByHost.get(host);
+            vmsByHost.put(host, vms == null ? 1 : vms + 1);
+            stripes[getStripe(snapshot.getHostId(host))] = true;
+        }
+
+        lock(stripes);
+        try {
+            for (Map.Entry<Integer, Integer> hostVms : vmsByHost.entrySet()) {
+                final int host = hostVms.getKey();
+                final long[] held = _heldByHost.get(snapshot.getHostId(host));
+                final long[] elsewhere = heldElsewhere.get(snapshot.getHostId(host));
+                final long heldCpu = (held == null ? 0 : held[0]) + (elsewhere == null ? 0 : elsewhere[0]);
+                final long heldRam = (held == null ? 0 : held[1]) + (elsewhere == null ? 0 : elsewhere[1]);
+                if (!snapshot.hasCapacity(host, heldCpu + cpu * hostVms.getValue(), heldRam + ram * hostVms.getValue())) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Host " + snapshot.getHostId(host) + " has no room left for " + hostVms.getValue() + " VMs of container cluster "
+                                + clusterId + " besides cpu=" + heldCpu + " ram=" + heldRam + " held for other clusters");
+                    }
+                    return false;
+                }
+            }
+            for (Map.Entry<Integer, Integer> hostVms : vmsByHost.entrySet()) {
+                hold(snapshot.getHostId(hostVms.getKey()), cpu * hostVms.getValue(), ram * hostVms.getValue());
+            }
+            _reservations.put(clusterId, new Reservation(placement, vmCount, cpu, ram));
+        } finally {
+            unlock(stripes);
+        }
+
+        try {
+            Transaction.execute(new TransactionCallbackNoReturn() {
+                @Override
+                public void doInTransactionWithoutResult(TransactionStatus status) {
+                    for (int vm = 0; vm < vmCount; vm++) {
+                        _reservationDao.persist(new ContainerClusterCapacityReservationVO(clusterId, vm, zoneId, placement.getHostId(vm), _msId, cpu, ram));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            release(clusterId);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the placement capacity is held for on behalf of the cluster, or null if there is none.
+     */
+    public ContainerClusterPlacement getPlacement(final long clusterId) {
+        final Reservation reservation = _reservations.get(clusterId);
+        return reservation == null ? null : reservation.placement;
+    }
+
+    /**
+     * Gives up the capacity held for the VM of the cluster, once the VM is started and uses it up itself.
+     */
+    public void release(final long clusterId, final int vm) {
+        final Reservation reservation = _reservations.get(clusterId);
+        if (reservation == null || vm < 0 || vm >= reservation.holding.length) {
+            return;
+        }
+        final long hostId = reservation.placement.getHostId(vm);
+        final ReentrantLock lock = _stripes[getStripe(hostId)];
+        boolean released = false;
+        lock.lock();
+        try {
+            if (reservation.holding[vm]) {
+                reservation.holding[vm] = false;
+                hold(hostId, -reservation.cpu, -reservation.ram);
+                released = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (released) {
+            _reservationDao.removeByClusterIdAndVmIndex(clusterId, vm);
+        }
+    }
+
+    /**
+     * Gives up all of the capacity held for the cluster, including any held by another management server that was
+     * provisioning the cluster before.
+     */
+    public void release(final long clusterId) {
+        _reservationDao.removeByClusterId(clusterId);
+        final Reservation reservation = _reservations.remove(clusterId);
+        if (reservation == null) {
+            return;
+        }
+        for (int vm = 0; vm < reservation.holding.length; vm++) {
+            final long hostId = reservation.placement.getHostId(vm);
+            final ReentrantLock lock = _stripes[getStripe(hostId)];
+            lock.lock();
+            try {
+                if (reservation.holding[vm]) {
+                    reservation.holding[vm] = false;
+                    hold(hostId, -reservation.cpu, -reservation.ram);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * CPU in MHz and RAM in bytes held on the host.
+     */
+    public long[] getHeld(final long hostId) {
+        final long[] held = _heldByHost.get(hostId);
+        return held == null ? new long[] {0, 0} : held.clone();
+    }
+
+    /**
+     * Drops the capacity held by the management servers that are not among the given ones, which are up.
+     */
+    public void releaseHeldByOthersThan(final Set<Long> msIds) {
+        try {
+            for (ContainerClusterCapacityReservationVO reservation : _reservationDao.listAll()) {
+                if (!msIds.contains(reservation.getManagementServerId())) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Releasing the capacity held on host " + reservation.getHostId() + " for container cluster " + reservation.getClusterId()
+                                + " by management server " + reservation.getManagementServerId() + ", which is down");
+                    }
+                    _reservationDao.expunge(reservation.getId());
+                }
+            }
+        } catch (RuntimeException e) {
+            s_logger.warn("Failed to release the capacity held by management servers that are down due to " + e);
+        }
+    }
+
+    // CPU and RAM held on the hosts of the zone by the other management servers, by host
+    private Map<Long, long[]> getHeldElsewhere(final long zoneId) {
+        final Map<Long, long[]> heldByHost = new HashMap<Long, long[]>();
+        for (ContainerClusterCapacityReservationVO reservation : _reservationDao.listByZoneId(zoneId)) {
+            if (reservation.getManagementServerId() == _msId) {
+                continue;
+            }
+            final long[] held = heldByHost.get(reservation.getHostId());
+            if (held == null) {
+                heldByHost.put(reservation.getHostId(), new long[] {reservation.getCpu(), reservation.getRam()});
+            } else {
+                held[0] += reservation.getCpu();
+                held[1] += reservation.getRam();
+            }
+        }
+        return heldByHost;
+    }
+
+    // with the lock of the host held
+    private void hold(final long hostId, final long cpu, final long ram) {
+        final long[] held = _heldByHost.get(hostId);
+        final long heldCpu = (held == null ? 0 : held[0]) + cpu;
+        final long heldRam = (held == null ? 0 : held[1]) + ram;
+        if (heldCpu <= 0 && heldRam <= 0) {
+            _heldByHost.remove(hostId);
+        } else {
+            _heldByHost.put(hostId, new long[] {heldCpu, heldRam});
+        }
+    }
+
+    private void lock(final boolean[] stripes) {
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes[i]) {
+                _stripes[i].lock();
+            }
+        }
+    }
+
+    private void unlock(final boolean[] stripes) {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            if (stripes[i]) {
+                _stripes[i].unlock();
+            }
+        }
+    }
+}
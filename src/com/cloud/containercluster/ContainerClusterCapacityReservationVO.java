@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * The CPU and RAM held on a host for a VM of a container cluster being provisioned, by the management server
+ * provisioning it. The row is removed once the VM is started, or the provisioning ends.
+ */
+@Entity
+@Table(name = "sb_ccs_capacity_reservation")
+public class ContainerClusterCapacityReservationVO {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    long id;
+
+    @Column(name = "cluster_id")
+    long clusterId;
+
+    @Column(name = "vm_index")
+    int vmIndex;
+
+    @Column(name = "zone_id")
+    long zoneId;
+
+    @Column(name = "host_id")
+    long hostId;
+
+    @Column(name = "mgmt_server_id")
+    long managementServerId;
+
+    @Column(name = "cpu")
+    long cpu;
+
+    @Column(name = "ram")
+    long ram;
+
+    @Column(name = GenericDao.CREATED_COLUMN)
+    Date created;
+
+    public ContainerClusterCapacityReservationVO() {
+
+    }
+
+    public ContainerClusterCapacityReservationVO(long clusterId, int vmIndex, long zoneId, long hostId, long managementServerId, long cpu, long ram) {
+        this.clusterId = clusterId;
+        this.vmIndex = vmIndex;
+        this.zoneId = zoneId;
+        this.hostId = hostId;
+        this.managementServerId = managementServerId;
+        this.cpu = cpu;
+        this.ram = ram;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getClusterId() {
+        return clusterId;
+    }
+
+    public int getVmIndex() {
+        return vmIndex;
+    }
+
+    public long getZoneId() {
+        return zoneId;
+    }
+
+    public long getHostId() {
+        return hostId;
+    }
+
+    public long getManagementServerId() {
+        return managementServerId;
+    }
+
+    public long getCpu() {
+        return cpu;
+    }
+
+    public long getRam() {
+        return ram;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.HostVO;
+
+/**
+ * ContainerClusterCapacitySnapshot holds the free CPU and RAM of the hosts of a zone as they were at one point in
+ * time, so that placing the VMs of a container cluster can be tried out in memory instead of with queries per host
+ * and per VM. The free capacity of a host is worked out the way CapacityManager.checkIfHostHasCapacity does it: the
+ * total capacity scaled by the overcommit ratio of the cluster of the host, less the used and the reserved capacity.
+ * A host without CPU or memory capacity has no room for any VM.
+ *
+ * A snapshot may have its hosts ordered by free CPU, in which case the hosts with too little CPU for a VM are skipped
+ * without being looked at.
+ */
+public class ContainerClusterCapacitySnapshot {
+
+    public static final String CPU_OVERCOMMIT_RATIO = "cpuOvercommitRatio";
+    public static final String MEMORY_OVERCOMMIT_RATIO = "memoryOvercommitRatio";
+
+    private final long[] _hostIds;
+    private final long[] _freeCpu;
+    private final long[] _freeRam;
+    // free CPU the hosts are ordered by, at least their free CPU now, or null if they are not ordered
+    private final long[] _orderCpu;
+
+    ContainerClusterCapacitySnapshot(long[] hostIds, long[] freeCpu, long[] freeRam) {
+        this(hostIds, freeCpu, freeRam, false);
+    }
+
+    ContainerClusterCapacitySnapshot(long[] hostIds, long[] freeCpu, long[] freeRam, boolean sortedByCpu) {
+        this(hostIds, freeCpu, freeRam, sortedByCpu ? freeCpu : null);
+    }
+
+    private ContainerClusterCapacitySnapshot(long[] hostIds, long[] freeCpu, long[] freeRam, long[] orderCpu) {
+        _hostIds = hostIds;
+        _freeCpu = freeCpu;
+        _freeRam = freeRam;
+        _orderCpu = orderCpu;
+    }
+
+    /**
+     * Returns the snapshot of the same hosts, in the same order, with the given CPU and RAM taken off their free
+     * capacity.
+     */
+    ContainerClusterCapacitySnapshot less(final long[] cpu, final long[] ram) {
+        final long[] freeCpu = new long[_hostIds.length];
+        final long[] freeRam = new long[_hostIds.length];
+        for (int h = 0; h < _hostIds.length; h++) {
+            freeCpu[h] = _freeCpu[h] - cpu[h];
+            freeRam[h] = _freeRam[h] - ram[h];
+        }
+        return new ContainerClusterCapacitySnapshot(_hostIds, freeCpu, freeRam, _orderCpu);
+    }
+
+    /**
+     * Returns the snapshot of the hosts of the given ids only, in the same order.
+     */
+    ContainerClusterCapacitySnapshot retain(final Set<Long> hostIds) {
+        int count = 0;
+        for (long hostId : _hostIds) {
+            if (hostIds.contains(hostId)) {
+                count++;
+            }
+        }
+        if (count == _hostIds.length) {
+            return this;
+        }
+        final long[] retainedIds = new long[count];
+        final long[] freeCpu = new long[count];
+        final long[] freeRam = new long[count];
+        final long[] orderCpu = _orderCpu == null ? null : new long[count];
+        int r = 0;
+        for (int h = 0; h < _hostIds.length; h++) {
+            if (!hostIds.contains(_hostIds[h])) {
+                continue;
+            }
+            retainedIds[r] = _hostIds[h];
+            freeCpu[r] = _freeCpu[h];
+            freeRam[r] = _freeRam[h];
+            if (orderCpu != null) {
+                orderCpu[r] = _orderCpu[h];
+            }
+            r++;
+        }
+        return new ContainerClusterCapacitySnapshot(retainedIds, freeCpu, freeRam, orderCpu);
+    }
+
+    /**
+     * Builds the snapshot of the hosts, in their order, from their CPU and memory capacities and the overcommit ratios
+     * of their clusters. A cluster without an overcommit ratio is not overcommitted.
+     */
+    static ContainerClusterCapacitySnapshot create(final List<HostVO> hosts, final List<CapacityVO> capacities,
+                                                   final List<ClusterDetailsVO> overcommitRatios) {
+        final Map<Long, Float> cpuRatios = getOvercommitRatios(overcommitRatios, CPU_OVERCOMMIT_RATIO);
+        final Map<Long, Float> memoryRatios = getOvercommitRatios(overcommitRatios, MEMORY_OVERCOMMIT_RATIO);
+        final Map<Long, CapacityVO> cpuCapacities = getCapacities(capacities, Capacity.CAPACITY_TYPE_CPU);
+        final Map<Long, CapacityVO> memoryCapacities = getCapacities(capacities, Capacity.CAPACITY_TYPE_MEMORY);
+
+        final long[] hostIds = new long[hosts.size()];
+        final long[] freeCpu = new long[hosts.size()];
+        final long[] freeRam = new long[hosts.size()];
+        for (int i = 0; i < hosts.size(); i++) {
+            final HostVO host = hosts.get(i);
+            hostIds[i] = host.getId();
+            final CapacityVO cpu = cpuCapacities.get(host.getId());
+            final CapacityVO memory = memoryCapacities.get(host.getId());
+            if (cpu == null || memory == null) {
+                freeCpu[i] = -1;
+                freeRam[i] = -1;
+                continue;
+            }
+            freeCpu[i] = getFree(cpu, cpuRatios.get(host.getClusterId()));
+            freeRam[i] = getFree(memory, memoryRatios.get(host.getClusterId()));
+        }
+        return new ContainerClusterCapacitySnapshot(hostIds, freeCpu, freeRam);
+    }
+
+    // overcommit ratios of the given name, by cluster id
+    static Map<Long, Float> getOvercommitRatios(final List<ClusterDetailsVO> overcommitRatios, final String name) {
+        final Map<Long, Float> ratios = new HashMap<Long, Float>();
+        for (ClusterDetailsVO detail : overcommitRatios) {
+            if (name.equals(detail.getName())) {
+                ratios.put(detail.getClusterId(), Float.parseFloat(detail.getValue()));
+            }
+        }
+        return ratios;
+    }
+
+    // capacities of the given type, by host id
+    static Map<Long, CapacityVO> getCapacities(final List<CapacityVO> capacities, final short capacityType) {
+        final Map<Long, CapacityVO> byHost = new HashMap<Long, CapacityVO>();
+        for (CapacityVO capacity : capacities) {
+            if (capacity.getCapacityType() == capacityType) {
+                byHost.put(capacity.getHostOrPoolId(), capacity);
+            }
+        }
+        return byHost;
+    }
+
+    static long getFree(final CapacityVO capacity, final Float overcommitRatio) {
+        final long total = (long)(capacity.getTotalCapacity() * (overcommitRatio == null ? 1f : overcommitRatio));
+        return total - capacity.getUsedCapacity() - capacity.getReservedCapacity();
+    }
+
+    public int size() {
+        return _hostIds.length;
+    }
+
+    public long getHostId(final int host) {
+        return _hostIds[host];
+    }
+
+    /**
+     * Free CPU of the host in MHz.
+     */
+    public long getFreeCpu(final int host) {
+        return _freeCpu[host];
+    }
+
+    /**
+     * Free RAM of the host in bytes.
+     */
+    public long getFreeRam(final int host) {
+        return _freeRam[host];
+    }
+
+    public boolean hasCapacity(final int host, final long cpu, final long ram) {
+        return cpu <= _freeCpu[host] && ram <= _freeRam[host];
+    }
+
+    public boolean isSortedByCpu() {
+        return _orderCpu != null;
+    }
+
+    /**
+     * Returns the first host that may have the given free CPU if the hosts are ordered by free CPU, or else the first
+     * host. None of the hosts before it has that much CPU free.
+     */
+    public int getFirstWithCpu(final long cpu) {
+        if (_orderCpu == null) {
+            return 0;
+        }
+        int low = 0;
+        int high = _orderCpu.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (_orderCpu[mid] < cpu) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
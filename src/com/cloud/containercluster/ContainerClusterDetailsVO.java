@@ -100,6 +100,14 @@ public class ContainerClusterDetailsVO implements ContainerClusterDetails {
         this.networkCleanup = networkCleanup;
     }
 
+    public String getCallbackToken() {
+        return callbackToken;
+    }
+
+    public void setCallbackToken(String callbackToken) {
+        this.callbackToken = callbackToken;
+    }
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "id")
@@ -140,6 +148,9 @@ public class ContainerClusterDetailsVO implements ContainerClusterDetails {
     @Column(name = "network_cleanup")
     boolean networkCleanup;
 
+    @Column(name = "callback_token")
+    String callbackToken;
+
     public ContainerClusterDetailsVO() {
 
     }
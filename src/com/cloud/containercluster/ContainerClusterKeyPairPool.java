@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.utils.security.CertUtils;
+import org.apache.log4j.Logger;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * ContainerClusterKeyPairPool keeps a number of RSA key pairs generated ahead of time for the API server certificates
+ * of container cluster masters, so that creating a cluster only has to get a certificate signed for a ready key. The
+ * pool is refilled in the background up to the configured depth whenever a key pair is taken from it.
+ */
+public class ContainerClusterKeyPairPool extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterKeyPairPool.class);
+
+    static final int KEY_SIZE = 2048;
+
+    @Inject
+    protected ConfigurationDao _globalConfigDao;
+
+    private LinkedBlockingQueue<KeyPair> _keyPairs;
+    private ExecutorService _refillExecutor;
+    private final AtomicBoolean _refillScheduled = new AtomicBoolean(false);
+    private int _depth;
+
+    @Override
+    public boolean start() {
+        _depth = NumbersUtil.parseInt(_globalConfigDao.getValue(CcsConfig.ContainerClusterKeyPairPoolSize.key()), 4);
+        if (_depth < 0) {
+            _depth = 0;
+        }
+        _keyPairs = new LinkedBlockingQueue<KeyPair>(Math.max(1, _depth));
+        _refillExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("Container-Cluster-KeyPair-Generator"));
+        scheduleRefill();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_refillExecutor != null) {
+            _refillExecutor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Takes a key pair from the pool. If the pool ran dry the key pair is generated on the calling thread.
+     */
+    public KeyPair take() {
+        KeyPair keyPair = _keyPairs.poll();
+        scheduleRefill();
+        if (keyPair == null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Container cluster key pair pool is empty, generating key pair on demand");
+            }
+            keyPair = generateKeyPair();
+        }
+        return keyPair;
+    }
+
+    int size() {
+        return _keyPairs.size();
+    }
+
+    private void scheduleRefill() {
+        if (_depth == 0 || _keyPairs.size() >= _depth || !_refillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        _refillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (_keyPairs.size() < _depth && !Thread.currentThread().isInterrupted()) {
+                        if (!_keyPairs.offer(generateKeyPair())) {
+                            break;
+                        }
+                    }
+                } catch (CloudRuntimeException e) {
+                    s_logger.warn("Failed to refill container cluster key pair pool due to " + e);
+                    return;
+                } finally {
+                    _refillScheduled.set(false);
+                }
+                // a key pair may have been taken after the pool was found full
+                if (_keyPairs.size() < _depth && !Thread.currentThread().isInterrupted()) {
+                    scheduleRefill();
+                }
+            }
+        });
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            return CertUtils.generateRandomKeyPair(KEY_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new CloudRuntimeException("Failed to generate key pair", e);
+        }
+    }
+
+    /**
+     * Returns a PEM encoded certificate signing request for the key pair, to get a certificate issued by the CA
+     * manager for a key pair from the pool.
+     */
+    public static String createCsr(final KeyPair keyPair, final String commonName) throws GeneralSecurityException, IOException {
+        final PKCS10CertificationRequest request = new PKCS10CertificationRequest("SHA256withRSA",
+                new X500Principal("CN=" + commonName), keyPair.getPublic(), null, keyPair.getPrivate());
+        final StringWriter csr = new StringWriter();
+        try (PemWriter pemWriter = new PemWriter(csr)) {
+            pemWriter.writeObject(new PemObject("CERTIFICATE REQUEST", request.getEncoded()));
+        }
+        return csr.toString();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * A management server of the CloudStack management cluster, as the cluster manager keeps it in the mshost table. Only
+ * read, to share the background work on container clusters out among the management servers that are up.
+ */
+@Entity
+@Table(name = "mshost")
+public class ContainerClusterManagementServerVO {
+
+    public static final String STATE_UP = "Up";
+
+    @Id
+    @Column(name = "id")
+    long id;
+
+    @Column(name = "msid")
+    long msid;
+
+    @Column(name = "state")
+    String state;
+
+    @Column(name = "last_update")
+    @Temporal(TemporalType.TIMESTAMP)
+    Date lastUpdate;
+
+    @Column(name = GenericDao.REMOVED_COLUMN)
+    Date removed;
+
+    public ContainerClusterManagementServerVO() {
+
+    }
+
+    public ContainerClusterManagementServerVO(long msid, String state, Date lastUpdate) {
+        this.msid = msid;
+        this.state = state;
+        this.lastUpdate = lastUpdate;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getMsid() {
+        return msid;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public Date getLastUpdate() {
+        return lastUpdate;
+    }
+
+    public Date getRemoved() {
+        return removed;
+    }
+}
@@ -15,35 +15,42 @@
  */
 package com.cloud.containercluster;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.security.KeyPair;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,11 +66,14 @@ import org.apache.cloudstack.api.command.user.containercluster.CreateContainerCl
 import org.apache.cloudstack.api.command.user.containercluster.DeleteContainerClusterCmd;
 import org.apache.cloudstack.api.command.user.containercluster.GetContainerClusterConfigCmd;
 import org.apache.cloudstack.api.command.user.containercluster.ListContainerClusterCmd;
+import org.apache.cloudstack.api.command.user.containercluster.ListContainerClusterProvisioningStatsCmd;
 import org.apache.cloudstack.api.command.user.containercluster.StartContainerClusterCmd;
 import org.apache.cloudstack.api.command.user.containercluster.StopContainerClusterCmd;
-import org.apache.cloudstack.api.command.user.firewall.CreateFirewallRuleCmd;
 import org.apache.cloudstack.api.command.user.vm.StartVMCmd;
 import org.apache.cloudstack.api.response.ContainerClusterConfigResponse;
+import org.apache.cloudstack.api.response.ContainerClusterPhasePercentilesResponse;
+import org.apache.cloudstack.api.response.ContainerClusterPhaseTimingResponse;
+import org.apache.cloudstack.api.response.ContainerClusterProvisioningStatsResponse;
 import org.apache.cloudstack.api.response.ContainerClusterResponse;
 import org.apache.cloudstack.api.response.ListResponse;
 import org.apache.cloudstack.ca.CAManager;
@@ -78,17 +88,12 @@ import org.apache.log4j.Logger;
 import org.flywaydb.core.Flyway;
 import org.flywaydb.core.api.FlywayException;
 
-import com.cloud.api.ApiDBUtils;
-import com.cloud.capacity.CapacityManager;
 import com.cloud.containercluster.dao.ContainerClusterDao;
 import com.cloud.containercluster.dao.ContainerClusterDetailsDao;
+import com.cloud.containercluster.dao.ContainerClusterProvisioningStepDao;
 import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
-import com.cloud.dc.ClusterDetailsDao;
-import com.cloud.dc.ClusterDetailsVO;
-import com.cloud.dc.ClusterVO;
 import com.cloud.dc.DataCenter;
 import com.cloud.dc.DataCenterVO;
-import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.exception.ConcurrentOperationException;
@@ -96,12 +101,9 @@ import com.cloud.exception.InsufficientCapacityException;
 import com.cloud.exception.InsufficientServerCapacityException;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.ManagementServerException;
-import com.cloud.exception.NetworkRuleConflictException;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.exception.ResourceAllocationException;
 import com.cloud.exception.ResourceUnavailableException;
-import com.cloud.host.Host.Type;
-import com.cloud.host.HostVO;
 import com.cloud.network.IpAddress;
 import com.cloud.network.IpAddressManager;
 import com.cloud.network.Network;
@@ -118,7 +120,6 @@ import com.cloud.network.dao.PhysicalNetworkDao;
 import com.cloud.network.firewall.FirewallService;
 import com.cloud.network.rules.FirewallRule;
 import com.cloud.network.rules.FirewallRuleVO;
-import com.cloud.network.rules.PortForwardingRuleVO;
 import com.cloud.network.rules.RulesService;
 import com.cloud.network.rules.dao.PortForwardingRulesDao;
 import com.cloud.offering.NetworkOffering;
@@ -143,6 +144,7 @@ import com.cloud.user.User;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.SSHKeyPairDao;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ComponentContext;
 import com.cloud.utils.component.ManagerBase;
@@ -154,14 +156,11 @@ import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallback;
-import com.cloud.utils.db.TransactionCallbackWithException;
 import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.NoTransitionException;
+import com.cloud.utils.fsm.StateListener;
 import com.cloud.utils.fsm.StateMachine2;
-import com.cloud.utils.net.Ip;
-import com.cloud.utils.ssh.SshHelper;
-import com.cloud.vm.Nic;
 import com.cloud.vm.ReservationContext;
 import com.cloud.vm.ReservationContextImpl;
 import com.cloud.vm.UserVmService;
@@ -169,27 +168,82 @@ import com.cloud.vm.UserVmVO;
 import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.dao.UserVmDao;
-import com.cloud.vm.dao.VMInstanceDao;
 import com.google.common.base.Strings;
 
 public class ContainerClusterManagerImpl extends ManagerBase implements ContainerClusterService {
 
     private static final Logger s_logger = Logger.getLogger(ContainerClusterManagerImpl.class);
 
+    // the docker registry config of a node is written as the first file of the node cloud-config
+    private static final String WRITE_FILES_MARKER = "write-files:";
+
+    // how long to wait for the kubernetes API server of a newly created or a restarted container cluster to be reachable
+    private static final long API_SERVER_CREATE_TIMEOUT_MS = 30 * 60 * 1000L;
+    private static final long API_SERVER_START_TIMEOUT_MS = 10 * 60 * 1000L;
+    private static final long ADD_ONS_READY_TIMEOUT_MS = 5 * 60 * 1000L;
+    // times a cluster is planned again when the capacity it was planned on got held by another cluster meanwhile
+    private static final int PLACEMENT_ATTEMPTS = 3;
+    // how long a cluster waits for the clusters being planned in the same zone by any management server
+    private static final int PLACEMENT_LOCK_TIMEOUT_SECONDS = 60;
+    // clusters whose VMs the state scanner loads at a time, which bounds the size of the IN lists of its queries
+    static final int STATE_SCAN_BATCH_SIZE = 500;
+    // the state changes of cluster VMs are acted on as they happen, the scanner only catches the ones missed
+    static final long STATE_SCAN_INTERVAL_SECONDS = 300;
+
     protected StateMachine2<ContainerCluster.State, ContainerCluster.Event, ContainerCluster> _stateMachine = ContainerCluster.State.getStateMachine();
 
     ScheduledExecutorService _gcExecutor;
     ScheduledExecutorService _stateScanner;
+    ExecutorService _faultDetector;
+    ExecutorService _provisioningExecutor;
+    // resumed creates wait on provisioning stages, so they are not run on the provisioning executor themselves
+    ExecutorService _createResumer;
+
+    // binaries ISO looked up for the name in the global setting, looked up again once the setting changes
+    private volatile VMTemplateVO _binariesIso;
+
+    // API server clients of the container clusters, along with the kube config each was built from
+    private final Map<Long, Pair<String, KubernetesClient>> _kubernetesClients = new ConcurrentHashMap<Long, Pair<String, KubernetesClient>>();
+
+    // node provisioning context of the container clusters, reused whenever node VMs are added to a cluster
+    private final Map<Long, NodeProvisioningContext> _nodeProvisioningContexts = new ConcurrentHashMap<Long, NodeProvisioningContext>();
+
+    // the cluster of every container cluster VM, and the states the VMs of a cluster changed to until it is reconciled
+    final Map<Long, Long> _vmClusters = new ConcurrentHashMap<Long, Long>();
+    private final Map<Long, Map<Long, VirtualMachine.State>> _pendingVmStates = new ConcurrentHashMap<Long, Map<Long, VirtualMachine.State>>();
+    private final ContainerClusterVmStateListener _vmStateListener = new ContainerClusterVmStateListener();
 
     @Inject
     protected CAManager caManager;
     @Inject
+    protected ContainerClusterReadinessProber _readinessProber;
+    @Inject
+    protected ContainerClusterCapacityLedger _capacityLedger;
+    @Inject
+    protected ContainerClusterCapacityIndex _capacityIndex;
+    @Inject
+    protected ContainerClusterShards _shards;
+    @Inject
+    protected ContainerClusterCallbackListener _callbackListener;
+    @Inject
+    protected ContainerClusterKeyPairPool _keyPairPool;
+    @Inject
+    protected ContainerClusterNetworkRulesProvisioner _networkRulesProvisioner;
+    @Inject
+    protected ContainerClusterSshSessionPool _sshSessionPool;
+    @Inject
+    protected ContainerClusterWarmPool _warmPool;
+    @Inject
+    protected ContainerClusterPhaseStats _phaseStats;
+    @Inject
     protected ContainerClusterDao _containerClusterDao;
     @Inject
     protected ContainerClusterVmMapDao _clusterVmMapDao;
     @Inject
     protected ContainerClusterDetailsDao _containerClusterDetailsDao;
     @Inject
+    protected ContainerClusterProvisioningStepDao _provisioningStepDao;
+    @Inject
     protected SSHKeyPairDao _sshKeyPairDao;
     @Inject
     protected UserVmService _userVmService;
@@ -236,18 +290,10 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
     @Inject
     protected UserVmDao _userVmDao;
     @Inject
-    private VMInstanceDao _vmInstanceDao;
-    @Inject
     private VMTemplateZoneDao _templateZoneDao;
     @Inject
-    protected CapacityManager _capacityMgr;
-    @Inject
     protected ResourceManager _resourceMgr;
     @Inject
-    protected ClusterDetailsDao _clusterDetailsDao;
-    @Inject
-    protected ClusterDao _clusterDao;
-    @Inject
     FirewallRulesDao _firewallDao;
     @Inject
     protected IpAddressManager ipAddressManager;
@@ -322,7 +368,7 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         validateDockerRegistryParams(dockerRegistryUserName, dockerRegistryPassword, dockerRegistryUrl, dockerRegistryEmail);
 
-        plan(clusterSize, zoneId, _srvOfferingDao.findById(serviceOfferingId));
+        plan(clusterSize, zoneId, serviceOffering, template);
 
         Network network = null;
         if (networkId != null) {
@@ -375,6 +421,21 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             }
         });
 
+        // the capacity checked above is held for the cluster from now on, so that clusters created at the same time
+        // in the zone, by any management server, do not all count on it
+        try {
+            place(clusterSize, zoneId, serviceOffering, template, cluster.getId(), false);
+        } catch (InsufficientServerCapacityException e) {
+            _containerClusterDao.remove(cluster.getId());
+            if (networkId == null) {
+                User callerUser = _accountMgr.getActiveUser(CallContext.current().getCallingUserId());
+                if (!_networkMgr.destroyNetwork(defaultNetwork.getId(), new ReservationContextImpl(null, null, callerUser, owner), true)) {
+                    s_logger.warn("Failed to destroy network: " + defaultNetwork.getId() + " created for the container cluster name:" + name);
+                }
+            }
+            throw e;
+        }
+
         Transaction.execute(new TransactionCallback<ContainerClusterDetailsVO>() {
             @Override
             public ContainerClusterDetailsVO doInTransaction(TransactionStatus status) {
@@ -388,6 +449,7 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
                 SecureRandom random = new SecureRandom();
                 String randomPassword = new BigInteger(130, random).toString(32);
                 clusterDetails.setPassword(randomPassword);
+                clusterDetails.setCallbackToken(new BigInteger(130, random).toString(32));
                 clusterDetails.setNetworkCleanup(networkId == null);
                 _containerClusterDetailsDao.persist(clusterDetails);
                 return clusterDetails;
@@ -413,15 +475,110 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         if (onCreate) {
             // Start for container cluster in 'Created' state
-            return startContainerClusterOnCreate(containerClusterId);
+            return provisionContainerCluster(containerClusterId, false);
         } else {
             // Start for container cluster in 'Stopped' state. Resources are already provisioned, just need to be started
             return startStoppedContainerCluster(containerClusterId);
         }
     }
 
-    // perform a cold start (which will provision resources as well)
-    private boolean startContainerClusterOnCreate(final long containerClusterId) throws ManagementServerException {
+    // Runs the create workflow of the container cluster, or resumes it from the last completed step if the create got
+    // interrupted. The provisioning lock is held for as long as the workflow runs, and as it is a database lock it
+    // is released when the management server running the workflow goes down. So a cluster in 'Starting' state with
+    // recorded steps, whose lock can be acquired, is a cluster whose create got interrupted.
+    private boolean provisionContainerCluster(final long containerClusterId, final boolean resume) throws ManagementServerException {
+        ContainerClusterVO containerCluster = _containerClusterDao.findById(containerClusterId);
+        GlobalLock provisioningLock = GlobalLock.getInternLock("ContainerCluster.Provisioning." + containerClusterId);
+        try {
+            if (!provisioningLock.lock(resume ? 1 : 5)) {
+                if (resume) {
+                    return false;
+                }
+                throw new ManagementServerException("Container cluster: " + containerCluster.getName() + " is already being provisioned");
+            }
+            try {
+                if (resume) {
+                    containerCluster = _containerClusterDao.findById(containerClusterId);
+                    if (containerCluster.getState() != ContainerCluster.State.Starting) {
+                        return false;
+                    }
+                    s_logger.info("Resuming interrupted create of container cluster: " + containerCluster.getName());
+                }
+
+                // accept bootstrap progress callbacks from the cluster VMs while the cluster is being provisioned, on
+                // this management server only
+                ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerClusterId);
+                _callbackListener.register(containerCluster.getUuid(), clusterDetails.getCallbackToken());
+                try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.TOTAL)) {
+                    final boolean started = startContainerClusterOnCreate(containerClusterId, resume);
+                    timer.succeeded();
+                    return started;
+                } finally {
+                    _callbackListener.unregister(containerCluster.getUuid());
+                    if (_containerClusterDao.findById(containerClusterId).getState() != ContainerCluster.State.Starting) {
+                        _provisioningStepDao.removeByClusterId(containerClusterId);
+                    }
+                }
+            } finally {
+                provisioningLock.unlock();
+            }
+        } finally {
+            provisioningLock.releaseRef();
+        }
+    }
+
+    private boolean isStepCompleted(final long containerClusterId, final String step) {
+        return _provisioningStepDao.findByClusterIdAndStep(containerClusterId, step) != null;
+    }
+
+    private void markStepCompleted(final long containerClusterId, final String step, final Long vmId) {
+        if (!isStepCompleted(containerClusterId, step)) {
+            _provisioningStepDao.persist(new ContainerClusterProvisioningStepVO(containerClusterId, step, vmId));
+        }
+    }
+
+    // states of a VM that was deployed and not destroyed since
+    private static final VirtualMachine.State[] DEPLOYED_VM_STATES = {VirtualMachine.State.Stopped, VirtualMachine.State.Starting,
+            VirtualMachine.State.Running, VirtualMachine.State.Stopping, VirtualMachine.State.Migrating, VirtualMachine.State.Error};
+
+    // Returns the VM of the cluster with the given host name, if it was already deployed. On resume, a VM deployed by
+    // the interrupted create before it got recorded in the cluster is looked up in the network of the cluster, where
+    // host names are unique, and recorded now rather than deployed again under the same host name.
+    UserVmVO findContainerClusterVm(final ContainerClusterVO containerCluster, final String hostName, final boolean resume) {
+        final long containerClusterId = containerCluster.getId();
+        for (ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
+            UserVmVO vm = _vmDao.findById(vmMapVO.getVmId());
+            if (vm != null && !vm.isRemoved() && hostName.equals(vm.getHostName())) {
+                return vm;
+            }
+        }
+        if (!resume) {
+            return null;
+        }
+        for (final UserVmVO vm : _vmDao.listByNetworkIdAndStates(containerCluster.getNetworkId(), DEPLOYED_VM_STATES)) {
+            if (vm.isRemoved() || !hostName.equals(vm.getHostName())) {
+                continue;
+            }
+            Transaction.execute(new TransactionCallback<ContainerClusterVmMapVO>() {
+                @Override
+                public ContainerClusterVmMapVO doInTransaction(TransactionStatus status) {
+                    ContainerClusterVmMapVO newClusterVmMap = new ContainerClusterVmMapVO(containerClusterId, vm.getId());
+                    _clusterVmMapDao.persist(newClusterVmMap);
+                    _vmClusters.put(vm.getId(), containerClusterId);
+                    return newClusterVmMap;
+                }
+            });
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Recorded VM: " + hostName + " deployed by an interrupted create in the container cluster: " + containerCluster.getName());
+            }
+            return vm;
+        }
+        return null;
+    }
+
+    // perform a cold start (which will provision resources as well). Each step is checkpointed once it completes, so
+    // that a resumed create skips the steps that are already done and reuses the VMs that are already deployed.
+    private boolean startContainerClusterOnCreate(final long containerClusterId, final boolean resume) throws ManagementServerException {
 
         // Starting a contriner cluster has below workflow
         //   - start the newtwork
@@ -439,217 +596,275 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             s_logger.debug("Starting container cluster: " + containerCluster.getName());
         }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.StartRequested);
+        if (!resume) {
+            stateTransitTo(containerClusterId, ContainerCluster.Event.StartRequested);
+        }
 
         Account account = _accountDao.findById(containerCluster.getAccountId());
 
-        DeployDestination dest = null;
-        try {
-            dest = plan(containerClusterId, containerCluster.getZoneId());
-        } catch (InsufficientCapacityException e) {
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            s_logger.warn("Provisioning the cluster failed due to insufficient capacity in the container cluster: " + containerCluster.getName() + " due to " + e);
-            throw new ManagementServerException("Provisioning the cluster failed due to insufficient capacity in the container cluster: " + containerCluster.getName(), e);
-        }
-        final ReservationContext context = new ReservationContextImpl(null, null, null, account);
+        // Provisioning runs as a graph of stages on the provisioning executor, each stage starting as soon as the
+        // stages it depends on are done, so that the critical path is the longest chain of dependent stages:
+        //
+        //   network start ----------------------+-------------> public IP --+
+        //   master IP, key pair --> node config |                           +--> master deploy --+--> master start
+        //                                       |                                                +--> node deploy and start (per node)
+        //
+        // Nodes only need the IP reserved for the master, so they boot alongside the master instead of after it.
+        final ContainerClusterVO stageCluster = containerCluster;
+        final Account owner = account;
+
+        final CompletableFuture<Void> networkStarted = provisioningStage(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (!isStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.START_NETWORK)) {
+                    try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(stageCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.START_NETWORK)) {
+                        startContainerClusterNetwork(stageCluster, owner);
+                        timer.succeeded();
+                    }
+                    markStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.START_NETWORK, null);
+                }
+                return null;
+            }
+        });
 
-        try {
-            _networkMgr.startNetwork(containerCluster.getNetworkId(), dest, context);
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Network:" + containerCluster.getNetworkId() + " is started for the  container cluster: " + containerCluster.getName());
+        final CompletableFuture<MasterPreparation> masterPrepared = provisioningStage(new Callable<MasterPreparation>() {
+            @Override
+            public MasterPreparation call() throws Exception {
+                return prepareK8SMaster(stageCluster, resume);
             }
-        } catch (RuntimeException e) {
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            s_logger.warn("Starting the network failed as part of starting container cluster " + containerCluster.getName() + " due to " + e);
-            throw new ManagementServerException("Failed to start the network while creating container cluster name:" + containerCluster.getName(), e);
-        } catch (Exception e) {
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            s_logger.warn("Starting the network failed as part of starting container cluster " + containerCluster.getName() + " due to " + e);
-            throw new ManagementServerException("Failed to start the network while creating container cluster name:" + containerCluster.getName(), e);
-        }
+        });
 
-        IPAddressVO publicIp = null;
-        List<IPAddressVO> ips = _publicIpAddressDao.listByAssociatedNetwork(containerCluster.getNetworkId(), true);
-        if (ips == null || ips.isEmpty()) {
-            s_logger.warn("Network:" + containerCluster.getNetworkId() + " for the container cluster name:" + containerCluster.getName() + " does not have " +
-                    "public IP's assocated with it. So aborting container cluster strat.");
-            throw new ManagementServerException("Failed to start the network while creating container cluster name:" + containerCluster.getName());
-        }
-        publicIp = ips.get(0);
+        final CompletableFuture<List<IPAddressVO>> publicIpsFound = provisioningStage(new Callable<List<IPAddressVO>>() {
+            @Override
+            public List<IPAddressVO> call() throws Exception {
+                List<IPAddressVO> ips = _publicIpAddressDao.listByAssociatedNetwork(stageCluster.getNetworkId(), true);
+                if (ips == null || ips.isEmpty()) {
+                    s_logger.warn("Network:" + stageCluster.getNetworkId() + " for the container cluster name:" + stageCluster.getName() + " does not have " +
+                            "public IP's assocated with it. So aborting container cluster strat.");
+                    throw new ManagementServerException("Failed to start the network while creating container cluster name:" + stageCluster.getName());
+                }
+                return ips;
+            }
+        }, networkStarted);
 
-        List<Long> clusterVMIds = new ArrayList<>();
+        final CompletableFuture<NodeProvisioningContext> nodeContextReady = provisioningStage(new Callable<NodeProvisioningContext>() {
+            @Override
+            public NodeProvisioningContext call() throws Exception {
+                return getNodeProvisioningContext(stageCluster, masterPrepared.join().masterIp);
+            }
+        }, masterPrepared);
 
-        UserVm k8sMasterVM = null;
-        try {
-            k8sMasterVM = createK8SMaster(containerCluster, ips);
+        final CompletableFuture<UserVm> masterDeployed = provisioningStage(new Callable<UserVm>() {
+            @Override
+            public UserVm call() throws Exception {
+                UserVm masterVm = masterPrepared.join().masterVm;
+                if (masterVm == null) {
+                    try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(stageCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DEPLOY_MASTER)) {
+                        masterVm = createK8SMaster(stageCluster, publicIpsFound.join(), masterPrepared.join());
+                        final long masterVmId = masterVm.getId();
+                        Transaction.execute(new TransactionCallback<ContainerClusterVmMapVO>() {
+                            @Override
+                            public ContainerClusterVmMapVO doInTransaction(TransactionStatus status) {
+                                ContainerClusterVmMapVO newClusterVmMap = new ContainerClusterVmMapVO(containerClusterId, masterVmId);
+                                _clusterVmMapDao.persist(newClusterVmMap);
+                                _vmClusters.put(masterVmId, containerClusterId);
+                                return newClusterVmMap;
+                            }
+                        });
+                        timer.succeeded();
+                    }
+                }
+                return masterVm;
+            }
+        }, masterPrepared, publicIpsFound);
 
-            final long clusterId = containerCluster.getId();
-            final long masterVmId = k8sMasterVM.getId();
-            Transaction.execute(new TransactionCallback<ContainerClusterVmMapVO>() {
+        final CompletableFuture<UserVm> masterStarted = provisioningStage(new Callable<UserVm>() {
+            @Override
+            public UserVm call() throws Exception {
+                UserVm masterVm = masterDeployed.join();
+                if (!isStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.PROVISION_MASTER)) {
+                    if (masterVm.getState() != VirtualMachine.State.Running) {
+                        try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(stageCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.START_MASTER, masterVm.getId())) {
+                            attachIsoBeforeStart(masterVm, stageCluster);
+                            startK8SVM(masterVm, stageCluster, ContainerClusterPlacement.MASTER);
+                            timer.succeeded();
+                        }
+                    }
+                    markStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.PROVISION_MASTER, masterVm.getId());
+                }
+                return _vmDao.findById(masterVm.getId());
+            }
+        }, masterDeployed);
+
+        final List<CompletableFuture<UserVm>> nodesStarted = new ArrayList<>();
+        for (int i = 1; i <= containerCluster.getNodeCount(); i++) {
+            final int nodeInstance = i;
+            nodesStarted.add(provisioningStage(new Callable<UserVm>() {
                 @Override
-                public ContainerClusterVmMapVO doInTransaction(TransactionStatus status) {
-                    ContainerClusterVmMapVO newClusterVmMap = new ContainerClusterVmMapVO(clusterId, masterVmId);
-                    _clusterVmMapDao.persist(newClusterVmMap);
-                    return newClusterVmMap;
+                public UserVm call() throws Exception {
+                    return provisionK8SNode(stageCluster, nodeContextReady.join(), nodeInstance, resume);
                 }
-            });
+            }, masterDeployed, nodeContextReady));
+        }
 
-            startK8SVM(k8sMasterVM, containerCluster);
-            clusterVMIds.add(k8sMasterVM.getId());
-            k8sMasterVM = _vmDao.findById(k8sMasterVM.getId());
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Provisioned the master VM's in to the container cluster name:" + containerCluster.getName());
-            }
-        } catch (RuntimeException e) {
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            s_logger.warn("Provisioning the master VM' failed in the container cluster: " + containerCluster.getName() + " due to " + e);
-            throw new ManagementServerException("Provisioning the master VM' failed in the container cluster: " + containerCluster.getName(), e);
-        } catch (Exception e) {
+        // wait till every stage has either completed or failed before deciding on the outcome
+        final List<CompletableFuture<?>> allStages = new ArrayList<CompletableFuture<?>>(nodesStarted);
+        allStages.add(masterStarted);
+        try {
+            CompletableFuture.allOf(allStages.toArray(new CompletableFuture<?>[allStages.size()])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            s_logger.warn("Provisioning the master VM' failed in the container cluster: " + containerCluster.getName() + " due to " + e);
-            throw new ManagementServerException("Provisioning the master VM' failed in the container cluster: " + containerCluster.getName(), e);
+            throw new ManagementServerException("Interrupted while provisioning the container cluster: " + containerCluster.getName(), e);
+        } catch (ExecutionException e) {
+            // failures are looked into stage by stage below
+        } finally {
+            _capacityLedger.release(containerClusterId);
         }
 
-        String masterIP = k8sMasterVM.getPrivateIpAddress();
+        if (networkStarted.isCompletedExceptionally()) {
+            // startContainerClusterNetwork has moved the cluster to the failed state already
+            Throwable failure = getProvisioningTaskFailure(networkStarted);
+            throw failure instanceof ManagementServerException ? (ManagementServerException)failure
+                    : new ManagementServerException("Failed to start the network while creating container cluster name:" + containerCluster.getName(), failure);
+        }
 
-        long anyNodeVmId = 0;
-        UserVm k8anyNodeVM = null;
-        for (int i = 1; i <= containerCluster.getNodeCount(); i++) {
-            UserVm vm = null;
-            try {
-                vm = createK8SNode(containerCluster, masterIP, i);
-                final long nodeVmId = vm.getId();
-                ContainerClusterVmMapVO clusterNodeVmMap = Transaction.execute(new TransactionCallback<ContainerClusterVmMapVO>() {
-                    @Override
-                    public ContainerClusterVmMapVO doInTransaction(TransactionStatus status) {
-                        ContainerClusterVmMapVO newClusterVmMap = new ContainerClusterVmMapVO(containerClusterId, nodeVmId);
-                        _clusterVmMapDao.persist(newClusterVmMap);
-                        return newClusterVmMap;
-                    }
-                });
-                startK8SVM(vm, containerCluster);
-                clusterVMIds.add(vm.getId());
+        if (masterStarted.isCompletedExceptionally()) {
+            Throwable failure = getProvisioningTaskFailure(masterStarted);
+            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
+            s_logger.warn("Provisioning the master VM' failed in the container cluster: " + containerCluster.getName() + " due to " + failure);
+            throw new ManagementServerException("Provisioning the master VM' failed in the container cluster: " + containerCluster.getName(), failure);
+        }
+        final IPAddressVO publicIp = publicIpsFound.join().get(0);
+        final UserVm k8sMasterVM = masterStarted.join();
+        final List<Long> clusterVMIds = new ArrayList<>();
+        clusterVMIds.add(k8sMasterVM.getId());
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Provisioned the master VM's in to the container cluster name:" + containerCluster.getName());
+        }
 
-                vm = _vmDao.findById(vm.getId());
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Provisioned a node VM in to the container cluster: " + containerCluster.getName());
-                }
-            } catch (RuntimeException e) {
-                stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-                s_logger.warn("Provisioning the node VM failed in the container cluster " + containerCluster.getName() + " due to " + e);
-                throw new ManagementServerException("Provisioning the node VM failed in the container cluster " + containerCluster.getName(), e);
-            } catch (Exception e) {
-                stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-                s_logger.warn("Provisioning the node VM failed in the container cluster " + containerCluster.getName() + " due to " + e);
-                throw new ManagementServerException("Provisioning the node VM failed in the container cluster " + containerCluster.getName(), e);
+        List<String> failedNodes = new ArrayList<>();
+        Throwable nodeFailure = null;
+        for (int i = 0; i < nodesStarted.size(); i++) {
+            Throwable failure = getProvisioningTaskFailure(nodesStarted.get(i));
+            if (failure != null) {
+                s_logger.warn("Provisioning the node VM " + (i + 1) + " failed in the container cluster " + containerCluster.getName() + " due to " + failure);
+                failedNodes.add(String.valueOf(i + 1));
+                nodeFailure = failure;
+            } else {
+                clusterVMIds.add(nodesStarted.get(i).join().getId());
             }
+        }
 
-            if (anyNodeVmId == 0) {
-                anyNodeVmId = vm.getId();
-                k8anyNodeVM = vm;
-            }
+        if (!failedNodes.isEmpty()) {
+            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
+            s_logger.warn("Provisioning the node VM's " + failedNodes + " failed in the container cluster " + containerCluster.getName());
+            throw new ManagementServerException("Provisioning the node VM failed in the container cluster " + containerCluster.getName(), nodeFailure);
         }
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Container cluster : " + containerCluster.getName() + " VM's are successfully provisioned.");
         }
 
-        setupContainerClusterNetworkRules(publicIp, account, containerClusterId, clusterVMIds);
-        attachIsoK8SVMs(containerClusterId, clusterVMIds);
-
-        int retryCounter = 0;
-        int maxRetries = 30;
-        boolean k8sApiServerSetup = false;
+        if (!isStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.SETUP_NETWORK_RULES)) {
+            try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.APPLY_RULES)) {
+                setupContainerClusterNetworkRules(publicIp, account, containerClusterId, clusterVMIds);
+                timer.succeeded();
+            }
+            markStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.SETUP_NETWORK_RULES, null);
+        }
+        if (!isStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.ATTACH_ISO)) {
+            try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.ATTACH_ISO)) {
+                attachIsoK8SVMs(containerClusterId, clusterVMIds);
+                timer.succeeded();
+            }
+            markStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.ATTACH_ISO, null);
+        }
 
-        while (retryCounter < maxRetries) {
-            try (Socket socket = new Socket()) {
-                socket.connect(new InetSocketAddress(publicIp.getAddress().addr(), 6443), 10000);
-                k8sApiServerSetup = true;
+        boolean k8sApiServerSetup = isStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.API_SERVER_READY);
+        if (!k8sApiServerSetup) {
+            // the master reports kubeadm init done through the callback, if the management server is not able to reach
+            // the public IP that is the only way to learn that the API server is up
+            try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.AWAIT_API_SERVER)) {
+                k8sApiServerSetup = waitForApiServer(containerCluster, new InetSocketAddress(publicIp.getAddress().addr(), 6443),
+                        API_SERVER_CREATE_TIMEOUT_MS, _callbackListener.awaitMilestone(containerCluster.getUuid(), ContainerClusterCallbackListener.Milestone.KubeadmInit));
+                if (k8sApiServerSetup) {
+                    timer.succeeded();
+                }
+            }
+            if (k8sApiServerSetup) {
                 containerCluster = _containerClusterDao.findById(containerClusterId);
                 containerCluster.setEndpoint("https://" + publicIp.getAddress() + ":6443/");
                 _containerClusterDao.update(containerCluster.getId(), containerCluster);
-                break;
-            } catch (IOException e) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Waiting for container cluster: " + containerCluster.getName() + " API endpoint to be available. retry: " + retryCounter + "/" + maxRetries);
-                }
-                try {
-                    Thread.sleep(60000);
-                } catch (InterruptedException ex) {
-                }
-                retryCounter++;
+                markStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.API_SERVER_READY, null);
             }
         }
 
-        boolean k8sKubeConfigCopied = false;
-        if (k8sApiServerSetup) {
+        // the kube config is fetched over SSH from the public IP whether or not the master calls back, so the
+        // management server has to reach the public network of the cluster anyway
+        boolean k8sKubeConfigCopied = isStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.KUBE_CONFIG_COPIED);
+        if (k8sApiServerSetup && !k8sKubeConfigCopied) {
             Runtime r = Runtime.getRuntime();
-            retryCounter = 0;
-            maxRetries = 5;
+            int retryCounter = 0;
+            int maxRetries = 5;
             String kubeConfig = "";
-            while (retryCounter < maxRetries && kubeConfig.isEmpty()) {
-                try {
-                    Boolean devel = Boolean.valueOf(_globalConfigDao.getValue("developer"));
-                    String keyFile = String.format("%s/.ssh/id_rsa", System.getProperty("user.home"));
-                    if (devel) {
-                        keyFile += ".cloud";
-                    }
-                    File pkFile = new File(keyFile);
-                    Pair<Boolean, String> result = SshHelper.sshExecute(publicIp.getAddress().addr(), 2222, "core",
-                            pkFile, null, "sudo cat /etc/kubernetes/admin.conf",
-                            10000, 10000, 10000);
-
-                    if (result.first() && !Strings.isNullOrEmpty(result.second())) {
-                        kubeConfig = result.second();
-                        kubeConfig = kubeConfig.replace(String.format("server: https://%s:6443", k8sMasterVM.getPrivateIpAddress()),
-                                String.format("server: https://%s:6443", publicIp.getAddress().addr()));
-                        ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerCluster.getId());
-                        clusterDetails.setKubeConfigData(Base64.encodeBase64String(kubeConfig.getBytes(Charset.forName("UTF-8"))));
-                        _containerClusterDetailsDao.persist(clusterDetails);
-                        k8sKubeConfigCopied = true;
-                        break;
+            try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.FETCH_KUBE_CONFIG)) {
+                while (retryCounter < maxRetries && kubeConfig.isEmpty()) {
+                    try {
+                        Pair<Boolean, String> result = _sshSessionPool.execute(containerCluster.getId(), publicIp.getAddress().addr(), 2222, "core",
+                                "sudo cat /etc/kubernetes/admin.conf", 10000);
+
+                        if (result.first() && !Strings.isNullOrEmpty(result.second())) {
+                            kubeConfig = result.second();
+                            kubeConfig = kubeConfig.replace(String.format("server: https://%s:6443", k8sMasterVM.getPrivateIpAddress()),
+                                    String.format("server: https://%s:6443", publicIp.getAddress().addr()));
+                            ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerCluster.getId());
+                            clusterDetails.setKubeConfigData(Base64.encodeBase64String(kubeConfig.getBytes(Charset.forName("UTF-8"))));
+                            _containerClusterDetailsDao.persist(clusterDetails);
+                            k8sKubeConfigCopied = true;
+                            markStepCompleted(containerClusterId, ContainerClusterProvisioningStepVO.KUBE_CONFIG_COPIED, null);
+                            break;
+                        }
+                    } catch (Exception e) {
+                        s_logger.warn("Failed to retrieve kube-config file for cluster with ID " + containerCluster.getUuid() + ": " + e);
                     }
-                } catch (Exception e) {
-                    s_logger.warn("Failed to retrieve kube-config file for cluster with ID " + containerCluster.getUuid() + ": " + e);
+                    retryCounter++;
+                }
+                if (k8sKubeConfigCopied) {
+                    timer.succeeded();
                 }
-                retryCounter++;
             }
         }
 
         if (k8sKubeConfigCopied) {
-            retryCounter = 0;
-            maxRetries = 30;
+            CompletableFuture<Boolean> addOnsDeployed = _callbackListener.awaitMilestone(containerCluster.getUuid(),
+                    ContainerClusterCallbackListener.Milestone.AddOnsDeployed);
             // Dashbaord service is a docker image downloaded at run time.
-            // So wait for some time and check if dashbaord service is up running.
-            while (retryCounter < maxRetries) {
-
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Waiting for dashboard service for the container cluster: " + containerCluster.getName()
-                            + " to come up. Attempt: " + retryCounter + " of max retries " + maxRetries);
+            // So watch the add-on deployments till dashbaord service is up running.
+            boolean addOnsAvailable = false;
+            try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.AWAIT_ADD_ONS)) {
+                addOnsAvailable = awaitAddOnsAvailable(containerCluster, Arrays.asList("kubernetes-dashboard"), ADD_ONS_READY_TIMEOUT_MS, addOnsDeployed);
+                if (addOnsAvailable) {
+                    timer.succeeded();
                 }
+            }
+            if (addOnsAvailable) {
+                stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
 
-                if (isAddOnServiceRunning(containerCluster.getId(), "kubernetes-dashboard")) {
-
-                    stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
-
-                    containerCluster = _containerClusterDao.findById(containerClusterId);
-                    containerCluster.setConsoleEndpoint("https://" + publicIp.getAddress() + ":6443/api/v1/namespaces/kube-system/services/https:kubernetes-dashboard:/proxy#!/overview?namespace=_all");
-                    _containerClusterDao.update(containerCluster.getId(), containerCluster);
+                containerCluster = _containerClusterDao.findById(containerClusterId);
+                containerCluster.setConsoleEndpoint("https://" + publicIp.getAddress() + ":6443/api/v1/namespaces/kube-system/services/https:kubernetes-dashboard:/proxy#!/overview?namespace=_all");
+                _containerClusterDao.update(containerCluster.getId(), containerCluster);
 
+                try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DETACH_ISO)) {
                     detachIsoK8SVMs(containerClusterId, clusterVMIds);
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Container cluster name:" + containerCluster.getName() + " is successfully started");
-                    }
-
-                    return true;
+                    timer.succeeded();
                 }
 
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException ex) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Container cluster name:" + containerCluster.getName() + " is successfully started");
                 }
-                retryCounter++;
+
+                return true;
             }
             s_logger.warn("Failed to setup container cluster " + containerCluster.getName() + " in usable state as" +
                     " unable to bring dashboard add on service up");
@@ -660,7 +875,10 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
 
-        detachIsoK8SVMs(containerClusterId, clusterVMIds);
+        try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DETACH_ISO)) {
+            detachIsoK8SVMs(containerClusterId, clusterVMIds);
+            timer.succeeded();
+        }
 
         throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR,
                 "Failed to deploy container cluster: " + containerCluster.getId() + " as unable to setup up in usable state");
@@ -696,277 +914,89 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             s_logger.debug("Starting container cluster: " + containerCluster.getName());
         }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.StartRequested);
+        try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.START, ContainerClusterPhaseStatVO.TOTAL)) {
+            stateTransitTo(containerClusterId, ContainerCluster.Event.StartRequested);
 
-        for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
-            final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
-            try {
-                if (vm == null) {
-                    stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
-                    throw new ManagementServerException("Failed to start all VMs in container cluster id: " + containerClusterId);
+            try (ContainerClusterPhaseStats.Timer startVmsTimer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.START, ContainerClusterPhaseStatVO.START_VMS)) {
+                for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
+                    final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
+                    try {
+                        if (vm == null) {
+                            stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
+                            throw new ManagementServerException("Failed to start all VMs in container cluster id: " + containerClusterId);
+                        }
+                        startK8SVM(vm, containerCluster);
+                    } catch (ServerApiException ex) {
+                        s_logger.warn("Failed to start VM in container cluster id:" + containerClusterId + " due to " + ex);
+                        // dont bail out here. proceed further to stop the reset of the VM's
+                    }
+                }
+
+                for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
+                    final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
+                    if (vm == null || !vm.getState().equals(VirtualMachine.State.Running)) {
+                        stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
+                        throw new ManagementServerException("Failed to start all VMs in container cluster id: " + containerClusterId);
+                    }
                 }
-                startK8SVM(vm, containerCluster);
-            } catch (ServerApiException ex) {
-                s_logger.warn("Failed to start VM in container cluster id:" + containerClusterId + " due to " + ex);
-                // dont bail out here. proceed further to stop the reset of the VM's
+                startVmsTimer.succeeded();
             }
-        }
 
-        for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
-            final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
-            if (vm == null || !vm.getState().equals(VirtualMachine.State.Running)) {
-                stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
-                throw new ManagementServerException("Failed to start all VMs in container cluster id: " + containerClusterId);
+            InetAddress address = null;
+            try {
+                address = InetAddress.getByName(new URL(containerCluster.getEndpoint()).getHost());
+            } catch (MalformedURLException | UnknownHostException ex) {
+                // API end point is generated by CCS, so this situation should not arise.
+                s_logger.warn("Container cluster id:" + containerClusterId + " has invalid api endpoint. Can not " +
+                        "verify if cluster is in ready state.");
+                throw new ManagementServerException("Can not verify if container cluster id:" + containerClusterId + " is in usable state.");
             }
-        }
 
-        InetAddress address = null;
-        try {
-            address = InetAddress.getByName(new URL(containerCluster.getEndpoint()).getHost());
-        } catch (MalformedURLException | UnknownHostException ex) {
-            // API end point is generated by CCS, so this situation should not arise.
-            s_logger.warn("Container cluster id:" + containerClusterId + " has invalid api endpoint. Can not " +
-                    "verify if cluster is in ready state.");
-            throw new ManagementServerException("Can not verify if container cluster id:" + containerClusterId + " is in usable state.");
-        }
-
-        // wait for fixed time for K8S api server to be avaialble
-        int retryCounter = 0;
-        int maxRetries = 10;
-        boolean k8sApiServerSetup = false;
-        while (retryCounter < maxRetries) {
-            try (Socket socket = new Socket()) {
-                socket.connect(new InetSocketAddress(address.getHostAddress(), 6443), 10000);
-                k8sApiServerSetup = true;
-                break;
-            } catch (IOException e) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Waiting for container cluster: " + containerCluster.getName() + " API endpoint to be available. retry: " + retryCounter + "/" + maxRetries);
+            // wait for K8S api server to be avaialble
+            boolean k8sApiServerSetup = false;
+            try (ContainerClusterPhaseStats.Timer apiServerTimer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.START, ContainerClusterPhaseStatVO.AWAIT_API_SERVER)) {
+                k8sApiServerSetup = waitForApiServer(containerCluster,
+                        new InetSocketAddress(address.getHostAddress(), 6443), API_SERVER_START_TIMEOUT_MS, null);
+                if (k8sApiServerSetup) {
+                    apiServerTimer.succeeded();
                 }
-                try {
-                    Thread.sleep(50000);
-                } catch (InterruptedException ex) {
-                }
-                retryCounter++;
             }
-        }
 
-        if (!k8sApiServerSetup) {
-            stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
-            throw new ManagementServerException("Failed to setup container cluster id: " + containerClusterId + " is usable state.");
-        }
+            if (!k8sApiServerSetup) {
+                stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
+                throw new ManagementServerException("Failed to setup container cluster id: " + containerClusterId + " is usable state.");
+            }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug(" Container cluster name:" + containerCluster.getName() + " is successfully started.");
+            stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(" Container cluster name:" + containerCluster.getName() + " is successfully started.");
+            }
+            timer.succeeded();
+            return true;
         }
-        return true;
     }
 
     // Open up  firewall port 6443, secure port on which kubernetes API server is running. Also create portforwarding
-    // rule to forward public IP traffic to master VM private IP
+    // rule to forward public IP traffic to master VM private IP, and SSH port forwarding rules to each of the VMs
     private void setupContainerClusterNetworkRules(IPAddressVO publicIp, Account account, long containerClusterId,
                                                    List<Long> clusterVMIds) throws ManagementServerException {
 
         ContainerClusterVO containerCluster = _containerClusterDao.findById(containerClusterId);
 
-        List<String> sourceCidrList = new ArrayList<String>();
-        sourceCidrList.add("0.0.0.0/0");
-
         try {
-            CreateFirewallRuleCmd rule = new CreateFirewallRuleCmd();
-            rule = ComponentContext.inject(rule);
-
-            Field addressField = rule.getClass().getDeclaredField("ipAddressId");
-            addressField.setAccessible(true);
-            addressField.set(rule, publicIp.getId());
-
-            Field protocolField = rule.getClass().getDeclaredField("protocol");
-            protocolField.setAccessible(true);
-            protocolField.set(rule, "TCP");
-
-            Field startPortField = rule.getClass().getDeclaredField("publicStartPort");
-            startPortField.setAccessible(true);
-            startPortField.set(rule, new Integer(6443));
-
-            Field endPortField = rule.getClass().getDeclaredField("publicEndPort");
-            endPortField.setAccessible(true);
-            endPortField.set(rule, new Integer(6443));
-
-            Field cidrField = rule.getClass().getDeclaredField("cidrlist");
-            cidrField.setAccessible(true);
-            cidrField.set(rule, sourceCidrList);
-
-            _firewallService.createIngressFirewallRule(rule);
-            _firewallService.applyIngressFwRules(publicIp.getId(), account);
-
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Provisioned firewall rule to open up port 6443 on " + publicIp.getAddress() +
-                        " for cluster " + containerCluster.getName());
-            }
-        } catch (RuntimeException rte) {
-            s_logger.warn("Failed to provision firewall rules for the container cluster: " + containerCluster.getName()
-                    + " due to exception: " + getStackTrace(rte));
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to provision firewall rules for the container " +
-                    "cluster: " + containerCluster.getName(), rte);
-        } catch (Exception e) {
-            s_logger.warn("Failed to provision firewall rules for the container cluster: " + containerCluster.getName()
-                    + " due to exception: " + getStackTrace(e));
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to provision firewall rules for the container " +
-                    "cluster: " + containerCluster.getName());
-        }
-
-        try {
-            CreateFirewallRuleCmd rule = new CreateFirewallRuleCmd();
-            rule = ComponentContext.inject(rule);
-
-            Field addressField = rule.getClass().getDeclaredField("ipAddressId");
-            addressField.setAccessible(true);
-            addressField.set(rule, publicIp.getId());
-
-            Field protocolField = rule.getClass().getDeclaredField("protocol");
-            protocolField.setAccessible(true);
-            protocolField.set(rule, "TCP");
-
-            Field startPortField = rule.getClass().getDeclaredField("publicStartPort");
-            startPortField.setAccessible(true);
-            startPortField.set(rule, new Integer(2222));
-
-            Field endPortField = rule.getClass().getDeclaredField("publicEndPort");
-            endPortField.setAccessible(true);
-            endPortField.set(rule, new Integer(2222 + clusterVMIds.size()));
-
-            Field cidrField = rule.getClass().getDeclaredField("cidrlist");
-            cidrField.setAccessible(true);
-            cidrField.set(rule, sourceCidrList);
-
-            _firewallService.createIngressFirewallRule(rule);
-            _firewallService.applyIngressFwRules(publicIp.getId(), account);
-
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Provisioned firewall rule to open up port 2222 on " + publicIp.getAddress() +
-                        " for cluster " + containerCluster.getName());
-            }
+            _networkRulesProvisioner.provisionRules(containerCluster, publicIp, account, clusterVMIds);
         } catch (RuntimeException rte) {
-            s_logger.warn("Failed to provision firewall rules for the container cluster: " + containerCluster.getName()
+            s_logger.warn("Failed to provision network rules for the container cluster: " + containerCluster.getName()
                     + " due to exception: " + getStackTrace(rte));
             stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to provision firewall rules for the container " +
+            throw new ManagementServerException("Failed to provision network rules for the container " +
                     "cluster: " + containerCluster.getName(), rte);
         } catch (Exception e) {
-            s_logger.warn("Failed to provision firewall rules for the container cluster: " + containerCluster.getName()
+            s_logger.warn("Failed to provision network rules for the container cluster: " + containerCluster.getName()
                     + " due to exception: " + getStackTrace(e));
             stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to provision firewall rules for the container " +
-                    "cluster: " + containerCluster.getName());
-        }
-
-        Nic masterVmNic = _networkModel.getNicInNetwork(clusterVMIds.get(0), containerCluster.getNetworkId());
-        // handle Nic interface method change between releases 4.5 and 4.6 and above through reflection
-        Method m = null;
-        try {
-            m = Nic.class.getMethod("getIp4Address");
-        } catch (NoSuchMethodException e1) {
-            try {
-                m = Nic.class.getMethod("getIPv4Address");
-            } catch (NoSuchMethodException e2) {
-                stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-                throw new ManagementServerException("Failed to activate port forwarding rules for the cluster: " + containerCluster.getName());
-            }
-        }
-        Ip masterIp = null;
-        try {
-            masterIp = new Ip(m.invoke(masterVmNic).toString());
-        } catch (InvocationTargetException | IllegalAccessException ie) {
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to activate port forwarding rules for the cluster: " + containerCluster.getName());
-        }
-        final Ip masterIpFinal = masterIp;
-        final long publicIpId = publicIp.getId();
-        final long networkId = containerCluster.getNetworkId();
-        final long accountId = account.getId();
-        final long domainId = account.getDomainId();
-        final long masterVmIdFinal = clusterVMIds.get(0);
-
-        try {
-            PortForwardingRuleVO pfRule = Transaction.execute(new TransactionCallbackWithException<PortForwardingRuleVO, NetworkRuleConflictException>() {
-                @Override
-                public PortForwardingRuleVO doInTransaction(TransactionStatus status) throws NetworkRuleConflictException {
-                    PortForwardingRuleVO newRule =
-                            new PortForwardingRuleVO(null, publicIpId,
-                                    6443, 6443,
-                                    masterIpFinal,
-                                    6443, 6443,
-                                    "tcp", networkId, accountId, domainId, masterVmIdFinal);
-                    newRule.setDisplay(true);
-                    newRule.setState(FirewallRule.State.Add);
-                    newRule = _portForwardingDao.persist(newRule);
-                    return newRule;
-                }
-            });
-            _rulesService.applyPortForwardingRules(publicIp.getId(), account);
-
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Provisioning port forwarding rule from port 6443 on " + publicIp.getAddress() +
-                        " to the master VM IP :" + masterIpFinal + " in container cluster " + containerCluster.getName());
-            }
-        } catch (RuntimeException rte) {
-            s_logger.warn("Failed to activate port forwarding rules for the container cluster " + containerCluster.getName() + " due to " + rte);
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to activate port forwarding rules for the cluster: " + containerCluster.getName(), rte);
-        } catch (Exception e) {
-            s_logger.warn("Failed to activate port forwarding rules for the container cluster " + containerCluster.getName() + " due to " + e);
-            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-            throw new ManagementServerException("Failed to activate port forwarding rules for the cluster: " + containerCluster.getName(), e);
-        }
-
-        for (int i = 0; i < clusterVMIds.size(); ++i) {
-            long vmId = clusterVMIds.get(i);
-            Nic vmNic = _networkModel.getNicInNetwork(vmId, containerCluster.getNetworkId());
-            Ip vmIp = null;
-            try {
-                vmIp = new Ip(m.invoke(vmNic).toString());
-            } catch (InvocationTargetException | IllegalAccessException ie) {
-                stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-                throw new ManagementServerException("Failed to activate SSH port forwarding rules for the cluster: " + containerCluster.getName());
-            }
-            final Ip vmIpFinal = vmIp;
-            final long vmIdFinal = vmId;
-            final int srcPortFinal = 2222 + i;
-
-            try {
-                PortForwardingRuleVO pfRule = Transaction.execute(new TransactionCallbackWithException<PortForwardingRuleVO, NetworkRuleConflictException>() {
-                    @Override
-                    public PortForwardingRuleVO doInTransaction(TransactionStatus status) throws NetworkRuleConflictException {
-                        PortForwardingRuleVO newRule =
-                                new PortForwardingRuleVO(null, publicIpId,
-                                        srcPortFinal, srcPortFinal,
-                                        vmIpFinal,
-                                        22, 22,
-                                        "tcp", networkId, accountId, domainId, vmIdFinal);
-                        newRule.setDisplay(true);
-                        newRule.setState(FirewallRule.State.Add);
-                        newRule = _portForwardingDao.persist(newRule);
-                        return newRule;
-                    }
-                });
-                _rulesService.applyPortForwardingRules(publicIp.getId(), account);
-
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Provisioning SSH port forwarding rule from port 2222 to 22 on " + publicIp.getAddress() +
-                            " to the VM IP :" + vmIpFinal + " in container cluster " + containerCluster.getName());
-                }
-            } catch (RuntimeException rte) {
-                s_logger.warn("Failed to activate SSH port forwarding rules for the container cluster " + containerCluster.getName() + " due to " + rte);
-                stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-                throw new ManagementServerException("Failed to activate SSH port forwarding rules for the cluster: " + containerCluster.getName(), rte);
-            } catch (Exception e) {
-                s_logger.warn("Failed to activate SSH port forwarding rules for the container cluster " + containerCluster.getName() + " due to " + e);
-                stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
-                throw new ManagementServerException("Failed to activate SSH port forwarding rules for the cluster: " + containerCluster.getName(), e);
-            }
+            throw new ManagementServerException("Failed to provision network rules for the container " +
+                    "cluster: " + containerCluster.getName(), e);
         }
     }
 
@@ -1077,68 +1107,93 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
     }
 
     public DeployDestination plan(final long clusterSize, final long dcId, final ServiceOffering offering) throws InsufficientServerCapacityException {
+        return plan(clusterSize, dcId, offering, null);
+    }
+
+    public DeployDestination plan(final long clusterSize, final long dcId, final ServiceOffering offering, final VirtualMachineTemplate template)
+            throws InsufficientServerCapacityException {
+        place(clusterSize, dcId, offering, template, null, false);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Suitable hosts found in datacenter " + dcId + " creating deployment destination");
+        }
+        return new DeployDestination(_dcDao.findById(dcId), null, null, null);
+    }
+
+    public DeployDestination plan(final long containerClusterId, final long dcId) throws InsufficientServerCapacityException {
+        place(containerClusterId, dcId);
+        return new DeployDestination(_dcDao.findById(dcId), null, null, null);
+    }
+
+    // Plans the host of the master and every node VM of a cluster of the given size with the configured placement
+    // strategy, on the capacity not held for other clusters of the hosts of the hypervisor of the template, if any,
+    // and of the host tag of the offering, and holds the capacity of the VMs for the given cluster if any. With spare,
+    // one of the hosts must also be left with room for one more VM of the offering, so a cluster that only just fits
+    // is refused. Capacity is held under a lock on the zone, so that clusters planned by different management servers
+    // see the capacity held for each other.
+    ContainerClusterPlacement place(final long clusterSize, final long dcId, final ServiceOffering offering, final VirtualMachineTemplate template,
+                                    final Long containerClusterId, final boolean spare) throws InsufficientServerCapacityException {
+        if (containerClusterId == null) {
+            return doPlace(clusterSize, dcId, offering, template, null, spare);
+        }
+        final GlobalLock placementLock = GlobalLock.getInternLock("ContainerCluster.Placement." + dcId);
+        try {
+            if (!placementLock.lock(PLACEMENT_LOCK_TIMEOUT_SECONDS)) {
+                String msg = "Timed out waiting for the container clusters being planned in datacenter " + dcId;
+                s_logger.warn(msg);
+                throw new InsufficientServerCapacityException(msg, DataCenter.class, dcId);
+            }
+            try {
+                return doPlace(clusterSize, dcId, offering, template, containerClusterId, spare);
+            } finally {
+                placementLock.unlock();
+            }
+        } finally {
+            placementLock.releaseRef();
+        }
+    }
+
+    private ContainerClusterPlacement doPlace(final long clusterSize, final long dcId, final ServiceOffering offering, final VirtualMachineTemplate template,
+                                                final Long containerClusterId, final boolean spare) throws InsufficientServerCapacityException {
+        final int vmCount = (int)clusterSize + 1;
         final int cpu_requested = offering.getCpu() * offering.getSpeed();
         final long ram_requested = offering.getRamSize() * 1024L * 1024L;
-        List<HostVO> hosts = _resourceMgr.listAllHostsInOneZoneByType(Type.Routing, dcId);
-        final Map<String, Pair<HostVO, Integer>> hosts_with_resevered_capacity = new ConcurrentHashMap<String, Pair<HostVO, Integer>>();
-        for (HostVO h : hosts) {
-            hosts_with_resevered_capacity.put(h.getUuid(), new Pair<HostVO, Integer>(h, 0));
-        }
-        boolean suitable_host_found = false;
-        for (int i = 1; i <= clusterSize + 1; i++) {
-            suitable_host_found = false;
-            for (Map.Entry<String, Pair<HostVO, Integer>> hostEntry : hosts_with_resevered_capacity.entrySet()) {
-                Pair<HostVO, Integer> hp = hostEntry.getValue();
-                HostVO h = hp.first();
-                int reserved = hp.second();
-                reserved++;
-                ClusterVO cluster = _clusterDao.findById(h.getClusterId());
-                ClusterDetailsVO cluster_detail_cpu = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-                ClusterDetailsVO cluster_detail_ram = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-                Float cpuOvercommitRatio = Float.parseFloat(cluster_detail_cpu.getValue());
-                Float memoryOvercommitRatio = Float.parseFloat(cluster_detail_ram.getValue());
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Checking host " + h.getId() + " for capacity already reserved " + reserved);
-                }
-                if (_capacityMgr.checkIfHostHasCapacity(h.getId(), cpu_requested * reserved, ram_requested * reserved, false, cpuOvercommitRatio, memoryOvercommitRatio, true)) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Found host " + h.getId() + " has enough capacity cpu = " + cpu_requested * reserved + " ram =" + ram_requested * reserved);
-                    }
-                    hostEntry.setValue(new Pair<HostVO, Integer>(h, reserved));
-                    suitable_host_found = true;
-                    break;
-                }
+        final ContainerClusterPlacementStrategy strategy = ContainerClusterPlacementStrategy.fromName(
+                _globalConfigDao.getValue(CcsConfig.ContainerClusterPlacementStrategy.key()));
+        final ContainerClusterCapacitySnapshot capacity = _capacityIndex.getSnapshot(dcId, template == null ? null : template.getHypervisorType(),
+                offering.getHostTag());
+        // capacity held by clusters planned in the meantime fails the reservation, in which case the cluster is
+        // planned again on what is left
+        for (int attempt = 1; attempt <= PLACEMENT_ATTEMPTS; attempt++) {
+            final ContainerClusterCapacitySnapshot available = _capacityLedger.deduct(dcId, capacity);
+            final ContainerClusterPlacement placement = strategy.place(available, vmCount, cpu_requested, ram_requested);
+            if (placement == null || (spare && !ContainerClusterPlacementStrategy.hasRoomLeft(available, placement, cpu_requested, ram_requested))) {
+                break;
             }
-            if (suitable_host_found) {
-                continue;
-            } else {
+            if (containerClusterId == null || _capacityLedger.reserve(containerClusterId, dcId, capacity, placement, vmCount, cpu_requested, ram_requested)) {
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Suitable hosts not found in datacenter " + dcId + " for node " + i);
+                    s_logger.debug("Planned " + vmCount + " VMs on " + placement.getHostCount() + " hosts in datacenter " + dcId + ": " + placement);
                 }
-                break;
+                return placement;
             }
         }
-        if (suitable_host_found) {
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("Suitable hosts found in datacenter " + dcId + " creating deployment destination");
-            }
-            return new DeployDestination(_dcDao.findById(dcId), null, null, null);
-        }
-        String msg = String.format("Cannot find enough capacity for container_cluster(requested cpu=%1$s memory=%2$s)",
-                cpu_requested * clusterSize, ram_requested * clusterSize);
+        String msg = String.format("Cannot find enough capacity for container_cluster(requested cpu=%1$s memory=%2$s placement=%3$s)",
+                cpu_requested * vmCount, ram_requested * vmCount, strategy);
         s_logger.warn(msg);
         throw new InsufficientServerCapacityException(msg, DataCenter.class, dcId);
     }
 
-    public DeployDestination plan(final long containerClusterId, final long dcId) throws InsufficientServerCapacityException {
+    // as the planning of a cluster by its id always did, keeps the room of one more VM to spare, unlike the check of the
+    // size asked for when the cluster is created
+    ContainerClusterPlacement place(final long containerClusterId, final long dcId) throws InsufficientServerCapacityException {
         ContainerClusterVO containerCluster = _containerClusterDao.findById(containerClusterId);
         ServiceOffering offering = _srvOfferingDao.findById(containerCluster.getServiceOfferingId());
+        VirtualMachineTemplate template = _templateDao.findById(containerCluster.getTemplateId());
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Checking deployment destination for containerClusterId= " + containerClusterId + " in dcId=" + dcId);
         }
 
-        return plan(containerCluster.getNodeCount() + 1, dcId, offering);
+        return place(containerCluster.getNodeCount(), dcId, offering, template, containerClusterId, true);
     }
 
     @Override
@@ -1171,72 +1226,109 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             s_logger.debug("Stopping container cluster: " + containerCluster.getName());
         }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.StopRequested);
+        try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.STOP, ContainerClusterPhaseStatVO.TOTAL)) {
+            stateTransitTo(containerClusterId, ContainerCluster.Event.StopRequested);
 
-        for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
-            final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
-            try {
-                if (vm == null) {
-                    stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
-                    throw new ManagementServerException("Failed to start all VMs in container cluster id: " + containerClusterId);
+            try (ContainerClusterPhaseStats.Timer stopVmsTimer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.STOP, ContainerClusterPhaseStatVO.STOP_VMS)) {
+                for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
+                    final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
+                    try {
+                        if (vm == null) {
+                            stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
+                            throw new ManagementServerException("Failed to start all VMs in container cluster id: " + containerClusterId);
+                        }
+                        stopK8SVM(vmMapVO);
+                    } catch (ServerApiException ex) {
+                        s_logger.warn("Failed to stop VM in container cluster id:" + containerClusterId + " due to " + ex);
+                        // dont bail out here. proceed further to stop the reset of the VM's
+                    }
                 }
-                stopK8SVM(vmMapVO);
-            } catch (ServerApiException ex) {
-                s_logger.warn("Failed to stop VM in container cluster id:" + containerClusterId + " due to " + ex);
-                // dont bail out here. proceed further to stop the reset of the VM's
-            }
-        }
 
-        for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
-            final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
-            if (vm == null || !vm.getState().equals(VirtualMachine.State.Stopped)) {
-                stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
-                throw new ManagementServerException("Failed to stop all VMs in container cluster id: " + containerClusterId);
+                for (final ContainerClusterVmMapVO vmMapVO : _clusterVmMapDao.listByClusterId(containerClusterId)) {
+                    final UserVmVO vm = _userVmDao.findById(vmMapVO.getVmId());
+                    if (vm == null || !vm.getState().equals(VirtualMachine.State.Stopped)) {
+                        stateTransitTo(containerClusterId, ContainerCluster.Event.OperationFailed);
+                        throw new ManagementServerException("Failed to stop all VMs in container cluster id: " + containerClusterId);
+                    }
+                }
+                stopVmsTimer.succeeded();
             }
-        }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
-        return true;
+            stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
+            timer.succeeded();
+            return true;
+        }
     }
 
-    private boolean isAddOnServiceRunning(Long clusterId, String svcName) {
-
-        ContainerClusterVO containerCluster = _containerClusterDao.findById(clusterId);
-
-        //FIXME: whole logic needs revamp. Assumption that management server has public network access is not practical
-        IPAddressVO publicIp = null;
-        List<IPAddressVO> ips = _publicIpAddressDao.listByAssociatedNetwork(containerCluster.getNetworkId(), true);
-        publicIp = ips.get(0);
-
-        Runtime r = Runtime.getRuntime();
-        int nodePort = 0;
-        try {
-            Boolean devel = Boolean.valueOf(_globalConfigDao.getValue("developer"));
-            String keyFile = String.format("%s/.ssh/id_rsa", System.getProperty("user.home"));
-            if (devel) {
-                keyFile += ".cloud";
-            }
-            File pkFile = new File(keyFile);
-            Pair<Boolean, String> result = SshHelper.sshExecute(publicIp.getAddress().addr(), 2222, "core",
-                    pkFile, null, "sudo kubectl get pods --namespace=kube-system",
-                    10000, 10000, 10000);
-            if (result.first() && !Strings.isNullOrEmpty(result.second())) {
-                String[] lines = result.second().split("\n");
-                for (String line :
-                        lines) {
-                    if (line.contains(svcName) && line.contains("Running")) {
-                        if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("Service :" + svcName + " for the container cluster "
-                                    + containerCluster.getName() + " is running");
+    // Waits till the deployments of the add-ons in kube-system are all available, listing the deployments once and
+    // then watching them for changes, so that this returns as soon as the last add-on becomes available. While the API
+    // server cannot be reached, or the watch ends early, it is retried every 10 seconds, or sooner on the add-ons
+    // deployed callback.
+    boolean awaitAddOnsAvailable(final ContainerCluster containerCluster, final List<String> addOns, final long timeoutMillis,
+                                 final CompletableFuture<Boolean> addOnsDeployed) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        final Set<String> pending = new HashSet<String>(addOns);
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                final KubernetesClient client = getKubernetesClient(containerCluster);
+                if (client == null) {
+                    s_logger.warn("Unable to watch add-ons of the container cluster " + containerCluster.getName() + " as its kube config is not available");
+                    return false;
+                }
+                final KubernetesClient.DeploymentList deployments = client.getDeploymentList("kube-system");
+                for (KubernetesClient.Deployment deployment : deployments.items) {
+                    if (deployment.metadata != null && deployment.isAvailable()) {
+                        pending.remove(deployment.metadata.name);
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Watching add-ons " + pending + " of the container cluster " + containerCluster.getName() + " till they are available");
+                }
+                final int watchSeconds = (int)Math.max(1, (deadline - System.currentTimeMillis()) / 1000);
+                final String resourceVersion = deployments.metadata == null ? null : deployments.metadata.resourceVersion;
+                client.watchDeployments("kube-system", resourceVersion, watchSeconds, new KubernetesClient.WatchListener<KubernetesClient.Deployment>() {
+                    @Override
+                    public boolean onEvent(String type, KubernetesClient.Deployment deployment) {
+                        if (deployment.metadata != null && !"DELETED".equals(type) && deployment.isAvailable()) {
+                            pending.remove(deployment.metadata.name);
                         }
-                        return true;
+                        return pending.isEmpty();
                     }
+                });
+                if (pending.isEmpty()) {
+                    return true;
                 }
+                // the watch ended without all add-ons available, as it does when the API server closes the stream
+                // early or expires the resource version, so back off before listing again
+                waitForMilestone(addOnsDeployed, Math.min(10000, Math.max(0, deadline - System.currentTimeMillis())));
+            } catch (IOException | CloudRuntimeException e) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Failed to watch add-ons of the container cluster " + containerCluster.getName() + ", retrying: " + e);
+                }
+                waitForMilestone(addOnsDeployed, Math.min(10000, Math.max(0, deadline - System.currentTimeMillis())));
             }
-        } catch (Exception e) {
-            s_logger.warn("KUBECTL: " + e);
         }
-        return false;
+        return pending.isEmpty();
+    }
+
+    // Returns the client for the API server of the cluster, built from the kube config fetched from the master and
+    // kept for as long as the kube config does not change, or null if the kube config has not been fetched yet
+    KubernetesClient getKubernetesClient(final ContainerCluster containerCluster) {
+        ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerCluster.getId());
+        if (clusterDetails == null || Strings.isNullOrEmpty(clusterDetails.getKubeConfigData())) {
+            return null;
+        }
+        final String kubeConfigData = clusterDetails.getKubeConfigData();
+        Pair<String, KubernetesClient> client = _kubernetesClients.get(containerCluster.getId());
+        if (client == null || !kubeConfigData.equals(client.first())) {
+            client = new Pair<String, KubernetesClient>(kubeConfigData,
+                    KubernetesClient.fromKubeConfig(new String(Base64.decodeBase64(kubeConfigData), StandardCharsets.UTF_8)));
+            _kubernetesClients.put(containerCluster.getId(), client);
+        }
+        return client.second();
     }
 
     @Override
@@ -1270,102 +1362,116 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             throw new PermissionDeniedException("Cannot perform delete operation on cluster: " + cluster.getName() + " in state" + cluster.getState());
         }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.DestroyRequested);
+        try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(cluster, ContainerClusterPhaseStatVO.DELETE, ContainerClusterPhaseStatVO.TOTAL)) {
+            stateTransitTo(containerClusterId, ContainerCluster.Event.DestroyRequested);
 
-        boolean failedVmDestroy = false;
-        List<ContainerClusterVmMapVO> clusterVMs = _containerClusterVmMapDao.listByClusterId(cluster.getId());
-        if ((clusterVMs != null) && !clusterVMs.isEmpty()) {
-            for (ContainerClusterVmMapVO clusterVM : clusterVMs) {
-                long vmID = clusterVM.getVmId();
+            boolean failedVmDestroy = false;
+            final ContainerClusterPhaseStats.Timer destroyVmsTimer = _phaseStats.time(cluster, ContainerClusterPhaseStatVO.DELETE, ContainerClusterPhaseStatVO.DESTROY_VMS);
+            List<ContainerClusterVmMapVO> clusterVMs = _containerClusterVmMapDao.listByClusterId(cluster.getId());
+            if ((clusterVMs != null) && !clusterVMs.isEmpty()) {
+                for (ContainerClusterVmMapVO clusterVM : clusterVMs) {
+                    long vmID = clusterVM.getVmId();
 
-                // delete only if VM exists and is not removed
-                UserVmVO userVM = _vmDao.findById(vmID);
-                if (userVM == null || userVM.isRemoved()) {
-                    continue;
-                }
+                    // delete only if VM exists and is not removed
+                    UserVmVO userVM = _vmDao.findById(vmID);
+                    if (userVM == null || userVM.isRemoved()) {
+                        continue;
+                    }
 
-                try {
-                    UserVm vm = _userVmService.destroyVm(vmID, true);
-                    if (!VirtualMachine.State.Expunging.equals(vm.getState())) {
-                        s_logger.warn(String.format("VM '%s' with uuid '%s' should have been expunging by now but is '%s'... retrying..."
-                                , vm.getInstanceName()
-                                , vm.getUuid()
-                                , vm.getState().toString()));
-                        vm = _userVmService.expungeVm(vmID);
+                    try {
+                        UserVm vm = _userVmService.destroyVm(vmID, true);
                         if (!VirtualMachine.State.Expunging.equals(vm.getState())) {
-                            s_logger.error(String.format("VM '%s' is now in state '%s'. I will probably fail at deleting it's cluster."
+                            s_logger.warn(String.format("VM '%s' with uuid '%s' should have been expunging by now but is '%s'... retrying..."
                                     , vm.getInstanceName()
+                                    , vm.getUuid()
                                     , vm.getState().toString()));
+                            vm = _userVmService.expungeVm(vmID);
+                            if (!VirtualMachine.State.Expunging.equals(vm.getState())) {
+                                s_logger.error(String.format("VM '%s' is now in state '%s'. I will probably fail at deleting it's cluster."
+                                        , vm.getInstanceName()
+                                        , vm.getState().toString()));
+                            }
                         }
+                        _containerClusterVmMapDao.expunge(clusterVM.getId());
+                        _vmClusters.remove(clusterVM.getVmId());
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Destroyed VM: " + userVM.getInstanceName() + " as part of cluster: " + cluster.getName() + " destroy.");
+                        }
+                    } catch (Exception e) {
+                        failedVmDestroy = true;
+                        s_logger.warn("Failed to destroy VM :" + userVM.getInstanceName() + " part of the cluster: " + cluster.getName() +
+                                " due to " + e);
+                        s_logger.warn("Moving on with destroying remaining resources provisioned for the cluster: " + cluster.getName());
                     }
-                    _containerClusterVmMapDao.expunge(clusterVM.getId());
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Destroyed VM: " + userVM.getInstanceName() + " as part of cluster: " + cluster.getName() + " destroy.");
-                    }
-                } catch (Exception e) {
-                    failedVmDestroy = true;
-                    s_logger.warn("Failed to destroy VM :" + userVM.getInstanceName() + " part of the cluster: " + cluster.getName() +
-                            " due to " + e);
-                    s_logger.warn("Moving on with destroying remaining resources provisioned for the cluster: " + cluster.getName());
                 }
             }
-        }
-        ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerClusterId);
-        boolean cleanupNetwork = clusterDetails.getNetworkCleanup();
-
-        // if there are VM's that were not expunged, we can not delete the network
-        if (!failedVmDestroy) {
-            if (cleanupNetwork) {
-                NetworkVO network = null;
-                try {
-                    network = _networkDao.findById(cluster.getNetworkId());
-                    if (network != null && network.getRemoved() == null) {
-                        Account owner = _accountMgr.getAccount(network.getAccountId());
-                        User callerUser = _accountMgr.getActiveUser(CallContext.current().getCallingUserId());
-                        ReservationContext context = new ReservationContextImpl(null, null, callerUser, owner);
-                        boolean networkDestroyed = _networkMgr.destroyNetwork(cluster.getNetworkId(), context, true);
-                        if (!networkDestroyed) {
+            if (!failedVmDestroy) {
+                destroyVmsTimer.succeeded();
+            }
+            destroyVmsTimer.close();
+
+            ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerClusterId);
+            boolean cleanupNetwork = clusterDetails.getNetworkCleanup();
+
+            // if there are VM's that were not expunged, we can not delete the network
+            if (!failedVmDestroy) {
+                if (cleanupNetwork) {
+                    NetworkVO network = null;
+                    try (ContainerClusterPhaseStats.Timer destroyNetworkTimer = _phaseStats.time(cluster, ContainerClusterPhaseStatVO.DELETE, ContainerClusterPhaseStatVO.DESTROY_NETWORK)) {
+                        network = _networkDao.findById(cluster.getNetworkId());
+                        if (network != null && network.getRemoved() == null) {
+                            Account owner = _accountMgr.getAccount(network.getAccountId());
+                            User callerUser = _accountMgr.getActiveUser(CallContext.current().getCallingUserId());
+                            ReservationContext context = new ReservationContextImpl(null, null, callerUser, owner);
+                            boolean networkDestroyed = _networkMgr.destroyNetwork(cluster.getNetworkId(), context, true);
+                            if (!networkDestroyed) {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("Failed to destroy network: " + cluster.getNetworkId() +
+                                            " as part of cluster: " + cluster.getName() + " destroy");
+                                }
+                                processFailedNetworkDelete(containerClusterId);
+                                throw new ManagementServerException("Failed to delete the network as part of container cluster name:" + cluster.getName() + " clean up");
+                            }
                             if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Failed to destroy network: " + cluster.getNetworkId() +
-                                        " as part of cluster: " + cluster.getName() + " destroy");
+                                s_logger.debug("Destroyed network: " + network.getName() + " as part of cluster: " + cluster.getName() + " destroy");
                             }
-                            processFailedNetworkDelete(containerClusterId);
-                            throw new ManagementServerException("Failed to delete the network as part of container cluster name:" + cluster.getName() + " clean up");
                         }
+                        destroyNetworkTimer.succeeded();
+                    } catch (Exception e) {
                         if (s_logger.isDebugEnabled()) {
-                            s_logger.debug("Destroyed network: " + network.getName() + " as part of cluster: " + cluster.getName() + " destroy");
+                            s_logger.debug("Failed to destroy network: " + cluster.getNetworkId() +
+                                    " as part of cluster: " + cluster.getName() + "  destroy due to " + e);
                         }
+                        processFailedNetworkDelete(containerClusterId);
+                        throw new ManagementServerException("Failed to delete the network as part of container cluster name:" + cluster.getName() + " clean up");
                     }
-                } catch (Exception e) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Failed to destroy network: " + cluster.getNetworkId() +
-                                " as part of cluster: " + cluster.getName() + "  destroy due to " + e);
-                    }
-                    processFailedNetworkDelete(containerClusterId);
-                    throw new ManagementServerException("Failed to delete the network as part of container cluster name:" + cluster.getName() + " clean up");
                 }
+            } else {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("There are VM's that are not expunged in container cluster " + cluster.getName());
+                }
+                processFailedNetworkDelete(containerClusterId);
+                throw new ManagementServerException("Failed to destroy one or more VM's as part of container cluster name:" + cluster.getName() + " clean up");
             }
-        } else {
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug("There are VM's that are not expunged in container cluster " + cluster.getName());
-            }
-            processFailedNetworkDelete(containerClusterId);
-            throw new ManagementServerException("Failed to destroy one or more VM's as part of container cluster name:" + cluster.getName() + " clean up");
-        }
 
-        stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
+            stateTransitTo(containerClusterId, ContainerCluster.Event.OperationSucceeded);
 
-        cluster = _containerClusterDao.findById(containerClusterId);
-        cluster.setCheckForGc(false);
-        _containerClusterDao.update(cluster.getId(), cluster);
+            cluster = _containerClusterDao.findById(containerClusterId);
+            cluster.setCheckForGc(false);
+            _containerClusterDao.update(cluster.getId(), cluster);
 
-        _containerClusterDao.remove(cluster.getId());
+            _containerClusterDao.remove(cluster.getId());
+            _nodeProvisioningContexts.remove(cluster.getId());
+            _capacityLedger.release(cluster.getId());
+            _sshSessionPool.closeConnections(cluster.getId());
+            _kubernetesClients.remove(cluster.getId());
 
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Container cluster name:" + cluster.getName() + " is successfully deleted");
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Container cluster name:" + cluster.getName() + " is successfully deleted");
+            }
+            timer.succeeded();
+            return true;
         }
-
-        return true;
     }
 
     void processFailedNetworkDelete(long containerClusterId) {
@@ -1375,7 +1481,31 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         _containerClusterDao.update(cluster.getId(), cluster);
     }
 
-    UserVm createK8SMaster(final ContainerClusterVO containerCluster, final List<IPAddressVO> ips) throws ManagementServerException,
+    // What the master VM of a container cluster is deployed with that does not depend on the network being started:
+    // the guest IP reserved for it and the key pair of its API server certificate. If the master VM was deployed
+    // already by an earlier attempt, that VM and its IP.
+    static class MasterPreparation {
+        final String masterIp;
+        final KeyPair keyPair;
+        final UserVm masterVm;
+
+        MasterPreparation(String masterIp, KeyPair keyPair, UserVm masterVm) {
+            this.masterIp = masterIp;
+            this.keyPair = keyPair;
+            this.masterVm = masterVm;
+        }
+    }
+
+    MasterPreparation prepareK8SMaster(final ContainerClusterVO containerCluster, final boolean resume) {
+        UserVm masterVm = findContainerClusterVm(containerCluster, containerCluster.getName() + "-k8s-master", resume);
+        if (masterVm != null) {
+            return new MasterPreparation(masterVm.getPrivateIpAddress(), null, masterVm);
+        }
+        final String masterIp = ipAddressManager.acquireGuestIpAddress(_networkDao.findById(containerCluster.getNetworkId()), null);
+        return new MasterPreparation(masterIp, _keyPairPool.take(), null);
+    }
+
+    UserVm createK8SMaster(final ContainerClusterVO containerCluster, final List<IPAddressVO> ips, final MasterPreparation preparation) throws ManagementServerException,
             ResourceAllocationException, ResourceUnavailableException, InsufficientCapacityException {
 
         UserVm masterVm = null;
@@ -1389,7 +1519,7 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         Account owner = _accountDao.findById(containerCluster.getAccountId());
 
-        final String masterIp = ipAddressManager.acquireGuestIpAddress(_networkDao.findById(containerCluster.getNetworkId()), null);
+        final String masterIp = preparation.masterIp;
         Network.IpAddresses addrs = new Network.IpAddresses(masterIp, null);
 
         Map<String, String> customparameterMap = new HashMap<String, String>();
@@ -1397,17 +1527,11 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         String hostName = containerCluster.getName() + "-k8s-master";
 
-        String k8sMasterConfig = null;
+        String base64UserData = null;
         try {
             String masterCloudConfig = _globalConfigDao.getValue(CcsConfig.ContainerClusterMasterCloudConfig.key());
-            k8sMasterConfig = readFile(masterCloudConfig);
-
-            final String apiServerCert = "{{ k8s_master.apiserver.crt }}";
-            final String apiServerKey = "{{ k8s_master.apiserver.key }}";
-            final String caCert = "{{ k8s_master.ca.crt }}";
-            final String msSshPubKey = "{{ k8s_master.ms.ssh.pub.key }}";
-            final String clusterToken = "{{ k8s_master.cluster.token }}";
-            final String clusterIp = "{{ k8s_master.cluster.ip }}";
+            CloudConfigTemplate k8sMasterConfig = CloudConfigTemplate.load(masterCloudConfig);
+            Map<String, String> values = new HashMap<String, String>();
 
 
             final List<String> addresses = new ArrayList<>();
@@ -1416,17 +1540,19 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
                 addresses.add(ip.getAddress().addr());
             }
 
-            final Certificate certificate = caManager.issueCertificate(null, Arrays.asList(hostName, "kubernetes",
+            // sign a certificate for a pre-generated key pair, instead of having the CA manager generate one
+            final KeyPair keyPair = preparation.keyPair;
+            final Certificate certificate = caManager.issueCertificate(ContainerClusterKeyPairPool.createCsr(keyPair, hostName), Arrays.asList(hostName, "kubernetes",
                     "kubernetes.default", "kubernetes.default.svc", "kubernetes.default.svc.cluster", "kubernetes.default.svc.cluster.local"),
                     addresses, 3650, null);
 
             final String tlsClientCert = CertUtils.x509CertificateToPem(certificate.getClientCertificate());
-            final String tlsPrivateKey = CertUtils.privateKeyToPem(certificate.getPrivateKey());
+            final String tlsPrivateKey = CertUtils.privateKeyToPem(keyPair.getPrivate());
             final String tlsCaCert = CertUtils.x509CertificatesToPem(certificate.getCaCertificates());
 
-            k8sMasterConfig = k8sMasterConfig.replace(apiServerCert, tlsClientCert.replace("\n", "\n      "));
-            k8sMasterConfig = k8sMasterConfig.replace(apiServerKey, tlsPrivateKey.replace("\n", "\n      "));
-            k8sMasterConfig = k8sMasterConfig.replace(caCert, tlsCaCert.replace("\n", "\n      "));
+            values.put("k8s_master.apiserver.crt", tlsClientCert);
+            values.put("k8s_master.apiserver.key", tlsPrivateKey);
+            values.put("k8s_master.ca.crt", tlsCaCert);
 
             String pubKey = "- \"" + _globalConfigDao.getValue("ssh.publickey") + "\"";
 
@@ -1434,13 +1560,18 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             if (!Strings.isNullOrEmpty(sshKeyPair)) {
                 SSHKeyPairVO sshkp = _sshKeyPairDao.findByName(owner.getAccountId(), owner.getDomainId(), sshKeyPair);
                 if (sshkp != null) {
-                    pubKey += "\n  - \"" + sshkp.getPublicKey() + "\"";
+                    pubKey += "\n- \"" + sshkp.getPublicKey() + "\"";
                 }
             }
-            k8sMasterConfig = k8sMasterConfig.replace(msSshPubKey, pubKey);
+            values.put("k8s_master.ms.ssh.pub.key", pubKey);
 
-            k8sMasterConfig = k8sMasterConfig.replace(clusterToken, generateClusterToken(containerCluster));
-            k8sMasterConfig = k8sMasterConfig.replace(clusterIp, String.format("--apiserver-cert-extra-sans=%s", ips.get(0).getAddress().toString()));
+            values.put("k8s_master.cluster.token", generateClusterToken(containerCluster));
+            values.put("k8s_master.cluster.ip", String.format("--apiserver-cert-extra-sans=%s", ips.get(0).getAddress().toString()));
+            values.put("ccs.callback.url", getCallbackUrl(containerCluster));
+            values.put("ccs.callback.token.kubeadm_init", getCallbackToken(containerCluster, ContainerClusterCallbackListener.Milestone.KubeadmInit));
+            values.put("ccs.callback.token.addons_deployed", getCallbackToken(containerCluster, ContainerClusterCallbackListener.Milestone.AddOnsDeployed));
+
+            base64UserData = k8sMasterConfig.renderBase64(values, isUserDataCompressed());
         } catch (RuntimeException e) {
             s_logger.error("Failed to read kubernetes master configuration file due to " + e);
             throw new ManagementServerException("Failed to read kubernetes master configuration file", e);
@@ -1448,8 +1579,7 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             s_logger.error("Failed to read kubernetes master configuration file due to " + e);
             throw new ManagementServerException("Failed to read kubernetes master configuration file", e);
         }
-
-        String base64UserData = Base64.encodeBase64String(k8sMasterConfig.getBytes(Charset.forName("UTF-8")));
+        checkUserDataLength(containerCluster, hostName, base64UserData);
 
         masterVm = _userVmService.createAdvancedVirtualMachine(zone, serviceOffering, template, networkIds, owner,
                 hostName, containerCluster.getDescription(), null, null, null,
@@ -1463,10 +1593,52 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         return masterVm;
     }
 
-    UserVm createK8SNode(ContainerClusterVO containerCluster, String masterIp, int nodeInstance) throws ManagementServerException,
-            ResourceAllocationException, ResourceUnavailableException, InsufficientCapacityException {
+    boolean isUserDataCompressed() {
+        return Boolean.parseBoolean(_globalConfigDao.getValue(CcsConfig.ContainerClusterUserDataCompress.key()));
+    }
 
-        UserVm nodeVm = null;
+    // fails early with the actual sizes instead of having the VM deployment reject the user data
+    void checkUserDataLength(final ContainerCluster containerCluster, final String hostName, final String base64UserData) throws ManagementServerException {
+        final int maxLength = NumbersUtil.parseInt(_globalConfigDao.getValue(CcsConfig.ContainerClusterUserDataMaxLength.key()), 32768);
+        if (base64UserData != null && base64UserData.length() > maxLength) {
+            s_logger.error("User data of " + hostName + " in the container cluster " + containerCluster.getName() + " is " + base64UserData.length()
+                    + " characters long, more than the limit of " + maxLength);
+            throw new ManagementServerException("User data of " + hostName + " is " + base64UserData.length() + " characters long once encoded, more than the limit of "
+                    + maxLength + (isUserDataCompressed() ? "" : ", consider setting " + CcsConfig.ContainerClusterUserDataCompress.key() + " to true"));
+        }
+        if (s_logger.isDebugEnabled() && base64UserData != null) {
+            s_logger.debug("User data of " + hostName + " in the container cluster " + containerCluster.getName() + " is " + base64UserData.length() + " characters long");
+        }
+    }
+
+    // Everything needed to deploy a node VM of a container cluster that is the same for all the nodes, including the
+    // rendered user data. Built once per cluster and shared by all the node VMs deployed for the cluster.
+    static class NodeProvisioningContext {
+        final DataCenter zone;
+        final ServiceOffering serviceOffering;
+        final VirtualMachineTemplate template;
+        final List<Long> networkIds;
+        final Account owner;
+        final String masterIp;
+        final String base64UserData;
+
+        NodeProvisioningContext(DataCenter zone, ServiceOffering serviceOffering, VirtualMachineTemplate template, List<Long> networkIds,
+                                Account owner, String masterIp, String base64UserData) {
+            this.zone = zone;
+            this.serviceOffering = serviceOffering;
+            this.template = template;
+            this.networkIds = networkIds;
+            this.owner = owner;
+            this.masterIp = masterIp;
+            this.base64UserData = base64UserData;
+        }
+    }
+
+    NodeProvisioningContext getNodeProvisioningContext(final ContainerClusterVO containerCluster, final String masterIp) throws ManagementServerException {
+        NodeProvisioningContext context = _nodeProvisioningContexts.get(containerCluster.getId());
+        if (context != null && context.masterIp.equals(masterIp)) {
+            return context;
+        }
 
         DataCenter zone = _dcDao.findById(containerCluster.getZoneId());
         ServiceOffering serviceOffering = _offeringDao.findById(containerCluster.getServiceOfferingId());
@@ -1477,22 +1649,14 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         Account owner = _accountDao.findById(containerCluster.getAccountId());
 
-        Network.IpAddresses addrs = new Network.IpAddresses(null, null);
-
-        Map<String, String> customparameterMap = new HashMap<String, String>();
-        customparameterMap.put("rootdisksize", "10");
-
-        String hostName = containerCluster.getName() + "-k8s-node-" + String.valueOf(nodeInstance);
-
-        String k8sNodeConfig = null;
+        String base64UserData = null;
         try {
             String nodeCloudConfig = _globalConfigDao.getValue(CcsConfig.ContainerClusterNodeCloudConfig.key());
-            k8sNodeConfig = readFile(nodeCloudConfig).toString();
-            String masterIPString = "{{ k8s_master.default_ip }}";
-            final String clusterTokenString = "{{ k8s_master.cluster.token }}";
+            CloudConfigTemplate k8sNodeConfig = CloudConfigTemplate.load(nodeCloudConfig, WRITE_FILES_MARKER);
+            Map<String, String> values = new HashMap<String, String>();
 
-            k8sNodeConfig = k8sNodeConfig.replace(masterIPString, masterIp);
-            k8sNodeConfig = k8sNodeConfig.replace(clusterTokenString, generateClusterToken(containerCluster));
+            values.put("k8s_master.default_ip", masterIp);
+            values.put("k8s_master.cluster.token", generateClusterToken(containerCluster));
 
             ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerCluster.getId());
 
@@ -1503,60 +1667,305 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             if (dockerUserName != null && !dockerUserName.isEmpty() && dockerPassword != null && !dockerPassword.isEmpty()) {
                 // do write file for  /.docker/config.json through the code instead of k8s-node.yml as we can no make a section
                 // optional or conditionally applied
-                String dockerConfigString = "write-files:\n" +
+                String usernamePassword = dockerUserName + ":" + dockerPassword;
+                String base64Auth = Base64.encodeBase64String(usernamePassword.getBytes(Charset.forName("UTF-8")));
+                String dockerConfigString = "\n" +
                         "  - path: /.docker/config.json\n" +
                         "    owner: core:core\n" +
                         "    permissions: '0644'\n" +
                         "    content: |\n" +
                         "      {\n" +
                         "        \"auths\": {\n" +
-                        "          {{docker.url}}: {\n" +
-                        "            \"auth\": {{docker.secret}},\n" +
-                        "            \"email\": {{docker.email}}\n" +
+                        "          \"" + clusterDetails.getRegistryUrl() + "\": {\n" +
+                        "            \"auth\": \"" + base64Auth + "\",\n" +
+                        "            \"email\": \"" + clusterDetails.getRegistryEmail() + "\"\n" +
                         "          }\n" +
                         "         }\n" +
                         "      }";
-                k8sNodeConfig = k8sNodeConfig.replace("write-files:", dockerConfigString);
-                String dockerUrl = "{{docker.url}}";
-                String dockerAuth = "{{docker.secret}}";
-                String dockerEmail = "{{docker.email}}";
-                String usernamePassword = dockerUserName + ":" + dockerPassword;
-                String base64Auth = Base64.encodeBase64String(usernamePassword.getBytes(Charset.forName("UTF-8")));
-                k8sNodeConfig = k8sNodeConfig.replace(dockerUrl, "\"" + clusterDetails.getRegistryUrl() + "\"");
-                k8sNodeConfig = k8sNodeConfig.replace(dockerAuth, "\"" + base64Auth + "\"");
-                k8sNodeConfig = k8sNodeConfig.replace(dockerEmail, "\"" + clusterDetails.getRegistryEmail() + "\"");
+                values.put(WRITE_FILES_MARKER, dockerConfigString);
+            }
+
+            base64UserData = k8sNodeConfig.renderBase64(values, isUserDataCompressed());
+        } catch (RuntimeException e) {
+            s_logger.warn("Failed to read node configuration file due to " + e);
+            throw new ManagementServerException("Failed to read cluster node configuration file.", e);
+        } catch (Exception e) {
+            s_logger.warn("Failed to read node configuration file due to " + e);
+            throw new ManagementServerException("Failed to read cluster node configuration file.", e);
+        }
+        checkUserDataLength(containerCluster, containerCluster.getName() + "-k8s-node", base64UserData);
+
+        context = new NodeProvisioningContext(zone, serviceOffering, template, networkIds, owner, masterIp, base64UserData);
+        _nodeProvisioningContexts.put(containerCluster.getId(), context);
+        return context;
+    }
+
+    UserVm createK8SNode(ContainerClusterVO containerCluster, NodeProvisioningContext context, int nodeInstance) throws ManagementServerException,
+            ResourceAllocationException, ResourceUnavailableException, InsufficientCapacityException {
+
+        UserVm nodeVm = null;
+
+        Network.IpAddresses addrs = new Network.IpAddresses(null, null);
+
+        Map<String, String> customparameterMap = new HashMap<String, String>();
+        customparameterMap.put("rootdisksize", "10");
+
+        String hostName = containerCluster.getName() + "-k8s-node-" + String.valueOf(nodeInstance);
+
+        // the volumes of a pooled VM are already on a storage pool, which keeps the VM to the hosts of that pool's
+        // cluster whatever host it was planned on, so a strict placement strategy deploys a new VM instead
+        if (!isPlacementStrict(containerCluster)) {
+            nodeVm = _warmPool.claim(containerCluster, context.zone, context.template.getId(), context.serviceOffering, context.owner,
+                    context.networkIds, hostName, context.base64UserData);
+        }
+        if (nodeVm != null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Using pooled VM " + nodeVm.getUuid() + " as cluster node VM: " + hostName + " in the container cluster: " + containerCluster.getName());
+            }
+            return nodeVm;
+        }
+
+        nodeVm = _userVmService.createAdvancedVirtualMachine(context.zone, context.serviceOffering, context.template, context.networkIds, context.owner,
+                hostName, containerCluster.getDescription(), null, null, null,
+                null, BaseCmd.HTTPMethod.POST, context.base64UserData, containerCluster.getKeyPair(),
+                null, addrs, null, null, null, customparameterMap, null, null, null);
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Created cluster node VM: " + hostName + " in the container cluster: " + containerCluster.getName());
+        }
+
+        return nodeVm;
+    }
+
+    private boolean isPlacementStrict(final ContainerCluster containerCluster) {
+        final ContainerClusterPlacement placement = _capacityLedger.getPlacement(containerCluster.getId());
+        if (placement != null) {
+            return placement.getStrategy().isStrict();
+        }
+        return ContainerClusterPlacementStrategy.fromName(_globalConfigDao.getValue(CcsConfig.ContainerClusterPlacementStrategy.key())).isStrict();
+    }
+
+    // deploys, records and starts a single node VM of the container cluster, reusing the node VM deployed by an
+    // interrupted create if there is one
+    UserVm provisionK8SNode(final ContainerClusterVO containerCluster, final NodeProvisioningContext context, final int nodeInstance, final boolean resume)
+            throws ManagementServerException, ResourceAllocationException, ResourceUnavailableException, InsufficientCapacityException {
+        final long clusterId = containerCluster.getId();
+        final String step = ContainerClusterProvisioningStepVO.PROVISION_NODE + nodeInstance;
+        UserVm vm = findContainerClusterVm(containerCluster, containerCluster.getName() + "-k8s-node-" + String.valueOf(nodeInstance), resume);
+        if (vm == null) {
+            try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DEPLOY_NODE)) {
+                vm = createK8SNode(containerCluster, context, nodeInstance);
+                final long nodeVmId = vm.getId();
+                Transaction.execute(new TransactionCallback<ContainerClusterVmMapVO>() {
+                    @Override
+                    public ContainerClusterVmMapVO doInTransaction(TransactionStatus status) {
+                        ContainerClusterVmMapVO newClusterVmMap = new ContainerClusterVmMapVO(clusterId, nodeVmId);
+                        _clusterVmMapDao.persist(newClusterVmMap);
+                        _vmClusters.put(nodeVmId, clusterId);
+                        return newClusterVmMap;
+                    }
+                });
+                timer.succeeded();
+            }
+        }
+        if (!isStepCompleted(clusterId, step)) {
+            if (vm.getState() != VirtualMachine.State.Running) {
+                try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.START_NODE, vm.getId())) {
+                    attachIsoBeforeStart(vm, containerCluster);
+                    startK8SVM(vm, containerCluster, nodeInstance);
+                    timer.succeeded();
+                }
+            }
+            markStepCompleted(clusterId, step, vm.getId());
+        }
+        vm = _vmDao.findById(vm.getId());
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Provisioned node VM: " + vm.getHostName() + " in to the container cluster: " + containerCluster.getName());
+        }
+        return vm;
+    }
+
+    // Runs the task on the provisioning executor, with the managed context and the call context of the caller set up
+    // on the worker thread, so that VM operations are accounted and permission checked as if done by the caller.
+    <T> Future<T> submitProvisioningTask(final Callable<T> task) {
+        final CallContext callerContext = CallContext.current();
+        final User callingUser = callerContext.getCallingUser();
+        final Account callingAccount = callerContext.getCallingAccount();
+        final FutureTask<T> future = new FutureTask<T>(task);
+        _provisioningExecutor.execute(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                CallContext.register(callingUser, callingAccount);
+                try {
+                    future.run();
+                } finally {
+                    CallContext.unregister();
+                }
+            }
+        });
+        return future;
+    }
+
+    // Returns a future for the stage, which is run on the provisioning executor once all of the dependencies have
+    // completed. If a dependency fails the stage is not run and the future fails with what the dependency failed with.
+    <T> CompletableFuture<T> provisioningStage(final Callable<T> stage, final CompletableFuture<?>... dependencies) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        CompletableFuture.allOf(dependencies).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable failure) {
+                if (failure != null) {
+                    result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+                    return;
+                }
+                submitProvisioningTask(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            result.complete(stage.call());
+                        } catch (Throwable t) {
+                            result.completeExceptionally(t);
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    // Submits the tasks to the provisioning executor and returns once all of them are done. The tasks are also run
+    // on the calling thread, last first, as long as no worker has picked them up, so that a caller that is itself
+    // running on the provisioning executor does not wait on workers that are all busy.
+    <T> List<Future<T>> invokeProvisioningTasks(final List<Callable<T>> tasks) {
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submitProvisioningTask(task));
+        }
+        for (int i = futures.size() - 1; i >= 0; i--) {
+            // no-op if a worker has started the task already
+            ((FutureTask<T>)futures.get(i)).run();
+        }
+        for (Future<T> future : futures) {
+            getProvisioningTaskFailure(future);
+        }
+        return futures;
+    }
+
+    // Waits for the task and returns what it failed with, or null if it succeeded
+    static Throwable getProvisioningTaskFailure(final Future<?> future) {
+        try {
+            future.get();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private void startContainerClusterNetwork(final ContainerClusterVO containerCluster, final Account account) throws ManagementServerException {
+        final long containerClusterId = containerCluster.getId();
+        DeployDestination dest = null;
+        try (ContainerClusterPhaseStats.Timer timer = _phaseStats.time(containerCluster, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.PLAN)) {
+            // the capacity is held from the create of the cluster on, unless the create ran on another management
+            // server or this one restarted since
+            if (_capacityLedger.getPlacement(containerClusterId) == null) {
+                place(containerClusterId, containerCluster.getZoneId());
+            }
+            dest = new DeployDestination(_dcDao.findById(containerCluster.getZoneId()), null, null, null);
+            timer.succeeded();
+        } catch (InsufficientCapacityException e) {
+            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
+            s_logger.warn("Provisioning the cluster failed due to insufficient capacity in the container cluster: " + containerCluster.getName() + " due to " + e);
+            throw new ManagementServerException("Provisioning the cluster failed due to insufficient capacity in the container cluster: " + containerCluster.getName(), e);
+        }
+        final ReservationContext context = new ReservationContextImpl(null, null, null, account);
+
+        try {
+            _networkMgr.startNetwork(containerCluster.getNetworkId(), dest, context);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Network:" + containerCluster.getNetworkId() + " is started for the  container cluster: " + containerCluster.getName());
             }
         } catch (RuntimeException e) {
-            s_logger.warn("Failed to read node configuration file due to " + e);
-            throw new ManagementServerException("Failed to read cluster node configuration file.", e);
+            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
+            s_logger.warn("Starting the network failed as part of starting container cluster " + containerCluster.getName() + " due to " + e);
+            throw new ManagementServerException("Failed to start the network while creating container cluster name:" + containerCluster.getName(), e);
         } catch (Exception e) {
-            s_logger.warn("Failed to read node configuration file due to " + e);
-            throw new ManagementServerException("Failed to read cluster node configuration file.", e);
+            stateTransitTo(containerClusterId, ContainerCluster.Event.CreateFailed);
+            s_logger.warn("Starting the network failed as part of starting container cluster " + containerCluster.getName() + " due to " + e);
+            throw new ManagementServerException("Failed to start the network while creating container cluster name:" + containerCluster.getName(), e);
         }
+    }
 
-        String base64UserData = Base64.encodeBase64String(k8sNodeConfig.getBytes(Charset.forName("UTF-8")));
-
-        nodeVm = _userVmService.createAdvancedVirtualMachine(zone, serviceOffering, template, networkIds, owner,
-                hostName, containerCluster.getDescription(), null, null, null,
-                null, BaseCmd.HTTPMethod.POST, base64UserData, containerCluster.getKeyPair(),
-                null, addrs, null, null, null, customparameterMap, null, null, null);
-
+    // Blocks until the API server endpoint accepts connections, or until the given milestone (if any) is reported by
+    // the cluster. The endpoint is watched by the readiness prober, so the wait ends as soon as the API server is up
+    // instead of at the next fixed polling interval.
+    boolean waitForApiServer(final ContainerCluster containerCluster, final InetSocketAddress endpoint, final long timeoutMillis,
+                             final CompletableFuture<Boolean> milestone) {
         if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Created cluster node VM: " + hostName + " in the container cluster: " + containerCluster.getName());
+            s_logger.debug("Waiting for container cluster: " + containerCluster.getName() + " API endpoint " + endpoint + " to be available");
+        }
+        final CompletableFuture<Boolean> apiServerReachable = _readinessProber.probe(endpoint, timeoutMillis);
+        CompletableFuture<Object> apiServerReady = CompletableFuture.anyOf(apiServerReachable);
+        if (milestone != null) {
+            apiServerReady = CompletableFuture.anyOf(apiServerReachable, milestone);
+        }
+        try {
+            return Boolean.TRUE.equals(apiServerReady.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            s_logger.warn("Failed to probe API endpoint of container cluster: " + containerCluster.getName() + " due to " + e.getCause());
+            return false;
+        } finally {
+            apiServerReachable.cancel(false);
         }
+    }
 
-        return nodeVm;
+    // Waits up to the timeout for the milestone to be reported, returning early when it is. Once the milestone has
+    // been reported (or when callbacks are disabled) this is a plain sleep.
+    private void waitForMilestone(final CompletableFuture<Boolean> milestone, final long timeoutMillis) {
+        try {
+            if (milestone == null || milestone.isDone()) {
+                Thread.sleep(timeoutMillis);
+            } else {
+                milestone.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            s_logger.trace("Milestone not reported yet: " + e);
+        }
+    }
+
+    // URL the cluster VMs report their bootstrap milestones to, empty if callbacks are disabled
+    private String getCallbackUrl(final ContainerCluster containerCluster) {
+        String callbackUrl = _callbackListener.getCallbackUrl(containerCluster.getUuid());
+        return callbackUrl == null ? "" : callbackUrl;
+    }
+
+    // one-time token the master reports the milestone with, empty if callbacks are disabled
+    private String getCallbackToken(final ContainerCluster containerCluster, final ContainerClusterCallbackListener.Milestone milestone) {
+        ContainerClusterDetailsVO clusterDetails = _containerClusterDetailsDao.findByClusterId(containerCluster.getId());
+        String token = _callbackListener.getToken(clusterDetails.getCallbackToken(), milestone);
+        return token == null ? "" : token;
     }
 
     private void startK8SVM(final UserVm vm, final ContainerClusterVO containerCluster) throws ServerApiException {
+        startK8SVM(vm, containerCluster, -1);
+    }
+
+    // Starts the VM on the host planned for it, if any. The VM is left to the CloudStack allocator if it was not
+    // planned, or if its host cannot take it any more, in which case a strict placement strategy fails the start if
+    // the VM ends up next to another VM of the cluster.
+    private void startK8SVM(final UserVm vm, final ContainerClusterVO containerCluster, final int placedVm) throws ServerApiException {
 
+        final ContainerClusterPlacement placement = _capacityLedger.getPlacement(containerCluster.getId());
+        final Long hostId = placement == null ? null : placement.getHostId(placedVm);
         try {
-            StartVMCmd startVm = new StartVMCmd();
-            startVm = ComponentContext.inject(startVm);
-            Field f = startVm.getClass().getDeclaredField("id");
-            f.setAccessible(true);
-            f.set(startVm, vm.getId());
-            _userVmService.startVirtualMachine(startVm);
+            startVirtualMachine(vm, hostId);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Started VM in the container cluster: " + containerCluster.getName());
             }
@@ -1582,51 +1991,170 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             s_logger.warn("Failed to start VM instance.");
             throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to start VM instance in container cluster " + containerCluster.getName());
         }
+        if (hostId != null && !hostId.equals(startVm.getHostId())) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Host " + hostId + " planned for VM " + vm.getHostName() + " of the container cluster: " + containerCluster.getName()
+                        + " could not take it, the allocator started it on host " + startVm.getHostId());
+            }
+            if (placement.getStrategy().isStrict() && sharesHost(containerCluster, startVm)) {
+                s_logger.warn("VM " + vm.getHostName() + " of the container cluster: " + containerCluster.getName() + " was started next to another VM of the"
+                        + " cluster on host " + startVm.getHostId() + " against the " + placement.getStrategy() + " placement strategy");
+                throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to start VM instance in container cluster " + containerCluster.getName()
+                        + " on a host of its own");
+            }
+        }
+        // the VM uses up the capacity of its host itself now
+        _capacityLedger.release(containerCluster.getId(), placedVm);
     }
 
-    private void attachIsoK8SVMs(long containerClusterId, List<Long> clusterVMIds) throws ServerApiException {
-        ContainerCluster containerCluster = _containerClusterDao.findById(containerClusterId);
+    // Starts the VM through the API in the call context of the caller, on the host planned for it if any. Only root
+    // admins may name the host of a VM through the API, so the planned host is made the last host of the VM instead.
+    // The deployment planner tries the last host of a VM first, as long as it is up, enabled, not dedicated to others,
+    // tagged for the offering and has room for the VM, and plans the VM anew otherwise.
+    private void startVirtualMachine(final UserVm vm, final Long hostId) throws Exception {
+        if (hostId != null) {
+            final UserVmVO plannedVm = _vmDao.findById(vm.getId());
+            plannedVm.setLastHostId(hostId);
+            _vmDao.update(plannedVm.getId(), plannedVm);
+        }
+        StartVMCmd startVm = new StartVMCmd();
+        startVm = ComponentContext.inject(startVm);
+        Field f = startVm.getClass().getDeclaredField("id");
+        f.setAccessible(true);
+        f.set(startVm, vm.getId());
+        _userVmService.startVirtualMachine(startVm);
+    }
+
+    // whether another VM of the cluster is on the host of the given VM
+    private boolean sharesHost(final ContainerCluster containerCluster, final UserVm vm) {
+        final List<Long> vmIds = new ArrayList<Long>();
+        for (ContainerClusterVmMapVO vmMap : _clusterVmMapDao.listByClusterId(containerCluster.getId())) {
+            if (vmMap.getVmId() != vm.getId()) {
+                vmIds.add(vmMap.getVmId());
+            }
+        }
+        if (vmIds.isEmpty()) {
+            return false;
+        }
+        for (VMInstanceVO other : _clusterVmMapDao.listVmsIncludingRemoved(vmIds)) {
+            if (other.getRemoved() == null && vm.getHostId().equals(other.getHostId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the binaries ISO named by the global setting, or null if the setting is empty or the ISO does not exist
+    private VMTemplateVO getBinariesIso(final ContainerCluster containerCluster) {
         String isoName = _globalConfigDao.getValue(CcsConfig.ContainerClusterBinariesIsoName.key());
         if (isoName == null || isoName.isEmpty()) {
             s_logger.warn("Unable to attach ISO to container cluster: " + containerCluster.getUuid() + ". Global setting " + CcsConfig.ContainerClusterBinariesIsoName.key() + " is empty.");
-            return;
+            return null;
+        }
+        VMTemplateVO iso = _binariesIso;
+        if (iso != null && isoName.equals(iso.getName())) {
+            return iso;
         }
-
         SearchCriteria<VMTemplateVO> sc = _templateDao.createSearchCriteria();
         sc.addAnd("name", SearchCriteria.Op.EQ, isoName);
         sc.addAnd("state", SearchCriteria.Op.EQ, VMTemplateVO.State.Active.toString());
-        VMTemplateVO iso = _templateDao.findOneBy(sc);
+        iso = _templateDao.findOneBy(sc);
         if (iso == null) {
             s_logger.warn("Unable to attach ISO to container cluster: " + containerCluster.getUuid() + ". Binaries ISO with name :" + isoName + " specified by admin is not found.");
+            return null;
+        }
+        _binariesIso = iso;
+        return iso;
+    }
+
+    // Attaches the binaries ISO to a VM that is yet to be started, so that it is there on first boot. If the
+    // hypervisor does not allow that, the ISO gets attached after the VM is started by attachIsoK8SVMs.
+    private void attachIsoBeforeStart(final UserVm vm, final ContainerCluster containerCluster) {
+        if (vm.getState() != VirtualMachine.State.Stopped || vm.getIsoId() != null) {
+            return;
+        }
+        VMTemplateVO iso = getBinariesIso(containerCluster);
+        if (iso == null) {
+            return;
+        }
+        try {
+            templateService.attachIso(iso.getId(), vm.getId());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(String.format("Attached binaries ISO for VM: %s in cluster: %s before starting it", vm.getUuid(), containerCluster.getName()));
+            }
+        } catch (CloudRuntimeException ex) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug(String.format("Unable to attach binaries ISO for VM: %s in cluster: %s before starting it, will attach once it is running: %s",
+                        vm.getUuid(), containerCluster.getName(), ex.getMessage()));
+            }
+        }
+    }
+
+    // Attaches the binaries ISO to the cluster VMs that do not have it attached yet, concurrently on the provisioning
+    // executor. A VM failing to get the ISO is logged and does not fail the others.
+    private void attachIsoK8SVMs(long containerClusterId, List<Long> clusterVMIds) throws ServerApiException {
+        final ContainerCluster containerCluster = _containerClusterDao.findById(containerClusterId);
+        final VMTemplateVO iso = getBinariesIso(containerCluster);
+        if (iso == null) {
             return;
         }
+        final List<UserVm> vms = new ArrayList<>();
+        final List<Callable<Boolean>> tasks = new ArrayList<>();
         for (int i = 0; i < clusterVMIds.size(); ++i) {
-            UserVm vm = _vmDao.findById(clusterVMIds.get(i));
-            try {
-                templateService.attachIso(iso.getId(), vm.getId());
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug(String.format("Attached binaries ISO for VM: %s in cluster: %s", vm.getUuid(), containerCluster.getName()));
+            final UserVm vm = _vmDao.findById(clusterVMIds.get(i));
+            if (vm.getIsoId() != null && vm.getIsoId() == iso.getId()) {
+                continue;
+            }
+            vms.add(vm);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    templateService.attachIso(iso.getId(), vm.getId());
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(String.format("Attached binaries ISO for VM: %s in cluster: %s", vm.getUuid(), containerCluster.getName()));
+                    }
+                    return true;
                 }
-            } catch (CloudRuntimeException ex) {
-                s_logger.warn(String.format("Failed to attach binaries ISO for VM: %s in the container cluster name: %s due to Exception: ", vm.getDisplayName(), containerCluster.getName()), ex);
-                // throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, String.format("Failed to attach binaries ISO for VM: %s in the container cluster name: %s", vm.getDisplayName(), containerCluster.getName()), ex);
+            });
+        }
+        final List<Future<Boolean>> results = invokeProvisioningTasks(tasks);
+        for (int i = 0; i < results.size(); ++i) {
+            Throwable failure = getProvisioningTaskFailure(results.get(i));
+            if (failure != null) {
+                s_logger.warn(String.format("Failed to attach binaries ISO for VM: %s in the container cluster name: %s due to Exception: ", vms.get(i).getDisplayName(), containerCluster.getName()), failure);
+                // the cached ISO may have been deleted since it was looked up
+                _binariesIso = null;
             }
         }
     }
 
+    // Detaches the ISO from the cluster VMs that have one attached, concurrently on the provisioning executor.
     private void detachIsoK8SVMs(long containerClusterId, List<Long> clusterVMIds) throws ServerApiException {
-        ContainerCluster containerCluster = _containerClusterDao.findById(containerClusterId);
+        final ContainerCluster containerCluster = _containerClusterDao.findById(containerClusterId);
+        final List<UserVm> vms = new ArrayList<>();
+        final List<Callable<Boolean>> tasks = new ArrayList<>();
         for (int i = 0; i < clusterVMIds.size(); ++i) {
-            UserVm vm = _vmDao.findById(clusterVMIds.get(i));
-
-            try {
-                templateService.detachIso(vm.getId());
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Started VM in the container cluster: " + containerCluster.getName());
+            final UserVm vm = _vmDao.findById(clusterVMIds.get(i));
+            if (vm == null || vm.getIsoId() == null) {
+                continue;
+            }
+            vms.add(vm);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    templateService.detachIso(vm.getId());
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug(String.format("Detached binaries ISO for VM: %s in cluster: %s", vm.getUuid(), containerCluster.getName()));
+                    }
+                    return true;
                 }
-            } catch (CloudRuntimeException ex) {
-                s_logger.warn(String.format("Failed to detach binaries ISO for VM: %s in the container cluster name: %s due to Exception: ", vm.getDisplayName(), containerCluster.getName()), ex);
-                // throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, String.format("Failed to attach binaries ISO for VM: %s in the container cluster name: %s", vm.getDisplayName(), containerCluster.getName()), ex);
+            });
+        }
+        final List<Future<Boolean>> results = invokeProvisioningTasks(tasks);
+        for (int i = 0; i < results.size(); ++i) {
+            Throwable failure = getProvisioningTaskFailure(results.get(i));
+            if (failure != null) {
+                s_logger.warn(String.format("Failed to detach binaries ISO for VM: %s in the container cluster name: %s due to Exception: ", vms.get(i).getDisplayName(), containerCluster.getName()), failure);
             }
         }
     }
@@ -1711,6 +2239,86 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         return response;
     }
 
+    @Override
+    public ContainerClusterProvisioningStatsResponse listContainerClusterProvisioningStats(ListContainerClusterProvisioningStatsCmd cmd) {
+        Account caller = CallContext.current().getCallingAccount();
+
+        ContainerClusterProvisioningStatsResponse response = new ContainerClusterProvisioningStatsResponse();
+        Long zoneId = cmd.getZoneId();
+        if (cmd.getId() != null) {
+            ContainerClusterVO cluster = _containerClusterDao.findById(cmd.getId());
+            if (cluster == null) {
+                throw new InvalidParameterValueException("Invalid cluster id specified");
+            }
+            _accountMgr.checkAccess(caller, SecurityChecker.AccessType.ListEntry, false, cluster);
+            response.setId(cluster.getUuid());
+            response.setName(cluster.getName());
+            if (zoneId == null) {
+                zoneId = cluster.getZoneId();
+            }
+
+            List<ContainerClusterPhaseStatVO> stats = _phaseStats.listTimeline(cluster.getId());
+            // the uuids of the VMs of the timeline, looked up at once rather than once per phase
+            Set<Long> vmIds = new HashSet<Long>();
+            for (ContainerClusterPhaseStatVO stat : stats) {
+                if (stat.getVmId() != null) {
+                    vmIds.add(stat.getVmId());
+                }
+            }
+            Map<Long, String> vmUuids = new HashMap<Long, String>();
+            if (!vmIds.isEmpty()) {
+                for (VMInstanceVO vm : _containerClusterVmMapDao.listVmsIncludingRemoved(new ArrayList<Long>(vmIds))) {
+                    vmUuids.put(vm.getId(), vm.getUuid());
+                }
+            }
+
+            List<ContainerClusterPhaseTimingResponse> timeline = new ArrayList<ContainerClusterPhaseTimingResponse>();
+            for (ContainerClusterPhaseStatVO stat : stats) {
+                ContainerClusterPhaseTimingResponse timing = new ContainerClusterPhaseTimingResponse();
+                timing.setOperation(stat.getOperation());
+                timing.setPhase(stat.getPhase());
+                if (stat.getVmId() != null && vmUuids.containsKey(stat.getVmId())) {
+                    timing.setVirtualMachineId(vmUuids.get(stat.getVmId()));
+                }
+                timing.setStarted(stat.getStarted());
+                timing.setDurationMs(stat.getDurationMs());
+                timing.setSuccess(stat.isSuccess());
+                timing.setObjectName("phase");
+                timeline.add(timing);
+            }
+            response.setTimeline(timeline);
+        } else if (zoneId == null) {
+            throw new InvalidParameterValueException("Either the id of a container cluster or the id of a zone has to be specified");
+        }
+
+        DataCenterVO zone = _dcDao.findById(zoneId);
+        if (zone == null) {
+            throw new InvalidParameterValueException("Invalid zone id specified");
+        }
+        response.setZoneId(zone.getUuid());
+
+        // zone wide figures tell about the infrastructure, so they are only for admins
+        if (_accountMgr.isRootAdmin(caller.getId())) {
+            List<ContainerClusterPhasePercentilesResponse> percentiles = new ArrayList<ContainerClusterPhasePercentilesResponse>();
+            for (ContainerClusterPhaseStats.PhasePercentiles phasePercentiles : _phaseStats.listPercentiles(zone.getId())) {
+                ContainerClusterPhasePercentilesResponse percentilesResponse = new ContainerClusterPhasePercentilesResponse();
+                percentilesResponse.setOperation(phasePercentiles.operation);
+                percentilesResponse.setPhase(phasePercentiles.phase);
+                percentilesResponse.setCount(phasePercentiles.count);
+                percentilesResponse.setFailed(phasePercentiles.failed);
+                percentilesResponse.setP50(phasePercentiles.p50);
+                percentilesResponse.setP95(phasePercentiles.p95);
+                percentilesResponse.setP99(phasePercentiles.p99);
+                percentilesResponse.setObjectName("phase");
+                percentiles.add(percentilesResponse);
+            }
+            response.setPercentiles(percentiles);
+        }
+
+        response.setObjectName("provisioningstats");
+        return response;
+    }
+
     public ContainerClusterResponse createContainerClusterResponse(long containerClusterId) {
 
         ContainerClusterVO containerCluster = _containerClusterDao.findById(containerClusterId);
@@ -1722,13 +2330,13 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
 
         response.setDescription(containerCluster.getDescription());
 
-        DataCenterVO zone = ApiDBUtils.findZoneById(containerCluster.getZoneId());
+        DataCenterVO zone = _dcDao.findById(containerCluster.getZoneId());
         response.setZoneId(zone.getUuid());
         response.setZoneName(zone.getName());
 
         response.setClusterSize(String.valueOf(containerCluster.getNodeCount()));
 
-        VMTemplateVO template = ApiDBUtils.findTemplateById(containerCluster.getTemplateId());
+        VMTemplateVO template = _templateDao.findByIdIncludingRemoved(containerCluster.getTemplateId());
         response.setTemplateId(template.getUuid());
 
         ServiceOfferingVO offering = _srvOfferingDao.findById(containerCluster.getServiceOfferingId());
@@ -1772,11 +2380,6 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         return response;
     }
 
-    static String readFile(String path) throws IOException {
-        byte[] encoded = Files.readAllBytes(Paths.get(path));
-        return new String(encoded, StandardCharsets.UTF_8);
-    }
-
     protected boolean stateTransitTo(long containerClusterId, ContainerCluster.Event e) {
         ContainerClusterVO containerCluster = _containerClusterDao.findById(containerClusterId);
         try {
@@ -1888,45 +2491,49 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         cmdList.add(DeleteContainerClusterCmd.class);
         cmdList.add(ListContainerClusterCmd.class);
         cmdList.add(GetContainerClusterConfigCmd.class);
+        cmdList.add(ListContainerClusterProvisioningStatsCmd.class);
         return cmdList;
     }
 
     // Garbage collector periodically run through the container clusters marked for GC. For each container cluster
-    // marked for GC, attempt is made to destroy cluster.
+    // marked for GC this management server owns, attempt is made to destroy cluster.
     public class ContainerClusterGarbageCollector extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
-            GlobalLock gcLock = GlobalLock.getInternLock("ContainerCluster.GC.Lock");
-            try {
-                if (gcLock.lock(3)) {
-                    try {
-                        reallyRun();
-                    } finally {
-                        gcLock.unlock();
-                    }
-                }
-            } finally {
-                gcLock.releaseRef();
-            }
+            _shards.refresh();
+            reallyRun();
         }
 
         public void reallyRun() {
             try {
                 List<ContainerClusterVO> containerClusters = _containerClusterDao.findContainerClustersToGarbageCollect();
                 for (ContainerCluster containerCluster : containerClusters) {
+                    if (!_shards.isOwned(containerCluster.getId())) {
+                        continue;
+                    }
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("Running container cluster garbage collector on container cluster name:" + containerCluster.getName());
                     }
+                    // the management server that owned the cluster before the clusters were last shared out may
+                    // still be collecting it
+                    GlobalLock gcLock = GlobalLock.getInternLock("ContainerCluster.GC.Lock." + containerCluster.getId());
                     try {
-                        if (cleanupContainerClusterResources(containerCluster.getId())) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Container cluster: " + containerCluster.getName() + " is successfully garbage collected");
-                            }
-                        } else {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Container cluster: " + containerCluster.getName() + " failed to get" +
-                                        " garbage collected. Will be attempted to garbage collected in next run");
+                        if (!gcLock.lock(0)) {
+                            continue;
+                        }
+                        try {
+                            if (cleanupContainerClusterResources(containerCluster.getId())) {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("Container cluster: " + containerCluster.getName() + " is successfully garbage collected");
+                                }
+                            } else {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("Container cluster: " + containerCluster.getName() + " failed to get" +
+                                            " garbage collected. Will be attempted to garbage collected in next run");
+                                }
                             }
+                        } finally {
+                            gcLock.unlock();
                         }
                     } catch (RuntimeException e) {
                         s_logger.debug("Faied to destroy container cluster name:" + containerCluster.getName() + " during GC due to " + e);
@@ -1934,11 +2541,37 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
                     } catch (Exception e) {
                         s_logger.debug("Faied to destroy container cluster name:" + containerCluster.getName() + " during GC due to " + e);
                         // proceed furhter with rest of the container cluster garbage collection
+                    } finally {
+                        gcLock.releaseRef();
                     }
                 }
             } catch (Exception e) {
                 s_logger.warn("Caught exception while running container cluster gc: ", e);
             }
+            _phaseStats.purgeExpired();
+            _capacityLedger.releaseHeldByOthersThan(_shards.getManagementServerIds());
+        }
+    }
+
+    // Resumes the create of a container cluster from its last completed step, if the create is not running any more.
+    // Runs as system, as the user that started the create is not around any more.
+    public class ContainerClusterCreateResumer extends ManagedContextRunnable {
+        private final long _containerClusterId;
+
+        public ContainerClusterCreateResumer(long containerClusterId) {
+            _containerClusterId = containerClusterId;
+        }
+
+        @Override
+        protected void runInContext() {
+            CallContext.register(_accountMgr.getSystemUser(), _accountMgr.getSystemAccount());
+            try {
+                provisionContainerCluster(_containerClusterId, true);
+            } catch (Exception e) {
+                s_logger.warn("Failed to resume create of container cluster id: " + _containerClusterId + " due to " + e);
+            } finally {
+                CallContext.unregister();
+            }
         }
     }
 
@@ -1950,73 +2583,72 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
        scanner detects these changes and marks the cluster in 'Alert' state. Similarly cluster in 'Stopped' state means
        all the cluster VM's are in stopped state any mismatch in states should get picked up by container cluster and
        mark the container cluster to be 'Alert' state. Through recovery API, or reconciliation clusters in 'Alert' will
-       be brought back to known good state or desired state.
+       be brought back to known good state or desired state. Each management server scans the container clusters it
+       owns. As the state changes of the VMs of the clusters are acted on as they happen, see
+       ContainerClusterVmStateListener, the scanner is only a safety net for the changes missed, and runs every
+       STATE_SCAN_INTERVAL_SECONDS.
      */
     public class ContainerClusterStatusScanner extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
-            GlobalLock gcLock = GlobalLock.getInternLock("ContainerCluster.State.Scanner.Lock");
-            try {
-                if (gcLock.lock(3)) {
-                    try {
-                        reallyRun();
-                    } finally {
-                        gcLock.unlock();
-                    }
-                }
-            } finally {
-                gcLock.releaseRef();
-            }
+            _shards.refresh();
+            reallyRun();
         }
 
         public void reallyRun() {
             try {
-
-                // run through container clusters in 'Running' state and ensure all the VM's are Running in the cluster
-                List<ContainerClusterVO> runningContainerClusters = _containerClusterDao.findContainerClustersInState(ContainerCluster.State.Running);
-                for (ContainerCluster containerCluster : runningContainerClusters) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Running container cluster state scanner on container cluster name:" + containerCluster.getName());
+                // the VMs of clusters created on other management servers since the last run
+                loadVmClusters();
+
+                // the clusters to scan in one query, and their VMs in two queries per batch of clusters
+                final List<ContainerClusterVO> containerClusters = _containerClusterDao.findContainerClustersInStates(Arrays.asList(
+                        ContainerCluster.State.Running, ContainerCluster.State.Stopped, ContainerCluster.State.Starting, ContainerCluster.State.Alert));
+                final List<ContainerClusterVO> runningContainerClusters = new ArrayList<ContainerClusterVO>();
+                final List<ContainerClusterVO> stoppedContainerClusters = new ArrayList<ContainerClusterVO>();
+                final List<ContainerClusterVO> alertContainerClusters = new ArrayList<ContainerClusterVO>();
+                final List<ContainerClusterVO> startingContainerClusters = new ArrayList<ContainerClusterVO>();
+                for (ContainerClusterVO containerCluster : containerClusters) {
+                    if (!_shards.isOwned(containerCluster.getId())) {
+                        continue;
                     }
-                    try {
-                        if (!isClusterInDesiredState(containerCluster, VirtualMachine.State.Running)) {
-                            stateTransitTo(containerCluster.getId(), ContainerCluster.Event.FaultsDetected);
-                        }
-                    } catch (Exception e) {
-                        s_logger.warn("Failed to run through VM states of container cluster due to " + e);
+                    if (containerCluster.getState() == ContainerCluster.State.Running) {
+                        runningContainerClusters.add(containerCluster);
+                    } else if (containerCluster.getState() == ContainerCluster.State.Stopped) {
+                        stoppedContainerClusters.add(containerCluster);
+                    } else if (containerCluster.getState() == ContainerCluster.State.Alert) {
+                        alertContainerClusters.add(containerCluster);
+                    } else {
+                        startingContainerClusters.add(containerCluster);
                     }
                 }
 
-                // run through container clusters in 'Stopped' state and ensure all the VM's are Stopped in the cluster
-                List<ContainerClusterVO> stoppedContainerClusters = _containerClusterDao.findContainerClustersInState(ContainerCluster.State.Stopped);
-                for (ContainerCluster containerCluster : stoppedContainerClusters) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Running container cluster state scanner on container cluster name:" + containerCluster.getName() + " for state " + ContainerCluster.State.Stopped);
-                    }
-                    try {
-                        if (!isClusterInDesiredState(containerCluster, VirtualMachine.State.Stopped)) {
-                            stateTransitTo(containerCluster.getId(), ContainerCluster.Event.FaultsDetected);
+                // run through container clusters in 'Running', 'Stopped' and 'Alert' state and reconcile their state
+                // with the state of their VM's
+                final List<List<ContainerClusterVO>> batches = new ArrayList<List<ContainerClusterVO>>();
+                batches.addAll(getBatches(runningContainerClusters));
+                batches.addAll(getBatches(stoppedContainerClusters));
+                batches.addAll(getBatches(alertContainerClusters));
+                for (List<ContainerClusterVO> batch : batches) {
+                    final ClusterVms clusterVms = loadClusterVms(batch);
+                    for (ContainerCluster containerCluster : batch) {
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Running container cluster state scanner on container cluster name:" + containerCluster.getName() + " for state "
+                                    + containerCluster.getState());
+                        }
+                        try {
+                            reconcileClusterState(containerCluster, clusterVms);
+                        } catch (Exception e) {
+                            s_logger.warn("Failed to run through VM states of container cluster due to " + e);
                         }
-                    } catch (Exception e) {
-                        s_logger.warn("Failed to run through VM states of container cluster due to " + e);
                     }
                 }
 
-                // run through container clusters in 'Alert' state and reconcile state as 'Running' if the VM's are running
-                List<ContainerClusterVO> alertContainerClusters = _containerClusterDao.findContainerClustersInState(ContainerCluster.State.Alert);
-                for (ContainerCluster containerCluster : alertContainerClusters) {
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("Running container cluster state scanner on container cluster name:" + containerCluster.getName() + " for state " + ContainerCluster.State.Alert);
-                    }
-                    try {
-                        if (isClusterInDesiredState(containerCluster, VirtualMachine.State.Running)) {
-                            // mark the cluster to be running
-                            stateTransitTo(containerCluster.getId(), ContainerCluster.Event.RecoveryRequested);
-                            stateTransitTo(containerCluster.getId(), ContainerCluster.Event.OperationSucceeded);
-                        }
-                    } catch (Exception e) {
-                        s_logger.warn("Failed to run through VM states of container cluster status scanner due to " + e);
+                // run through container clusters in 'Starting' state and resume the ones whose create got interrupted
+                for (ContainerCluster containerCluster : startingContainerClusters) {
+                    if (_provisioningStepDao.listByClusterId(containerCluster.getId()).isEmpty()) {
+                        continue;
                     }
+                    _createResumer.execute(new ContainerClusterCreateResumer(containerCluster.getId()));
                 }
 
             } catch (RuntimeException e) {
@@ -2027,17 +2659,201 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         }
     }
 
+    // A cluster in 'Running' state with VM's not running, or in 'Stopped' state with VM's not stopped, is moved to
+    // 'Alert' state. A cluster in 'Alert' state whose VM's are all running again is marked to be running.
+    void reconcileClusterState(ContainerCluster containerCluster, ClusterVms clusterVms) {
+        if (containerCluster.getState() == ContainerCluster.State.Running) {
+            if (!isClusterInDesiredState(containerCluster, VirtualMachine.State.Running, clusterVms)) {
+                stateTransitTo(containerCluster.getId(), ContainerCluster.Event.FaultsDetected);
+            }
+        } else if (containerCluster.getState() == ContainerCluster.State.Stopped) {
+            if (!isClusterInDesiredState(containerCluster, VirtualMachine.State.Stopped, clusterVms)) {
+                stateTransitTo(containerCluster.getId(), ContainerCluster.Event.FaultsDetected);
+            }
+        } else if (containerCluster.getState() == ContainerCluster.State.Alert) {
+            if (isClusterInDesiredState(containerCluster, VirtualMachine.State.Running, clusterVms)) {
+                // mark the cluster to be running
+                stateTransitTo(containerCluster.getId(), ContainerCluster.Event.RecoveryRequested);
+                stateTransitTo(containerCluster.getId(), ContainerCluster.Event.OperationSucceeded);
+            }
+        }
+    }
+
+    // loads the cluster of every container cluster VM, in one query
+    void loadVmClusters() {
+        final Map<Long, Long> vmClusters = new HashMap<Long, Long>();
+        for (ContainerClusterVmMapVO vmMap : _containerClusterVmMapDao.listAll()) {
+            vmClusters.put(vmMap.getVmId(), vmMap.getClusterId());
+        }
+        _vmClusters.putAll(vmClusters);
+        _vmClusters.keySet().retainAll(vmClusters.keySet());
+    }
+
+    /* Reconciles the state of a container cluster with the state of its VM's as soon as one of its VM's is done
+       changing state, rather than on the next run of the state scanner. VM's are mapped to their clusters through an
+       index of the VM's of all clusters kept in memory, falling back to one indexed query on the VM map for the user
+       VM's the index does not know of, as they may have joined a cluster through another management server. The
+       clusters are reconciled one by one on a separate thread, once for all the state changes of their VM's that
+       came in meanwhile, with the state each VM changed to.
+     */
+    public class ContainerClusterVmStateListener implements StateListener<VirtualMachine.State, VirtualMachine.Event, VirtualMachine> {
+        @Override
+        public boolean preStateTransitionEvent(VirtualMachine.State oldState, VirtualMachine.Event event, VirtualMachine.State newState, VirtualMachine vm,
+                                               boolean status, Object opaque) {
+            return true;
+        }
+
+        @Override
+        public boolean postStateTransitionEvent(StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event> transition, VirtualMachine vm,
+                                                boolean status, Object opaque) {
+            if (!status || TRANSIENT_VM_STATES.contains(transition.getToState())) {
+                return true;
+            }
+            final Long containerClusterId = findVmCluster(vm);
+            if (containerClusterId != null) {
+                vmStateChanged(containerClusterId, vm.getId(), transition.getToState());
+            }
+            return true;
+        }
+    }
+
+    // the cluster of a VM from the index, or from its VM map row if the VM got into a cluster on another management
+    // server since the index was last loaded
+    Long findVmCluster(final VirtualMachine vm) {
+        final Long containerClusterId = _vmClusters.get(vm.getId());
+        if (containerClusterId != null || vm.getType() != VirtualMachine.Type.User) {
+            return containerClusterId;
+        }
+        final ContainerClusterVmMapVO vmMap = _containerClusterVmMapDao.findByVmId(vm.getId());
+        if (vmMap == null) {
+            return null;
+        }
+        _vmClusters.put(vm.getId(), vmMap.getClusterId());
+        return vmMap.getClusterId();
+    }
+
+    // VM states that are followed by another one, in which the VM is not looked at yet
+    private static final Set<VirtualMachine.State> TRANSIENT_VM_STATES = new HashSet<VirtualMachine.State>(Arrays.asList(VirtualMachine.State.Starting,
+            VirtualMachine.State.Stopping, VirtualMachine.State.Migrating));
+
+    void vmStateChanged(final long containerClusterId, final long vmId, final VirtualMachine.State state) {
+        Map<Long, VirtualMachine.State> vmStates = new ConcurrentHashMap<Long, VirtualMachine.State>();
+        final Map<Long, VirtualMachine.State> pending = _pendingVmStates.putIfAbsent(containerClusterId, vmStates);
+        if (pending != null) {
+            vmStates = pending;
+        }
+        vmStates.put(vmId, state);
+        if (pending == null) {
+            try {
+                _faultDetector.execute(new ManagedContextRunnable() {
+                    @Override
+                    protected void runInContext() {
+                        reconcileClusterState(containerClusterId);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down, the state scanner of the management server taking over the cluster catches the change
+                _pendingVmStates.remove(containerClusterId);
+            }
+        }
+    }
+
+    // reconciles the state of the cluster with the states its VM's changed to since it was last reconciled
+    void reconcileClusterState(final long containerClusterId) {
+        final Map<Long, VirtualMachine.State> vmStates = _pendingVmStates.remove(containerClusterId);
+        try {
+            final ContainerClusterVO containerCluster = _containerClusterDao.findById(containerClusterId);
+            if (containerCluster == null) {
+                return;
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("VM's " + vmStates + " of container cluster name:" + containerCluster.getName() + " in state " + containerCluster.getState()
+                        + " changed state");
+            }
+            final ClusterVms clusterVms = loadClusterVms(Arrays.asList(containerCluster));
+            // the changes may not be committed yet
+            if (vmStates != null) {
+                clusterVms.states.putAll(vmStates);
+            }
+            reconcileClusterState(containerCluster, clusterVms);
+        } catch (Exception e) {
+            s_logger.warn("Failed to reconcile the state of container cluster id: " + containerClusterId + " with the state of its VM's due to " + e);
+        }
+    }
+
+    // the VM maps of a batch of clusters, by cluster, their VMs, by id, and the state VMs are known to have changed to
+    static class ClusterVms {
+        final Map<Long, List<ContainerClusterVmMapVO>> vmMaps = new HashMap<Long, List<ContainerClusterVmMapVO>>();
+        final Map<Long, VMInstanceVO> vms = new HashMap<Long, VMInstanceVO>();
+        final Map<Long, VirtualMachine.State> states = new HashMap<Long, VirtualMachine.State>();
+
+        List<ContainerClusterVmMapVO> getVmMaps(final long clusterId) {
+            final List<ContainerClusterVmMapVO> clusterVmMaps = vmMaps.get(clusterId);
+            return clusterVmMaps == null ? new ArrayList<ContainerClusterVmMapVO>() : clusterVmMaps;
+        }
+
+        VirtualMachine.State getState(final long vmId) {
+            final VirtualMachine.State state = states.get(vmId);
+            if (state != null) {
+                return state;
+            }
+            final VMInstanceVO vm = vms.get(vmId);
+            return vm == null ? null : vm.getState();
+        }
+    }
+
+    static List<List<ContainerClusterVO>> getBatches(final List<ContainerClusterVO> containerClusters) {
+        final List<List<ContainerClusterVO>> batches = new ArrayList<List<ContainerClusterVO>>();
+        for (int from = 0; from < containerClusters.size(); from += STATE_SCAN_BATCH_SIZE) {
+            batches.add(containerClusters.subList(from, Math.min(from + STATE_SCAN_BATCH_SIZE, containerClusters.size())));
+        }
+        return batches;
+    }
+
+    // loads the VM maps of the clusters and their VMs, in one query each
+    ClusterVms loadClusterVms(final List<? extends ContainerCluster> containerClusters) {
+        final ClusterVms clusterVms = new ClusterVms();
+        final List<Long> clusterIds = new ArrayList<Long>(containerClusters.size());
+        for (ContainerCluster containerCluster : containerClusters) {
+            clusterIds.add(containerCluster.getId());
+        }
+        if (clusterIds.isEmpty()) {
+            return clusterVms;
+        }
+        final List<Long> vmIds = new ArrayList<Long>();
+        for (ContainerClusterVmMapVO vmMap : _containerClusterVmMapDao.listByClusterIds(clusterIds)) {
+            List<ContainerClusterVmMapVO> clusterVmMaps = clusterVms.vmMaps.get(vmMap.getClusterId());
+            if (clusterVmMaps == null) {
+                clusterVmMaps = new ArrayList<ContainerClusterVmMapVO>();
+                clusterVms.vmMaps.put(vmMap.getClusterId(), clusterVmMaps);
+            }
+            clusterVmMaps.add(vmMap);
+            vmIds.add(vmMap.getVmId());
+        }
+        if (!vmIds.isEmpty()) {
+            for (VMInstanceVO vm : _containerClusterVmMapDao.listVmsIncludingRemoved(vmIds)) {
+                clusterVms.vms.put(vm.getId(), vm);
+            }
+        }
+        return clusterVms;
+    }
+
     // checks if container cluster is in desired state
     boolean isClusterInDesiredState(ContainerCluster containerCluster, VirtualMachine.State state) {
-        List<ContainerClusterVmMapVO> clusterVMs = _containerClusterVmMapDao.listByClusterId(containerCluster.getId());
+        return isClusterInDesiredState(containerCluster, state, loadClusterVms(Arrays.asList(containerCluster)));
+    }
+
+    // checks if container cluster is in desired state, given the VMs loaded for it
+    boolean isClusterInDesiredState(ContainerCluster containerCluster, VirtualMachine.State state, ClusterVms loadedVms) {
+        List<ContainerClusterVmMapVO> clusterVMs = loadedVms.getVmMaps(containerCluster.getId());
 
         // check if all the VM's are in same state
         for (ContainerClusterVmMapVO clusterVm : clusterVMs) {
-            VMInstanceVO vm = _vmInstanceDao.findByIdIncludingRemoved(clusterVm.getVmId());
-            if (vm.getState() != state) {
+            VirtualMachine.State vmState = loadedVms.getState(clusterVm.getVmId());
+            if (vmState != state) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Found VM in the container cluster: " + containerCluster.getName() +
-                            " in state: " + vm.getState().toString() + " while expected to be in state: " + state.toString() +
+                            " in state: " + (vmState == null ? "None" : vmState.toString()) + " while expected to be in state: " + state.toString() +
                             " So moving the cluster to Alert state for reconciliation.");
                 }
                 return false;
@@ -2060,7 +2876,7 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
     @Override
     public boolean start() {
         _gcExecutor.scheduleWithFixedDelay(new ContainerClusterGarbageCollector(), 300, 300, TimeUnit.SECONDS);
-        _stateScanner.scheduleWithFixedDelay(new ContainerClusterStatusScanner(), 300, 30, TimeUnit.SECONDS);
+        _stateScanner.scheduleWithFixedDelay(new ContainerClusterStatusScanner(), 300, STATE_SCAN_INTERVAL_SECONDS, TimeUnit.SECONDS);
 
         // run the data base migration.
         Properties dbProps = DbProperties.getDbProperties();
@@ -2088,6 +2904,24 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
             return false;
         }
 
+        // act on the state changes of the VM's of the clusters as they happen
+        try {
+            loadVmClusters();
+        } catch (Exception e) {
+            s_logger.warn("Failed to load the VM's of the container clusters, the state scanner will load them on its next run due to " + e);
+        }
+        VirtualMachine.State.getStateMachine().registerListener(_vmStateListener);
+
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _gcExecutor.shutdown();
+        _stateScanner.shutdown();
+        _faultDetector.shutdown();
+        _provisioningExecutor.shutdown();
+        _createResumer.shutdown();
         return true;
     }
 
@@ -2097,6 +2931,14 @@ public class ContainerClusterManagerImpl extends ManagerBase implements Containe
         _configParams = params;
         _gcExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Container-Cluster-Scavenger"));
         _stateScanner = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Container-Cluster-State-Scanner"));
+        _faultDetector = Executors.newSingleThreadExecutor(new NamedThreadFactory("Container-Cluster-Fault-Detector"));
+
+        int provisioningWorkers = NumbersUtil.parseInt(_globalConfigDao.getValue(CcsConfig.ContainerClusterProvisioningWorkers.key()), 10);
+        if (provisioningWorkers < 1) {
+            provisioningWorkers = 1;
+        }
+        _provisioningExecutor = Executors.newFixedThreadPool(provisioningWorkers, new NamedThreadFactory("Container-Cluster-Provisioner"));
+        _createResumer = Executors.newSingleThreadExecutor(new NamedThreadFactory("Container-Cluster-Create-Resumer"));
 
         return true;
     }
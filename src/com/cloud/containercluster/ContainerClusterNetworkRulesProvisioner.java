@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.exception.NetworkRuleConflictException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.network.IpAddress;
+import com.cloud.network.NetworkModel;
+import com.cloud.network.dao.FirewallRulesDao;
+import com.cloud.network.firewall.FirewallService;
+import com.cloud.network.rules.FirewallManager;
+import com.cloud.network.rules.FirewallRule;
+import com.cloud.network.rules.FirewallRuleVO;
+import com.cloud.network.rules.PortForwardingRuleVO;
+import com.cloud.network.rules.RulesService;
+import com.cloud.network.rules.dao.PortForwardingRulesDao;
+import com.cloud.user.Account;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallbackWithException;
+import com.cloud.utils.db.TransactionStatus;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+import com.cloud.vm.Nic;
+
+/**
+ * ContainerClusterNetworkRulesProvisioner sets up the firewall and port forwarding rules on the public IP of a
+ * container cluster: port 6443 forwarded to the API server on the master VM, and ports 2222 onwards forwarded to SSH
+ * on each of the cluster VMs. All missing rules are created in one transaction and then pushed to the virtual router
+ * with one apply per rule type. Rules that already exist on the public IP are left as they are, so provisioning the
+ * rules of a cluster again only creates and applies what is missing.
+ */
+public class ContainerClusterNetworkRulesProvisioner extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterNetworkRulesProvisioner.class);
+
+    static final int API_SERVER_PORT = 6443;
+    static final int SSH_START_PORT = 2222;
+
+    @Inject
+    protected FirewallRulesDao _firewallDao;
+    @Inject
+    protected PortForwardingRulesDao _portForwardingDao;
+    @Inject
+    protected FirewallManager _firewallMgr;
+    @Inject
+    protected FirewallService _firewallService;
+    @Inject
+    protected RulesService _rulesService;
+    @Inject
+    protected NetworkModel _networkModel;
+
+    /**
+     * Provisions the rules of the cluster, the first of the cluster VMs being the master VM.
+     */
+    public void provisionRules(final ContainerCluster containerCluster, final IpAddress publicIp, final Account account,
+                               final List<Long> clusterVMIds) throws NetworkRuleConflictException, ResourceUnavailableException {
+        final long publicIpId = publicIp.getId();
+        final long networkId = containerCluster.getNetworkId();
+        final List<String> sourceCidrList = Collections.singletonList("0.0.0.0/0");
+
+        final List<FirewallRuleVO> firewallRules = new ArrayList<FirewallRuleVO>();
+        addFirewallRuleIfMissing(firewallRules, publicIp, networkId, account, API_SERVER_PORT, API_SERVER_PORT, sourceCidrList);
+        addFirewallRuleIfMissing(firewallRules, publicIp, networkId, account, SSH_START_PORT, SSH_START_PORT + clusterVMIds.size(), sourceCidrList);
+
+        final List<PortForwardingRuleVO> portForwardingRules = new ArrayList<PortForwardingRuleVO>();
+        final List<PortForwardingRuleVO> existingPortForwardingRules = _portForwardingDao.listByIpAndNotRevoked(publicIpId);
+        final long masterVmId = clusterVMIds.get(0);
+        if (!hasPortForwardingRule(existingPortForwardingRules, API_SERVER_PORT, masterVmId)) {
+            portForwardingRules.add(new PortForwardingRuleVO(null, publicIpId, API_SERVER_PORT, API_SERVER_PORT, getVmIp(masterVmId, networkId),
+                    API_SERVER_PORT, API_SERVER_PORT, "tcp", networkId, account.getId(), account.getDomainId(), masterVmId));
+        }
+        for (int i = 0; i < clusterVMIds.size(); ++i) {
+            final long vmId = clusterVMIds.get(i);
+            final int srcPort = SSH_START_PORT + i;
+            if (!hasPortForwardingRule(existingPortForwardingRules, srcPort, vmId)) {
+                portForwardingRules.add(new PortForwardingRuleVO(null, publicIpId, srcPort, srcPort, getVmIp(vmId, networkId),
+                        22, 22, "tcp", networkId, account.getId(), account.getDomainId(), vmId));
+            }
+        }
+
+        Transaction.execute(new TransactionCallbackWithException<Object, NetworkRuleConflictException>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) throws NetworkRuleConflictException {
+                for (FirewallRuleVO rule : firewallRules) {
+                    final FirewallRuleVO newRule = _firewallDao.persist(rule);
+                    _firewallMgr.detectRulesConflict(newRule);
+                    if (!_firewallDao.setStateToAdd(newRule)) {
+                        throw new CloudRuntimeException("Unable to update the state of the firewall rule " + newRule.getXid());
+                    }
+                }
+                for (PortForwardingRuleVO rule : portForwardingRules) {
+                    rule.setDisplay(true);
+                    rule.setState(FirewallRule.State.Add);
+                    _portForwardingDao.persist(rule);
+                }
+                return null;
+            }
+        });
+
+        // rules that exist but did not get applied before are applied along with the new ones
+        if (!_firewallService.applyIngressFwRules(publicIpId, account)) {
+            throw new CloudRuntimeException("Failed to apply firewall rules on " + publicIp.getAddress() + " for container cluster " + containerCluster.getName());
+        }
+        if (!_rulesService.applyPortForwardingRules(publicIpId, account)) {
+            throw new CloudRuntimeException("Failed to apply port forwarding rules on " + publicIp.getAddress() + " for container cluster " + containerCluster.getName());
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Provisioned " + firewallRules.size() + " firewall and " + portForwardingRules.size() + " port forwarding rules on "
+                    + publicIp.getAddress() + " for container cluster " + containerCluster.getName());
+        }
+    }
+
+    private void addFirewallRuleIfMissing(final List<FirewallRuleVO> rules, final IpAddress publicIp, final long networkId, final Account account,
+                                          final int startPort, final int endPort, final List<String> sourceCidrList) {
+        for (FirewallRuleVO rule : _firewallDao.listByIpAndPurposeAndNotRevoked(publicIp.getId(), FirewallRule.Purpose.Firewall)) {
+            if ("tcp".equalsIgnoreCase(rule.getProtocol()) && rule.getSourcePortStart() != null && rule.getSourcePortStart() == startPort
+                    && rule.getSourcePortEnd() != null && rule.getSourcePortEnd() == endPort) {
+                return;
+            }
+        }
+        rules.add(new FirewallRuleVO(null, publicIp.getId(), startPort, endPort, "tcp", networkId, account.getId(), account.getDomainId(),
+                FirewallRule.Purpose.Firewall, sourceCidrList, null, null, null, FirewallRule.TrafficType.Ingress));
+    }
+
+    private static boolean hasPortForwardingRule(final List<PortForwardingRuleVO> rules, final int srcPort, final long vmId) {
+        for (PortForwardingRuleVO rule : rules) {
+            if (rule.getSourcePortStart() != null && rule.getSourcePortStart() == srcPort && rule.getVirtualMachineId() == vmId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Ip getVmIp(final long vmId, final long networkId) {
+        final Nic nic = _networkModel.getNicInNetwork(vmId, networkId);
+        // handle Nic interface method change between releases 4.5 and 4.6 and above through reflection
+        Method m = null;
+        try {
+            m = Nic.class.getMethod("getIp4Address");
+        } catch (NoSuchMethodException e1) {
+            try {
+                m = Nic.class.getMethod("getIPv4Address");
+            } catch (NoSuchMethodException e2) {
+                throw new CloudRuntimeException("Unable to find the IP address of VM " + vmId, e2);
+            }
+        }
+        try {
+            return new Ip(m.invoke(nic).toString());
+        } catch (InvocationTargetException | IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to find the IP address of VM " + vmId, e);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Time taken by one phase of a container cluster operation, like deploying the master VM while creating the
+ * cluster. The phases of an operation make up the timeline of the operation.
+ */
+@Entity
+@Table(name = "sb_ccs_container_cluster_phase_stat")
+public class ContainerClusterPhaseStatVO {
+
+    public static final String CREATE = "Create";
+    public static final String START = "Start";
+    public static final String STOP = "Stop";
+    public static final String DELETE = "Delete";
+
+    // the whole operation
+    public static final String TOTAL = "Total";
+    public static final String PLAN = "Plan";
+    public static final String START_NETWORK = "StartNetwork";
+    public static final String DEPLOY_MASTER = "DeployMaster";
+    public static final String START_MASTER = "StartMaster";
+    public static final String DEPLOY_NODE = "DeployNode";
+    public static final String START_NODE = "StartNode";
+    public static final String APPLY_RULES = "ApplyRules";
+    public static final String ATTACH_ISO = "AttachIso";
+    public static final String DETACH_ISO = "DetachIso";
+    public static final String AWAIT_API_SERVER = "AwaitApiServer";
+    public static final String FETCH_KUBE_CONFIG = "FetchKubeConfig";
+    public static final String AWAIT_ADD_ONS = "AwaitAddOns";
+    public static final String START_VMS = "StartVms";
+    public static final String STOP_VMS = "StopVms";
+    public static final String DESTROY_VMS = "DestroyVms";
+    public static final String DESTROY_NETWORK = "DestroyNetwork";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    long id;
+
+    @Column(name = "cluster_id")
+    long clusterId;
+
+    @Column(name = "zone_id")
+    long zoneId;
+
+    @Column(name = "operation")
+    String operation;
+
+    @Column(name = "phase")
+    String phase;
+
+    @Column(name = "vm_id")
+    Long vmId;
+
+    @Column(name = "started")
+    @Temporal(value = TemporalType.TIMESTAMP)
+    Date started;
+
+    @Column(name = "duration_ms")
+    long durationMs;
+
+    @Column(name = "success")
+    boolean success;
+
+    public ContainerClusterPhaseStatVO() {
+
+    }
+
+    public ContainerClusterPhaseStatVO(long clusterId, long zoneId, String operation, String phase, Long vmId, Date started, long durationMs, boolean success) {
+        this.clusterId = clusterId;
+        this.zoneId = zoneId;
+        this.operation = operation;
+        this.phase = phase;
+        this.vmId = vmId;
+        this.started = started;
+        this.durationMs = durationMs;
+        this.success = success;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getClusterId() {
+        return clusterId;
+    }
+
+    public long getZoneId() {
+        return zoneId;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public Long getVmId() {
+        return vmId;
+    }
+
+    public Date getStarted() {
+        return started;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.containercluster.dao.ContainerClusterPhaseStatDao;
+import com.cloud.utils.component.ComponentLifecycleBase;
+
+/**
+ * ContainerClusterPhaseStats times the phases of container cluster operations and records each of them, so that the
+ * timeline of an operation on a cluster can be looked at afterwards, and so that the phases can be compared across
+ * the clusters of a zone through their percentiles over the last STATS_WINDOW_DAYS.
+ *
+ * A phase is timed with a Timer, closed once the phase is over. A phase is recorded as failed unless the timer was
+ * told it succeeded before being closed, so a phase that throws is recorded as failed.
+ */
+public class ContainerClusterPhaseStats extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterPhaseStats.class);
+
+    static final int STATS_WINDOW_DAYS = 30;
+
+    public class Timer implements AutoCloseable {
+        private final ContainerCluster _containerCluster;
+        private final String _operation;
+        private final String _phase;
+        private final Long _vmId;
+        private final Date _started = new Date();
+        private final long _startNanos = System.nanoTime();
+        private boolean _success;
+        private boolean _closed;
+
+        Timer(ContainerCluster containerCluster, String operation, String phase, Long vmId) {
+            _containerCluster = containerCluster;
+            _operation = operation;
+            _phase = phase;
+            _vmId = vmId;
+        }
+
+        public void succeeded() {
+            _success = true;
+        }
+
+        @Override
+        public void close() {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            record(_containerCluster, _operation, _phase, _vmId, _started, (System.nanoTime() - _startNanos) / 1000000L, _success);
+        }
+    }
+
+    /**
+     * Percentiles of the time taken by a phase of an operation, in milliseconds, over the phases that succeeded.
+     */
+    public static class PhasePercentiles {
+        public final String operation;
+        public final String phase;
+        public final int count;
+        public final int failed;
+        public final long p50;
+        public final long p95;
+        public final long p99;
+
+        PhasePercentiles(String operation, String phase, int count, int failed, long p50, long p95, long p99) {
+            this.operation = operation;
+            this.phase = phase;
+            this.count = count;
+            this.failed = failed;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+    }
+
+    @Inject
+    protected ContainerClusterPhaseStatDao _phaseStatDao;
+
+    public Timer time(final ContainerCluster containerCluster, final String operation, final String phase) {
+        return new Timer(containerCluster, operation, phase, null);
+    }
+
+    public Timer time(final ContainerCluster containerCluster, final String operation, final String phase, final Long vmId) {
+        return new Timer(containerCluster, operation, phase, vmId);
+    }
+
+    public List<ContainerClusterPhaseStatVO> listTimeline(final long containerClusterId) {
+        return _phaseStatDao.listByClusterId(containerClusterId);
+    }
+
+    public List<PhasePercentiles> listPercentiles(final long zoneId) {
+        return computePercentiles(_phaseStatDao.listByZoneIdStartedAfter(zoneId, windowStart()));
+    }
+
+    /**
+     * Drops the phases that started before the last STATS_WINDOW_DAYS, they are out of the percentiles already and
+     * would otherwise pile up for as long as the zone lives.
+     */
+    public void purgeExpired() {
+        try {
+            final int purged = _phaseStatDao.expungeStartedBefore(windowStart());
+            if (purged > 0 && s_logger.isDebugEnabled()) {
+                s_logger.debug("Purged " + purged + " container cluster phase stats older than " + STATS_WINDOW_DAYS + " days");
+            }
+        } catch (RuntimeException e) {
+            s_logger.warn("Failed to purge expired container cluster phase stats due to " + e);
+        }
+    }
+
+    private static Date windowStart() {
+        return new Date(System.currentTimeMillis() - STATS_WINDOW_DAYS * 24L * 60 * 60 * 1000);
+    }
+
+    static List<PhasePercentiles> computePercentiles(final List<ContainerClusterPhaseStatVO> stats) {
+        // "operation/phase" -> durations of the phases that succeeded, and the number of phases that failed
+        final Map<String, List<Long>> durations = new TreeMap<String, List<Long>>();
+        final Map<String, Integer> failures = new TreeMap<String, Integer>();
+        for (ContainerClusterPhaseStatVO stat : stats) {
+            final String key = stat.getOperation() + "/" + stat.getPhase();
+            if (!durations.containsKey(key)) {
+                durations.put(key, new ArrayList<Long>());
+                failures.put(key, 0);
+            }
+            if (stat.isSuccess()) {
+                durations.get(key).add(stat.getDurationMs());
+            } else {
+                failures.put(key, failures.get(key) + 1);
+            }
+        }
+
+        final List<PhasePercentiles> percentiles = new ArrayList<PhasePercentiles>(durations.size());
+        for (Map.Entry<String, List<Long>> entry : durations.entrySet()) {
+            final long[] sorted = new long[entry.getValue().size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = entry.getValue().get(i);
+            }
+            Arrays.sort(sorted);
+            final String[] operationPhase = entry.getKey().split("/", 2);
+            percentiles.add(new PhasePercentiles(operationPhase[0], operationPhase[1], sorted.length, failures.get(entry.getKey()),
+                    percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99)));
+        }
+        return percentiles;
+    }
+
+    // nearest-rank percentile of the sorted values, 0 if there are none
+    static long percentile(final long[] sorted, final int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private void record(final ContainerCluster containerCluster, final String operation, final String phase, final Long vmId,
+                        final Date started, final long durationMs, final boolean success) {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(operation + " phase " + phase + (vmId == null ? "" : " of VM " + vmId) + " of the container cluster " + containerCluster.getName()
+                    + (success ? " took " : " failed after ") + durationMs + " ms");
+        }
+        try {
+            _phaseStatDao.persist(new ContainerClusterPhaseStatVO(containerCluster.getId(), containerCluster.getZoneId(), operation, phase, vmId,
+                    started, durationMs, success));
+        } catch (RuntimeException e) {
+            // timings are informational, never fail the operation over them
+            s_logger.warn("Failed to record " + operation + " phase " + phase + " of the container cluster " + containerCluster.getName() + " due to " + e);
+        }
+    }
+}
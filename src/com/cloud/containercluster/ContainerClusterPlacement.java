@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * ContainerClusterPlacement is the host each VM of a container cluster was planned on by a placement strategy. The
+ * master VM is VM 0 and node n is VM n. The placement may cover more VMs than the cluster has, the rest being the
+ * room planned to spare.
+ */
+public class ContainerClusterPlacement {
+
+    public static final int MASTER = 0;
+
+    private final ContainerClusterPlacementStrategy _strategy;
+    private final long[] _hostIds;
+    // index of the host of each VM in the capacity snapshot the VMs were placed on
+    private final int[] _hostIndexes;
+
+    ContainerClusterPlacement(ContainerClusterPlacementStrategy strategy, long[] hostIds, int[] hostIndexes) {
+        _strategy = strategy;
+        _hostIds = hostIds;
+        _hostIndexes = hostIndexes;
+    }
+
+    public ContainerClusterPlacementStrategy getStrategy() {
+        return _strategy;
+    }
+
+    public int size() {
+        return _hostIds.length;
+    }
+
+    /**
+     * Host the VM was planned on, or null if the placement does not cover it.
+     */
+    public Long getHostId(final int vm) {
+        return vm >= 0 && vm < _hostIds.length ? _hostIds[vm] : null;
+    }
+
+    int getHostIndex(final int vm) {
+        return _hostIndexes[vm];
+    }
+
+    /**
+     * Number of distinct hosts the VMs were planned on.
+     */
+    public int getHostCount() {
+        final Set<Long> hosts = new HashSet<Long>();
+        for (long hostId : _hostIds) {
+            hosts.add(hostId);
+        }
+        return hosts.size();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(_strategy.name()).append('[');
+        for (int vm = 0; vm < _hostIds.length; vm++) {
+            sb.append(vm == 0 ? "" : ", ").append(vm).append("->").append(_hostIds[vm]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+/**
+ * ContainerClusterPlacementStrategy decides which host of a zone each VM of a container cluster is started on. The
+ * VMs are placed one after the other on a capacity snapshot of the zone, each on the host the strategy likes best
+ * among the hosts that still have room for it, given the VMs placed before it.
+ */
+public enum ContainerClusterPlacementStrategy {
+
+    /**
+     * Packs the VMs onto as few hosts as possible, each on the host with the least room left that can still take it,
+     * which keeps whole hosts free for larger VMs.
+     */
+    BestFit(false) {
+        @Override
+        boolean isBetter(int clusterVms, long room, int bestClusterVms, long bestRoom) {
+            return room < bestRoom;
+        }
+    },
+
+    /**
+     * Spreads the VMs over the hosts, each on the host with the fewest VMs of the cluster and, among those, with the
+     * most room left. VMs of the cluster only share a host when there are more of them than hosts with room.
+     */
+    Spread(false) {
+        @Override
+        boolean isBetter(int clusterVms, long room, int bestClusterVms, long bestRoom) {
+            return clusterVms < bestClusterVms || (clusterVms == bestClusterVms && room > bestRoom);
+        }
+    },
+
+    /**
+     * Places every VM on a host of its own, the one with the most room left. Planning fails if the zone has fewer
+     * hosts with room than the cluster has VMs.
+     */
+    AntiAffinity(true) {
+        @Override
+        boolean allows(int clusterVms) {
+            return clusterVms == 0;
+        }
+
+        @Override
+        boolean isBetter(int clusterVms, long room, int bestClusterVms, long bestRoom) {
+            return room > bestRoom;
+        }
+    };
+
+    private final boolean _strict;
+
+    private ContainerClusterPlacementStrategy(boolean strict) {
+        _strict = strict;
+    }
+
+    /**
+     * Whether VMs must be started on the host they are placed on. The VMs placed by other strategies are left to the
+     * CloudStack allocator if their host has no room for them anymore by the time they are started.
+     */
+    public boolean isStrict() {
+        return _strict;
+    }
+
+    /**
+     * Returns the strategy of the given name, ignoring case, or Spread if the name is empty or unknown.
+     */
+    public static ContainerClusterPlacementStrategy fromName(final String name) {
+        if (name != null) {
+            for (ContainerClusterPlacementStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name.trim())) {
+                    return strategy;
+                }
+            }
+        }
+        return Spread;
+    }
+
+    // whether a host that already has the given number of VMs of the cluster may take one more
+    boolean allows(int clusterVms) {
+        return true;
+    }
+
+    // whether a host is a better fit for the next VM than the best host so far, given the VMs of the cluster on
+    // either host and the number of VMs of the requested size either host has room for besides the next VM
+    abstract boolean isBetter(int clusterVms, long room, int bestClusterVms, long bestRoom);
+
+    /**
+     * Places the given number of VMs, of the given CPU in MHz and RAM in bytes each, on the hosts of the snapshot.
+     * Returns null if there is no room for all of them.
+     */
+    public ContainerClusterPlacement place(final ContainerClusterCapacitySnapshot capacity, final int vmCount, final long cpu, final long ram) {
+        final int[] clusterVms = new int[capacity.size()];
+        final long[] hostIds = new long[vmCount];
+        final int[] hostIndexes = new int[vmCount];
+        for (int vm = 0; vm < vmCount; vm++) {
+            int best = -1;
+            long bestRoom = 0;
+            for (int h = capacity.getFirstWithCpu(cpu); h < capacity.size(); h++) {
+                if (!allows(clusterVms[h]) || !capacity.hasCapacity(h, cpu * (clusterVms[h] + 1), ram * (clusterVms[h] + 1))) {
+                    continue;
+                }
+                final long room = getRoom(capacity, h, clusterVms[h] + 1, cpu, ram);
+                if (best < 0 || isBetter(clusterVms[h], room, clusterVms[best], bestRoom)) {
+                    best = h;
+                    bestRoom = room;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            clusterVms[best]++;
+            hostIds[vm] = capacity.getHostId(best);
+            hostIndexes[vm] = best;
+        }
+        return new ContainerClusterPlacement(this, hostIds, hostIndexes);
+    }
+
+    /**
+     * Whether one of the hosts of the snapshot the placement was planned on still has room for one more VM of the
+     * given size besides the VMs of the placement. The spare VM is not placed, so it needs no host of its own.
+     */
+    public static boolean hasRoomLeft(final ContainerClusterCapacitySnapshot capacity, final ContainerClusterPlacement placement, final long cpu,
+                                      final long ram) {
+        final int[] clusterVms = new int[capacity.size()];
+        for (int vm = 0; vm < placement.size(); vm++) {
+            clusterVms[placement.getHostIndex(vm)]++;
+        }
+        for (int h = capacity.getFirstWithCpu(cpu); h < capacity.size(); h++) {
+            if (capacity.hasCapacity(h, cpu * clusterVms[h], ram * clusterVms[h]) && getRoom(capacity, h, clusterVms[h], cpu, ram) >= 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // number of VMs of the requested size the host has room for once the given number of VMs are placed on it
+    private static long getRoom(final ContainerClusterCapacitySnapshot capacity, final int host, final int placed, final long cpu, final long ram) {
+        final long cpuRoom = cpu == 0 ? Long.MAX_VALUE : (capacity.getFreeCpu(host) - cpu * placed) / cpu;
+        final long ramRoom = ram == 0 ? Long.MAX_VALUE : (capacity.getFreeRam(host) - ram * placed) / ram;
+        return Math.min(cpuRoom, ramRoom);
+    }
+}
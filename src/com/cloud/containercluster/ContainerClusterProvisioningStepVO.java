@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * Checkpoint of a completed step of the container cluster create workflow. A container cluster whose create got
+ * interrupted is resumed from the steps recorded here.
+ */
+@Entity
+@Table(name = "sb_ccs_container_cluster_provisioning_step")
+public class ContainerClusterProvisioningStepVO {
+
+    public static final String START_NETWORK = "StartNetwork";
+    public static final String PROVISION_MASTER = "ProvisionMaster";
+    public static final String PROVISION_NODE = "ProvisionNode-";
+    public static final String SETUP_NETWORK_RULES = "SetupNetworkRules";
+    public static final String ATTACH_ISO = "AttachIso";
+    public static final String API_SERVER_READY = "ApiServerReady";
+    public static final String KUBE_CONFIG_COPIED = "KubeConfigCopied";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    long id;
+
+    @Column(name = "cluster_id")
+    long clusterId;
+
+    @Column(name = "step")
+    String step;
+
+    @Column(name = "vm_id")
+    Long vmId;
+
+    @Column(name = GenericDao.CREATED_COLUMN)
+    Date created;
+
+    public ContainerClusterProvisioningStepVO() {
+
+    }
+
+    public ContainerClusterProvisioningStepVO(long clusterId, String step, Long vmId) {
+        this.clusterId = clusterId;
+        this.step = step;
+        this.vmId = vmId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getClusterId() {
+        return clusterId;
+    }
+
+    public String getStep() {
+        return step;
+    }
+
+    public Long getVmId() {
+        return vmId;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+}
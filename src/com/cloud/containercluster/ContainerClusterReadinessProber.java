@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * ContainerClusterReadinessProber watches TCP endpoints (like the kubernetes API server of a container cluster that
+ * is coming up) from a single selector thread. Each probe is retried with exponential backoff and jitter until the
+ * first successful connect or until its deadline passes, so one thread can watch any number of clusters.
+ */
+public class ContainerClusterReadinessProber extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterReadinessProber.class);
+
+    static final long INITIAL_BACKOFF_MS = 500;
+    static final long MAX_BACKOFF_MS = 10000;
+    static final long CONNECT_TIMEOUT_MS = 10000;
+
+    private final Queue<Probe> _newProbes = new ConcurrentLinkedQueue<Probe>();
+
+    // only accessed from the selector thread
+    private final PriorityQueue<Probe> _scheduledProbes = new PriorityQueue<Probe>(16, new Comparator<Probe>() {
+        @Override
+        public int compare(Probe p1, Probe p2) {
+            return Long.compare(p1.nextAttemptAt, p2.nextAttemptAt);
+        }
+    });
+
+    private Selector _selector;
+    private Thread _selectorThread;
+    private volatile boolean _running;
+
+    static class Probe {
+        final InetSocketAddress endpoint;
+        final long deadline;
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        int attempt;
+        long nextAttemptAt;
+        long attemptDeadline;
+        SocketChannel channel;
+
+        Probe(InetSocketAddress endpoint, long deadline) {
+            this.endpoint = endpoint;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Starts watching the endpoint. The returned future completes with true as soon as a TCP connection to the
+     * endpoint succeeds, or with false if that did not happen within the timeout. Cancelling the future stops the probe.
+     */
+    public CompletableFuture<Boolean> probe(final InetSocketAddress endpoint, final long timeoutMillis) {
+        if (!_running) {
+            throw new CloudRuntimeException("Container cluster readiness prober is not running");
+        }
+        final Probe probe = new Probe(endpoint, System.currentTimeMillis() + timeoutMillis);
+        _newProbes.add(probe);
+        _selector.wakeup();
+        return probe.future;
+    }
+
+    @Override
+    public boolean start() {
+        try {
+            _selector = Selector.open();
+        } catch (IOException e) {
+            s_logger.error("Failed to open selector for the container cluster readiness prober due to " + e);
+            return false;
+        }
+        _running = true;
+        _selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelectorLoop();
+            }
+        }, "Container-Cluster-Readiness-Prober");
+        _selectorThread.setDaemon(true);
+        _selectorThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _running = false;
+        if (_selector != null) {
+            _selector.wakeup();
+        }
+        if (_selectorThread != null) {
+            try {
+                _selectorThread.join(CONNECT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    private void runSelectorLoop() {
+        try {
+            while (_running) {
+                long now = System.currentTimeMillis();
+                Probe probe;
+                while ((probe = _newProbes.poll()) != null) {
+                    probe.nextAttemptAt = now;
+                    _scheduledProbes.add(probe);
+                }
+
+                while (!_scheduledProbes.isEmpty() && _scheduledProbes.peek().nextAttemptAt <= now) {
+                    attemptConnect(_scheduledProbes.poll(), now);
+                }
+
+                expireConnectAttempts(now);
+
+                _selector.select(nextWakeup(System.currentTimeMillis()));
+
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isConnectable()) {
+                        finishConnect((Probe)key.attachment());
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            s_logger.error("Container cluster readiness prober stopped unexpectedly due to " + e);
+        } finally {
+            _running = false;
+            shutdownProbes();
+        }
+    }
+
+    private void attemptConnect(final Probe probe, final long now) {
+        if (probe.future.isDone()) {
+            return;
+        }
+        if (now >= probe.deadline) {
+            probe.future.complete(false);
+            return;
+        }
+        probe.attempt++;
+        try {
+            SocketChannel channel = SocketChannel.open();
+            probe.channel = channel;
+            channel.configureBlocking(false);
+            if (channel.connect(probe.endpoint)) {
+                succeed(probe);
+                return;
+            }
+            probe.attemptDeadline = Math.min(now + CONNECT_TIMEOUT_MS, probe.deadline);
+            channel.register(_selector, SelectionKey.OP_CONNECT, probe);
+        } catch (IOException e) {
+            retry(probe, now);
+        }
+    }
+
+    private void finishConnect(final Probe probe) {
+        try {
+            if (probe.channel.finishConnect()) {
+                succeed(probe);
+            }
+        } catch (IOException e) {
+            retry(probe, System.currentTimeMillis());
+        }
+    }
+
+    private void expireConnectAttempts(final long now) {
+        List<Probe> expired = new ArrayList<Probe>();
+        for (SelectionKey key : _selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            Probe probe = (Probe)key.attachment();
+            if (probe.future.isDone()) {
+                key.cancel();
+                closeChannel(probe);
+            } else if (probe.attemptDeadline <= now) {
+                expired.add(probe);
+            }
+        }
+        for (Probe probe : expired) {
+            retry(probe, now);
+        }
+    }
+
+    private void succeed(final Probe probe) {
+        closeChannel(probe);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Endpoint " + probe.endpoint + " is reachable after " + probe.attempt + " attempt(s)");
+        }
+        probe.future.complete(true);
+    }
+
+    private void retry(final Probe probe, final long now) {
+        closeChannel(probe);
+        if (probe.future.isDone()) {
+            return;
+        }
+        probe.nextAttemptAt = Math.min(now + backoff(probe.attempt), probe.deadline);
+        _scheduledProbes.add(probe);
+    }
+
+    // exponential backoff with equal jitter, so that clusters created together do not probe in lock step
+    static long backoff(final int attempt) {
+        long delay = MAX_BACKOFF_MS;
+        if (attempt < 32) {
+            delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.max(0, attempt - 1));
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private long nextWakeup(final long now) {
+        long wakeup = now + MAX_BACKOFF_MS;
+        if (!_scheduledProbes.isEmpty()) {
+            wakeup = Math.min(wakeup, _scheduledProbes.peek().nextAttemptAt);
+        }
+        for (SelectionKey key : _selector.keys()) {
+            if (key.isValid()) {
+                wakeup = Math.min(wakeup, ((Probe)key.attachment()).attemptDeadline);
+            }
+        }
+        return Math.max(1, wakeup - now);
+    }
+
+    private void closeChannel(final Probe probe) {
+        if (probe.channel != null) {
+            try {
+                probe.channel.close();
+            } catch (IOException e) {
+                s_logger.trace("Failed to close probe channel to " + probe.endpoint + " due to " + e);
+            }
+            probe.channel = null;
+        }
+    }
+
+    private void shutdownProbes() {
+        for (SelectionKey key : _selector.keys()) {
+            Probe probe = (Probe)key.attachment();
+            closeChannel(probe);
+            probe.future.complete(false);
+        }
+        for (Probe probe : _scheduledProbes) {
+            probe.future.complete(false);
+        }
+        _scheduledProbes.clear();
+        Probe probe;
+        while ((probe = _newProbes.poll()) != null) {
+            probe.future.complete(false);
+        }
+        try {
+            _selector.close();
+        } catch (IOException e) {
+            s_logger.trace("Failed to close readiness prober selector due to " + e);
+        }
+    }
+}
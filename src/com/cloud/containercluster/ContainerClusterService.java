@@ -18,7 +18,9 @@ package com.cloud.containercluster;
 
 import org.apache.cloudstack.api.command.user.containercluster.GetContainerClusterConfigCmd;
 import org.apache.cloudstack.api.command.user.containercluster.ListContainerClusterCmd;
+import org.apache.cloudstack.api.command.user.containercluster.ListContainerClusterProvisioningStatsCmd;
 import org.apache.cloudstack.api.response.ContainerClusterConfigResponse;
+import org.apache.cloudstack.api.response.ContainerClusterProvisioningStatsResponse;
 import org.apache.cloudstack.api.response.ContainerClusterResponse;
 import org.apache.cloudstack.api.response.ListResponse;
 
@@ -59,6 +61,8 @@ public interface ContainerClusterService extends PluggableService {
 
     ContainerClusterConfigResponse  getContainerClusterConfig(GetContainerClusterConfigCmd cmd);
 
+    ContainerClusterProvisioningStatsResponse listContainerClusterProvisioningStats(ListContainerClusterProvisioningStatsCmd cmd);
+
     ContainerClusterResponse createContainerClusterResponse(long containerClusterId);
 
 }
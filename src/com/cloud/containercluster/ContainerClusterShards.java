@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.utils.identity.ManagementServerNode;
+import org.apache.log4j.Logger;
+
+import com.cloud.containercluster.dao.ContainerClusterManagementServerDao;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ComponentLifecycleBase;
+
+/**
+ * ContainerClusterShards shares the background work on container clusters, scanning their state and garbage
+ * collecting them, out among the management servers that are up. Each management server owns the clusters whose id
+ * hashes closest after one of its points on a ring of hashes, VIRTUAL_NODES points per management server, so that
+ * when a management server comes up or goes down only the clusters it takes over or gives up change hands.
+ *
+ * The management servers that are up are looked up again before each run of the background work, taking those whose
+ * heartbeat the cluster manager saw within its heartbeat threshold. This management server always counts as up.
+ */
+public class ContainerClusterShards extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterShards.class);
+
+    static final int VIRTUAL_NODES = 64;
+    static final String HEARTBEAT_THRESHOLD_KEY = "cluster.heartbeat.threshold";
+    static final long DEFAULT_HEARTBEAT_THRESHOLD_MS = 150000;
+
+    @Inject
+    protected ContainerClusterManagementServerDao _managementServerDao;
+    @Inject
+    protected ConfigurationDao _globalConfigDao;
+
+    long _msId = ManagementServerNode.getManagementServerId();
+
+    private volatile Ring _ring = new Ring(new TreeSet<Long>());
+
+    // points of the management servers on the ring, by hash
+    static class Ring {
+        final SortedSet<Long> msIds;
+        final TreeMap<Long, Long> points = new TreeMap<Long, Long>();
+
+        Ring(SortedSet<Long> msIds) {
+            this.msIds = msIds;
+            for (Long msId : msIds) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    points.put(hash(msId * VIRTUAL_NODES + i), msId);
+                }
+            }
+        }
+
+        Long getOwner(final long containerClusterId) {
+            if (points.isEmpty()) {
+                return null;
+            }
+            final Map.Entry<Long, Long> point = points.ceilingEntry(hash(containerClusterId));
+            return point != null ? point.getValue() : points.firstEntry().getValue();
+        }
+    }
+
+    // spreads ids over the ring, the finalizer of the 64 bit MurmurHash3
+    static long hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Looks up the management servers that are up, and shares the clusters out again if they changed. The clusters
+     * stay shared out as before if the management servers cannot be looked up.
+     */
+    public void refresh() {
+        final SortedSet<Long> msIds = new TreeSet<Long>();
+        msIds.add(_msId);
+        try {
+            final long threshold = NumbersUtil.parseLong(_globalConfigDao.getValue(HEARTBEAT_THRESHOLD_KEY), DEFAULT_HEARTBEAT_THRESHOLD_MS);
+            final Date cutTime = new Date(DateUtil.currentGMTTime().getTime() - threshold);
+            for (ContainerClusterManagementServerVO managementServer : _managementServerDao.listUpSince(cutTime)) {
+                msIds.add(managementServer.getMsid());
+            }
+        } catch (RuntimeException e) {
+            s_logger.warn("Failed to look up the management servers that are up, keeping the container clusters shared out among " + _ring.msIds
+                    + " due to " + e);
+            return;
+        }
+        if (!msIds.equals(_ring.msIds)) {
+            _ring = new Ring(msIds);
+            s_logger.info("Sharing the background work on container clusters out among management servers " + msIds);
+        }
+    }
+
+    /**
+     * The management servers that are up as of the last refresh, this one included.
+     */
+    public Set<Long> getManagementServerIds() {
+        return Collections.unmodifiableSet(_ring.msIds);
+    }
+
+    /**
+     * Whether this management server scans and garbage collects the container cluster.
+     */
+    public boolean isOwned(final long containerClusterId) {
+        final Long owner = _ring.getOwner(containerClusterId);
+        return owner == null || owner == _msId;
+    }
+
+    /**
+     * The management server that scans and garbage collects the container cluster.
+     */
+    public long getOwner(final long containerClusterId) {
+        final Long owner = _ring.getOwner(containerClusterId);
+        return owner == null ? _msId : owner;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.Session;
+
+/**
+ * ContainerClusterSshSessionPool keeps one authenticated SSH connection per container cluster endpoint, so that the
+ * control commands run against a cluster master (fetching the kube config, polling add-on pods) reuse the connection
+ * instead of doing a TCP connect, key exchange and authentication for every command. Each command runs on its own
+ * exec channel of the shared connection, so concurrent commands against one cluster do not wait on each other.
+ *
+ * Idle connections are kept alive with SSH ignore packets and closed once unused for IDLE_TIMEOUT_MS. The management
+ * server private key is read once and read again only when the key file changes.
+ */
+public class ContainerClusterSshSessionPool extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterSshSessionPool.class);
+
+    static final int CONNECT_TIMEOUT_MS = 10000;
+    static final int KEX_TIMEOUT_MS = 10000;
+    static final long KEEP_ALIVE_INTERVAL_MS = 60 * 1000L;
+    static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+    // stays below the OpenSSH default of 10 sessions per connection
+    static final int MAX_CHANNELS_PER_CONNECTION = 8;
+
+    private static class PooledConnection {
+        final Connection connection;
+        final Semaphore channels = new Semaphore(MAX_CHANNELS_PER_CONNECTION);
+        volatile boolean lost;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static class PrivateKey {
+        final char[] pem;
+        final long lastModified;
+
+        PrivateKey(char[] pem, long lastModified) {
+            this.pem = pem;
+            this.lastModified = lastModified;
+        }
+    }
+
+    @Inject
+    protected ConfigurationDao _globalConfigDao;
+
+    // "clusterId:host:port:user" -> connection
+    private final Map<String, PooledConnection> _connections = new ConcurrentHashMap<String, PooledConnection>();
+    // connection key -> lock held while connecting, so that a slow or unreachable endpoint only holds up its own key
+    private final Map<String, Object> _connectLocks = new ConcurrentHashMap<String, Object>();
+
+    private volatile PrivateKey _privateKey;
+    private ScheduledExecutorService _keepAliveExecutor;
+
+    @Override
+    public boolean start() {
+        _keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Container-Cluster-Ssh-KeepAlive"));
+        _keepAliveExecutor.scheduleWithFixedDelay(new KeepAliveTask(), KEEP_ALIVE_INTERVAL_MS, KEEP_ALIVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_keepAliveExecutor != null) {
+            _keepAliveExecutor.shutdownNow();
+        }
+        for (String key : _connections.keySet()) {
+            close(key);
+        }
+        return true;
+    }
+
+    /**
+     * Runs the command on the host over the pooled connection of the cluster, connecting first if there is no open
+     * connection. Returns whether the command exited with status 0 along with what it wrote to stdout, like
+     * SshHelper.sshExecute does.
+     */
+    public Pair<Boolean, String> execute(final long clusterId, final String host, final int port, final String user,
+                                         final String command, final int timeoutMs) throws Exception {
+        final String key = clusterId + ":" + host + ":" + port + ":" + user;
+        PooledConnection pooled = getConnection(key, host, port, user);
+        try {
+            return execute(pooled, command, timeoutMs);
+        } catch (IOException e) {
+            // the connection may have been dropped by the other end while idle, retry once on a new one
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("SSH command failed on the pooled connection to " + host + ":" + port + ", reconnecting: " + e);
+            }
+            close(key);
+            pooled = getConnection(key, host, port, user);
+            return execute(pooled, command, timeoutMs);
+        }
+    }
+
+    /**
+     * Closes the connections of the cluster, to be called once the cluster is deleted or its endpoint changes.
+     */
+    public void closeConnections(final long clusterId) {
+        final String prefix = clusterId + ":";
+        for (String key : _connections.keySet()) {
+            if (key.startsWith(prefix)) {
+                close(key);
+            }
+        }
+        for (String key : _connectLocks.keySet()) {
+            if (key.startsWith(prefix)) {
+                _connectLocks.remove(key);
+            }
+        }
+    }
+
+    private PooledConnection getConnection(final String key, final String host, final int port, final String user) throws IOException {
+        PooledConnection pooled = _connections.get(key);
+        if (pooled != null && !pooled.lost) {
+            return pooled;
+        }
+        synchronized (getConnectLock(key)) {
+            pooled = _connections.get(key);
+            if (pooled != null && !pooled.lost) {
+                return pooled;
+            }
+            final Connection connection = new Connection(host, port);
+            try {
+                connection.connect(null, CONNECT_TIMEOUT_MS, KEX_TIMEOUT_MS);
+                if (!connection.authenticateWithPublicKey(user, getPrivateKey(), null)) {
+                    throw new IOException("Authentication failed for " + user + " on " + host + ":" + port);
+                }
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            final PooledConnection newPooled = new PooledConnection(connection);
+            connection.addConnectionMonitor(new ConnectionMonitor() {
+                @Override
+                public void connectionLost(Throwable reason) {
+                    newPooled.lost = true;
+                    _connections.remove(key, newPooled);
+                }
+            });
+            _connections.put(key, newPooled);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Opened pooled SSH connection to " + host + ":" + port + " as " + user);
+            }
+            return newPooled;
+        }
+    }
+
+    private Object getConnectLock(final String key) {
+        Object lock = _connectLocks.get(key);
+        if (lock == null) {
+            final Object newLock = new Object();
+            lock = _connectLocks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private Pair<Boolean, String> execute(final PooledConnection pooled, final String command, final int timeoutMs) throws Exception {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        if (!pooled.channels.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new CloudRuntimeException("Timed out waiting for a free SSH channel to run: " + command);
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+        Session session = null;
+        try {
+            session = pooled.connection.openSession();
+            session.execCommand(command);
+            final InputStream stdout = session.getStdout();
+            final InputStream stderr = session.getStderr();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final ByteArrayOutputStream err = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            while (true) {
+                if (stdout.available() == 0 && stderr.available() == 0) {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new CloudRuntimeException("Timed out running SSH command: " + command);
+                    }
+                    int conditions = session.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA
+                            | ChannelCondition.EOF | ChannelCondition.CLOSED, remaining);
+                    if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                        throw new CloudRuntimeException("Timed out running SSH command: " + command);
+                    }
+                    if ((conditions & (ChannelCondition.EOF | ChannelCondition.CLOSED)) != 0
+                            && stdout.available() == 0 && stderr.available() == 0) {
+                        break;
+                    }
+                }
+                drain(stdout, out, buffer);
+                drain(stderr, err, buffer);
+            }
+            session.waitForCondition(ChannelCondition.EXIT_STATUS, Math.max(1, deadline - System.currentTimeMillis()));
+            final Integer exitStatus = session.getExitStatus();
+            if (exitStatus == null || exitStatus != 0) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("SSH command " + command + " exited with status " + exitStatus + ": " + new String(err.toByteArray(), StandardCharsets.UTF_8));
+                }
+                return new Pair<Boolean, String>(false, new String(out.toByteArray(), StandardCharsets.UTF_8));
+            }
+            return new Pair<Boolean, String>(true, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+            pooled.lastUsed = System.currentTimeMillis();
+            pooled.channels.release();
+        }
+    }
+
+    private static void drain(final InputStream in, final ByteArrayOutputStream out, final byte[] buffer) throws IOException {
+        while (in.available() > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, in.available()));
+            if (read < 0) {
+                return;
+            }
+            out.write(buffer, 0, read);
+        }
+    }
+
+    // the private key of the management server, read again only if the key file has changed
+    private char[] getPrivateKey() throws IOException {
+        final boolean devel = Boolean.valueOf(_globalConfigDao.getValue("developer"));
+        String keyFile = String.format("%s/.ssh/id_rsa", System.getProperty("user.home"));
+        if (devel) {
+            keyFile += ".cloud";
+        }
+        final File file = new File(keyFile);
+        final long lastModified = file.lastModified();
+        PrivateKey privateKey = _privateKey;
+        if (privateKey == null || privateKey.lastModified != lastModified) {
+            privateKey = new PrivateKey(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).toCharArray(), lastModified);
+            _privateKey = privateKey;
+        }
+        return privateKey.pem;
+    }
+
+    private void close(final String key) {
+        final PooledConnection pooled = _connections.remove(key);
+        if (pooled != null) {
+            pooled.lost = true;
+            pooled.connection.close();
+        }
+    }
+
+    private class KeepAliveTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            final long now = System.currentTimeMillis();
+            final Iterator<Map.Entry<String, PooledConnection>> it = _connections.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, PooledConnection> entry = it.next();
+                final PooledConnection pooled = entry.getValue();
+                if (pooled.channels.availablePermits() < MAX_CHANNELS_PER_CONNECTION) {
+                    // in use
+                    continue;
+                }
+                if (now - pooled.lastUsed > IDLE_TIMEOUT_MS) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Closing idle pooled SSH connection " + entry.getKey());
+                    }
+                    close(entry.getKey());
+                    continue;
+                }
+                try {
+                    pooled.connection.sendIgnorePacket();
+                } catch (IOException e) {
+                    s_logger.debug("Closing pooled SSH connection " + entry.getKey() + " as keep-alive failed: " + e);
+                    close(entry.getKey());
+                }
+            }
+        }
+    }
+}
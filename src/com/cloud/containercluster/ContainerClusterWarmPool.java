@@ -0,0 +1,377 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.command.admin.vm.AssignVMCmd;
+import org.apache.cloudstack.api.command.user.vm.StartVMCmd;
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
+import com.cloud.containercluster.dao.ContainerClusterWarmPoolVmDao;
+import com.cloud.dc.DataCenter;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.network.Network;
+import com.cloud.network.dao.NetworkDao;
+import com.cloud.network.dao.NetworkVO;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.SSHKeyPairVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.user.dao.SSHKeyPairDao;
+import com.cloud.uservm.UserVm;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.component.ComponentLifecycleBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.GlobalLock;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.db.TransactionCallback;
+import com.cloud.utils.db.TransactionStatus;
+import com.cloud.vm.UserVmManager;
+import com.cloud.vm.UserVmService;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.dao.UserVmDao;
+import com.cloud.vm.dao.UserVmDetailsDao;
+import com.google.common.base.Strings;
+
+/**
+ * ContainerClusterWarmPool keeps stopped node VMs deployed ahead of time, per zone and service offering, from the
+ * container cluster template. Each pooled VM has been started once, so its root volume is already created on primary
+ * storage. A node VM claimed from the pool is moved to the owner and network of the cluster and gets the node user
+ * data, so creating a cluster only has to start it instead of deploying it from scratch.
+ *
+ * Pooled VMs are parked on the networks given by the warm pool networks setting, one per zone, and owned by the
+ * owner of that network. The pool is refilled in the background by one management server at a time.
+ *
+ * A claimed VM keeps its row, marked claimed, until it is set up for the cluster, so that a VM left half set up by a
+ * management server that went down is not lost track of. The refill releases claims older than CLAIM_TIMEOUT_SECONDS:
+ * the row is dropped if the VM made it into a cluster, and the VM is destroyed otherwise.
+ */
+public class ContainerClusterWarmPool extends ComponentLifecycleBase {
+
+    private static final Logger s_logger = Logger.getLogger(ContainerClusterWarmPool.class);
+
+    static final long REFILL_INTERVAL_SECONDS = 60;
+    static final long CLAIM_TIMEOUT_SECONDS = 3600;
+    // as set by UserVmManagerImpl when a VM is deployed with an SSH key pair
+    static final String SSH_PUBLIC_KEY_DETAIL = "SSH.PublicKey";
+
+    @Inject
+    protected ConfigurationDao _globalConfigDao;
+    @Inject
+    protected ContainerClusterWarmPoolVmDao _warmPoolVmDao;
+    @Inject
+    protected ContainerClusterVmMapDao _containerClusterVmMapDao;
+    @Inject
+    protected UserVmService _userVmService;
+    @Inject
+    protected UserVmManager _userVmManager;
+    @Inject
+    protected UserVmDao _vmDao;
+    @Inject
+    protected UserVmDetailsDao _vmDetailsDao;
+    @Inject
+    protected NetworkDao _networkDao;
+    @Inject
+    protected DataCenterDao _dcDao;
+    @Inject
+    protected ServiceOfferingDao _offeringDao;
+    @Inject
+    protected VMTemplateDao _templateDao;
+    @Inject
+    protected AccountDao _accountDao;
+    @Inject
+    protected AccountManager _accountMgr;
+    @Inject
+    protected SSHKeyPairDao _sshKeyPairDao;
+
+    private ScheduledExecutorService _refillExecutor;
+
+    @Override
+    public boolean start() {
+        _refillExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Container-Cluster-Warm-Pool"));
+        _refillExecutor.scheduleWithFixedDelay(new RefillTask(), REFILL_INTERVAL_SECONDS, REFILL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (_refillExecutor != null) {
+            _refillExecutor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Claims a pooled VM for a node of the container cluster, moves it to the owner and the network of the cluster and
+     * sets the host name, user data and SSH key the node VM would have been deployed with. The VM is left stopped.
+     * Returns null if there is no pooled VM for the zone, template and service offering, or if the claimed VM could not
+     * be set up, in which case the node VM should be deployed as usual.
+     */
+    public UserVm claim(final ContainerCluster containerCluster, final DataCenter zone, final long templateId, final ServiceOffering serviceOffering,
+                        final Account owner, final List<Long> networkIds, final String hostName, final String base64UserData) {
+        final ContainerClusterWarmPoolVmVO pooledVm = Transaction.execute(new TransactionCallback<ContainerClusterWarmPoolVmVO>() {
+            @Override
+            public ContainerClusterWarmPoolVmVO doInTransaction(TransactionStatus status) {
+                ContainerClusterWarmPoolVmVO pooled = _warmPoolVmDao.lockOneByZoneTemplateAndOffering(zone.getId(), templateId, serviceOffering.getId());
+                if (pooled != null) {
+                    pooled.setClaimed(new Date());
+                    _warmPoolVmDao.update(pooled.getId(), pooled);
+                }
+                return pooled;
+            }
+        });
+        if (pooledVm == null) {
+            return null;
+        }
+
+        // moving a VM between accounts is an admin operation, whoever the cluster is created by
+        CallContext.register(_accountMgr.getSystemUser(), _accountMgr.getSystemAccount());
+        try {
+            UserVm vm = _vmDao.findById(pooledVm.getVmId());
+            if (vm == null || vm.getState() != VirtualMachine.State.Stopped) {
+                s_logger.warn("Pooled VM " + pooledVm.getVmId() + " is gone or no longer stopped, not using it for the container cluster " + containerCluster.getName());
+                _warmPoolVmDao.expunge(pooledVm.getId());
+                return null;
+            }
+
+            vm = moveToOwner(vm, owner, networkIds);
+
+            _userVmManager.updateVirtualMachine(vm.getId(), hostName, null, null, null, null, base64UserData, null, BaseCmd.HTTPMethod.POST,
+                    null, hostName, null, null, null);
+
+            if (!Strings.isNullOrEmpty(containerCluster.getKeyPair())) {
+                SSHKeyPairVO sshKeyPair = _sshKeyPairDao.findByName(owner.getAccountId(), owner.getDomainId(), containerCluster.getKeyPair());
+                if (sshKeyPair != null) {
+                    _vmDetailsDao.addDetail(vm.getId(), SSH_PUBLIC_KEY_DETAIL, sshKeyPair.getPublicKey(), false);
+                }
+            }
+
+            _warmPoolVmDao.expunge(pooledVm.getId());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Claimed pooled VM " + vm.getUuid() + " as " + hostName + " for the container cluster " + containerCluster.getName());
+            }
+            return _vmDao.findById(vm.getId());
+        } catch (Exception e) {
+            s_logger.warn("Failed to set up pooled VM " + pooledVm.getVmId() + " for the container cluster " + containerCluster.getName() + ", destroying it: " + e);
+            destroy(pooledVm.getVmId());
+            _warmPoolVmDao.expunge(pooledVm.getId());
+            return null;
+        } finally {
+            CallContext.unregister();
+        }
+    }
+
+    // moves the VM to the owner and the networks of the cluster
+    UserVm moveToOwner(final UserVm vm, final Account owner, final List<Long> networkIds) throws Exception {
+        AssignVMCmd assignVm = ComponentContext.inject(new AssignVMCmd());
+        setField(assignVm, "virtualMachineId", vm.getId());
+        setField(assignVm, "accountName", owner.getAccountName());
+        setField(assignVm, "domainId", owner.getDomainId());
+        setField(assignVm, "networkIds", networkIds);
+        return _userVmService.moveVMToUser(assignVm);
+    }
+
+    // Releases the claims of management servers that went down while setting up the claimed VM. A VM that made it
+    // into a cluster belongs to the cluster, any other is in an unknown state between the pool and the cluster.
+    void releaseStaleClaims() {
+        final Date before = new Date(System.currentTimeMillis() - CLAIM_TIMEOUT_SECONDS * 1000);
+        for (ContainerClusterWarmPoolVmVO pooledVm : _warmPoolVmDao.listClaimedBefore(before)) {
+            final UserVm vm = _vmDao.findById(pooledVm.getVmId());
+            if (vm != null && _containerClusterVmMapDao.findByVmId(vm.getId()) == null) {
+                s_logger.warn("Pooled VM " + vm.getUuid() + " was claimed at " + pooledVm.getClaimed() + " but did not make it into a container cluster, destroying it");
+                CallContext.register(_accountMgr.getSystemUser(), _accountMgr.getSystemAccount());
+                try {
+                    destroy(vm.getId());
+                } finally {
+                    CallContext.unregister();
+                }
+            }
+            _warmPoolVmDao.expunge(pooledVm.getId());
+        }
+    }
+
+    private void destroy(final long vmId) {
+        try {
+            _userVmService.destroyVm(vmId, true);
+        } catch (Exception e) {
+            s_logger.warn("Failed to destroy VM " + vmId + " due to " + e);
+        }
+    }
+
+    private static void setField(final Object cmd, final String name, final Object value) throws ReflectiveOperationException {
+        Field field = cmd.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(cmd, value);
+    }
+
+    static List<String> parseList(final String value) {
+        if (Strings.isNullOrEmpty(value)) {
+            return Collections.emptyList();
+        }
+        List<String> items = new ArrayList<String>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    // tops up the pools of every parking network and service offering that are below the minimum size
+    void refill() {
+        releaseStaleClaims();
+
+        final List<String> networkUuids = parseList(_globalConfigDao.getValue(CcsConfig.ContainerClusterWarmPoolNetworks.key()));
+        final List<String> offeringUuids = parseList(_globalConfigDao.getValue(CcsConfig.ContainerClusterWarmPoolServiceOfferings.key()));
+        if (networkUuids.isEmpty() || offeringUuids.isEmpty()) {
+            return;
+        }
+        final int minSize = NumbersUtil.parseInt(_globalConfigDao.getValue(CcsConfig.ContainerClusterWarmPoolMinSize.key()), 2);
+        final int maxSize = Math.max(minSize, NumbersUtil.parseInt(_globalConfigDao.getValue(CcsConfig.ContainerClusterWarmPoolMaxSize.key()), 4));
+        if (maxSize <= 0) {
+            return;
+        }
+        final VMTemplateVO template = _templateDao.findByTemplateName(_globalConfigDao.getValue(CcsConfig.ContainerClusterTemplateName.key()));
+        if (template == null) {
+            return;
+        }
+
+        for (String networkUuid : networkUuids) {
+            final NetworkVO network = _networkDao.findByUuid(networkUuid);
+            if (network == null) {
+                s_logger.warn("Network " + networkUuid + " of the container cluster warm pool is not found");
+                continue;
+            }
+            final DataCenter zone = _dcDao.findById(network.getDataCenterId());
+            final Account owner = _accountDao.findById(network.getAccountId());
+            for (String offeringUuid : offeringUuids) {
+                final ServiceOffering offering = _offeringDao.findByUuid(offeringUuid);
+                if (offering == null) {
+                    s_logger.warn("Service offering " + offeringUuid + " of the container cluster warm pool is not found");
+                    continue;
+                }
+                int size = countUsable(zone.getId(), template.getId(), offering.getId());
+                if (size >= minSize) {
+                    continue;
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Refilling container cluster warm pool of zone " + zone.getName() + " and service offering " + offering.getName()
+                            + " from " + size + " to " + maxSize + " VMs");
+                }
+                for (; size < maxSize; size++) {
+                    if (!addVm(zone, template, offering, owner, network)) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // counts the pooled VMs, dropping the ones that got removed or started out of band
+    private int countUsable(final long zoneId, final long templateId, final long offeringId) {
+        int size = 0;
+        for (ContainerClusterWarmPoolVmVO pooledVm : _warmPoolVmDao.listByZoneTemplateAndOffering(zoneId, templateId, offeringId)) {
+            UserVm vm = _vmDao.findById(pooledVm.getVmId());
+            if (vm == null || vm.getState() != VirtualMachine.State.Stopped) {
+                _warmPoolVmDao.expunge(pooledVm.getId());
+                continue;
+            }
+            size++;
+        }
+        return size;
+    }
+
+    // deploys a VM, starts it once to get its volumes created and stops it again before adding it to the pool
+    private boolean addVm(final DataCenter zone, final VMTemplateVO template, final ServiceOffering offering, final Account owner, final Network network) {
+        final Map<String, String> customParameterMap = new HashMap<String, String>();
+        customParameterMap.put("rootdisksize", "10");
+        final List<Long> networkIds = new ArrayList<Long>();
+        networkIds.add(network.getId());
+        final String hostName = "ccs-pool-" + UUID.randomUUID().toString().substring(0, 8);
+
+        UserVm vm = null;
+        CallContext.register(_accountMgr.getSystemUser(), _accountMgr.getSystemAccount());
+        try {
+            vm = _userVmService.createAdvancedVirtualMachine(zone, offering, template, networkIds, owner, hostName, "container cluster warm pool VM",
+                    null, null, null, null, BaseCmd.HTTPMethod.POST, null, null, null, new Network.IpAddresses(null, null), null, null, null,
+                    customParameterMap, null, null, null);
+            StartVMCmd startVm = ComponentContext.inject(new StartVMCmd());
+            setField(startVm, "id", vm.getId());
+            _userVmService.startVirtualMachine(startVm);
+            _userVmService.stopVirtualMachine(vm.getId(), false);
+
+            final long vmId = vm.getId();
+            Transaction.execute(new TransactionCallback<ContainerClusterWarmPoolVmVO>() {
+                @Override
+                public ContainerClusterWarmPoolVmVO doInTransaction(TransactionStatus status) {
+                    return _warmPoolVmDao.persist(new ContainerClusterWarmPoolVmVO(vmId, zone.getId(), template.getId(), offering.getId()));
+                }
+            });
+            return true;
+        } catch (Exception e) {
+            s_logger.warn("Failed to add a VM to the container cluster warm pool of zone " + zone.getName() + " due to " + e);
+            if (vm != null) {
+                destroy(vm.getId());
+            }
+            return false;
+        } finally {
+            CallContext.unregister();
+        }
+    }
+
+    private class RefillTask extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            GlobalLock lock = GlobalLock.getInternLock("ContainerCluster.WarmPool.Refill.Lock");
+            try {
+                if (lock.lock(3)) {
+                    try {
+                        refill();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (Exception e) {
+                s_logger.warn("Failed to refill the container cluster warm pool due to " + e);
+            } finally {
+                lock.releaseRef();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * A stopped VM deployed ahead of time for the warm pool, waiting to be claimed as a container cluster node VM. The
+ * row is marked claimed while the VM is set up for the cluster, and removed once it is.
+ */
+@Entity
+@Table(name = "sb_ccs_warm_pool_vm")
+public class ContainerClusterWarmPoolVmVO {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id")
+    long id;
+
+    @Column(name = "vm_id")
+    long vmId;
+
+    @Column(name = "zone_id")
+    long zoneId;
+
+    @Column(name = "template_id")
+    long templateId;
+
+    @Column(name = "service_offering_id")
+    long serviceOfferingId;
+
+    @Column(name = GenericDao.CREATED_COLUMN)
+    Date created;
+
+    @Column(name = "claimed")
+    Date claimed;
+
+    public ContainerClusterWarmPoolVmVO() {
+
+    }
+
+    public ContainerClusterWarmPoolVmVO(long vmId, long zoneId, long templateId, long serviceOfferingId) {
+        this.vmId = vmId;
+        this.zoneId = zoneId;
+        this.templateId = templateId;
+        this.serviceOfferingId = serviceOfferingId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getVmId() {
+        return vmId;
+    }
+
+    public long getZoneId() {
+        return zoneId;
+    }
+
+    public long getTemplateId() {
+        return templateId;
+    }
+
+    public long getServiceOfferingId() {
+        return serviceOfferingId;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public Date getClaimed() {
+        return claimed;
+    }
+
+    public void setClaimed(Date claimed) {
+        this.claimed = claimed;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.asn1.pkcs.RSAPrivateKey;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.Gson;
+
+/**
+ * KubernetesClient queries the API server of a container cluster over its REST API, authenticating with the client
+ * certificate of the kube config fetched from the cluster master and trusting only the cluster CA. One client is
+ * meant to be kept per cluster: its SSL socket factory is what the JDK keys its keep-alive cache on, so the HTTPS
+ * connections to the API server get reused across requests made through the same client.
+ */
+public class KubernetesClient {
+
+    static final int CONNECT_TIMEOUT_MS = 10000;
+    static final int READ_TIMEOUT_MS = 30000;
+
+    private static final Pattern KUBE_CONFIG_FIELD = Pattern.compile("^\\s*([\\w-]+):\\s*(\\S+)\\s*$", Pattern.MULTILINE);
+
+    private static final Gson s_gson = new Gson();
+
+    public static class ObjectMeta {
+        public String name;
+        public String namespace;
+        public String resourceVersion;
+    }
+
+    public static class ListMeta {
+        public String resourceVersion;
+    }
+
+    public static class ContainerStatus {
+        public String name;
+        public boolean ready;
+    }
+
+    public static class PodStatus {
+        public String phase;
+        public List<ContainerStatus> containerStatuses;
+    }
+
+    public static class Pod {
+        public ObjectMeta metadata;
+        public PodStatus status;
+
+        public boolean isRunning() {
+            return status != null && "Running".equals(status.phase);
+        }
+
+        public boolean isReady() {
+            if (!isRunning() || status.containerStatuses == null || status.containerStatuses.isEmpty()) {
+                return false;
+            }
+            for (ContainerStatus containerStatus : status.containerStatuses) {
+                if (!containerStatus.ready) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static class DeploymentSpec {
+        public Integer replicas;
+    }
+
+    public static class DeploymentStatus {
+        public Integer replicas;
+        public Integer readyReplicas;
+        public Integer availableReplicas;
+    }
+
+    public static class Deployment {
+        public ObjectMeta metadata;
+        public DeploymentSpec spec;
+        public DeploymentStatus status;
+
+        public boolean isAvailable() {
+            int desired = spec == null || spec.replicas == null ? 1 : spec.replicas;
+            return status != null && status.availableReplicas != null && status.availableReplicas >= desired;
+        }
+    }
+
+    public static class NodeCondition {
+        public String type;
+        public String status;
+    }
+
+    public static class NodeStatus {
+        public List<NodeCondition> conditions;
+    }
+
+    public static class Node {
+        public ObjectMeta metadata;
+        public NodeStatus status;
+
+        public boolean isReady() {
+            if (status == null || status.conditions == null) {
+                return false;
+            }
+            for (NodeCondition condition : status.conditions) {
+                if ("Ready".equals(condition.type)) {
+                    return "True".equals(condition.status);
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class PodList {
+        List<Pod> items;
+    }
+
+    private static class NodeList {
+        List<Node> items;
+    }
+
+    public static class DeploymentList {
+        public ListMeta metadata;
+        public List<Deployment> items;
+    }
+
+    private static class DeploymentWatchEvent {
+        String type;
+        Deployment object;
+    }
+
+    /**
+     * Receives the events of a watch, in the order the API server sends them.
+     */
+    public interface WatchListener<T> {
+        /**
+         * Called with ADDED, MODIFIED or DELETED and the object. Returns true to stop watching.
+         */
+        boolean onEvent(String type, T object);
+    }
+
+    private final String _server;
+    private final SSLSocketFactory _socketFactory;
+
+    KubernetesClient(final String server, final SSLSocketFactory socketFactory) {
+        _server = server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+        _socketFactory = socketFactory;
+    }
+
+    /**
+     * Returns a client for the cluster described by the kube config, which has to embed the CA and client
+     * certificates and the client key as kubeadm generated ones do.
+     */
+    public static KubernetesClient fromKubeConfig(final String kubeConfig) {
+        String server = null;
+        String caData = null;
+        String certData = null;
+        String keyData = null;
+        final Matcher matcher = KUBE_CONFIG_FIELD.matcher(kubeConfig);
+        while (matcher.find()) {
+            final String field = matcher.group(1);
+            if ("server".equals(field) && server == null) {
+                server = matcher.group(2);
+            } else if ("certificate-authority-data".equals(field) && caData == null) {
+                caData = matcher.group(2);
+            } else if ("client-certificate-data".equals(field) && certData == null) {
+                certData = matcher.group(2);
+            } else if ("client-key-data".equals(field) && keyData == null) {
+                keyData = matcher.group(2);
+            }
+        }
+        if (server == null || caData == null || certData == null || keyData == null) {
+            throw new CloudRuntimeException("Kube config is missing the server, the CA or the client credentials");
+        }
+        try {
+            return new KubernetesClient(server, createSocketFactory(Base64.decodeBase64(caData), Base64.decodeBase64(certData),
+                    new String(Base64.decodeBase64(keyData), StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException | IOException e) {
+            throw new CloudRuntimeException("Failed to load the credentials of the kube config", e);
+        }
+    }
+
+    static SSLSocketFactory createSocketFactory(final byte[] caPem, final byte[] certPem, final String keyPem) throws GeneralSecurityException, IOException {
+        final CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+
+        final KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        int i = 0;
+        for (Certificate ca : certificateFactory.generateCertificates(new ByteArrayInputStream(caPem))) {
+            trustStore.setCertificateEntry("ca" + i++, ca);
+        }
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+
+        final Collection<? extends Certificate> chain = certificateFactory.generateCertificates(new ByteArrayInputStream(certPem));
+        final char[] password = new char[0];
+        final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("client", readPrivateKey(keyPem), password, chain.toArray(new X509Certificate[chain.size()]));
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+
+        final SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return sslContext.getSocketFactory();
+    }
+
+    // reads a PKCS#8 or, as kubeadm writes them, a PKCS#1 RSA private key
+    static PrivateKey readPrivateKey(final String keyPem) throws GeneralSecurityException, IOException {
+        final PemObject pem;
+        try (PemReader reader = new PemReader(new StringReader(keyPem))) {
+            pem = reader.readPemObject();
+        }
+        if (pem == null) {
+            throw new IOException("No PEM encoded private key found");
+        }
+        final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        if ("RSA PRIVATE KEY".equals(pem.getType())) {
+            final RSAPrivateKey key = RSAPrivateKey.getInstance(pem.getContent());
+            return keyFactory.generatePrivate(new RSAPrivateCrtKeySpec(key.getModulus(), key.getPublicExponent(), key.getPrivateExponent(),
+                    key.getPrime1(), key.getPrime2(), key.getExponent1(), key.getExponent2(), key.getCoefficient()));
+        }
+        return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(pem.getContent()));
+    }
+
+    public String getServer() {
+        return _server;
+    }
+
+    public List<Pod> listPods(final String namespace) throws IOException {
+        return listPods(namespace, null);
+    }
+
+    public List<Pod> listPods(final String namespace, final String labelSelector) throws IOException {
+        String path = "/api/v1/namespaces/" + namespace + "/pods";
+        if (labelSelector != null) {
+            path += "?labelSelector=" + URLEncoder.encode(labelSelector, "UTF-8");
+        }
+        return items(get(path, PodList.class).items);
+    }
+
+    public List<Deployment> listDeployments(final String namespace) throws IOException {
+        return items(getDeploymentList(namespace).items);
+    }
+
+    /**
+     * Returns the deployments of the namespace along with the resource version of the list, to start a watch from.
+     */
+    public DeploymentList getDeploymentList(final String namespace) throws IOException {
+        final DeploymentList list = get("/apis/apps/v1/namespaces/" + namespace + "/deployments", DeploymentList.class);
+        list.items = items(list.items);
+        return list;
+    }
+
+    /**
+     * Streams the changes to the deployments of the namespace made after the resource version to the listener, over
+     * one connection, until the listener returns true or the API server ends the watch after timeoutSeconds. Returns
+     * whether the listener stopped the watch. Returns false as well if the resource version is too old to watch from,
+     * in which case the deployments have to be listed again.
+     */
+    public boolean watchDeployments(final String namespace, final String resourceVersion, final int timeoutSeconds,
+                                    final WatchListener<Deployment> listener) throws IOException {
+        String path = "/apis/apps/v1/namespaces/" + namespace + "/deployments?watch=true&timeoutSeconds=" + timeoutSeconds;
+        if (resourceVersion != null) {
+            path += "&resourceVersion=" + URLEncoder.encode(resourceVersion, "UTF-8");
+        }
+        final HttpURLConnection connection = open(path, timeoutSeconds * 1000 + READ_TIMEOUT_MS);
+        final int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            drain(connection.getErrorStream());
+            throw new IOException("Watch " + path + " on " + _server + " failed with HTTP status " + status);
+        }
+        boolean stopped = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final DeploymentWatchEvent event = s_gson.fromJson(line, DeploymentWatchEvent.class);
+                if ("ERROR".equals(event.type)) {
+                    // usually 410 Gone for an expired resource version
+                    break;
+                }
+                if (event.object != null && listener.onEvent(event.type, event.object)) {
+                    stopped = true;
+                    break;
+                }
+            }
+        } finally {
+            if (stopped) {
+                // the rest of the stream is not wanted, so the connection cannot be reused
+                connection.disconnect();
+            }
+        }
+        return stopped;
+    }
+
+    /**
+     * Returns the deployment, or null if there is no deployment with the name in the namespace.
+     */
+    public Deployment getDeployment(final String namespace, final String name) throws IOException {
+        return get("/apis/apps/v1/namespaces/" + namespace + "/deployments/" + name, Deployment.class);
+    }
+
+    public List<Node> listNodes() throws IOException {
+        return items(get("/api/v1/nodes", NodeList.class).items);
+    }
+
+    private static <T> List<T> items(final List<T> items) {
+        return items == null ? new ArrayList<T>() : items;
+    }
+
+    // returns null on 404, throws on any other unsuccessful status
+    <T> T get(final String path, final Class<T> type) throws IOException {
+        final HttpURLConnection connection = open(path, READ_TIMEOUT_MS);
+        final int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+            drain(connection.getErrorStream());
+            return null;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            drain(connection.getErrorStream());
+            throw new IOException("GET " + path + " on " + _server + " failed with HTTP status " + status);
+        }
+        // the body is read to the end and the stream closed, not disconnected, to leave the connection for reuse
+        try (Reader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            return s_gson.fromJson(reader, type);
+        }
+    }
+
+    private HttpURLConnection open(final String path, final int readTimeoutMs) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)new URL(_server + path).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection)connection).setSSLSocketFactory(_socketFactory);
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(readTimeoutMs);
+        connection.setRequestProperty("Accept", "application/json");
+        return connection;
+    }
+
+    private static void drain(final InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+            in.close();
+        } catch (IOException e) {
+            // the connection will not be reused
+        }
+    }
+}
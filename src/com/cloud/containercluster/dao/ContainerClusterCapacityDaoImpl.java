@@ -0,0 +1,92 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.containercluster.dao;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.containercluster.ContainerClusterCapacitySnapshot;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import org.springframework.stereotype.Component;
+
+import com.cloud.utils.db.GenericDaoBase;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.List;
+
+
+/**
+ * Loads the capacities container cluster planning works from in one query each, over the op_host_capacity table and,
+ * through the cluster details DAO, the cluster_details table.
+ */
+@Component
+public class ContainerClusterCapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements ContainerClusterCapacityDao {
+
+    @Inject
+    protected ClusterDetailsDao _clusterDetailsDao;
+
+    private final SearchBuilder<CapacityVO> zoneTypeSearch;
+    private final SearchBuilder<CapacityVO> hostTypeSearch;
+    private SearchBuilder<ClusterDetailsVO> overcommitRatioSearch;
+
+    public ContainerClusterCapacityDaoImpl() {
+        zoneTypeSearch = createSearchBuilder();
+        zoneTypeSearch.and("zoneId", zoneTypeSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
+        zoneTypeSearch.and("capacityTypes", zoneTypeSearch.entity().getCapacityType(), SearchCriteria.Op.IN);
+        zoneTypeSearch.done();
+
+        hostTypeSearch = createSearchBuilder();
+        hostTypeSearch.and("hostIds", hostTypeSearch.entity().getHostOrPoolId(), SearchCriteria.Op.IN);
+        hostTypeSearch.and("capacityTypes", hostTypeSearch.entity().getCapacityType(), SearchCriteria.Op.IN);
+        hostTypeSearch.done();
+    }
+
+    @PostConstruct
+    protected void init() {
+        overcommitRatioSearch = _clusterDetailsDao.createSearchBuilder();
+        overcommitRatioSearch.and("clusterIds", overcommitRatioSearch.entity().getClusterId(), SearchCriteria.Op.IN);
+        overcommitRatioSearch.and("names", overcommitRatioSearch.entity().getName(), SearchCriteria.Op.IN);
+        overcommitRatioSearch.done();
+    }
+
+    @Override
+    public List<CapacityVO> listHostCpuAndMemoryCapacities(long zoneId) {
+        SearchCriteria<CapacityVO> sc = zoneTypeSearch.create();
+        sc.setParameters("zoneId", zoneId);
+        sc.setParameters("capacityTypes", Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<CapacityVO> listCpuAndMemoryCapacitiesOfHosts(List<Long> hostIds) {
+        SearchCriteria<CapacityVO> sc = hostTypeSearch.create();
+        sc.setParameters("hostIds", hostIds.toArray());
+        sc.setParameters("capacityTypes", Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<ClusterDetailsVO> listOvercommitRatios(List<Long> clusterIds) {
+        SearchCriteria<ClusterDetailsVO> sc = overcommitRatioSearch.create();
+        sc.setParameters("clusterIds", clusterIds.toArray());
+        sc.setParameters("names", ContainerClusterCapacitySnapshot.CPU_OVERCOMMIT_RATIO, ContainerClusterCapacitySnapshot.MEMORY_OVERCOMMIT_RATIO);
+        return _clusterDetailsDao.search(sc, null);
+    }
+}
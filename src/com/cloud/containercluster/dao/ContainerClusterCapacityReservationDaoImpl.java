@@ -0,0 +1,85 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.containercluster.dao;
+
+import com.cloud.containercluster.ContainerClusterCapacityReservationVO;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import org.springframework.stereotype.Component;
+
+import com.cloud.utils.db.GenericDaoBase;
+
+import java.util.List;
+
+
+@Component
+public class ContainerClusterCapacityReservationDaoImpl extends GenericDaoBase<ContainerClusterCapacityReservationVO, Long>
+        implements ContainerClusterCapacityReservationDao {
+
+    private final SearchBuilder<ContainerClusterCapacityReservationVO> zoneIdSearch;
+    private final SearchBuilder<ContainerClusterCapacityReservationVO> clusterIdSearch;
+    private final SearchBuilder<ContainerClusterCapacityReservationVO> clusterVmSearch;
+    private final SearchBuilder<ContainerClusterCapacityReservationVO> managementServerIdSearch;
+
+    public ContainerClusterCapacityReservationDaoImpl() {
+        zoneIdSearch = createSearchBuilder();
+        zoneIdSearch.and("zoneId", zoneIdSearch.entity().getZoneId(), SearchCriteria.Op.EQ);
+        zoneIdSearch.done();
+
+        clusterIdSearch = createSearchBuilder();
+        clusterIdSearch.and("clusterId", clusterIdSearch.entity().getClusterId(), SearchCriteria.Op.EQ);
+        clusterIdSearch.done();
+
+        clusterVmSearch = createSearchBuilder();
+        clusterVmSearch.and("clusterId", clusterVmSearch.entity().getClusterId(), SearchCriteria.Op.EQ);
+        clusterVmSearch.and("vmIndex", clusterVmSearch.entity().getVmIndex(), SearchCriteria.Op.EQ);
+        clusterVmSearch.done();
+
+        managementServerIdSearch = createSearchBuilder();
+        managementServerIdSearch.and("managementServerId", managementServerIdSearch.entity().getManagementServerId(), SearchCriteria.Op.EQ);
+        managementServerIdSearch.done();
+    }
+
+    @Override
+    public List<ContainerClusterCapacityReservationVO> listByZoneId(long zoneId) {
+        SearchCriteria<ContainerClusterCapacityReservationVO> sc = zoneIdSearch.create();
+        sc.setParameters("zoneId", zoneId);
+        return listBy(sc, null);
+    }
+
+    @Override
+    public int removeByClusterId(long clusterId) {
+        SearchCriteria<ContainerClusterCapacityReservationVO> sc = clusterIdSearch.create();
+        sc.setParameters("clusterId", clusterId);
+        return expunge(sc);
+    }
+
+    @Override
+    public int removeByClusterIdAndVmIndex(long clusterId, int vmIndex) {
+        SearchCriteria<ContainerClusterCapacityReservationVO> sc = clusterVmSearch.create();
+        sc.setParameters("clusterId", clusterId);
+        sc.setParameters("vmIndex", vmIndex);
+        return expunge(sc);
+    }
+
+    @Override
+    public int removeByManagementServerId(long managementServerId) {
+        SearchCriteria<ContainerClusterCapacityReservationVO> sc = managementServerIdSearch.create();
+        sc.setParameters("managementServerId", managementServerId);
+        return expunge(sc);
+    }
+}
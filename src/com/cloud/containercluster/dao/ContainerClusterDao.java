@@ -29,5 +29,6 @@ public interface ContainerClusterDao extends GenericDao<ContainerClusterVO, Long
     List<ContainerClusterVO> listByAccount(long accountId);
     List<ContainerClusterVO> findContainerClustersToGarbageCollect();
     List<ContainerClusterVO> findContainerClustersInState(ContainerCluster.State state);
+    List<ContainerClusterVO> findContainerClustersInStates(List<ContainerCluster.State> states);
     List<ContainerClusterVO> listByNetworkId(long networkId);
 }
@@ -35,6 +35,7 @@ public class ContainerClusterDaoImpl extends GenericDaoBase<ContainerClusterVO,
     private final SearchBuilder<ContainerClusterVO> AccountIdSearch;
     private final SearchBuilder<ContainerClusterVO> GarbageCollectedSearch;
     private final SearchBuilder<ContainerClusterVO> StateSearch;
+    private final SearchBuilder<ContainerClusterVO> StatesSearch;
     private final SearchBuilder<ContainerClusterVO> SameNetworkSearch;
 
     public ContainerClusterDaoImpl() {
@@ -51,6 +52,10 @@ public class ContainerClusterDaoImpl extends GenericDaoBase<ContainerClusterVO,
         StateSearch.and("state", StateSearch.entity().getState(), SearchCriteria.Op.EQ);
         StateSearch.done();
 
+        StatesSearch = createSearchBuilder();
+        StatesSearch.and("states", StatesSearch.entity().getState(), SearchCriteria.Op.IN);
+        StatesSearch.done();
+
         SameNetworkSearch = createSearchBuilder();
         SameNetworkSearch.and("network_id", SameNetworkSearch.entity().getNetworkId(), SearchCriteria.Op.EQ);
         SameNetworkSearch.done();
@@ -78,6 +83,13 @@ public class ContainerClusterDaoImpl extends GenericDaoBase<ContainerClusterVO,
         return listBy(sc);
     }
 
+    @Override
+    public List<ContainerClusterVO> findContainerClustersInStates(List<ContainerCluster.State> states) {
+        SearchCriteria<ContainerClusterVO> sc = StatesSearch.create();
+        sc.setParameters("states", states.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public boolean updateState(com.cloud.containercluster.ContainerCluster.State currentState, Event event, com.cloud.containercluster.ContainerCluster.State nextState,
             ContainerCluster vo, Object data) {
@@ -0,0 +1,53 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.containercluster.dao;
+
+import com.cloud.containercluster.ContainerClusterManagementServerVO;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import org.springframework.stereotype.Component;
+
+import com.cloud.utils.db.GenericDaoBase;
+
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * Reads the management servers the cluster manager keeps in the mshost table, which it owns and writes.
+ */
+@Component
+public class ContainerClusterManagementServerDaoImpl extends GenericDaoBase<ContainerClusterManagementServerVO, Long> implements ContainerClusterManagementServerDao {
+
+    private final SearchBuilder<ContainerClusterManagementServerVO> upSinceSearch;
+
+    public ContainerClusterManagementServerDaoImpl() {
+        upSinceSearch = createSearchBuilder();
+        upSinceSearch.and("state", upSinceSearch.entity().getState(), SearchCriteria.Op.EQ);
+        upSinceSearch.and("lastUpdate", upSinceSearch.entity().getLastUpdate(), SearchCriteria.Op.GT);
+        upSinceSearch.done();
+    }
+
+    // the management servers that are up and sent a heartbeat after the given time, in GMT as the cluster manager keeps it
+    @Override
+    public List<ContainerClusterManagementServerVO> listUpSince(Date cutTime) {
+        SearchCriteria<ContainerClusterManagementServerVO> sc = upSinceSearch.create();
+        sc.setParameters("state", ContainerClusterManagementServerVO.STATE_UP);
+        sc.setParameters("lastUpdate", cutTime);
+        return listBy(sc);
+    }
+}
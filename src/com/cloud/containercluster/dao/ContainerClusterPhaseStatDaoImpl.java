@@ -0,0 +1,74 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.containercluster.dao;
+
+import com.cloud.containercluster.ContainerClusterPhaseStatVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import org.springframework.stereotype.Component;
+
+import com.cloud.utils.db.GenericDaoBase;
+
+import java.util.Date;
+import java.util.List;
+
+
+@Component
+public class ContainerClusterPhaseStatDaoImpl extends GenericDaoBase<ContainerClusterPhaseStatVO, Long> implements ContainerClusterPhaseStatDao {
+
+    private final SearchBuilder<ContainerClusterPhaseStatVO> clusterIdSearch;
+    private final SearchBuilder<ContainerClusterPhaseStatVO> zoneIdStartedSearch;
+    private final SearchBuilder<ContainerClusterPhaseStatVO> startedBeforeSearch;
+
+    public ContainerClusterPhaseStatDaoImpl() {
+        clusterIdSearch = createSearchBuilder();
+        clusterIdSearch.and("clusterId", clusterIdSearch.entity().getClusterId(), SearchCriteria.Op.EQ);
+        clusterIdSearch.done();
+
+        zoneIdStartedSearch = createSearchBuilder();
+        zoneIdStartedSearch.and("zoneId", zoneIdStartedSearch.entity().getZoneId(), SearchCriteria.Op.EQ);
+        zoneIdStartedSearch.and("started", zoneIdStartedSearch.entity().getStarted(), SearchCriteria.Op.GTEQ);
+        zoneIdStartedSearch.done();
+
+        startedBeforeSearch = createSearchBuilder();
+        startedBeforeSearch.and("started", startedBeforeSearch.entity().getStarted(), SearchCriteria.Op.LT);
+        startedBeforeSearch.done();
+    }
+
+    @Override
+    public List<ContainerClusterPhaseStatVO> listByClusterId(long clusterId) {
+        SearchCriteria<ContainerClusterPhaseStatVO> sc = clusterIdSearch.create();
+        sc.setParameters("clusterId", clusterId);
+        return listBy(sc, new Filter(ContainerClusterPhaseStatVO.class, "started", true, null, null));
+    }
+
+    @Override
+    public List<ContainerClusterPhaseStatVO> listByZoneIdStartedAfter(long zoneId, Date since) {
+        SearchCriteria<ContainerClusterPhaseStatVO> sc = zoneIdStartedSearch.create();
+        sc.setParameters("zoneId", zoneId);
+        sc.setParameters("started", since);
+        return listBy(sc, null);
+    }
+
+    @Override
+    public int expungeStartedBefore(Date before) {
+        SearchCriteria<ContainerClusterPhaseStatVO> sc = startedBeforeSearch.create();
+        sc.setParameters("started", before);
+        return expunge(sc);
+    }
+}
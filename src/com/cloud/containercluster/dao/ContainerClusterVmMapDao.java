@@ -18,9 +18,13 @@ package com.cloud.containercluster.dao;
 
 import com.cloud.containercluster.ContainerClusterVmMapVO;
 import com.cloud.utils.db.GenericDao;
+import com.cloud.vm.VMInstanceVO;
 
 import java.util.List;
 
 public interface ContainerClusterVmMapDao extends GenericDao<ContainerClusterVmMapVO, Long> {
     public List<ContainerClusterVmMapVO> listByClusterId(long clusterId);
+    public List<ContainerClusterVmMapVO> listByClusterIds(List<Long> clusterIds);
+    public ContainerClusterVmMapVO findByVmId(long vmId);
+    public List<VMInstanceVO> listVmsIncludingRemoved(List<Long> vmIds);
 }
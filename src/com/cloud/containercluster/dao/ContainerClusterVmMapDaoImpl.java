@@ -19,22 +19,47 @@ package com.cloud.containercluster.dao;
 import com.cloud.containercluster.ContainerClusterVmMapVO;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.dao.VMInstanceDao;
 import org.springframework.stereotype.Component;
 
 import com.cloud.utils.db.GenericDaoBase;
 
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 import java.util.List;
 
 
 @Component
 public class ContainerClusterVmMapDaoImpl extends GenericDaoBase<ContainerClusterVmMapVO, Long> implements ContainerClusterVmMapDao {
 
+    @Inject
+    protected VMInstanceDao _vmInstanceDao;
+
     private final SearchBuilder<ContainerClusterVmMapVO> clusterIdSearch;
+    private final SearchBuilder<ContainerClusterVmMapVO> clusterIdsSearch;
+    private final SearchBuilder<ContainerClusterVmMapVO> vmIdSearch;
+    private SearchBuilder<VMInstanceVO> vmIdsSearch;
 
     public ContainerClusterVmMapDaoImpl() {
         clusterIdSearch = createSearchBuilder();
         clusterIdSearch.and("clusterId", clusterIdSearch.entity().getClusterId(), SearchCriteria.Op.EQ);
         clusterIdSearch.done();
+
+        clusterIdsSearch = createSearchBuilder();
+        clusterIdsSearch.and("clusterIds", clusterIdsSearch.entity().getClusterId(), SearchCriteria.Op.IN);
+        clusterIdsSearch.done();
+
+        vmIdSearch = createSearchBuilder();
+        vmIdSearch.and("vmId", vmIdSearch.entity().getVmId(), SearchCriteria.Op.EQ);
+        vmIdSearch.done();
+    }
+
+    @PostConstruct
+    protected void init() {
+        vmIdsSearch = _vmInstanceDao.createSearchBuilder();
+        vmIdsSearch.and("vmIds", vmIdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        vmIdsSearch.done();
     }
 
     @Override
@@ -43,4 +68,26 @@ public class ContainerClusterVmMapDaoImpl extends GenericDaoBase<ContainerCluste
         sc.setParameters("clusterId", clusterId);
         return listBy(sc, null);
     }
+
+    @Override
+    public List<ContainerClusterVmMapVO> listByClusterIds(List<Long> clusterIds) {
+        SearchCriteria<ContainerClusterVmMapVO> sc = clusterIdsSearch.create();
+        sc.setParameters("clusterIds", clusterIds.toArray());
+        return listBy(sc, null);
+    }
+
+    @Override
+    public ContainerClusterVmMapVO findByVmId(long vmId) {
+        SearchCriteria<ContainerClusterVmMapVO> sc = vmIdSearch.create();
+        sc.setParameters("vmId", vmId);
+        return findOneBy(sc);
+    }
+
+    // the VMs of the given ids in one query, through the VM instance DAO, removed ones included as findByIdIncludingRemoved does
+    @Override
+    public List<VMInstanceVO> listVmsIncludingRemoved(List<Long> vmIds) {
+        SearchCriteria<VMInstanceVO> sc = vmIdsSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        return _vmInstanceDao.searchIncludingRemoved(sc, null, null, false);
+    }
 }
@@ -0,0 +1,87 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.containercluster.dao;
+
+import com.cloud.containercluster.ContainerClusterWarmPoolVmVO;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import org.springframework.stereotype.Component;
+
+import com.cloud.utils.db.GenericDaoBase;
+
+import java.util.Date;
+import java.util.List;
+
+
+@Component
+public class ContainerClusterWarmPoolVmDaoImpl extends GenericDaoBase<ContainerClusterWarmPoolVmVO, Long> implements ContainerClusterWarmPoolVmDao {
+
+    private final SearchBuilder<ContainerClusterWarmPoolVmVO> poolSearch;
+    private final SearchBuilder<ContainerClusterWarmPoolVmVO> vmIdSearch;
+    private final SearchBuilder<ContainerClusterWarmPoolVmVO> claimedSearch;
+
+    public ContainerClusterWarmPoolVmDaoImpl() {
+        poolSearch = createSearchBuilder();
+        poolSearch.and("zoneId", poolSearch.entity().getZoneId(), SearchCriteria.Op.EQ);
+        poolSearch.and("templateId", poolSearch.entity().getTemplateId(), SearchCriteria.Op.EQ);
+        poolSearch.and("serviceOfferingId", poolSearch.entity().getServiceOfferingId(), SearchCriteria.Op.EQ);
+        poolSearch.and("claimed", poolSearch.entity().getClaimed(), SearchCriteria.Op.NULL);
+        poolSearch.done();
+
+        vmIdSearch = createSearchBuilder();
+        vmIdSearch.and("vmId", vmIdSearch.entity().getVmId(), SearchCriteria.Op.EQ);
+        vmIdSearch.done();
+
+        claimedSearch = createSearchBuilder();
+        claimedSearch.and("claimed", claimedSearch.entity().getClaimed(), SearchCriteria.Op.LT);
+        claimedSearch.done();
+    }
+
+    private SearchCriteria<ContainerClusterWarmPoolVmVO> createPoolCriteria(long zoneId, long templateId, long serviceOfferingId) {
+        SearchCriteria<ContainerClusterWarmPoolVmVO> sc = poolSearch.create();
+        sc.setParameters("zoneId", zoneId);
+        sc.setParameters("templateId", templateId);
+        sc.setParameters("serviceOfferingId", serviceOfferingId);
+        return sc;
+    }
+
+    // the VMs of the pool that are not claimed
+    @Override
+    public List<ContainerClusterWarmPoolVmVO> listByZoneTemplateAndOffering(long zoneId, long templateId, long serviceOfferingId) {
+        return listBy(createPoolCriteria(zoneId, templateId, serviceOfferingId), null);
+    }
+
+    // to be called in a transaction, the row stays locked till the transaction ends
+    @Override
+    public ContainerClusterWarmPoolVmVO lockOneByZoneTemplateAndOffering(long zoneId, long templateId, long serviceOfferingId) {
+        return lockOneRandomRow(createPoolCriteria(zoneId, templateId, serviceOfferingId), true);
+    }
+
+    @Override
+    public ContainerClusterWarmPoolVmVO findByVmId(long vmId) {
+        SearchCriteria<ContainerClusterWarmPoolVmVO> sc = vmIdSearch.create();
+        sc.setParameters("vmId", vmId);
+        return findOneBy(sc);
+    }
+
+    @Override
+    public List<ContainerClusterWarmPoolVmVO> listClaimedBefore(Date before) {
+        SearchCriteria<ContainerClusterWarmPoolVmVO> sc = claimedSearch.create();
+        sc.setParameters("claimed", before);
+        return listBy(sc, null);
+    }
+}
@@ -0,0 +1,81 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.api.response;
+
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class ContainerClusterPhasePercentilesResponse extends BaseResponse {
+    @SerializedName("operation")
+    @Param(description = "the container cluster operation the phase is part of")
+    private String operation;
+
+    @SerializedName("phase")
+    @Param(description = "the name of the phase")
+    private String phase;
+
+    @SerializedName("count")
+    @Param(description = "the number of times the phase succeeded")
+    private int count;
+
+    @SerializedName("failed")
+    @Param(description = "the number of times the phase failed")
+    private int failed;
+
+    @SerializedName("p50ms")
+    @Param(description = "the median time the phase took in milliseconds")
+    private long p50;
+
+    @SerializedName("p95ms")
+    @Param(description = "the 95th percentile of the time the phase took in milliseconds")
+    private long p95;
+
+    @SerializedName("p99ms")
+    @Param(description = "the 99th percentile of the time the phase took in milliseconds")
+    private long p99;
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public void setFailed(int failed) {
+        this.failed = failed;
+    }
+
+    public void setP50(long p50) {
+        this.p50 = p50;
+    }
+
+    public void setP95(long p95) {
+        this.p95 = p95;
+    }
+
+    public void setP99(long p99) {
+        this.p99 = p99;
+    }
+}
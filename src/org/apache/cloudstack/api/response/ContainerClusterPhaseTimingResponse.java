@@ -0,0 +1,75 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.api.response;
+
+import java.util.Date;
+
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class ContainerClusterPhaseTimingResponse extends BaseResponse {
+    @SerializedName("operation")
+    @Param(description = "the container cluster operation the phase is part of")
+    private String operation;
+
+    @SerializedName("phase")
+    @Param(description = "the name of the phase")
+    private String phase;
+
+    @SerializedName("virtualmachineid")
+    @Param(description = "the id of the VM the phase was run for, if any")
+    private String virtualMachineId;
+
+    @SerializedName("started")
+    @Param(description = "the date the phase started")
+    private Date started;
+
+    @SerializedName("durationms")
+    @Param(description = "the time the phase took in milliseconds")
+    private long durationMs;
+
+    @SerializedName("success")
+    @Param(description = "true if the phase succeeded")
+    private boolean success;
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public void setVirtualMachineId(String virtualMachineId) {
+        this.virtualMachineId = virtualMachineId;
+    }
+
+    public void setStarted(Date started) {
+        this.started = started;
+    }
+
+    public void setDurationMs(long durationMs) {
+        this.durationMs = durationMs;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+}
@@ -0,0 +1,69 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package org.apache.cloudstack.api.response;
+
+import java.util.List;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class ContainerClusterProvisioningStatsResponse extends BaseResponse {
+    @SerializedName(ApiConstants.ID)
+    @Param(description = "the id of the container cluster, if the timeline of a cluster was asked for")
+    private String id;
+
+    @SerializedName(ApiConstants.NAME)
+    @Param(description = "the name of the container cluster, if the timeline of a cluster was asked for")
+    private String name;
+
+    @SerializedName(ApiConstants.ZONE_ID)
+    @Param(description = "the id of the zone")
+    private String zoneId;
+
+    @SerializedName("timeline")
+    @Param(description = "the timed phases of the operations on the container cluster", responseObject = ContainerClusterPhaseTimingResponse.class)
+    private List<ContainerClusterPhaseTimingResponse> timeline;
+
+    @SerializedName("percentiles")
+    @Param(description = "the percentiles of the time taken by each phase across the container clusters of the zone, for admins only",
+            responseObject = ContainerClusterPhasePercentilesResponse.class)
+    private List<ContainerClusterPhasePercentilesResponse> percentiles;
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setZoneId(String zoneId) {
+        this.zoneId = zoneId;
+    }
+
+    public void setTimeline(List<ContainerClusterPhaseTimingResponse> timeline) {
+        this.timeline = timeline;
+    }
+
+    public void setPercentiles(List<ContainerClusterPhasePercentilesResponse> percentiles) {
+        this.percentiles = percentiles;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+public class CloudConfigTemplateTest {
+
+    private static final String PEM = "-----BEGIN CERTIFICATE-----\nMIIB\nAAAA\n-----END CERTIFICATE-----\n";
+
+    @Test
+    public void renderMasterConfig() throws Exception {
+        String text = new String(Files.readAllBytes(Paths.get("conf/k8s-master.yml")), StandardCharsets.UTF_8);
+
+        // what the cloud-config used to be rendered like with a String.replace per placeholder
+        String expected = text.replace("{{ k8s_master.apiserver.crt }}", PEM.replace("\n", "\n      "))
+                .replace("{{ k8s_master.apiserver.key }}", PEM.replace("\n", "\n      "))
+                .replace("{{ k8s_master.ca.crt }}", PEM.replace("\n", "\n      "))
+                .replace("{{ k8s_master.ms.ssh.pub.key }}", "- \"ssh-rsa AAAA ms\"\n  - \"ssh-rsa BBBB user\"")
+                .replace("{{ k8s_master.cluster.token }}", "abcdef.0123456789abcdef")
+                .replace("{{ k8s_master.cluster.ip }}", "--apiserver-cert-extra-sans=10.1.1.1")
+                .replace("{{ ccs.callback.url }}", "")
+                .replace("{{ ccs.callback.token.kubeadm_init }}", "")
+                .replace("{{ ccs.callback.token.addons_deployed }}", "");
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("k8s_master.apiserver.crt", PEM);
+        values.put("k8s_master.apiserver.key", PEM);
+        values.put("k8s_master.ca.crt", PEM);
+        values.put("k8s_master.ms.ssh.pub.key", "- \"ssh-rsa AAAA ms\"\n- \"ssh-rsa BBBB user\"");
+        values.put("k8s_master.cluster.token", "abcdef.0123456789abcdef");
+        values.put("k8s_master.cluster.ip", "--apiserver-cert-extra-sans=10.1.1.1");
+        values.put("ccs.callback.url", "");
+        values.put("ccs.callback.token.kubeadm_init", "");
+        values.put("ccs.callback.token.addons_deployed", "");
+
+        CloudConfigTemplate template = CloudConfigTemplate.parse(text);
+        Assert.assertEquals(expected, template.render(values));
+        Assert.assertEquals(expected, new String(Base64.decodeBase64(template.renderBase64(values)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void renderBase64Gzip() throws Exception {
+        CloudConfigTemplate template = CloudConfigTemplate.parse("#cloud-config\nwrite-files:\n  - content: |\n      {{ cert }}\n");
+        Map<String, String> values = new HashMap<String, String>();
+        StringBuilder cert = new StringBuilder("-----BEGIN CERTIFICATE-----\n");
+        for (int i = 0; i < 40; i++) {
+            cert.append("MIIDXTCCAkWgAwIBAgIJAKoK/heBjcOuMA0GCSqGSIb3DQEBBQUAMEUxCzAJBgNV\n");
+        }
+        values.put("cert", cert.append("-----END CERTIFICATE-----").toString());
+
+        String plain = template.renderBase64(values);
+        String compressed = template.renderBase64(values, true);
+        Assert.assertTrue(compressed.length() < plain.length());
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(Base64.decodeBase64(compressed)))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            Assert.assertEquals(template.render(values), new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void renderMarkerInsertion() {
+        CloudConfigTemplate template = CloudConfigTemplate.parse("---\nwrite-files:\n  - path: {{ file }}\n", "write-files:");
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("file", "/a");
+        Assert.assertEquals("---\nwrite-files:\n  - path: /a\n", template.render(values));
+
+        values.put("write-files:", "\n  - path: /b");
+        Assert.assertEquals("---\nwrite-files:\n  - path: /b\n  - path: /a\n", template.render(values));
+    }
+
+    @Test
+    public void renderLeavesUnknownPlaceholders() {
+        CloudConfigTemplate template = CloudConfigTemplate.parse("a {{ x }} b {{y}}");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("x", "1");
+        Assert.assertEquals("a 1 b {{y}}", template.render(values));
+    }
+}
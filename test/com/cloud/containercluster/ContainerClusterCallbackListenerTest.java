@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.containercluster.ContainerClusterCallbackListener.Milestone;
+
+public class ContainerClusterCallbackListenerTest {
+
+    private static Map<String, String> callback(String milestone, String token) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("cluster", "cluster-uuid");
+        params.put("milestone", milestone);
+        params.put("token", token);
+        params.put("host", "cluster-k8s-master");
+        return params;
+    }
+
+    @Test
+    public void tokenIsSpentByItsFirstCallback() {
+        ContainerClusterCallbackListener listener = new ContainerClusterCallbackListener();
+        listener.register("cluster-uuid", "secret");
+        CompletableFuture<Boolean> kubeadmInit = listener.awaitMilestone("cluster-uuid", Milestone.KubeadmInit);
+        String token = ContainerClusterCallbackListener.deriveToken("secret", Milestone.KubeadmInit);
+
+        Assert.assertEquals(204, listener.handleCallback(callback("kubeadm-init", token)));
+        Assert.assertTrue(kubeadmInit.join());
+        Assert.assertEquals(403, listener.handleCallback(callback("kubeadm-init", token)));
+    }
+
+    @Test
+    public void tokenOnlyReportsItsOwnMilestone() {
+        ContainerClusterCallbackListener listener = new ContainerClusterCallbackListener();
+        listener.register("cluster-uuid", "secret");
+        String token = ContainerClusterCallbackListener.deriveToken("secret", Milestone.KubeadmInit);
+
+        Assert.assertEquals(403, listener.handleCallback(callback("addons-deployed", token)));
+        Assert.assertEquals(403, listener.handleCallback(callback("kubeadm-init", ContainerClusterCallbackListener.deriveToken("other", Milestone.KubeadmInit))));
+        Assert.assertFalse(listener.awaitMilestone("cluster-uuid", Milestone.AddOnsDeployed).isDone());
+    }
+
+    @Test
+    public void callbacksOnlyReachTheManagementServerProvisioningTheCluster() {
+        // the callback URL points at another management server, which this one does not listen for
+        ContainerClusterCallbackListener listener = new ContainerClusterCallbackListener();
+        listener.register("cluster-uuid", "secret");
+        Assert.assertFalse(listener.isEnabled());
+        Assert.assertNull(listener.getCallbackUrl("cluster-uuid"));
+        Assert.assertNull(listener.getToken("secret", Milestone.KubeadmInit));
+
+        // a cluster whose create got resumed by another management server
+        listener.unregister("cluster-uuid");
+        String token = ContainerClusterCallbackListener.deriveToken("secret", Milestone.KubeadmInit);
+        Assert.assertEquals(404, listener.handleCallback(callback("kubeadm-init", token)));
+        Assert.assertNull(listener.awaitMilestone("cluster-uuid", Milestone.KubeadmInit));
+    }
+}
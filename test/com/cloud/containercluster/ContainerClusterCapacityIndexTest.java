@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.containercluster.dao.ContainerClusterCapacityDao;
+import com.cloud.containercluster.dao.ContainerClusterCapacityReservationDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.Host.Type;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.vm.VirtualMachine;
+
+public class ContainerClusterCapacityIndexTest {
+
+    private ResourceManager resourceMgr;
+    private ContainerClusterCapacityDao capacityDao;
+    private HostDao hostDao;
+    private ContainerClusterCapacityIndex index;
+
+    private static HostVO host(long id) {
+        HostVO host = new HostVO(id, "host-" + id, Type.Routing, "", "", "", "", "", "", "", "", "", "", "", "", "", Status.Up, "1.0", "", new Date(), 1L, 1L, 1L, 1L, "", 1L,
+                StoragePoolType.Filesystem);
+        host.setClusterId(1L);
+        host.setHypervisorType(HypervisorType.KVM);
+        host.setResourceState(ResourceState.Enabled);
+        return host;
+    }
+
+    private static List<CapacityVO> capacities(long hostId, long usedCpu, long usedRam) {
+        return Arrays.asList(new CapacityVO(hostId, 1L, 1L, 1L, usedCpu, 4000, Capacity.CAPACITY_TYPE_CPU),
+                new CapacityVO(hostId, 1L, 1L, 1L, usedRam, 4000, Capacity.CAPACITY_TYPE_MEMORY));
+    }
+
+    private static void vmStarted(ContainerClusterCapacityIndex index, long hostId) {
+        VirtualMachine vm = mock(VirtualMachine.class);
+        when(vm.getDataCenterId()).thenReturn(1L);
+        when(vm.getHostId()).thenReturn(hostId);
+        when(vm.getLastHostId()).thenReturn(null);
+        index.postStateTransitionEvent(new StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event>(VirtualMachine.State.Starting,
+                VirtualMachine.Event.OperationSucceeded, VirtualMachine.State.Running, null), vm, true, null);
+    }
+
+    @Before
+    public void setUp() {
+        resourceMgr = mock(ResourceManager.class);
+        capacityDao = mock(ContainerClusterCapacityDao.class);
+        index = new ContainerClusterCapacityIndex();
+        index._resourceMgr = resourceMgr;
+        index._containerClusterCapacityDao = capacityDao;
+        hostDao = mock(HostDao.class);
+        index._hostDao = hostDao;
+
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1L)).thenReturn(Arrays.asList(host(1L), host(2L), host(3L)));
+        when(capacityDao.listOvercommitRatios(anyListOf(Long.class))).thenReturn(new ArrayList<ClusterDetailsVO>());
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.addAll(capacities(1L, 1000, 0));
+        capacities.addAll(capacities(2L, 3000, 0));
+        capacities.addAll(capacities(3L, 2000, 0));
+        when(capacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
+    }
+
+    @Test
+    public void hostsAreOrderedByFreeCpu() {
+        ContainerClusterCapacitySnapshot snapshot = index.getSnapshot(1L);
+
+        Assert.assertTrue(snapshot.isSortedByCpu());
+        Assert.assertEquals(2L, snapshot.getHostId(0));
+        Assert.assertEquals(3L, snapshot.getHostId(1));
+        Assert.assertEquals(1L, snapshot.getHostId(2));
+        Assert.assertEquals(0, snapshot.getFirstWithCpu(500));
+        Assert.assertEquals(1, snapshot.getFirstWithCpu(1001));
+        Assert.assertEquals(2, snapshot.getFirstWithCpu(3000));
+        Assert.assertEquals(3, snapshot.getFirstWithCpu(3001));
+    }
+
+    @Test
+    public void snapshotIsKeptUntilHostsChange() {
+        ContainerClusterCapacitySnapshot snapshot = index.getSnapshot(1L);
+        Assert.assertSame(snapshot, index.getSnapshot(1L));
+        verify(capacityDao, times(1)).listHostCpuAndMemoryCapacities(1L);
+
+        // a VM was started on host 1, which now has the least CPU free
+        when(capacityDao.listCpuAndMemoryCapacitiesOfHosts(Arrays.asList(1L))).thenReturn(capacities(1L, 3500, 1000));
+        vmStarted(index, 1L);
+        snapshot = index.getSnapshot(1L);
+
+        verify(capacityDao, times(1)).listHostCpuAndMemoryCapacities(1L);
+        Assert.assertEquals(1L, snapshot.getHostId(0));
+        Assert.assertEquals(500, snapshot.getFreeCpu(0));
+        Assert.assertEquals(3000, snapshot.getFreeRam(0));
+        Assert.assertSame(snapshot, index.getSnapshot(1L));
+    }
+
+    @Test
+    public void zoneIsLoadedAgainForUnknownHosts() {
+        index.getSnapshot(1L);
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1L)).thenReturn(Arrays.asList(host(1L), host(2L), host(3L), host(4L)));
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>(capacityDao.listHostCpuAndMemoryCapacities(1L));
+        capacities.addAll(capacities(4L, 0, 0));
+        when(capacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
+
+        vmStarted(index, 4L);
+        ContainerClusterCapacitySnapshot snapshot = index.getSnapshot(1L);
+
+        Assert.assertEquals(4, snapshot.size());
+        Assert.assertEquals(4L, snapshot.getHostId(3));
+        verify(capacityDao, never()).listCpuAndMemoryCapacitiesOfHosts(anyListOf(Long.class));
+
+        index.zoneChanged(1L);
+        Assert.assertNotSame(snapshot, index.getSnapshot(1L));
+    }
+
+    @Test
+    public void heldCapacityDoesNotHideHosts() {
+        ContainerClusterCapacityLedger ledger = new ContainerClusterCapacityLedger();
+        ledger._reservationDao = mock(ContainerClusterCapacityReservationDao.class);
+        ContainerClusterCapacitySnapshot snapshot = index.getSnapshot(1L);
+        // host 1, the last one, is left with less CPU free than the hosts before it
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.Spread.place(snapshot, 1, 2500, 1000);
+        Assert.assertEquals(Long.valueOf(1L), placement.getHostId(0));
+        Assert.assertTrue(ledger.reserve(1L, 1L, snapshot, placement, 1, 2500, 1000));
+
+        ContainerClusterCapacitySnapshot left = ledger.deduct(1L, snapshot);
+        Assert.assertEquals(500, left.getFreeCpu(2));
+        placement = ContainerClusterPlacementStrategy.BestFit.place(left, 1, 500, 1000);
+        Assert.assertEquals(Long.valueOf(1L), placement.getHostId(0));
+    }
+
+    @Test
+    public void hostsNotUpAndEnabledHaveNoRoom() {
+        HostVO disabled = host(2L);
+        disabled.setResourceState(ResourceState.Disabled);
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1L)).thenReturn(Arrays.asList(host(1L), disabled, host(3L)));
+        ContainerClusterCapacitySnapshot snapshot = index.getSnapshot(1L);
+
+        Assert.assertEquals(2L, snapshot.getHostId(0));
+        Assert.assertEquals(-1, snapshot.getFreeCpu(0));
+
+        // capacity looked up again for a VM stopped on the host does not make it usable
+        when(capacityDao.listCpuAndMemoryCapacitiesOfHosts(Arrays.asList(2L))).thenReturn(capacities(2L, 0, 0));
+        vmStarted(index, 2L);
+        snapshot = index.getSnapshot(1L);
+        Assert.assertEquals(2L, snapshot.getHostId(0));
+        Assert.assertEquals(-1, snapshot.getFreeCpu(0));
+    }
+
+    @Test
+    public void snapshotOfHypervisorAndHostTag() {
+        HostVO xen = host(3L);
+        xen.setHypervisorType(HypervisorType.XenServer);
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1L)).thenReturn(Arrays.asList(host(1L), host(2L), xen));
+
+        ContainerClusterCapacitySnapshot kvm = index.getSnapshot(1L, HypervisorType.KVM, null);
+        Assert.assertEquals(2, kvm.size());
+        Assert.assertTrue(kvm.isSortedByCpu());
+        Assert.assertEquals(2L, kvm.getHostId(0));
+        Assert.assertEquals(1L, kvm.getHostId(1));
+        Assert.assertSame(index.getSnapshot(1L), index.getSnapshot(1L, HypervisorType.Any, ""));
+        verify(hostDao, never()).listByHostTag(Type.Routing, null, null, 1L, "");
+
+        when(hostDao.listByHostTag(Type.Routing, null, null, 1L, "k8s")).thenReturn(Arrays.asList(host(1L), xen));
+        ContainerClusterCapacitySnapshot tagged = index.getSnapshot(1L, HypervisorType.KVM, "k8s");
+        Assert.assertEquals(1, tagged.size());
+        Assert.assertEquals(1L, tagged.getHostId(0));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.containercluster.dao.ContainerClusterCapacityReservationDao;
+
+public class ContainerClusterCapacityLedgerTest {
+
+    // hosts 1 and 2 with room for 4 and 2 VMs of 1000 MHz and 1000 bytes
+    private static ContainerClusterCapacitySnapshot snapshot() {
+        return new ContainerClusterCapacitySnapshot(new long[] {1L, 2L}, new long[] {4000, 2000}, new long[] {4000, 2000});
+    }
+
+    private static ContainerClusterCapacityLedger ledger() {
+        ContainerClusterCapacityLedger ledger = new ContainerClusterCapacityLedger();
+        ledger._reservationDao = mock(ContainerClusterCapacityReservationDao.class);
+        ledger._msId = 10L;
+        return ledger;
+    }
+
+    @Test
+    public void heldCapacityIsNotFreeForOtherClusters() {
+        ContainerClusterCapacityLedger ledger = ledger();
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.Spread.place(snapshot(), 3, 1000, 1000);
+
+        Assert.assertTrue(ledger.reserve(1L, 1L, snapshot(), placement, 3, 1000, 1000));
+        Assert.assertSame(placement, ledger.getPlacement(1L));
+        Assert.assertArrayEquals(new long[] {2000, 2000}, ledger.getHeld(1L));
+        Assert.assertArrayEquals(new long[] {1000, 1000}, ledger.getHeld(2L));
+
+        ContainerClusterCapacitySnapshot left = ledger.deduct(1L, snapshot());
+        Assert.assertEquals(2000, left.getFreeCpu(0));
+        Assert.assertEquals(1000, left.getFreeRam(1));
+        // planned on the same free capacity as cluster 1, which only has room for one more such cluster
+        Assert.assertTrue(ledger.reserve(2L, 1L, snapshot(), placement, 3, 1000, 1000));
+        Assert.assertFalse(ledger.reserve(3L, 1L, snapshot(), placement, 3, 1000, 1000));
+        Assert.assertNull(ledger.getPlacement(3L));
+        Assert.assertArrayEquals(new long[] {4000, 4000}, ledger.getHeld(1L));
+        Assert.assertNull(ContainerClusterPlacementStrategy.Spread.place(ledger.deduct(1L, snapshot()), 1, 1000, 1000));
+    }
+
+    @Test
+    public void capacityIsGivenUpVmByVm() {
+        ContainerClusterCapacityLedger ledger = ledger();
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.Spread.place(snapshot(), 3, 1000, 1000);
+        ledger.reserve(1L, 1L, snapshot(), placement, 2, 1000, 1000);
+
+        ledger.release(1L, ContainerClusterPlacement.MASTER);
+        ledger.release(1L, ContainerClusterPlacement.MASTER);
+        Assert.assertArrayEquals(new long[] {0, 0}, ledger.getHeld(placement.getHostId(ContainerClusterPlacement.MASTER)));
+        Assert.assertArrayEquals(new long[] {1000, 1000}, ledger.getHeld(placement.getHostId(1)));
+
+        ledger.release(1L);
+        Assert.assertArrayEquals(new long[] {0, 0}, ledger.getHeld(placement.getHostId(1)));
+        Assert.assertNull(ledger.getPlacement(1L));
+        ContainerClusterCapacitySnapshot snapshot = snapshot();
+        Assert.assertSame(snapshot, ledger.deduct(1L, snapshot));
+    }
+
+    @Test
+    public void concurrentReservationsDoNotOversubscribeHosts() throws Exception {
+        final ContainerClusterCapacityLedger ledger = ledger();
+        final ContainerClusterCapacitySnapshot snapshot = snapshot();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 100; i++) {
+                final long clusterId = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.BestFit.place(ledger.deduct(1L, snapshot), 1, 1000, 1000);
+                        return placement != null && ledger.reserve(clusterId, 1L, snapshot, placement, 1, 1000, 1000);
+                    }
+                }));
+            }
+            int reserved = 0;
+            for (Future<Boolean> result : results) {
+                reserved += result.get() ? 1 : 0;
+            }
+            Assert.assertTrue(reserved <= 6);
+            Assert.assertTrue(ledger.getHeld(1L)[0] <= 4000);
+            Assert.assertTrue(ledger.getHeld(2L)[0] <= 2000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void capacityHeldByOtherManagementServersIsNotFree() {
+        ContainerClusterCapacityLedger ledger = ledger();
+        // management server 20 holds room for 3 VMs on host 1, and this one for 1 VM on host 2, as recorded before
+        when(ledger._reservationDao.listByZoneId(1L)).thenReturn(Arrays.asList(new ContainerClusterCapacityReservationVO(5L, 0, 1L, 1L, 20L, 3000, 3000),
+                new ContainerClusterCapacityReservationVO(6L, 0, 1L, 2L, 10L, 1000, 1000)));
+
+        ContainerClusterCapacitySnapshot left = ledger.deduct(1L, snapshot());
+        Assert.assertEquals(1000, left.getFreeCpu(0));
+        Assert.assertEquals(2000, left.getFreeCpu(1));
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.BestFit.place(snapshot(), 2, 1000, 1000);
+        Assert.assertEquals(Long.valueOf(2L), placement.getHostId(0));
+        Assert.assertEquals(Long.valueOf(2L), placement.getHostId(1));
+        Assert.assertTrue(ledger.reserve(1L, 1L, snapshot(), placement, 2, 1000, 1000));
+        Assert.assertFalse(ledger.reserve(2L, 1L, snapshot(), ContainerClusterPlacementStrategy.BestFit.place(snapshot(), 1, 1000, 2000), 1, 1000, 2000));
+
+        // the VMs reserved are recorded for the other management servers, and dropped as they are released
+        ArgumentCaptor<ContainerClusterCapacityReservationVO> recorded = ArgumentCaptor.forClass(ContainerClusterCapacityReservationVO.class);
+        verify(ledger._reservationDao, times(2)).persist(recorded.capture());
+        Assert.assertEquals(1, recorded.getAllValues().get(1).getVmIndex());
+        Assert.assertEquals(2L, recorded.getAllValues().get(1).getHostId());
+        Assert.assertEquals(10L, recorded.getAllValues().get(1).getManagementServerId());
+        ledger.release(1L, 1);
+        ledger.release(1L, 1);
+        verify(ledger._reservationDao, times(1)).removeByClusterIdAndVmIndex(1L, 1);
+        ledger.release(1L);
+        verify(ledger._reservationDao, times(2)).removeByClusterId(1L);
+    }
+
+    @Test
+    public void capacityHeldByManagementServersThatAreDownIsReleased() {
+        ContainerClusterCapacityLedger ledger = ledger();
+        ContainerClusterCapacityReservationVO up = new ContainerClusterCapacityReservationVO(5L, 0, 1L, 1L, 20L, 1000, 1000);
+        ContainerClusterCapacityReservationVO down = spy(new ContainerClusterCapacityReservationVO(6L, 0, 1L, 1L, 30L, 1000, 1000));
+        when(down.getId()).thenReturn(7L);
+        when(ledger._reservationDao.listAll()).thenReturn(Arrays.asList(up, down));
+
+        ledger.releaseHeldByOthersThan(new HashSet<Long>(Arrays.asList(10L, 20L)));
+
+        verify(ledger._reservationDao).expunge(7L);
+        verify(ledger._reservationDao, never()).expunge(up.getId());
+    }
+}
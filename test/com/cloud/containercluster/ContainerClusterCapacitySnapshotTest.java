@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.host.Host.Type;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.storage.Storage.StoragePoolType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+public class ContainerClusterCapacitySnapshotTest {
+
+    private static HostVO host(long id, long clusterId) {
+        HostVO host = new HostVO(id, "host-" + id, Type.Routing, "", "", "", "", "", "", "", "", "", "", "", "", "", Status.Up, "1.0", "", new Date(), 1L, 1L, 1L, 1L, "", 1L,
+                StoragePoolType.Filesystem);
+        host.setClusterId(clusterId);
+        return host;
+    }
+
+    private static CapacityVO capacity(long hostId, long used, long reserved, long total, short type) {
+        CapacityVO capacity = new CapacityVO(hostId, 1L, 1L, 1L, used, total, type);
+        capacity.setReservedCapacity(reserved);
+        return capacity;
+    }
+
+    @Test
+    public void freeCapacityIsOvercommittedTotalLessUsedAndReserved() {
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(capacity(1L, 1000, 500, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(1L, 2048, 0, 8192, Capacity.CAPACITY_TYPE_MEMORY));
+        capacities.add(capacity(2L, 1000, 0, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(2L, 0, 1024, 8192, Capacity.CAPACITY_TYPE_MEMORY));
+        List<ClusterDetailsVO> ratios = Arrays.asList(new ClusterDetailsVO(1L, ContainerClusterCapacitySnapshot.CPU_OVERCOMMIT_RATIO, "2"),
+                new ClusterDetailsVO(1L, ContainerClusterCapacitySnapshot.MEMORY_OVERCOMMIT_RATIO, "1.5"));
+
+        ContainerClusterCapacitySnapshot snapshot = ContainerClusterCapacitySnapshot.create(Arrays.asList(host(1L, 1L), host(2L, 2L)), capacities, ratios);
+
+        Assert.assertEquals(2, snapshot.size());
+        Assert.assertEquals(1L, snapshot.getHostId(0));
+        Assert.assertEquals(4000 * 2 - 1000 - 500, snapshot.getFreeCpu(0));
+        Assert.assertEquals(8192 * 3 / 2 - 2048, snapshot.getFreeRam(0));
+        // no overcommit ratios for cluster 2
+        Assert.assertEquals(3000, snapshot.getFreeCpu(1));
+        Assert.assertEquals(7168, snapshot.getFreeRam(1));
+
+        Assert.assertTrue(snapshot.hasCapacity(1, 3000, 7168));
+        Assert.assertFalse(snapshot.hasCapacity(1, 3001, 1));
+        Assert.assertFalse(snapshot.hasCapacity(1, 1, 7169));
+    }
+
+    @Test
+    public void hostWithoutCapacityHasNoRoom() {
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(capacity(1L, 0, 0, 4000, Capacity.CAPACITY_TYPE_CPU));
+
+        ContainerClusterCapacitySnapshot snapshot = ContainerClusterCapacitySnapshot.create(Arrays.asList(host(1L, 1L)), capacities,
+                new ArrayList<ClusterDetailsVO>());
+
+        Assert.assertFalse(snapshot.hasCapacity(0, 0, 0));
+    }
+}
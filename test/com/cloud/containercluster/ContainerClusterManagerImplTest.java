@@ -15,16 +15,17 @@
  */
 package com.cloud.containercluster;
 
-import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.containercluster.dao.ContainerClusterCapacityDao;
+import com.cloud.containercluster.dao.ContainerClusterCapacityReservationDao;
 import com.cloud.containercluster.dao.ContainerClusterDao;
 import com.cloud.containercluster.dao.ContainerClusterDetailsDao;
 import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
-import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
-import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenter;
 import com.cloud.dc.DataCenter.NetworkType;
 import com.cloud.dc.DataCenterVO;
-import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.deploy.DeployDestination;
 import com.cloud.exception.InsufficientServerCapacityException;
@@ -39,26 +40,37 @@ import com.cloud.network.dao.PhysicalNetworkDao;
 import com.cloud.network.firewall.FirewallService;
 import com.cloud.network.rules.RulesService;
 import com.cloud.network.rules.dao.PortForwardingRulesDao;
+import com.cloud.offering.ServiceOffering;
 import com.cloud.offerings.dao.NetworkOfferingDao;
 import com.cloud.offerings.dao.NetworkOfferingServiceMapDao;
 import com.cloud.resource.ResourceManager;
+import com.cloud.resource.ResourceState;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.dao.VMTemplateDao;
+import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.SSHKeyPairDao;
+import com.cloud.utils.fsm.StateMachine2;
 import com.cloud.vm.UserVmService;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.dao.UserVmDao;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.cloudstack.engine.orchestration.service.NetworkOrchestrationService;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.log4j.Logger;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
@@ -66,13 +78,18 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyFloat;
-import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -136,13 +153,13 @@ public class ContainerClusterManagerImplTest {
     @Mock
     public UserVmDao userVmDao;
     @Mock
-    public CapacityManager capacityMgr;
-    @Mock
     public ResourceManager resourceMgr;
     @Mock
-    public ClusterDetailsDao clusterDetailsDao;
+    public ContainerClusterCapacityDao containerClusterCapacityDao;
     @Mock
-    public ClusterDao clusterDao;
+    public ContainerClusterCapacityReservationDao capacityReservationDao;
+
+    private final InMemoryLockDataSource locks = new InMemoryLockDataSource();
 
     @Before
     public void setUp() {
@@ -166,10 +183,19 @@ public class ContainerClusterManagerImplTest {
         ccManager._rulesService = rulesService;
         ccManager._srvOfferingDao = srvOfferingDao;
         ccManager._userVmDao = userVmDao;
-        ccManager._capacityMgr = capacityMgr;
         ccManager._resourceMgr = resourceMgr;
-        ccManager._clusterDetailsDao = clusterDetailsDao;
-        ccManager._clusterDao = clusterDao;
+        ccManager._capacityLedger = new ContainerClusterCapacityLedger();
+        ccManager._capacityLedger._reservationDao = capacityReservationDao;
+        ccManager._capacityIndex = new ContainerClusterCapacityIndex();
+        ccManager._capacityIndex._resourceMgr = resourceMgr;
+        ccManager._capacityIndex._containerClusterCapacityDao = containerClusterCapacityDao;
+        ccManager._shards = new ContainerClusterShards();
+        locks.install();
+    }
+
+    @After
+    public void tearDown() {
+        locks.uninstall();
     }
 
     @Test(expected = InsufficientServerCapacityException.class)
@@ -184,16 +210,6 @@ public class ContainerClusterManagerImplTest {
         List<HostVO> hl = new ArrayList<HostVO>();
         when(resourceMgr.listAllHostsInAllZonesByType(Type.Routing)).thenReturn(hl);
 
-        ClusterVO cluster = new ClusterVO(1L);
-        when(clusterDao.findById(1L)).thenReturn(cluster);
-
-        ClusterDetailsVO cluster_detail_cpu = new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1");
-        when(clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio")).thenReturn(cluster_detail_cpu);
-        ClusterDetailsVO cluster_detail_ram = new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1");
-        when(clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio")).thenReturn(cluster_detail_ram);
-
-        when(capacityMgr.checkIfHostHasCapacity(anyLong(), anyInt(), anyInt(), anyBoolean(), anyFloat(), anyFloat(), anyBoolean())).thenReturn(true);
-
         ccManager.plan(1, 1);
     }
 
@@ -211,22 +227,58 @@ public class ContainerClusterManagerImplTest {
                 StoragePoolType.Filesystem);
         h1.setClusterId(1L);
         h1.setUuid("uuid-test");
+        h1.setResourceState(ResourceState.Enabled);
         hl.add(h1);
         when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1)).thenReturn(hl);
-        ClusterVO cluster = new ClusterVO(1L);
-        when(clusterDao.findById(1L)).thenReturn(cluster);
-
-        ClusterDetailsVO cluster_detail_cpu = new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1");
-        when(clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio")).thenReturn(cluster_detail_cpu);
-        ClusterDetailsVO cluster_detail_ram = new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1");
-        when(clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio")).thenReturn(cluster_detail_ram);
+        List<ClusterDetailsVO> ratios = new ArrayList<ClusterDetailsVO>();
+        ratios.add(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1"));
+        ratios.add(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1"));
+        when(containerClusterCapacityDao.listOvercommitRatios(Arrays.asList(1L))).thenReturn(ratios);
 
-        when(capacityMgr.checkIfHostHasCapacity(anyLong(), anyInt(), anyInt(), anyBoolean(), anyFloat(), anyFloat(), anyBoolean())).thenReturn(true);
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L * 1024L * 1024L, Capacity.CAPACITY_TYPE_MEMORY));
+        when(containerClusterCapacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
         when(dcDao.findById(1L)).thenReturn(new DataCenterVO(1L, "test-dc", "test-desc", "", "", "", "", "", "", 1L, NetworkType.Advanced, "", ""));
 
         DeployDestination dd = ccManager.plan(1, 1);
 
         Assert.assertEquals(dd.getDataCenter().getId(), 1L);
+        // the capacity held for the master is recorded for the other management servers
+        verify(capacityReservationDao).persist(any(ContainerClusterCapacityReservationVO.class));
+    }
+
+    @Test(expected = InsufficientServerCapacityException.class)
+    public void checkPlanWithCapacityHeldByAnotherManagementServer() throws InsufficientServerCapacityException {
+        ContainerClusterVO containerCluster = new ContainerClusterVO();
+        containerCluster.setServiceOfferingId(1L);
+        containerCluster.setNodeCount(0);
+        when(containerClusterDao.findById(1L)).thenReturn(containerCluster);
+        ServiceOfferingVO offering = new ServiceOfferingVO("test", 1, 500, 512, 0, 0, true, "test", null, false, true, "", true, null, true);
+        when(srvOfferingDao.findById(1L)).thenReturn(offering);
+
+        List<HostVO> hl = new ArrayList<HostVO>();
+        HostVO h1 = new HostVO(1L, "testHost1", Type.Routing, "", "", "", "", "", "", "", "", "", "", "", "", "", Status.Up, "1.0", "", new Date(), 1L, 1L, 1L, 1L, "", 1L,
+                StoragePoolType.Filesystem);
+        h1.setClusterId(1L);
+        h1.setUuid("uuid-test");
+        h1.setResourceState(ResourceState.Enabled);
+        hl.add(h1);
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1)).thenReturn(hl);
+        List<ClusterDetailsVO> ratios = new ArrayList<ClusterDetailsVO>();
+        ratios.add(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1"));
+        ratios.add(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1"));
+        when(containerClusterCapacityDao.listOvercommitRatios(Arrays.asList(1L))).thenReturn(ratios);
+
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L * 1024L * 1024L, Capacity.CAPACITY_TYPE_MEMORY));
+        when(containerClusterCapacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
+        // a cluster being created through another management server holds half of the CPU of the host
+        ccManager._capacityLedger._msId = 10L;
+        when(capacityReservationDao.listByZoneId(1L)).thenReturn(Arrays.asList(new ContainerClusterCapacityReservationVO(2L, 0, 1L, 1L, 20L, 512, 0)));
+
+        ccManager.plan(1, 1);
     }
 
     @Test(expected = InsufficientServerCapacityException.class)
@@ -243,21 +295,236 @@ public class ContainerClusterManagerImplTest {
                 StoragePoolType.Filesystem);
         h1.setClusterId(1L);
         h1.setUuid("uuid-test");
+        h1.setResourceState(ResourceState.Enabled);
         hl.add(h1);
-        when(resourceMgr.listAllHostsInAllZonesByType(Type.Routing)).thenReturn(hl);
-
-        ClusterVO cluster = new ClusterVO(1L);
-        when(clusterDao.findById(1L)).thenReturn(cluster);
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1)).thenReturn(hl);
 
-        ClusterDetailsVO cluster_detail_cpu = new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1");
-        when(clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio")).thenReturn(cluster_detail_cpu);
-        ClusterDetailsVO cluster_detail_ram = new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1");
-        when(clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio")).thenReturn(cluster_detail_ram);
+        List<ClusterDetailsVO> ratios = new ArrayList<ClusterDetailsVO>();
+        ratios.add(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1"));
+        ratios.add(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1"));
+        when(containerClusterCapacityDao.listOvercommitRatios(Arrays.asList(1L))).thenReturn(ratios);
 
-        when(capacityMgr.checkIfHostHasCapacity(anyLong(), anyInt(), anyInt(), anyBoolean(), anyFloat(), anyFloat(), anyBoolean())).thenReturn(false);
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1023L, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L * 1024L * 1024L, Capacity.CAPACITY_TYPE_MEMORY));
+        when(containerClusterCapacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
         when(dcDao.findById(1L)).thenReturn(new DataCenterVO(1L, "test-dc", "test-desc", "", "", "", "", "", "", 1L, NetworkType.Advanced, "", ""));
 
         DeployDestination dd = ccManager.plan(1, 1);
     }
 
+    @Test
+    public void checkPlanOfSizeAsksForNoSpareRoom() throws InsufficientServerCapacityException {
+        ContainerClusterVO containerCluster = new ContainerClusterVO();
+        containerCluster.setServiceOfferingId(1L);
+        containerCluster.setNodeCount(1);
+        when(containerClusterDao.findById(1L)).thenReturn(containerCluster);
+        ServiceOfferingVO offering = new ServiceOfferingVO("test", 1, 500, 512, 0, 0, true, "test", null, false, true, "", true, VirtualMachine.Type.User, true);
+        when(srvOfferingDao.findById(1L)).thenReturn(offering);
+
+        List<HostVO> hl = new ArrayList<HostVO>();
+        HostVO h1 = new HostVO(1L, "testHost1", Type.Routing, "", "", "", "", "", "", "", "", "", "", "", "", "", Status.Up, "1.0", "", new Date(), 1L, 1L, 1L, 1L, "", 1L,
+                StoragePoolType.Filesystem);
+        h1.setClusterId(1L);
+        h1.setUuid("uuid-test");
+        h1.setResourceState(ResourceState.Enabled);
+        hl.add(h1);
+        when(resourceMgr.listAllHostsInOneZoneByType(Type.Routing, 1)).thenReturn(hl);
+
+        List<ClusterDetailsVO> ratios = new ArrayList<ClusterDetailsVO>();
+        ratios.add(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1"));
+        ratios.add(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1"));
+        when(containerClusterCapacityDao.listOvercommitRatios(Arrays.asList(1L))).thenReturn(ratios);
+
+        // room for the master and the node exactly
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(new CapacityVO(1L, 1L, 1L, 1L, 0, 1024L * 1024L * 1024L, Capacity.CAPACITY_TYPE_MEMORY));
+        when(containerClusterCapacityDao.listHostCpuAndMemoryCapacities(1L)).thenReturn(capacities);
+        when(dcDao.findById(1L)).thenReturn(new DataCenterVO(1L, "test-dc", "test-desc", "", "", "", "", "", "", 1L, NetworkType.Advanced, "", ""));
+
+        // the size asked for on create fits as is
+        Assert.assertEquals(1L, ccManager.plan(1L, 1L, offering).getDataCenter().getId());
+        // planning the cluster by its id keeps the room of one more VM to spare
+        try {
+            ccManager.plan(1L, 1L);
+            Assert.fail("planned a cluster leaving no room to spare");
+        } catch (InsufficientServerCapacityException e) {
+            // expected
+        }
+    }
+
+
+    private static ContainerClusterVO cluster(long id, ContainerCluster.State state, long nodeCount) {
+        ContainerClusterVO containerCluster = new ContainerClusterVO();
+        containerCluster.setId(id);
+        containerCluster.setName("cluster-" + id);
+        containerCluster.setState(state);
+        containerCluster.setNodeCount(nodeCount);
+        return containerCluster;
+    }
+
+    private static VMInstanceVO vm(long id, VirtualMachine.State state) {
+        VMInstanceVO vm = mock(VMInstanceVO.class);
+        when(vm.getId()).thenReturn(id);
+        when(vm.getState()).thenReturn(state);
+        when(vm.getType()).thenReturn(VirtualMachine.Type.User);
+        return vm;
+    }
+
+    @Test
+    public void stateScannerLoadsTheVmsOfAllClustersAtOnce() {
+        ccManager._containerClusterVmMapDao = clusterVmMapDao;
+        // cluster 1 is fine, cluster 2 has a stopped VM, cluster 3 lost a node and cluster 4 got its VMs running again
+        when(containerClusterDao.findContainerClustersInStates(Arrays.asList(ContainerCluster.State.Running, ContainerCluster.State.Stopped,
+                ContainerCluster.State.Starting, ContainerCluster.State.Alert))).thenReturn(Arrays.asList(cluster(1L, ContainerCluster.State.Running, 1),
+                cluster(2L, ContainerCluster.State.Running, 1), cluster(3L, ContainerCluster.State.Running, 1), cluster(4L, ContainerCluster.State.Alert, 1)));
+        when(clusterVmMapDao.listByClusterIds(Arrays.asList(1L, 2L, 3L))).thenReturn(Arrays.asList(new ContainerClusterVmMapVO(1L, 11L),
+                new ContainerClusterVmMapVO(1L, 12L), new ContainerClusterVmMapVO(2L, 21L), new ContainerClusterVmMapVO(2L, 22L), new ContainerClusterVmMapVO(3L, 31L)));
+        List<VMInstanceVO> vms = Arrays.asList(vm(11L, VirtualMachine.State.Running), vm(12L, VirtualMachine.State.Running), vm(21L, VirtualMachine.State.Running),
+                vm(22L, VirtualMachine.State.Stopped), vm(31L, VirtualMachine.State.Running));
+        when(clusterVmMapDao.listVmsIncludingRemoved(Arrays.asList(11L, 12L, 21L, 22L, 31L))).thenReturn(vms);
+        when(clusterVmMapDao.listByClusterIds(Arrays.asList(4L))).thenReturn(Arrays.asList(new ContainerClusterVmMapVO(4L, 41L), new ContainerClusterVmMapVO(4L, 42L)));
+        List<VMInstanceVO> alertVms = Arrays.asList(vm(41L, VirtualMachine.State.Running), vm(42L, VirtualMachine.State.Running));
+        when(clusterVmMapDao.listVmsIncludingRemoved(Arrays.asList(41L, 42L))).thenReturn(alertVms);
+        doReturn(true).when(ccManager).stateTransitTo(anyLong(), any(ContainerCluster.Event.class));
+
+        ccManager.new ContainerClusterStatusScanner().reallyRun();
+
+        verify(ccManager, never()).stateTransitTo(1L, ContainerCluster.Event.FaultsDetected);
+        verify(ccManager).stateTransitTo(2L, ContainerCluster.Event.FaultsDetected);
+        verify(ccManager).stateTransitTo(3L, ContainerCluster.Event.FaultsDetected);
+        verify(ccManager).stateTransitTo(4L, ContainerCluster.Event.RecoveryRequested);
+        verify(ccManager).stateTransitTo(4L, ContainerCluster.Event.OperationSucceeded);
+        verify(clusterVmMapDao, times(2)).listByClusterIds(anyListOf(Long.class));
+        verify(clusterVmMapDao, never()).listByClusterId(anyLong());
+    }
+
+    private static StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event> transition(VirtualMachine.State from, VirtualMachine.State to) {
+        return new StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event>(from, VirtualMachine.Event.OperationSucceeded, to, null);
+    }
+
+    @Test
+    public void vmStateChangesAreMappedToTheirClusters() {
+        ccManager._containerClusterVmMapDao = clusterVmMapDao;
+        ccManager._faultDetector = MoreExecutors.newDirectExecutorService();
+        when(clusterVmMapDao.listAll()).thenReturn(Arrays.asList(new ContainerClusterVmMapVO(2L, 21L), new ContainerClusterVmMapVO(2L, 22L)));
+        ccManager.loadVmClusters();
+        when(containerClusterDao.findById(2L)).thenReturn(cluster(2L, ContainerCluster.State.Running, 1));
+        when(clusterVmMapDao.listByClusterIds(Arrays.asList(2L))).thenReturn(Arrays.asList(new ContainerClusterVmMapVO(2L, 21L),
+                new ContainerClusterVmMapVO(2L, 22L)));
+        // the VM that stopped is not committed as stopped yet
+        List<VMInstanceVO> vms = Arrays.asList(vm(21L, VirtualMachine.State.Running), vm(22L, VirtualMachine.State.Running));
+        when(clusterVmMapDao.listVmsIncludingRemoved(Arrays.asList(21L, 22L))).thenReturn(vms);
+        doReturn(true).when(ccManager).stateTransitTo(anyLong(), any(ContainerCluster.Event.class));
+        ContainerClusterManagerImpl.ContainerClusterVmStateListener listener = ccManager.new ContainerClusterVmStateListener();
+
+        // VMs outside of clusters, and VMs still changing state, are not looked at
+        listener.postStateTransitionEvent(transition(VirtualMachine.State.Running, VirtualMachine.State.Stopped), vm(99L, VirtualMachine.State.Stopped), true, null);
+        listener.postStateTransitionEvent(transition(VirtualMachine.State.Running, VirtualMachine.State.Stopping), vm(22L, VirtualMachine.State.Stopping), true, null);
+        verify(containerClusterDao, never()).findById(anyLong());
+
+        listener.postStateTransitionEvent(transition(VirtualMachine.State.Stopping, VirtualMachine.State.Stopped), vm(22L, VirtualMachine.State.Stopped), true, null);
+        verify(containerClusterDao).findById(2L);
+        verify(ccManager).stateTransitTo(2L, ContainerCluster.Event.FaultsDetected);
+    }
+
+    @Test
+    public void resumedCreateRecordsTheMasterItDeployedBefore() {
+        ccManager._vmDao = vmDao;
+        ContainerClusterVO containerCluster = cluster(5L, ContainerCluster.State.Starting, 1);
+        containerCluster.setNetworkId(50L);
+        when(clusterVmMapDao.listByClusterId(5L)).thenReturn(new ArrayList<ContainerClusterVmMapVO>());
+        // the create was interrupted after deploying the master, before recording it
+        UserVmVO masterVm = mock(UserVmVO.class);
+        when(masterVm.getId()).thenReturn(51L);
+        when(masterVm.getHostName()).thenReturn("cluster-5-k8s-master");
+        when(masterVm.getPrivateIpAddress()).thenReturn("10.1.1.5");
+        UserVmVO otherVm = mock(UserVmVO.class);
+        when(otherVm.getHostName()).thenReturn("cluster-5-k8s-node-1");
+        when(vmDao.listByNetworkIdAndStates(anyLong(), Matchers.<VirtualMachine.State>anyVararg())).thenReturn(Arrays.asList(otherVm, masterVm));
+
+        // a create that is not resumed has nothing to look for
+        Assert.assertNull(ccManager.findContainerClusterVm(containerCluster, "cluster-5-k8s-master", false));
+        verify(vmDao, never()).listByNetworkIdAndStates(anyLong(), Matchers.<VirtualMachine.State>anyVararg());
+
+        ContainerClusterManagerImpl.MasterPreparation preparation = ccManager.prepareK8SMaster(containerCluster, true);
+
+        Assert.assertSame(masterVm, preparation.masterVm);
+        Assert.assertEquals("10.1.1.5", preparation.masterIp);
+        ArgumentCaptor<ContainerClusterVmMapVO> vmMap = ArgumentCaptor.forClass(ContainerClusterVmMapVO.class);
+        verify(clusterVmMapDao).persist(vmMap.capture());
+        Assert.assertEquals(5L, vmMap.getValue().getClusterId());
+        Assert.assertEquals(51L, vmMap.getValue().getVmId());
+        Assert.assertEquals(Long.valueOf(5L), ccManager._vmClusters.get(51L));
+    }
+
+    @Test
+    public void strictPlacementDeploysNodesInsteadOfClaimingPooledVms() throws Exception {
+        ccManager._warmPool = mock(ContainerClusterWarmPool.class);
+        ContainerClusterVO containerCluster = cluster(5L, ContainerCluster.State.Starting, 1);
+        VirtualMachineTemplate template = mock(VirtualMachineTemplate.class);
+        when(template.getId()).thenReturn(2L);
+        ContainerClusterManagerImpl.NodeProvisioningContext context = new ContainerClusterManagerImpl.NodeProvisioningContext(mock(DataCenter.class),
+                mock(ServiceOffering.class), template, Arrays.asList(50L), mock(Account.class), "10.1.1.5", "data");
+        UserVmVO pooledVm = mock(UserVmVO.class);
+        when(ccManager._warmPool.claim(any(ContainerCluster.class), any(DataCenter.class), anyLong(), any(ServiceOffering.class), any(Account.class),
+                anyListOf(Long.class), any(String.class), any(String.class))).thenReturn(pooledVm);
+
+        when(globalConfigDao.getValue(CcsConfig.ContainerClusterPlacementStrategy.key())).thenReturn("Spread");
+        Assert.assertSame(pooledVm, ccManager.createK8SNode(containerCluster, context, 1));
+
+        // the root volume of a pooled VM would keep it from the host it is planned on
+        when(globalConfigDao.getValue(CcsConfig.ContainerClusterPlacementStrategy.key())).thenReturn("AntiAffinity");
+        Assert.assertNotSame(pooledVm, ccManager.createK8SNode(containerCluster, context, 2));
+        verify(ccManager._warmPool, times(1)).claim(any(ContainerCluster.class), any(DataCenter.class), anyLong(), any(ServiceOffering.class),
+                any(Account.class), anyListOf(Long.class), any(String.class), any(String.class));
+    }
+
+    @Test
+    public void vmsMissingFromTheIndexAreLookedUp() {
+        ccManager._containerClusterVmMapDao = clusterVmMapDao;
+        when(clusterVmMapDao.listAll()).thenReturn(new ArrayList<ContainerClusterVmMapVO>());
+        ccManager.loadVmClusters();
+        // the VM joined its cluster through another management server
+        when(clusterVmMapDao.findByVmId(31L)).thenReturn(new ContainerClusterVmMapVO(3L, 31L));
+
+        Assert.assertEquals(Long.valueOf(3L), ccManager.findVmCluster(vm(31L, VirtualMachine.State.Stopped)));
+        Assert.assertEquals(Long.valueOf(3L), ccManager.findVmCluster(vm(31L, VirtualMachine.State.Running)));
+        verify(clusterVmMapDao, times(1)).findByVmId(31L);
+
+        Assert.assertNull(ccManager.findVmCluster(vm(99L, VirtualMachine.State.Stopped)));
+        VMInstanceVO router = vm(98L, VirtualMachine.State.Stopped);
+        when(router.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
+        Assert.assertNull(ccManager.findVmCluster(router));
+        verify(clusterVmMapDao, never()).findByVmId(98L);
+    }
+
+    @Test
+    public void vmsOfRemovedClustersAreForgotten() {
+        ccManager._containerClusterVmMapDao = clusterVmMapDao;
+        when(clusterVmMapDao.listAll()).thenReturn(Arrays.asList(new ContainerClusterVmMapVO(2L, 21L), new ContainerClusterVmMapVO(3L, 31L)));
+        ccManager.loadVmClusters();
+        when(clusterVmMapDao.listAll()).thenReturn(Arrays.asList(new ContainerClusterVmMapVO(3L, 31L), new ContainerClusterVmMapVO(4L, 41L)));
+        ccManager.loadVmClusters();
+
+        Assert.assertNull(ccManager._vmClusters.get(21L));
+        Assert.assertEquals(Long.valueOf(3L), ccManager._vmClusters.get(31L));
+        Assert.assertEquals(Long.valueOf(4L), ccManager._vmClusters.get(41L));
+    }
+
+    @Test
+    public void addOnsWatchEndingEarlyIsNotRetriedRightAway() throws Exception {
+        KubernetesClient client = mock(KubernetesClient.class);
+        KubernetesClient.DeploymentList deployments = new KubernetesClient.DeploymentList();
+        deployments.items = new ArrayList<KubernetesClient.Deployment>();
+        when(client.getDeploymentList("kube-system")).thenReturn(deployments);
+        ContainerClusterVO containerCluster = cluster(1L, ContainerCluster.State.Starting, 1);
+        doReturn(client).when(ccManager).getKubernetesClient(containerCluster);
+
+        Assert.assertFalse(ccManager.awaitAddOnsAvailable(containerCluster, Arrays.asList("kubernetes-dashboard"), 1000, null));
+
+        // the watch ends at once, the add-ons are listed again only after backing off till the deadline
+        verify(client, times(1)).getDeploymentList("kube-system");
+    }
 }
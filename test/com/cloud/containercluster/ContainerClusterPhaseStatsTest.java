@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import com.cloud.containercluster.dao.ContainerClusterPhaseStatDao;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class ContainerClusterPhaseStatsTest {
+
+    @Test
+    public void percentileNearestRank() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        Assert.assertEquals(50, ContainerClusterPhaseStats.percentile(sorted, 50));
+        Assert.assertEquals(95, ContainerClusterPhaseStats.percentile(sorted, 95));
+        Assert.assertEquals(99, ContainerClusterPhaseStats.percentile(sorted, 99));
+        Assert.assertEquals(7, ContainerClusterPhaseStats.percentile(new long[] {7}, 99));
+        Assert.assertEquals(0, ContainerClusterPhaseStats.percentile(new long[0], 50));
+    }
+
+    @Test
+    public void percentilesPerOperationAndPhase() {
+        List<ContainerClusterPhaseStatVO> stats = new ArrayList<ContainerClusterPhaseStatVO>();
+        Date now = new Date();
+        stats.add(new ContainerClusterPhaseStatVO(1, 1, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DEPLOY_NODE, null, now, 3000, true));
+        stats.add(new ContainerClusterPhaseStatVO(1, 1, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DEPLOY_NODE, null, now, 1000, true));
+        stats.add(new ContainerClusterPhaseStatVO(2, 1, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DEPLOY_NODE, null, now, 2000, true));
+        stats.add(new ContainerClusterPhaseStatVO(2, 1, ContainerClusterPhaseStatVO.CREATE, ContainerClusterPhaseStatVO.DEPLOY_NODE, null, now, 90000, false));
+        stats.add(new ContainerClusterPhaseStatVO(2, 1, ContainerClusterPhaseStatVO.START, ContainerClusterPhaseStatVO.AWAIT_API_SERVER, null, now, 500, true));
+
+        List<ContainerClusterPhaseStats.PhasePercentiles> percentiles = ContainerClusterPhaseStats.computePercentiles(stats);
+        Assert.assertEquals(2, percentiles.size());
+
+        ContainerClusterPhaseStats.PhasePercentiles deployNode = percentiles.get(0);
+        Assert.assertEquals(ContainerClusterPhaseStatVO.CREATE, deployNode.operation);
+        Assert.assertEquals(ContainerClusterPhaseStatVO.DEPLOY_NODE, deployNode.phase);
+        Assert.assertEquals(3, deployNode.count);
+        Assert.assertEquals(1, deployNode.failed);
+        Assert.assertEquals(2000, deployNode.p50);
+        Assert.assertEquals(3000, deployNode.p99);
+
+        Assert.assertEquals(ContainerClusterPhaseStatVO.AWAIT_API_SERVER, percentiles.get(1).phase);
+        Assert.assertEquals(500, percentiles.get(1).p95);
+    }
+
+    @Test
+    public void purgeDropsPhasesOutOfTheWindow() {
+        ContainerClusterPhaseStats phaseStats = new ContainerClusterPhaseStats();
+        phaseStats._phaseStatDao = Mockito.mock(ContainerClusterPhaseStatDao.class);
+        long before = System.currentTimeMillis();
+
+        phaseStats.purgeExpired();
+
+        ArgumentCaptor<Date> cutoff = ArgumentCaptor.forClass(Date.class);
+        Mockito.verify(phaseStats._phaseStatDao).expungeStartedBefore(cutoff.capture());
+        long window = ContainerClusterPhaseStats.STATS_WINDOW_DAYS * 24L * 60 * 60 * 1000;
+        Assert.assertTrue(cutoff.getValue().getTime() >= before - window);
+        Assert.assertTrue(cutoff.getValue().getTime() <= System.currentTimeMillis() - window);
+    }
+}
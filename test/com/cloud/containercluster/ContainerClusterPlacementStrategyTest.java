@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContainerClusterPlacementStrategyTest {
+
+    // hosts 1 to 3 with room for 4, 2 and 1 VMs of 1000 MHz and 1000 bytes, host 4 without capacity
+    private static ContainerClusterCapacitySnapshot snapshot() {
+        return new ContainerClusterCapacitySnapshot(new long[] {1L, 2L, 3L, 4L}, new long[] {4000, 2500, 1000, -1}, new long[] {8000, 2000, 1000, -1});
+    }
+
+    @Test
+    public void bestFitPacksOntoTheFullestHosts() {
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.BestFit.place(snapshot(), 4, 1000, 1000);
+
+        Assert.assertEquals(Long.valueOf(3L), placement.getHostId(0));
+        Assert.assertEquals(Long.valueOf(2L), placement.getHostId(1));
+        Assert.assertEquals(Long.valueOf(2L), placement.getHostId(2));
+        Assert.assertEquals(Long.valueOf(1L), placement.getHostId(3));
+        Assert.assertNull(placement.getHostId(4));
+    }
+
+    @Test
+    public void spreadUsesEveryHostBeforeSharingOne() {
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.Spread.place(snapshot(), 5, 1000, 1000);
+
+        Assert.assertEquals(Long.valueOf(1L), placement.getHostId(0));
+        Assert.assertEquals(Long.valueOf(2L), placement.getHostId(1));
+        Assert.assertEquals(Long.valueOf(3L), placement.getHostId(2));
+        Assert.assertEquals(Long.valueOf(1L), placement.getHostId(3));
+        Assert.assertEquals(Long.valueOf(2L), placement.getHostId(4));
+        Assert.assertEquals(3, placement.getHostCount());
+        Assert.assertNull(ContainerClusterPlacementStrategy.Spread.place(snapshot(), 8, 1000, 1000));
+    }
+
+    @Test
+    public void antiAffinityNeedsAHostPerVm() {
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.AntiAffinity.place(snapshot(), 3, 1000, 1000);
+
+        Assert.assertEquals(3, placement.getHostCount());
+        Assert.assertTrue(placement.getStrategy().isStrict());
+        Assert.assertNull(ContainerClusterPlacementStrategy.AntiAffinity.place(snapshot(), 4, 1000, 1000));
+    }
+
+    @Test
+    public void spareVmNeedsNoHostOfItsOwn() {
+        ContainerClusterPlacement placement = ContainerClusterPlacementStrategy.AntiAffinity.place(snapshot(), 3, 1000, 1000);
+        Assert.assertTrue(ContainerClusterPlacementStrategy.hasRoomLeft(snapshot(), placement, 1000, 1000));
+
+        placement = ContainerClusterPlacementStrategy.BestFit.place(snapshot(), 7, 1000, 1000);
+        Assert.assertFalse(ContainerClusterPlacementStrategy.hasRoomLeft(snapshot(), placement, 1000, 1000));
+    }
+
+    @Test
+    public void unknownStrategyNamesSpread() {
+        Assert.assertEquals(ContainerClusterPlacementStrategy.AntiAffinity, ContainerClusterPlacementStrategy.fromName("antiaffinity"));
+        Assert.assertEquals(ContainerClusterPlacementStrategy.Spread, ContainerClusterPlacementStrategy.fromName("firstfit"));
+        Assert.assertEquals(ContainerClusterPlacementStrategy.Spread, ContainerClusterPlacementStrategy.fromName(null));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ContainerClusterReadinessProberTest {
+
+    private ContainerClusterReadinessProber prober;
+
+    @Before
+    public void setUp() {
+        prober = new ContainerClusterReadinessProber();
+        Assert.assertTrue(prober.start());
+    }
+
+    @After
+    public void tearDown() {
+        prober.stop();
+    }
+
+    @Test
+    public void probeReachableEndpoint() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Future<Boolean> ready = prober.probe(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 30000);
+            Assert.assertTrue(ready.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void probeEndpointComingUpLater() throws Exception {
+        int port;
+        try (ServerSocket reserved = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = reserved.getLocalPort();
+        }
+        Future<Boolean> ready = prober.probe(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 30000);
+        Thread.sleep(1000);
+        Assert.assertFalse(ready.isDone());
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            Assert.assertTrue(ready.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void probeUnreachableEndpointTimesOut() throws Exception {
+        int port;
+        try (ServerSocket reserved = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = reserved.getLocalPort();
+        }
+        Future<Boolean> ready = prober.probe(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1500);
+        Assert.assertFalse(ready.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pendingProbesCompleteOnStop() throws Exception {
+        int port;
+        try (ServerSocket reserved = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = reserved.getLocalPort();
+        }
+        Future<Boolean> ready = prober.probe(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 60000);
+        prober.stop();
+        Assert.assertFalse(ready.get(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void backoffIsBounded() {
+        for (int attempt = 1; attempt < 100; attempt++) {
+            long delay = ContainerClusterReadinessProber.backoff(attempt);
+            Assert.assertTrue(delay >= ContainerClusterReadinessProber.INITIAL_BACKOFF_MS / 2);
+            Assert.assertTrue(delay <= ContainerClusterReadinessProber.MAX_BACKOFF_MS);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.containercluster.dao.ContainerClusterManagementServerDao;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class ContainerClusterShardsTest {
+
+    private static final int CLUSTERS = 3000;
+
+    private static ContainerClusterShards shards(long msId, long... upMsIds) {
+        ContainerClusterShards shards = new ContainerClusterShards();
+        shards._msId = msId;
+        shards._managementServerDao = mock(ContainerClusterManagementServerDao.class);
+        shards._globalConfigDao = mock(ConfigurationDao.class);
+        List<ContainerClusterManagementServerVO> managementServers = new ArrayList<ContainerClusterManagementServerVO>();
+        for (long upMsId : upMsIds) {
+            managementServers.add(new ContainerClusterManagementServerVO(upMsId, ContainerClusterManagementServerVO.STATE_UP, new Date()));
+        }
+        when(shards._managementServerDao.listUpSince(any(Date.class))).thenReturn(managementServers);
+        shards.refresh();
+        return shards;
+    }
+
+    @Test
+    public void everyClusterHasExactlyOneOwner() {
+        ContainerClusterShards[] nodes = {shards(11L, 11L, 22L, 33L), shards(22L, 11L, 22L, 33L), shards(33L, 11L, 22L, 33L)};
+        int[] owned = new int[nodes.length];
+        for (long clusterId = 1; clusterId <= CLUSTERS; clusterId++) {
+            int owners = 0;
+            for (int n = 0; n < nodes.length; n++) {
+                if (nodes[n].isOwned(clusterId)) {
+                    owners++;
+                    owned[n]++;
+                }
+            }
+            Assert.assertEquals(1, owners);
+        }
+        for (int n = 0; n < nodes.length; n++) {
+            // roughly a third each
+            Assert.assertTrue(owned[n] > CLUSTERS / 5 && owned[n] < CLUSTERS / 2);
+        }
+    }
+
+    @Test
+    public void onlyTheClustersOfAManagementServerGoingDownMove() {
+        ContainerClusterShards before = shards(11L, 11L, 22L, 33L);
+        ContainerClusterShards after = shards(11L, 11L, 22L);
+        for (long clusterId = 1; clusterId <= CLUSTERS; clusterId++) {
+            if (before.getOwner(clusterId) != 33L) {
+                Assert.assertEquals(before.getOwner(clusterId), after.getOwner(clusterId));
+            }
+        }
+    }
+
+    @Test
+    public void managementServerOwnsAllClustersOnItsOwn() {
+        // not seen as up yet
+        ContainerClusterShards shards = shards(11L);
+        for (long clusterId = 1; clusterId <= 100; clusterId++) {
+            Assert.assertTrue(shards.isOwned(clusterId));
+        }
+
+        // kept as they were when the management servers cannot be looked up
+        shards = shards(11L, 11L, 22L);
+        when(shards._managementServerDao.listUpSince(any(Date.class))).thenThrow(new CloudRuntimeException("db down"));
+        shards.refresh();
+        Assert.assertNotEquals(100, countOwned(shards, 100));
+    }
+
+    private static int countOwned(ContainerClusterShards shards, int clusters) {
+        int owned = 0;
+        for (long clusterId = 1; clusterId <= clusters; clusterId++) {
+            owned += shards.isOwned(clusterId) ? 1 : 0;
+        }
+        return owned;
+    }
+}
@@ -0,0 +1,941 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.apache.cloudstack.acl.ControlledEntity;
+import org.apache.cloudstack.api.command.user.vm.StartVMCmd;
+import org.apache.cloudstack.context.CallContext;
+import org.apache.cloudstack.framework.ca.Certificate;
+import org.apache.cloudstack.utils.security.CertUtils;
+import org.springframework.context.support.GenericApplicationContext;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenter;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+import com.cloud.hypervisor.Hypervisor;
+import com.cloud.network.Network;
+import com.cloud.network.Networks;
+import com.cloud.network.PhysicalNetwork;
+import com.cloud.network.dao.IPAddressVO;
+import com.cloud.network.dao.NetworkVO;
+import com.cloud.network.dao.PhysicalNetworkVO;
+import com.cloud.network.rules.FirewallRuleVO;
+import com.cloud.offering.NetworkOffering;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.offerings.NetworkOfferingVO;
+import com.cloud.resource.ResourceState;
+import com.cloud.service.ServiceOfferingVO;
+import com.cloud.storage.Storage;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.VMTemplateZoneVO;
+import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.user.Account;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.net.Ip;
+import com.cloud.vm.Nic;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * ContainerClusterSimulator load tests the lifecycle operations of ContainerClusterManagerImpl at scale without a
+ * cloud. The manager and its components run unchanged, wired to in-memory stand-ins for the DAOs and the CloudStack
+ * services they call: VM and network operations, firewall and port forwarding rules, and the CA. The API server and SSH
+ * endpoints of the clusters are simulated as well. Each stand-in takes a configurable latency and failure rate.
+ *
+ * Clusters are run through create, start, stop, start again and delete, many of them at once, and the run is reported
+ * on: lifecycle throughput, latency percentiles per operation and per provisioning phase, database calls, and lock
+ * contention both on the GlobalLock database locks and on JVM monitors. GlobalLock itself runs unchanged against an
+ * in-memory implementation of the MySQL named locks.
+ *
+ * Run from the project directory, so that the cloud-configs in conf/ are found, with settings as name=value arguments:
+ *
+ *     java -cp ... com.cloud.containercluster.ContainerClusterSimulator clusters=2000 concurrency=200 vmFailureRate=0.01
+ */
+public class ContainerClusterSimulator {
+
+    /**
+     * What to simulate. Latencies are in milliseconds, failure rates between 0 and 1.
+     */
+    public static class Config {
+        public int clusters = 1000;
+        public int concurrency = 100;
+        public int nodesPerCluster = 2;
+        public int provisioningWorkers = 100;
+        public int hosts = 100;
+        // the capacity of the hosts, used up by the VMs started on a planned host
+        public long hostCpuMhz = 64000;
+        public long hostRamMb = 262144;
+        public String placement = ContainerClusterPlacementStrategy.Spread.name();
+
+        public long dbLatencyMicros = 0;
+        public long deployVmMs = 20;
+        public long startVmMs = 20;
+        public long stopVmMs = 10;
+        public long destroyVmMs = 10;
+        public long startNetworkMs = 10;
+        public long destroyNetworkMs = 10;
+        public long issueCertificateMs = 2;
+        public long applyRulesMs = 5;
+        public long apiServerMs = 50;
+        public long sshMs = 5;
+        public long addOnsMs = 50;
+
+        public double vmFailureRate = 0;
+        public double networkFailureRate = 0;
+        public double apiServerFailureRate = 0;
+        public double sshFailureRate = 0;
+
+        /**
+         * Sets the fields named by name=value arguments.
+         */
+        public static Config parse(final String... args) {
+            final Config config = new Config();
+            for (String arg : args) {
+                final String[] nameValue = arg.split("=", 2);
+                try {
+                    final Field field = Config.class.getField(nameValue[0]);
+                    if (field.getType() == int.class) {
+                        field.setInt(config, Integer.parseInt(nameValue[1]));
+                    } else if (field.getType() == long.class) {
+                        field.setLong(config, Long.parseLong(nameValue[1]));
+                    } else if (field.getType() == String.class) {
+                        field.set(config, nameValue[1]);
+                    } else {
+                        field.setDouble(config, Double.parseDouble(nameValue[1]));
+                    }
+                } catch (NoSuchFieldException | ArrayIndexOutOfBoundsException | IllegalAccessException e) {
+                    throw new IllegalArgumentException("Invalid setting " + arg + ", expected one of the fields of " + Config.class.getName() + " as name=value", e);
+                }
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Latencies of an operation in milliseconds, over the operations that succeeded.
+     */
+    public static class Latencies {
+        public final String operation;
+        public final int count;
+        public final int failed;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Latencies(String operation, long[] sorted, int failed) {
+            this.operation = operation;
+            this.count = sorted.length;
+            this.failed = failed;
+            this.p50 = ContainerClusterPhaseStats.percentile(sorted, 50);
+            this.p90 = ContainerClusterPhaseStats.percentile(sorted, 90);
+            this.p99 = ContainerClusterPhaseStats.percentile(sorted, 99);
+            this.max = sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+    }
+
+    public static class Report {
+        public int lifecycles;
+        public int succeeded;
+        public long elapsedMs;
+        public List<Latencies> operations = new ArrayList<Latencies>();
+        public List<ContainerClusterPhaseStats.PhasePercentiles> phases = new ArrayList<ContainerClusterPhaseStats.PhasePercentiles>();
+        public Map<String, Long> failures = new HashMap<String, Long>();
+        public long dbCalls;
+        public Map<String, Long> dbCallsByMethod = new HashMap<String, Long>();
+        public Map<String, Long> unsimulatedCalls = new HashMap<String, Long>();
+        public long globalLocksAcquired;
+        public long globalLocksContended;
+        public long globalLocksTimedOut;
+        public long globalLockWaitMs;
+        public long globalLockMaxWaitMs;
+        public long monitorBlockedCount;
+        public long monitorBlockedMs;
+        public int leakedVms;
+        public int leakedNetworks;
+        public int maxClusterVmsPerHost;
+
+        public double getThroughput() {
+            return elapsedMs == 0 ? 0 : succeeded * 1000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Lifecycles: %d, succeeded: %d, in %d ms, %.2f lifecycles/s%n", lifecycles, succeeded, elapsedMs, getThroughput()));
+            sb.append(String.format("%-12s %8s %8s %8s %8s %8s %8s%n", "operation", "count", "failed", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+            for (Latencies latencies : operations) {
+                sb.append(String.format("%-12s %8d %8d %8d %8d %8d %8d%n", latencies.operation, latencies.count, latencies.failed,
+                        latencies.p50, latencies.p90, latencies.p99, latencies.max));
+            }
+            sb.append(String.format("%-30s %8s %8s %8s %8s %8s%n", "phase", "count", "failed", "p50 ms", "p95 ms", "p99 ms"));
+            for (ContainerClusterPhaseStats.PhasePercentiles phase : phases) {
+                sb.append(String.format("%-30s %8d %8d %8d %8d %8d%n", phase.operation + "/" + phase.phase, phase.count, phase.failed,
+                        phase.p50, phase.p95, phase.p99));
+            }
+            if (!failures.isEmpty()) {
+                sb.append("Failures: ").append(failures).append(String.format("%n"));
+            }
+            sb.append(String.format("DB calls: %d, %.1f per lifecycle, most called: %s%n", dbCalls, lifecycles == 0 ? 0.0 : dbCalls / (double)lifecycles,
+                    InMemoryDaoFactory.top(dbCallsByMethod, 10)));
+            if (!unsimulatedCalls.isEmpty()) {
+                sb.append("Unsimulated calls: ").append(unsimulatedCalls).append(String.format("%n"));
+            }
+            sb.append(String.format("GlobalLock: %d acquired, %d contended, %d timed out, %d ms waited, %d ms longest wait%n",
+                    globalLocksAcquired, globalLocksContended, globalLocksTimedOut, globalLockWaitMs, globalLockMaxWaitMs));
+            sb.append(String.format("JVM monitors: %d blocked, %d ms blocked%n", monitorBlockedCount, monitorBlockedMs));
+            sb.append(String.format("Placement: at most %d VMs of a cluster started on one host%n", maxClusterVmsPerHost));
+            sb.append(String.format("Left behind: %d VMs, %d networks%n", leakedVms, leakedNetworks));
+            return sb.toString();
+        }
+    }
+
+    private static final String TEMPLATE_NAME = "sim-k8s-template";
+    private static final String NETWORK_OFFERING_NAME = "sim-k8s-network-offering";
+    private static final long PHYSICAL_NETWORK_ID = 1L;
+
+    private final Config _config;
+    private final InMemoryDaoFactory _daos = new InMemoryDaoFactory();
+    private final InMemoryLockDataSource _locks = new InMemoryLockDataSource();
+    private final Map<String, String> _settings = new HashMap<String, String>();
+    private final Map<Class<?>, Object> _components = new HashMap<Class<?>, Object>();
+    private final Map<Class<?>, Object> _services = new HashMap<Class<?>, Object>();
+    private final Map<String, AtomicLong> _serviceCalls = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, List<Long>> _latencies = new ConcurrentHashMap<String, List<Long>>();
+    private final Map<String, AtomicLong> _failures = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong _guestIps = new AtomicLong();
+    private final AtomicLong _publicIps = new AtomicLong();
+    // CPU and memory capacity of the hosts, by host id
+    private final Map<Long, CapacityVO[]> _hostCapacities = new HashMap<Long, CapacityVO[]>();
+    private final ContainerClusterCapacityIndex _capacityIndex = new ContainerClusterCapacityIndex();
+    private final AtomicInteger _maxClusterVmsPerHost = new AtomicInteger();
+    private final SimulatedApiServer _apiServer;
+    private final ScheduledExecutorService _endpointTimer;
+    private final KeyPair _keyPair;
+    private final Certificate _certificate;
+    private final ContainerClusterManagerImpl _manager;
+
+    private AccountVO _account;
+    private UserVO _user;
+    private DataCenterVO _zone;
+    private ServiceOfferingVO _serviceOffering;
+
+    public ContainerClusterSimulator(final Config config) throws Exception {
+        _config = config;
+        _keyPair = CertUtils.generateRandomKeyPair(1024);
+        final X509Certificate caCertificate = CertUtils.generateV1Certificate(_keyPair, "CN=simulator", "CN=simulator", 1, "SHA256WithRSA");
+        _certificate = new Certificate(caCertificate, null, Collections.singletonList(caCertificate));
+        _daos.setLatency(config.dbLatencyMicros, TimeUnit.MICROSECONDS);
+        _daos.query("findByTemplateName", "name")
+                .query("listByZoneTemplate", "zoneId", "templateId")
+                .query("findByUniqueName", "uniqueName")
+                .query("findContainerClustersInState", "state")
+                .query("listByAssociatedNetwork", "associatedWithNetworkId", "sourceNat")
+                .query("listByIpAndPurposeAndNotRevoked", "sourceIpAddressId", "purpose")
+                .query("listByIpAndNotRevoked", "sourceIpAddressId")
+                .query("findDetail", "clusterId", "name")
+                .query("listHostCpuAndMemoryCapacities", "dataCenterId")
+                .answer("listCpuAndMemoryCapacitiesOfHosts", new InMemoryDaoFactory.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        final List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+                        for (CapacityVO capacity : _daos.list(CapacityVO.class)) {
+                            if (((List<?>)args[0]).contains(capacity.getHostOrPoolId())) {
+                                capacities.add(capacity);
+                            }
+                        }
+                        return capacities;
+                    }
+                })
+                .answer("listOvercommitRatios", new InMemoryDaoFactory.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        final List<ClusterDetailsVO> ratios = new ArrayList<ClusterDetailsVO>();
+                        for (ClusterDetailsVO detail : _daos.list(ClusterDetailsVO.class)) {
+                            if (((List<?>)args[0]).contains(detail.getClusterId()) && (detail.getName().equals(ContainerClusterCapacitySnapshot.CPU_OVERCOMMIT_RATIO)
+                                    || detail.getName().equals(ContainerClusterCapacitySnapshot.MEMORY_OVERCOMMIT_RATIO))) {
+                                ratios.add(detail);
+                            }
+                        }
+                        return ratios;
+                    }
+                })
+                .answer("getValue", new InMemoryDaoFactory.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return _settings.get((String)args[0]);
+                    }
+                })
+                .answer("listServicesForNetworkOffering", new InMemoryDaoFactory.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return Arrays.asList("Dhcp", "Dns", "Firewall", "PortForwarding", "SourceNat", "StaticNat", "UserData");
+                    }
+                })
+                .answer("setStateToAdd", new InMemoryDaoFactory.Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return true;
+                    }
+                });
+        populate();
+
+        final GenericApplicationContext applicationContext = new GenericApplicationContext();
+        applicationContext.refresh();
+        new ComponentContext().setApplicationContext(applicationContext);
+        ComponentContext.addDelegateContext(ContainerClusterSimulator.class, applicationContext);
+
+        _apiServer = new SimulatedApiServer();
+        _endpointTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Simulated-Endpoint-Timer"));
+        boolean configured = false;
+        try {
+            _components.put(ContainerClusterReadinessProber.class, new SimulatedReadinessProber());
+            _components.put(ContainerClusterSshSessionPool.class, new SimulatedSshSessionPool());
+            _components.put(ContainerClusterKeyPairPool.class, new SimulatedKeyPairPool());
+            _components.put(ContainerClusterCallbackListener.class, new ContainerClusterCallbackListener());
+            _components.put(ContainerClusterNetworkRulesProvisioner.class, new ContainerClusterNetworkRulesProvisioner());
+            _components.put(ContainerClusterPhaseStats.class, new ContainerClusterPhaseStats());
+            _components.put(ContainerClusterCapacityLedger.class, new ContainerClusterCapacityLedger());
+            _components.put(ContainerClusterCapacityIndex.class, _capacityIndex);
+            _components.put(ContainerClusterShards.class, new ContainerClusterShards());
+            _components.put(ContainerClusterWarmPool.class, new ContainerClusterWarmPool());
+            for (Object component : new ArrayList<Object>(_components.values())) {
+                wire(component);
+            }
+            _manager = new SimulatedManager();
+            wire(_manager);
+            _manager.configure("ContainerClusterManager", new HashMap<String, Object>());
+            _locks.install();
+            configured = true;
+        } finally {
+            if (!configured) {
+                _apiServer.stop();
+                _endpointTimer.shutdownNow();
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final ContainerClusterSimulator simulator = new ContainerClusterSimulator(Config.parse(args));
+        try {
+            System.out.print(simulator.run());
+        } finally {
+            simulator.close();
+        }
+    }
+
+    public void close() {
+        _manager.stop();
+        _apiServer.stop();
+        _endpointTimer.shutdownNow();
+        _locks.uninstall();
+        ComponentContext.removeDelegateContext(ContainerClusterSimulator.class);
+    }
+
+    /**
+     * Runs the configured number of cluster lifecycles, as many at once as configured, and reports on the run.
+     */
+    public Report run() throws InterruptedException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported()) {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+        final long[] blockedBefore = getBlocked(threads);
+        final ExecutorService lifecycles = Executors.newFixedThreadPool(_config.concurrency, new NamedThreadFactory("Simulated-Lifecycle"));
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < _config.clusters; i++) {
+            final int index = i;
+            results.add(lifecycles.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return runLifecycle(index);
+                }
+            }));
+        }
+
+        final Report report = new Report();
+        for (Future<Boolean> result : results) {
+            if (getQuietly(result)) {
+                report.succeeded++;
+            }
+        }
+        report.elapsedMs = System.currentTimeMillis() - start;
+        final long[] blockedAfter = getBlocked(threads);
+        lifecycles.shutdown();
+
+        report.lifecycles = _config.clusters;
+        for (String operation : Arrays.asList("create", "start", "stop", "restart", "delete")) {
+            final List<Long> latencies = _latencies.get(operation);
+            final long[] sorted = new long[latencies == null ? 0 : latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            final AtomicLong failed = _failures.get(operation);
+            report.operations.add(new Latencies(operation, sorted, failed == null ? 0 : (int)failed.get()));
+        }
+        report.phases = ContainerClusterPhaseStats.computePercentiles(_daos.list(ContainerClusterPhaseStatVO.class));
+        for (Map.Entry<String, AtomicLong> failure : _failures.entrySet()) {
+            if (failure.getKey().contains(":")) {
+                report.failures.put(failure.getKey(), failure.getValue().get());
+            }
+        }
+        report.dbCalls = _daos.getTotalCalls();
+        report.dbCallsByMethod = _daos.getCallCounts();
+        report.unsimulatedCalls = new HashMap<String, Long>(_daos.getUnsimulatedCalls());
+        for (Map.Entry<String, AtomicLong> call : _serviceCalls.entrySet()) {
+            report.unsimulatedCalls.put(call.getKey(), call.getValue().get());
+        }
+        report.globalLocksAcquired = _locks.getAcquired();
+        report.globalLocksContended = _locks.getContended();
+        report.globalLocksTimedOut = _locks.getTimedOut();
+        report.globalLockWaitMs = _locks.getWaitMillis();
+        report.globalLockMaxWaitMs = _locks.getMaxWaitMillis();
+        report.monitorBlockedCount = blockedAfter[0] - blockedBefore[0];
+        report.monitorBlockedMs = blockedAfter[1] - blockedBefore[1];
+        report.leakedVms = _daos.size(VMInstanceVO.class);
+        report.leakedNetworks = _daos.size(NetworkVO.class);
+        report.maxClusterVmsPerHost = _maxClusterVmsPerHost.get();
+        return report;
+    }
+
+    private static Boolean getQuietly(final Future<Boolean> result) {
+        try {
+            return result.get();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // blocked count and milliseconds summed over the live threads
+    private static long[] getBlocked(final ThreadMXBean threads) {
+        final long[] blocked = new long[2];
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null) {
+                blocked[0] += info.getBlockedCount();
+                blocked[1] += Math.max(0, info.getBlockedTime());
+            }
+        }
+        return blocked;
+    }
+
+    private boolean runLifecycle(final int index) {
+        CallContext.register(_user, _account);
+        Long clusterId = null;
+        try {
+            final ContainerCluster cluster = time("create", new Callable<ContainerCluster>() {
+                @Override
+                public ContainerCluster call() throws Exception {
+                    return _manager.createContainerCluster("sim-" + index, "sim-" + index, _zone.getId(), _serviceOffering.getId(), _account,
+                            null, null, (long)_config.nodesPerCluster, null, null, null, null);
+                }
+            });
+            clusterId = cluster.getId();
+            final long id = clusterId;
+            time("start", new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return _manager.startContainerCluster(id, true);
+                }
+            });
+            time("stop", new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return _manager.stopContainerCluster(id);
+                }
+            });
+            time("restart", new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return _manager.startContainerCluster(id, false);
+                }
+            });
+            time("delete", new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return _manager.deleteContainerCluster(id);
+                }
+            });
+            clusterId = null;
+            return true;
+        } catch (Exception e) {
+            return false;
+        } finally {
+            if (clusterId != null) {
+                cleanUp(clusterId);
+            }
+            CallContext.unregister();
+        }
+    }
+
+    // deletes what is left of a cluster whose lifecycle failed, retrying as a failed delete can be retried
+    private void cleanUp(final long clusterId) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            try {
+                if (_daos.get(ContainerClusterVO.class, clusterId).getRemoved() != null || _manager.deleteContainerCluster(clusterId)) {
+                    return;
+                }
+            } catch (Exception e) {
+                // retry
+            }
+        }
+    }
+
+    // times the operation, counting it and what it failed with as failed if it throws or returns false
+    private <T> T time(final String operation, final Callable<T> call) throws Exception {
+        final long start = System.currentTimeMillis();
+        try {
+            final T result = call.call();
+            if (Boolean.FALSE.equals(result)) {
+                throw new CloudRuntimeException(operation + " returned false");
+            }
+            List<Long> latencies = _latencies.get(operation);
+            if (latencies == null) {
+                _latencies.putIfAbsent(operation, Collections.synchronizedList(new ArrayList<Long>()));
+                latencies = _latencies.get(operation);
+            }
+            latencies.add(System.currentTimeMillis() - start);
+            return result;
+        } catch (Exception e) {
+            count(_failures, operation);
+            Throwable cause = e;
+            while (cause.getCause() != null && cause.getCause() != cause) {
+                cause = cause.getCause();
+            }
+            count(_failures, operation + ": " + cause.getClass().getSimpleName() + (cause.getMessage() == null ? ""
+                    : " " + cause.getMessage().replaceAll("[0-9]+", "N")));
+            throw e;
+        }
+    }
+
+    private static void count(final Map<String, AtomicLong> counts, final String key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            counts.putIfAbsent(key, new AtomicLong());
+            count = counts.get(key);
+        }
+        count.incrementAndGet();
+    }
+
+    // sleeps for the latency, then fails at the given rate
+    private static void simulate(final long latencyMs, final double failureRate, final String what) {
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CloudRuntimeException("Interrupted while simulating " + what, e);
+            }
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new CloudRuntimeException("Simulated failure to " + what);
+        }
+    }
+
+    private void populate() throws Exception {
+        _settings.put(CcsConfig.ContainerClusterTemplateName.key(), TEMPLATE_NAME);
+        _settings.put(CcsConfig.ContainerClusterMasterCloudConfig.key(), "conf/k8s-master.yml");
+        _settings.put(CcsConfig.ContainerClusterNodeCloudConfig.key(), "conf/k8s-node.yml");
+        _settings.put(CcsConfig.ContainerClusterNetworkOffering.key(), NETWORK_OFFERING_NAME);
+        _settings.put(CcsConfig.ContainerClusterProvisioningWorkers.key(), String.valueOf(_config.provisioningWorkers));
+        _settings.put(CcsConfig.ContainerClusterPlacementStrategy.key(), _config.placement);
+        _settings.put("ssh.publickey", "ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAABAQ simulator");
+
+        _account = new AccountVO("simulator", 1L, null, Account.ACCOUNT_TYPE_NORMAL, "simulator-account");
+        InMemoryDaoFactory.setField(_account, "id", 2L);
+        _daos.insert(_account);
+        _user = new UserVO(2L);
+
+        _zone = _daos.insert(new DataCenterVO(1L, "sim-zone", null, "8.8.8.8", null, "8.8.8.8", null, "10.1.0.0/16", null, null,
+                DataCenter.NetworkType.Advanced, null, null));
+        _serviceOffering = _daos.insert(new ServiceOfferingVO("sim-offering", 2, 2048, 1000, null, null, false, "sim-offering",
+                Storage.ProvisioningType.THIN, false, false, null, false, VirtualMachine.Type.User, false));
+
+        final VMTemplateVO template = new VMTemplateVO();
+        InMemoryDaoFactory.setField(template, "name", TEMPLATE_NAME);
+        template.setHypervisorType(Hypervisor.HypervisorType.Simulator);
+        _daos.insert(template);
+        _daos.insert(new VMTemplateZoneVO(_zone.getId(), template.getId(), new Date()));
+
+        final NetworkOfferingVO networkOffering = new NetworkOfferingVO(NETWORK_OFFERING_NAME, Network.GuestType.Isolated);
+        InMemoryDaoFactory.setField(networkOffering, "uniqueName", NETWORK_OFFERING_NAME);
+        InMemoryDaoFactory.setField(networkOffering, "egressdefaultpolicy", true);
+        networkOffering.setState(NetworkOffering.State.Enabled);
+        _daos.insert(networkOffering);
+        _daos.insert(new PhysicalNetworkVO(PHYSICAL_NETWORK_ID, _zone.getId(), null, null, null, PhysicalNetwork.BroadcastDomainRange.ZONE, "sim-physical-network"));
+
+        final ClusterVO cluster = _daos.insert(new ClusterVO(1L));
+        _daos.insert(new ClusterDetailsVO(cluster.getId(), ContainerClusterCapacitySnapshot.CPU_OVERCOMMIT_RATIO, "1"));
+        _daos.insert(new ClusterDetailsVO(cluster.getId(), ContainerClusterCapacitySnapshot.MEMORY_OVERCOMMIT_RATIO, "1"));
+        for (int i = 1; i <= _config.hosts; i++) {
+            final HostVO host = new HostVO("sim-host-" + i);
+            host.setUuid("sim-host-" + i);
+            host.setClusterId(cluster.getId());
+            host.setHypervisorType(Hypervisor.HypervisorType.Simulator);
+            host.setResourceState(ResourceState.Enabled);
+            InMemoryDaoFactory.setField(host, "status", Status.Up);
+            InMemoryDaoFactory.setField(host, "id", (long)i);
+            _daos.insert(host);
+            _hostCapacities.put(host.getId(), new CapacityVO[] {
+                _daos.insert(new CapacityVO(host.getId(), _zone.getId(), null, cluster.getId(), 0, _config.hostCpuMhz, Capacity.CAPACITY_TYPE_CPU)),
+                _daos.insert(new CapacityVO(host.getId(), _zone.getId(), null, cluster.getId(), 0, _config.hostRamMb * 1024L * 1024L, Capacity.CAPACITY_TYPE_MEMORY))});
+        }
+    }
+
+    private void wire(final Object component) throws IllegalAccessException {
+        for (Class<?> c = component.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Inject.class)) {
+                    field.setAccessible(true);
+                    field.set(component, lookup(field.getType()));
+                }
+            }
+        }
+    }
+
+    private Object lookup(final Class<?> type) {
+        final Object component = _components.get(type);
+        if (component != null) {
+            return component;
+        }
+        if (GenericDao.class.isAssignableFrom(type)) {
+            return _daos.create(type);
+        }
+        if (!type.isInterface()) {
+            throw new IllegalStateException("Nothing simulates " + type.getName());
+        }
+        Object service = _services.get(type);
+        if (service == null) {
+            service = Proxy.newProxyInstance(ContainerClusterSimulator.class.getClassLoader(), new Class<?>[] {type}, new ServiceHandler(type.getSimpleName()));
+            _services.put(type, service);
+        }
+        return service;
+    }
+
+    private String nextGuestIp() {
+        final long n = _guestIps.incrementAndGet();
+        return "10.1." + (n / 250 % 250) + "." + (n % 250 + 2);
+    }
+
+    private String nextPublicIp() {
+        final long n = _publicIps.incrementAndGet();
+        return "100.64." + (n / 250 % 250) + "." + (n % 250 + 2);
+    }
+
+    /**
+     * Stands in for the CloudStack services the manager and its components call, all of them answered by method name.
+     * Methods not simulated return the default value of their return type and are counted.
+     */
+    private class ServiceHandler implements InvocationHandler {
+        private final String _name;
+
+        ServiceHandler(String name) {
+            _name = name;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                }
+                return "hashCode".equals(name) ? System.identityHashCode(proxy) : "Simulated" + _name;
+            }
+
+            if ("createAdvancedVirtualMachine".equals(name)) {
+                simulate(_config.deployVmMs, _config.vmFailureRate, "deploy VM " + args[5]);
+                return deployVm((ServiceOffering)args[1], (VirtualMachineTemplate)args[2], (Account)args[4], (String)args[5], (String)args[12],
+                        (Network.IpAddresses)args[15]);
+            } else if ("startVirtualMachine".equals(name) && args[0] instanceof StartVMCmd) {
+                return startVm(((StartVMCmd)args[0]).getId());
+            } else if ("stopVirtualMachine".equals(name)) {
+                return releaseHost(transitVm((Long)args[0], _config.stopVmMs, "stop", VirtualMachine.State.Stopped));
+            } else if ("destroyVm".equals(name) || "expungeVm".equals(name)) {
+                final UserVmVO vm = releaseHost(transitVm((Long)args[0], _config.destroyVmMs, "destroy", VirtualMachine.State.Expunging));
+                _daos.delete(VMInstanceVO.class, "id", vm.getId());
+                return vm;
+            } else if ("createGuestNetwork".equals(name)) {
+                return createNetwork((Long)args[0], (String)args[1], (String)args[2], (Account)args[8], (PhysicalNetwork)args[10], (Long)args[11]);
+            } else if ("startNetwork".equals(name)) {
+                simulate(_config.startNetworkMs, _config.networkFailureRate, "start network " + args[0]);
+                return true;
+            } else if ("destroyNetwork".equals(name)) {
+                simulate(_config.destroyNetworkMs, _config.networkFailureRate, "destroy network " + args[0]);
+                for (IPAddressVO ip : _daos.list(IPAddressVO.class)) {
+                    if (args[0].equals(ip.getAssociatedWithNetworkId())) {
+                        _daos.delete(FirewallRuleVO.class, "sourceIpAddressId", ip.getId());
+                    }
+                }
+                _daos.delete(IPAddressVO.class, "associatedWithNetworkId", args[0]);
+                _daos.delete(NetworkVO.class, "id", args[0]);
+                return true;
+            } else if ("findPhysicalNetworkId".equals(name)) {
+                return PHYSICAL_NETWORK_ID;
+            } else if ("getNicInNetwork".equals(name)) {
+                return getNic(_daos.get(UserVmVO.class, args[0]));
+            } else if ("acquireGuestIpAddress".equals(name)) {
+                return nextGuestIp();
+            } else if ("issueCertificate".equals(name)) {
+                simulate(_config.issueCertificateMs, 0, "issue certificate");
+                return _certificate;
+            } else if ("applyIngressFwRules".equals(name) || "applyPortForwardingRules".equals(name)) {
+                simulate(_config.applyRulesMs, _config.networkFailureRate, "apply rules on public IP " + args[0]);
+                return true;
+            } else if ("detectRulesConflict".equals(name) || "checkAccess".equals(name)) {
+                return null;
+            } else if ("listAllHostsInOneZoneByType".equals(name)) {
+                return _daos.list(HostVO.class);
+            } else if ("getAccount".equals(name) || "getSystemAccount".equals(name) || "getActiveAccountById".equals(name)) {
+                return _account;
+            } else if ("getActiveUser".equals(name) || "getSystemUser".equals(name) || "getUserIncludingRemoved".equals(name)) {
+                return _user;
+            }
+
+            count(_serviceCalls, _name + "." + name);
+            return InMemoryDaoFactory.defaultValue(method.getReturnType());
+        }
+    }
+
+    private UserVmVO deployVm(final ServiceOffering offering, final VirtualMachineTemplate template, final Account owner, final String hostName,
+                              final String userData, final Network.IpAddresses addresses) {
+        final long id = _daos.nextId(VMInstanceVO.class);
+        final UserVmVO vm = new UserVmVO(id, "i-" + owner.getId() + "-" + id + "-VM", hostName, template.getId(), Hypervisor.HypervisorType.Simulator,
+                template.getGuestOSId(), false, false, owner.getDomainId(), owner.getId(), _user.getId(), offering.getId(), userData, hostName, null);
+        vm.setState(VirtualMachine.State.Stopped);
+        InMemoryDaoFactory.setField(vm, "dataCenterId", _zone.getId());
+        vm.setPrivateIpAddress(addresses != null && addresses.getIp4Address() != null ? addresses.getIp4Address() : nextGuestIp());
+        return _daos.insert(vm);
+    }
+
+    private UserVmVO transitVm(final long vmId, final long latencyMs, final String operation, final VirtualMachine.State state) {
+        final UserVmVO vm = _daos.get(UserVmVO.class, vmId);
+        if (vm == null) {
+            throw new CloudRuntimeException("Unable to find VM " + vmId + " to " + operation);
+        }
+        simulate(latencyMs, _config.vmFailureRate, operation + " VM " + vm.getHostName());
+        vm.setState(state);
+        return vm;
+    }
+
+    // A VM is started on its last host, the way the deployment planner tries it first, and uses up capacity of the
+    // host. The allocator is not simulated, so VMs without a last host, or whose last host has no room left, are not
+    // placed anywhere.
+    private UserVmVO startVm(final long vmId) {
+        final UserVmVO starting = _daos.get(UserVmVO.class, vmId);
+        final Long hostId = starting == null ? null : starting.getLastHostId();
+        final boolean placed = hostId != null && starting.getHostId() == null
+                && allocate(hostId, _daos.get(ServiceOfferingVO.class, starting.getServiceOfferingId()), 1);
+        final UserVmVO vm;
+        try {
+            vm = transitVm(vmId, _config.startVmMs, "start", VirtualMachine.State.Running);
+        } catch (RuntimeException e) {
+            if (placed) {
+                releaseHost(starting, hostId);
+                starting.setLastHostId(hostId);
+                transited(starting, VirtualMachine.State.Starting, VirtualMachine.State.Stopped);
+            }
+            throw e;
+        }
+        if (placed) {
+            vm.setHostId(hostId);
+            countClusterVmsOnHost(vm, hostId);
+            transited(vm, VirtualMachine.State.Starting, VirtualMachine.State.Running);
+        }
+        return vm;
+    }
+
+    private UserVmVO releaseHost(final UserVmVO vm) {
+        if (vm.getHostId() != null) {
+            releaseHost(vm, vm.getHostId());
+            vm.setLastHostId(vm.getHostId());
+            vm.setHostId(null);
+            transited(vm, VirtualMachine.State.Running, vm.getState());
+        }
+        return vm;
+    }
+
+    // tells the listeners of the VM state machine of the VM taking up or giving back capacity on its host
+    private void transited(final UserVmVO vm, final VirtualMachine.State from, final VirtualMachine.State to) {
+        _capacityIndex.postStateTransitionEvent(new StateMachine2.Transition<VirtualMachine.State, VirtualMachine.Event>(from,
+                VirtualMachine.Event.OperationSucceeded, to, null), vm, true, null);
+    }
+
+    private void releaseHost(final UserVmVO vm, final long hostId) {
+        allocate(hostId, _daos.get(ServiceOfferingVO.class, vm.getServiceOfferingId()), -1);
+    }
+
+    private boolean allocate(final long hostId, final ServiceOfferingVO offering, final int vms) {
+        final CapacityVO[] capacities = _hostCapacities.get(hostId);
+        final long cpu = (long)offering.getCpu() * offering.getSpeed() * vms;
+        final long ram = offering.getRamSize() * 1024L * 1024L * vms;
+        synchronized (capacities) {
+            if (vms > 0 && (capacities[0].getUsedCapacity() + cpu > capacities[0].getTotalCapacity()
+                    || capacities[1].getUsedCapacity() + ram > capacities[1].getTotalCapacity())) {
+                return false;
+            }
+            capacities[0].setUsedCapacity(capacities[0].getUsedCapacity() + cpu);
+            capacities[1].setUsedCapacity(capacities[1].getUsedCapacity() + ram);
+            return true;
+        }
+    }
+
+    private void countClusterVmsOnHost(final UserVmVO vm, final long hostId) {
+        Long clusterId = null;
+        for (ContainerClusterVmMapVO vmMap : _daos.list(ContainerClusterVmMapVO.class)) {
+            if (vmMap.getVmId() == vm.getId()) {
+                clusterId = vmMap.getClusterId();
+            }
+        }
+        if (clusterId == null) {
+            return;
+        }
+        int onHost = 0;
+        for (ContainerClusterVmMapVO vmMap : _daos.list(ContainerClusterVmMapVO.class)) {
+            final UserVmVO clusterVm = vmMap.getClusterId() == clusterId ? _daos.get(UserVmVO.class, vmMap.getVmId()) : null;
+            if (clusterVm != null && Long.valueOf(hostId).equals(clusterVm.getHostId())) {
+                onHost++;
+            }
+        }
+        int max = _maxClusterVmsPerHost.get();
+        while (onHost > max && !_maxClusterVmsPerHost.compareAndSet(max, onHost)) {
+            max = _maxClusterVmsPerHost.get();
+        }
+    }
+
+    private NetworkVO createNetwork(final long networkOfferingId, final String name, final String displayText, final Account owner,
+                                    final PhysicalNetwork physicalNetwork, final long zoneId) {
+        final long id = _daos.nextId(NetworkVO.class);
+        final NetworkVO network = _daos.insert(new NetworkVO(id, Networks.TrafficType.Guest, Networks.Mode.Dhcp, Networks.BroadcastDomainType.Vlan,
+                networkOfferingId, owner.getDomainId(), owner.getId(), id, name, displayText, null, Network.GuestType.Isolated, zoneId,
+                physicalNetwork == null ? null : physicalNetwork.getId(), ControlledEntity.ACLType.Account, false, null, false));
+        final IPAddressVO sourceNatIp = new IPAddressVO(new Ip(nextPublicIp()), zoneId, 0L, 1L, true);
+        sourceNatIp.setAssociatedWithNetworkId(id);
+        _daos.insert(sourceNatIp);
+        return network;
+    }
+
+    private Nic getNic(final UserVmVO vm) {
+        return (Nic)Proxy.newProxyInstance(ContainerClusterSimulator.class.getClassLoader(), new Class<?>[] {Nic.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if ("getIPv4Address".equals(name) || "getIp4Address".equals(name)) {
+                    return vm.getPrivateIpAddress();
+                } else if ("getInstanceId".equals(name)) {
+                    return vm.getId();
+                }
+                return InMemoryDaoFactory.defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private class SimulatedManager extends ContainerClusterManagerImpl {
+        @Override
+        KubernetesClient getKubernetesClient(final ContainerCluster containerCluster) {
+            return _apiServer.getClient(containerCluster.getId());
+        }
+    }
+
+    // the API server of a cluster becomes reachable after the configured latency, or never at the failure rate
+    private class SimulatedReadinessProber extends ContainerClusterReadinessProber {
+        @Override
+        public CompletableFuture<Boolean> probe(final InetSocketAddress endpoint, final long timeoutMillis) {
+            final CompletableFuture<Boolean> reachable = new CompletableFuture<Boolean>();
+            final boolean fails = _config.apiServerFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < _config.apiServerFailureRate;
+            _endpointTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reachable.complete(!fails);
+                }
+            }, _config.apiServerMs, TimeUnit.MILLISECONDS);
+            return reachable;
+        }
+    }
+
+    // fetching the kube config deploys the add-ons of the cluster on the simulated API server
+    private class SimulatedSshSessionPool extends ContainerClusterSshSessionPool {
+        @Override
+        public Pair<Boolean, String> execute(final long clusterId, final String host, final int port, final String user,
+                                             final String command, final int timeoutMs) throws Exception {
+            try {
+                simulate(_config.sshMs, _config.sshFailureRate, "run " + command + " on " + host + ":" + port);
+            } catch (CloudRuntimeException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            _apiServer.deploy(clusterId, _config.addOnsMs);
+            return new Pair<Boolean, String>(true, "apiVersion: v1\nkind: Config\nclusters:\n- cluster:\n    server: https://" + host + ":6443\n  name: kubernetes\n");
+        }
+
+        @Override
+        public void closeConnections(final long clusterId) {
+            _apiServer.remove(clusterId);
+        }
+    }
+
+    private class SimulatedKeyPairPool extends ContainerClusterKeyPairPool {
+        @Override
+        public KeyPair take() {
+            return _keyPair;
+        }
+    }
+}
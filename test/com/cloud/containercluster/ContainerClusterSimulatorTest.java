@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContainerClusterSimulatorTest {
+
+    private static ContainerClusterSimulator.Report simulate(String... settings) throws Exception {
+        ContainerClusterSimulator simulator = new ContainerClusterSimulator(ContainerClusterSimulator.Config.parse(settings));
+        try {
+            return simulator.run();
+        } finally {
+            simulator.close();
+        }
+    }
+
+    private static ContainerClusterSimulator.Latencies getOperation(ContainerClusterSimulator.Report report, String operation) {
+        for (ContainerClusterSimulator.Latencies latencies : report.operations) {
+            if (latencies.operation.equals(operation)) {
+                return latencies;
+            }
+        }
+        throw new AssertionError("No latencies reported for " + operation);
+    }
+
+    @Test
+    public void lifecyclesSucceedAndCleanUp() throws Exception {
+        ContainerClusterSimulator.Report report = simulate("clusters=20", "concurrency=10", "deployVmMs=0", "startVmMs=0", "stopVmMs=0",
+                "destroyVmMs=0", "apiServerMs=0", "addOnsMs=0");
+
+        Assert.assertEquals(20, report.lifecycles);
+        Assert.assertEquals(20, report.succeeded);
+        for (String operation : new String[] {"create", "start", "stop", "restart", "delete"}) {
+            Assert.assertEquals(operation, 20, getOperation(report, operation).count);
+            Assert.assertEquals(operation, 0, getOperation(report, operation).failed);
+        }
+        Assert.assertTrue(report.failures.isEmpty());
+        Assert.assertFalse(report.phases.isEmpty());
+        Assert.assertTrue(report.dbCalls > 0);
+        // the zone is locked to hold the capacity of each cluster as it is created, and each cluster is locked to be provisioned
+        Assert.assertEquals(40, report.globalLocksAcquired);
+        // the clusters are spread over the hosts
+        Assert.assertEquals(1, report.maxClusterVmsPerHost);
+        Assert.assertEquals(0, report.leakedVms);
+        Assert.assertEquals(0, report.leakedNetworks);
+    }
+
+    @Test
+    public void bestFitPacksClustersOntoOneHost() throws Exception {
+        ContainerClusterSimulator.Report report = simulate("clusters=4", "concurrency=2", "hosts=3", "placement=BestFit", "apiServerMs=0", "addOnsMs=0");
+
+        Assert.assertEquals(4, report.succeeded);
+        Assert.assertEquals(3, report.maxClusterVmsPerHost);
+    }
+
+    @Test
+    public void failuresAreReported() throws Exception {
+        ContainerClusterSimulator.Report report = simulate("clusters=10", "concurrency=5", "apiServerMs=0", "addOnsMs=0", "apiServerFailureRate=1");
+
+        Assert.assertEquals(0, report.succeeded);
+        Assert.assertEquals(10, getOperation(report, "start").failed);
+        Assert.assertEquals(0, getOperation(report, "stop").count);
+        Assert.assertFalse(report.failures.isEmpty());
+        // the clusters that failed to start are deleted with all their resources
+        Assert.assertEquals(0, report.leakedVms);
+        Assert.assertEquals(0, report.leakedNetworks);
+    }
+}
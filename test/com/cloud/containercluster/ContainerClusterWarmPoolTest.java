@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import com.cloud.containercluster.dao.ContainerClusterVmMapDao;
+import com.cloud.containercluster.dao.ContainerClusterWarmPoolVmDao;
+import com.cloud.dc.DataCenter;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.User;
+import com.cloud.uservm.UserVm;
+import com.cloud.vm.UserVmManager;
+import com.cloud.vm.UserVmService;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.dao.UserVmDao;
+
+public class ContainerClusterWarmPoolTest {
+
+    private ContainerClusterWarmPoolVmDao warmPoolVmDao;
+    private ContainerClusterVmMapDao vmMapDao;
+    private UserVmService userVmService;
+    private UserVmDao vmDao;
+    private ContainerClusterWarmPool pool;
+
+    private final ContainerClusterVO containerCluster = new ContainerClusterVO();
+    private final DataCenter zone = mock(DataCenter.class);
+    private final ServiceOffering offering = mock(ServiceOffering.class);
+    private final Account owner = mock(Account.class);
+    private final List<Long> networkIds = Arrays.asList(5L);
+
+    private UserVmVO vm(long id) {
+        UserVmVO vm = mock(UserVmVO.class);
+        when(vm.getId()).thenReturn(id);
+        when(vm.getUuid()).thenReturn("vm-" + id);
+        when(vm.getState()).thenReturn(VirtualMachine.State.Stopped);
+        when(vmDao.findById(id)).thenReturn(vm);
+        return vm;
+    }
+
+    private static ContainerClusterWarmPoolVmVO pooled(long id, long vmId, Date claimed) {
+        ContainerClusterWarmPoolVmVO pooled = spy(new ContainerClusterWarmPoolVmVO(vmId, 1L, 2L, 3L));
+        doReturn(id).when(pooled).getId();
+        pooled.setClaimed(claimed);
+        return pooled;
+    }
+
+    @Before
+    public void setUp() {
+        warmPoolVmDao = mock(ContainerClusterWarmPoolVmDao.class);
+        vmMapDao = mock(ContainerClusterVmMapDao.class);
+        userVmService = mock(UserVmService.class);
+        vmDao = mock(UserVmDao.class);
+        AccountManager accountMgr = mock(AccountManager.class);
+        when(accountMgr.getSystemUser()).thenReturn(mock(User.class));
+        when(accountMgr.getSystemAccount()).thenReturn(mock(Account.class));
+        when(zone.getId()).thenReturn(1L);
+        when(offering.getId()).thenReturn(3L);
+
+        pool = spy(new ContainerClusterWarmPool());
+        pool._warmPoolVmDao = warmPoolVmDao;
+        pool._containerClusterVmMapDao = vmMapDao;
+        pool._userVmService = userVmService;
+        pool._userVmManager = mock(UserVmManager.class);
+        pool._vmDao = vmDao;
+        pool._accountMgr = accountMgr;
+    }
+
+    @Test
+    public void claimedRowIsKeptUntilTheVmIsSetUp() throws Exception {
+        final ContainerClusterWarmPoolVmVO pooled = pooled(10L, 100L, null);
+        final UserVmVO vm = vm(100L);
+        when(warmPoolVmDao.lockOneByZoneTemplateAndOffering(1L, 2L, 3L)).thenReturn(pooled);
+        doReturn(vm).when(pool).moveToOwner(vm, owner, networkIds);
+
+        Assert.assertSame(vm, pool.claim(containerCluster, zone, 2L, offering, owner, networkIds, "node-1", "data"));
+
+        ArgumentCaptor<ContainerClusterWarmPoolVmVO> updated = ArgumentCaptor.forClass(ContainerClusterWarmPoolVmVO.class);
+        InOrder order = inOrder(warmPoolVmDao, pool);
+        order.verify(warmPoolVmDao).update(eq(10L), updated.capture());
+        order.verify(pool).moveToOwner(vm, owner, networkIds);
+        order.verify(warmPoolVmDao).expunge(10L);
+        Assert.assertNotNull(updated.getValue().getClaimed());
+        verify(userVmService, never()).destroyVm(anyLong(), any(Boolean.class));
+    }
+
+    @Test
+    public void vmFailingSetUpIsDestroyedAndItsRowDropped() throws Exception {
+        final ContainerClusterWarmPoolVmVO pooled = pooled(10L, 100L, null);
+        final UserVmVO vm = vm(100L);
+        when(warmPoolVmDao.lockOneByZoneTemplateAndOffering(1L, 2L, 3L)).thenReturn(pooled);
+        doThrow(new RuntimeException("no such network")).when(pool).moveToOwner(vm, owner, networkIds);
+
+        Assert.assertNull(pool.claim(containerCluster, zone, 2L, offering, owner, networkIds, "node-1", "data"));
+
+        verify(userVmService).destroyVm(100L, true);
+        verify(warmPoolVmDao).expunge(10L);
+    }
+
+    @Test
+    public void noPooledVmIsClaimedWhenThePoolIsEmpty() throws Exception {
+        Assert.assertNull(pool.claim(containerCluster, zone, 2L, offering, owner, networkIds, "node-1", "data"));
+
+        verify(pool, never()).moveToOwner(any(UserVm.class), any(Account.class), anyListOf(Long.class));
+        verify(warmPoolVmDao, never()).expunge(anyLong());
+    }
+
+    @Test
+    public void staleClaimsAreReleased() throws Exception {
+        final Date claimed = new Date(System.currentTimeMillis() - 2 * ContainerClusterWarmPool.CLAIM_TIMEOUT_SECONDS * 1000);
+        final ContainerClusterWarmPoolVmVO adopted = pooled(10L, 100L, claimed);
+        final ContainerClusterWarmPoolVmVO stranded = pooled(11L, 101L, claimed);
+        final ContainerClusterWarmPoolVmVO gone = pooled(12L, 102L, claimed);
+        vm(100L);
+        vm(101L);
+        when(vmMapDao.findByVmId(100L)).thenReturn(new ContainerClusterVmMapVO(1L, 100L));
+        when(warmPoolVmDao.listClaimedBefore(any(Date.class))).thenReturn(Arrays.asList(adopted, stranded, gone));
+
+        pool.releaseStaleClaims();
+
+        ArgumentCaptor<Date> before = ArgumentCaptor.forClass(Date.class);
+        verify(warmPoolVmDao).listClaimedBefore(before.capture());
+        Assert.assertTrue(before.getValue().getTime() <= System.currentTimeMillis() - ContainerClusterWarmPool.CLAIM_TIMEOUT_SECONDS * 1000);
+        verify(userVmService).destroyVm(101L, true);
+        verify(userVmService, never()).destroyVm(100L, true);
+        verify(userVmService, never()).destroyVm(102L, true);
+        verify(warmPoolVmDao).expunge(10L);
+        verify(warmPoolVmDao).expunge(11L);
+        verify(warmPoolVmDao).expunge(12L);
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.Entity;
+
+import org.mockito.Mockito;
+
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+
+/**
+ * InMemoryDaoFactory backs DAO interfaces with maps, so that the container cluster manager can run without a
+ * database. Entities are kept per table, a table being the topmost entity class of a hierarchy, so that UserVmDao and
+ * VMInstanceDao see the same VMs. Besides the GenericDao operations, finders named after the properties they match
+ * (listByClusterId, findByClusterIdAndStep) are answered by comparing the arguments with the entity getters, and
+ * finders named otherwise can be mapped to properties with query(). Calls that cannot be answered return the default
+ * value of their return type and are counted as unsimulated.
+ *
+ * Every call is counted, and can be slowed down by a fixed latency to model a database round trip.
+ */
+class InMemoryDaoFactory {
+
+    private static final Pattern FINDER = Pattern.compile("^(find|list|remove|count)(?:All)?By(.+?)(IncludingRemoved)?$");
+
+    /**
+     * Answers a DAO method that is not a plain property match.
+     */
+    interface Answer {
+        Object answer(Object[] args);
+    }
+
+    private static class Table {
+        final Class<?> entityClass;
+        final Map<Object, Object> rows = new ConcurrentHashMap<Object, Object>();
+        final AtomicLong sequence = new AtomicLong();
+        final Field idField;
+        final Field removedField;
+
+        Table(Class<?> entityClass) {
+            this.entityClass = entityClass;
+            idField = findField(entityClass, "id");
+            removedField = findField(entityClass, "removed");
+        }
+    }
+
+    private final Map<Class<?>, Table> _tables = new ConcurrentHashMap<Class<?>, Table>();
+    private final Map<Class<?>, Object> _daos = new ConcurrentHashMap<Class<?>, Object>();
+    private final Map<String, String[]> _queries = new HashMap<String, String[]>();
+    private final Map<String, Answer> _answers = new HashMap<String, Answer>();
+    private final Map<String, AtomicLong> _calls = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, AtomicLong> _unsimulatedCalls = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, Method> _getters = new ConcurrentHashMap<String, Method>();
+    private volatile long _latencyNanos;
+
+    /**
+     * Answers the finder of that name by matching its arguments, in order, with the given entity properties.
+     */
+    InMemoryDaoFactory query(final String method, final String... properties) {
+        _queries.put(method, properties);
+        return this;
+    }
+
+    /**
+     * Answers the DAO method of that name, whichever DAO it is called on.
+     */
+    InMemoryDaoFactory answer(final String method, final Answer answer) {
+        _answers.put(method, answer);
+        return this;
+    }
+
+    void setLatency(final long latency, final TimeUnit unit) {
+        _latencyNanos = unit.toNanos(latency);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T create(final Class<T> daoInterface) {
+        Object dao = _daos.get(daoInterface);
+        if (dao == null) {
+            final Class<?> entityClass = getEntityClass(daoInterface);
+            if (entityClass == null) {
+                throw new IllegalArgumentException(daoInterface.getName() + " is not a GenericDao");
+            }
+            dao = Proxy.newProxyInstance(InMemoryDaoFactory.class.getClassLoader(), new Class<?>[] {daoInterface},
+                    new DaoHandler(daoInterface.getSimpleName(), entityClass));
+            _daos.put(daoInterface, dao);
+        }
+        return (T)dao;
+    }
+
+    /**
+     * Stores the entity as persist() would, assigning it the next id if it has none yet.
+     */
+    <E> E insert(final E entity) {
+        final Table table = getTable(entity.getClass());
+        Object id = getFieldValue(table.idField, entity);
+        if (id == null || (id instanceof Number && ((Number)id).longValue() == 0)) {
+            id = table.sequence.incrementAndGet();
+            setFieldValue(table.idField, entity, id);
+        } else if (id instanceof Number) {
+            // keep the ids assigned later clear of the ones given
+            long last = table.sequence.get();
+            while (last < ((Number)id).longValue() && !table.sequence.compareAndSet(last, ((Number)id).longValue())) {
+                last = table.sequence.get();
+            }
+        }
+        table.rows.put(id, entity);
+        return entity;
+    }
+
+    /**
+     * Returns the entity with the id, removed or not, without counting it as a DAO call.
+     */
+    @SuppressWarnings("unchecked")
+    <E> E get(final Class<E> entityClass, final Object id) {
+        final Object row = getTable(entityClass).rows.get(id);
+        return entityClass.isInstance(row) ? (E)row : null;
+    }
+
+    long nextId(final Class<?> entityClass) {
+        return getTable(entityClass).sequence.incrementAndGet();
+    }
+
+    @SuppressWarnings("unchecked")
+    <E> List<E> list(final Class<E> entityClass) {
+        final List<E> entities = new ArrayList<E>();
+        for (Object row : getTable(entityClass).rows.values()) {
+            if (entityClass.isInstance(row)) {
+                entities.add((E)row);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Drops the entities whose property has the value, as an expunge would.
+     */
+    int delete(final Class<?> entityClass, final String property, final Object value) {
+        int deleted = 0;
+        // by key, as entities such as NetworkVO define equals() on other fields than the id
+        for (Map.Entry<Object, Object> row : getTable(entityClass).rows.entrySet()) {
+            if (entityClass.isInstance(row.getValue()) && matches(getProperty(row.getValue(), property), value)
+                    && getTable(entityClass).rows.remove(row.getKey(), row.getValue())) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    int size(final Class<?> entityClass) {
+        return list(entityClass).size();
+    }
+
+    long getTotalCalls() {
+        long total = 0;
+        for (AtomicLong count : _calls.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Number of calls per "Dao.method", most called first.
+     */
+    Map<String, Long> getCallCounts() {
+        return sortByCount(_calls);
+    }
+
+    Map<String, Long> getUnsimulatedCalls() {
+        return sortByCount(_unsimulatedCalls);
+    }
+
+    void resetCounts() {
+        _calls.clear();
+        _unsimulatedCalls.clear();
+    }
+
+    private static Map<String, Long> sortByCount(final Map<String, AtomicLong> counts) {
+        final List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(Map.Entry<String, AtomicLong> e1, Map.Entry<String, AtomicLong> e2) {
+                final int byCount = Long.compare(e2.getValue().get(), e1.getValue().get());
+                return byCount != 0 ? byCount : e1.getKey().compareTo(e2.getKey());
+            }
+        });
+        final Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue().get());
+        }
+        return sorted;
+    }
+
+    private static void count(final Map<String, AtomicLong> counts, final String key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            counts.putIfAbsent(key, new AtomicLong());
+            count = counts.get(key);
+        }
+        count.incrementAndGet();
+    }
+
+    private Table getTable(final Class<?> entityClass) {
+        Class<?> root = entityClass;
+        while (root.getSuperclass() != null && root.getSuperclass().isAnnotationPresent(Entity.class)) {
+            root = root.getSuperclass();
+        }
+        Table table = _tables.get(root);
+        if (table == null) {
+            synchronized (_tables) {
+                table = _tables.get(root);
+                if (table == null) {
+                    table = new Table(root);
+                    _tables.put(root, table);
+                }
+            }
+        }
+        return table;
+    }
+
+    private class DaoHandler implements InvocationHandler {
+        private final String _name;
+        private final Class<?> _entityClass;
+        private final Table _table;
+
+        DaoHandler(String name, Class<?> entityClass) {
+            _name = name;
+            _entityClass = entityClass;
+            _table = getTable(entityClass);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                }
+                return "hashCode".equals(name) ? System.identityHashCode(proxy) : "InMemory" + _name;
+            }
+            count(_calls, _name + "." + name);
+            if (_latencyNanos > 0) {
+                LockSupport.parkNanos(_latencyNanos);
+            }
+            if (args == null) {
+                args = new Object[0];
+            }
+
+            final Answer answer = _answers.get(name);
+            if (answer != null) {
+                return answer.answer(args);
+            }
+
+            if ("persist".equals(name)) {
+                return insert(args[0]);
+            } else if (("findById".equals(name) || "lockRow".equals(name) || "acquireInLockTable".equals(name)) && args.length > 0) {
+                return find(args[0], false);
+            } else if ("findByIdIncludingRemoved".equals(name)) {
+                return find(args[0], true);
+            } else if ("update".equals(name) && args.length == 2) {
+                _table.rows.put(args[0], args[1]);
+                return true;
+            } else if ("remove".equals(name) && args.length == 1) {
+                return remove(_table.rows.get(args[0]));
+            } else if ("expunge".equals(name) && args.length == 1 && !(args[0] instanceof SearchCriteria)) {
+                return _table.rows.remove(args[0]) != null;
+            } else if ("releaseFromLockTable".equals(name)) {
+                return true;
+            } else if ("listAll".equals(name) && args.length == 0) {
+                return select(new String[0], args, false);
+            } else if ("listAllIncludingRemoved".equals(name) && args.length == 0) {
+                return select(new String[0], args, true);
+            } else if ("createSearchCriteria".equals(name)) {
+                return Mockito.mock(SearchCriteria.class);
+            } else if ("createSearchBuilder".equals(name)) {
+                return Mockito.mock(SearchBuilder.class);
+            } else if ("updateState".equals(name) && args.length == 5) {
+                return updateState(args[0], args[2], args[3]);
+            }
+
+            final String[] properties = _queries.get(name);
+            if (properties != null) {
+                return adapt(method, name.startsWith("remove"), select(properties, args, false));
+            }
+            final Matcher matcher = FINDER.matcher(name);
+            if (matcher.matches()) {
+                final String[] parts = matcher.group(2).split("And");
+                if (parts.length <= args.length && hasProperties(parts)) {
+                    final String[] derived = new String[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        derived[i] = Character.toLowerCase(parts[i].charAt(0)) + parts[i].substring(1);
+                    }
+                    return adapt(method, "remove".equals(matcher.group(1)), select(derived, args, matcher.group(3) != null));
+                }
+            }
+
+            count(_unsimulatedCalls, _name + "." + name);
+            return defaultValue(method.getReturnType());
+        }
+
+        private Object find(final Object id, final boolean includingRemoved) {
+            final Object row = _table.rows.get(id);
+            if (row == null || !_entityClass.isInstance(row) || (!includingRemoved && isRemoved(row))) {
+                return null;
+            }
+            return row;
+        }
+
+        private boolean remove(final Object row) {
+            if (row == null) {
+                return false;
+            }
+            if (_table.removedField != null) {
+                setFieldValue(_table.removedField, row, new Date());
+            } else {
+                _table.rows.remove(getFieldValue(_table.idField, row), row);
+            }
+            return true;
+        }
+
+        private boolean isRemoved(final Object row) {
+            return _table.removedField != null && getFieldValue(_table.removedField, row) != null;
+        }
+
+        private boolean hasProperties(final String[] parts) {
+            for (String part : parts) {
+                if (part.isEmpty() || getGetter(_entityClass, Character.toLowerCase(part.charAt(0)) + part.substring(1)) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private List<Object> select(final String[] properties, final Object[] args, final boolean includingRemoved) {
+            final List<Object> matches = new ArrayList<Object>();
+            for (Object row : _table.rows.values()) {
+                if (!_entityClass.isInstance(row) || (!includingRemoved && isRemoved(row))) {
+                    continue;
+                }
+                boolean match = true;
+                for (int i = 0; i < properties.length && match; i++) {
+                    match = matches(getProperty(row, properties[i]), args[i]);
+                }
+                if (match) {
+                    matches.add(row);
+                }
+            }
+            return matches;
+        }
+
+        private Object adapt(final Method method, final boolean remove, final List<Object> matches) {
+            if (remove) {
+                for (Object row : matches) {
+                    remove(row);
+                }
+            }
+            final Class<?> returnType = method.getReturnType();
+            if (List.class.isAssignableFrom(returnType)) {
+                return matches;
+            } else if (returnType == int.class || returnType == Integer.class) {
+                return matches.size();
+            } else if (returnType == long.class || returnType == Long.class) {
+                return (long)matches.size();
+            } else if (returnType == boolean.class || returnType == Boolean.class) {
+                return !matches.isEmpty();
+            } else if (returnType == void.class) {
+                return null;
+            }
+            return matches.isEmpty() ? null : matches.get(0);
+        }
+
+        // moves the entity to the next state if it still is in the current state, as the optimistic update would
+        private boolean updateState(final Object currentState, final Object nextState, final Object vo) throws Exception {
+            synchronized (vo) {
+                if (!matches(getProperty(vo, "state"), currentState)) {
+                    return false;
+                }
+                for (Method setter : vo.getClass().getMethods()) {
+                    if ("setState".equals(setter.getName()) && setter.getParameterTypes().length == 1
+                            && setter.getParameterTypes()[0].isInstance(nextState)) {
+                        setter.invoke(vo, nextState);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == short.class) {
+            return (short)0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (List.class == type) {
+            return new ArrayList<Object>();
+        } else if (Map.class == type) {
+            return new HashMap<Object, Object>();
+        }
+        return null;
+    }
+
+    private static boolean matches(final Object value, final Object arg) {
+        if (value == null || arg == null) {
+            return value == arg;
+        }
+        if (value instanceof Number && arg instanceof Number) {
+            return ((Number)value).longValue() == ((Number)arg).longValue();
+        }
+        if (value instanceof Enum || arg instanceof Enum) {
+            return value.toString().equals(arg.toString());
+        }
+        return value.equals(arg);
+    }
+
+    private Object getProperty(final Object entity, final String property) {
+        final Method getter = getGetter(entity.getClass(), property);
+        if (getter == null) {
+            throw new IllegalArgumentException(entity.getClass().getSimpleName() + " has no property " + property);
+        }
+        try {
+            return getter.invoke(entity);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to read " + property + " of " + entity, e);
+        }
+    }
+
+    private Method getGetter(final Class<?> type, final String property) {
+        final String key = type.getName() + "#" + property;
+        Method getter = _getters.get(key);
+        if (getter == null) {
+            final String suffix = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            for (String prefix : new String[] {"get", "is"}) {
+                try {
+                    getter = type.getMethod(prefix + suffix);
+                    break;
+                } catch (NoSuchMethodException e) {
+                    // try the next prefix
+                }
+            }
+            if (getter == null) {
+                return null;
+            }
+            _getters.put(key, getter);
+        }
+        return getter;
+    }
+
+    private static Class<?> getEntityClass(final Type type) {
+        if (type instanceof ParameterizedType) {
+            final ParameterizedType parameterized = (ParameterizedType)type;
+            if (parameterized.getRawType() == GenericDao.class && parameterized.getActualTypeArguments()[0] instanceof Class) {
+                return (Class<?>)parameterized.getActualTypeArguments()[0];
+            }
+            return getEntityClass(parameterized.getRawType());
+        }
+        if (type instanceof Class) {
+            for (Type parent : ((Class<?>)type).getGenericInterfaces()) {
+                final Class<?> entityClass = getEntityClass(parent);
+                if (entityClass != null) {
+                    return entityClass;
+                }
+            }
+        }
+        return null;
+    }
+
+    static Field findField(final Class<?> type, final String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                final Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // look in the superclass
+            }
+        }
+        return null;
+    }
+
+    static void setField(final Object target, final String name, final Object value) {
+        final Field field = findField(target.getClass(), name);
+        if (field == null) {
+            throw new IllegalArgumentException(target.getClass().getSimpleName() + " has no field " + name);
+        }
+        setFieldValue(field, target, value);
+    }
+
+    private static Object getFieldValue(final Field field, final Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setFieldValue(final Field field, final Object target, final Object value) {
+        try {
+            if (field.getType() == long.class && value instanceof Number) {
+                field.setLong(target, ((Number)value).longValue());
+            } else {
+                field.set(target, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Map<String, Long> top(final Map<String, Long> counts, final int limit) {
+        final Map<String, Long> top = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (top.size() == limit) {
+                break;
+            }
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.cloud.utils.db.TransactionLegacy;
+
+/**
+ * InMemoryLockDataSource is a JDBC data source that only knows the MySQL named locks GlobalLock is built on,
+ * GET_LOCK and RELEASE_LOCK, with their semantics: a lock is held by a connection, can be taken again by the
+ * connection holding it, and GET_LOCK waits up to its timeout for another connection to release it. Installed as the
+ * data source of TransactionLegacy, GlobalLock works unchanged without a database, and the time spent waiting for the
+ * locks is recorded.
+ */
+class InMemoryLockDataSource implements InvocationHandler {
+
+    private static class Holder {
+        final Object connection;
+        int count;
+
+        Holder(Object connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final Map<String, Holder> _locks = new HashMap<String, Holder>();
+    private DataSource _previous;
+
+    // guarded by this
+    private long _acquired;
+    private long _contended;
+    private long _timedOut;
+    private long _waitNanos;
+    private long _maxWaitNanos;
+
+    void install() {
+        _previous = swap((DataSource)Proxy.newProxyInstance(InMemoryLockDataSource.class.getClassLoader(), new Class<?>[] {DataSource.class}, this));
+    }
+
+    void uninstall() {
+        swap(_previous);
+    }
+
+    private static DataSource swap(final DataSource dataSource) {
+        try {
+            final Field field = TransactionLegacy.class.getDeclaredField("s_ds");
+            field.setAccessible(true);
+            final DataSource previous = (DataSource)field.get(null);
+            field.set(null, dataSource);
+            return previous;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to set the data source of TransactionLegacy", e);
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("getConnection".equals(method.getName())) {
+            return newProxy(Connection.class, new ConnectionHandler());
+        }
+        return InMemoryDaoFactory.defaultValue(method.getReturnType());
+    }
+
+    synchronized long getAcquired() {
+        return _acquired;
+    }
+
+    /**
+     * Number of acquisitions that had to wait for another connection to release the lock.
+     */
+    synchronized long getContended() {
+        return _contended;
+    }
+
+    synchronized long getTimedOut() {
+        return _timedOut;
+    }
+
+    synchronized long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_waitNanos);
+    }
+
+    synchronized long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(_maxWaitNanos);
+    }
+
+    private synchronized int getLock(final String name, final int timeoutSeconds, final Object connection) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        Holder holder = _locks.get(name);
+        final boolean contended = holder != null && holder.connection != connection;
+        while (holder != null && holder.connection != connection) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                _timedOut++;
+                recordWait(System.nanoTime() - start, contended);
+                return 0;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            holder = _locks.get(name);
+        }
+        if (holder == null) {
+            holder = new Holder(connection);
+            _locks.put(name, holder);
+        }
+        holder.count++;
+        _acquired++;
+        recordWait(System.nanoTime() - start, contended);
+        return 1;
+    }
+
+    private synchronized int releaseLock(final String name, final Object connection) {
+        final Holder holder = _locks.get(name);
+        if (holder == null || holder.connection != connection) {
+            return 0;
+        }
+        if (--holder.count == 0) {
+            _locks.remove(name);
+            notifyAll();
+        }
+        return 1;
+    }
+
+    private void recordWait(final long waitNanos, final boolean contended) {
+        if (contended) {
+            _contended++;
+            _waitNanos += waitNanos;
+            _maxWaitNanos = Math.max(_maxWaitNanos, waitNanos);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T newProxy(final Class<T> type, final InvocationHandler handler) {
+        return (T)Proxy.newProxyInstance(InMemoryLockDataSource.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private boolean _closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if ("prepareStatement".equals(name)) {
+                return newProxy(PreparedStatement.class, new StatementHandler(proxy, (String)args[0]));
+            } else if ("close".equals(name)) {
+                _closed = true;
+                return null;
+            } else if ("isClosed".equals(name)) {
+                return _closed;
+            } else if ("getAutoCommit".equals(name) || "isValid".equals(name)) {
+                return true;
+            } else if ("getTransactionIsolation".equals(name)) {
+                return Connection.TRANSACTION_READ_COMMITTED;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return InMemoryDaoFactory.defaultValue(method.getReturnType());
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Object _connection;
+        private final String _sql;
+        private final Map<Integer, Object> _parameters = new HashMap<Integer, Object>();
+
+        StatementHandler(Object connection, String sql) {
+            _connection = connection;
+            _sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                _parameters.put((Integer)args[0], args[1]);
+                return null;
+            } else if ("executeQuery".equals(name)) {
+                int result = 0;
+                if (_sql.contains("GET_LOCK")) {
+                    result = getLock((String)_parameters.get(1), ((Number)_parameters.get(2)).intValue(), _connection);
+                } else if (_sql.contains("RELEASE_LOCK")) {
+                    result = releaseLock((String)_parameters.get(1), _connection);
+                }
+                return newProxy(ResultSet.class, new ResultSetHandler(result));
+            }
+            return InMemoryDaoFactory.defaultValue(method.getReturnType());
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler {
+        private final int _result;
+        private boolean _read;
+
+        ResultSetHandler(int result) {
+            _result = result;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if ("first".equals(name) || "next".equals(name)) {
+                final boolean hasRow = !_read;
+                _read = true;
+                return hasRow;
+            } else if ("getInt".equals(name)) {
+                return _result;
+            } else if ("getLong".equals(name)) {
+                return (long)_result;
+            }
+            return InMemoryDaoFactory.defaultValue(method.getReturnType());
+        }
+    }
+}
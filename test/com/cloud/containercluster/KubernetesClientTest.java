@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class KubernetesClientTest {
+
+    private final Map<String, String> responses = new HashMap<String, String>();
+    private HttpServer server;
+    private KubernetesClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = responses.get(exchange.getRequestURI().toString());
+                byte[] bytes = (body == null ? "{\"kind\":\"Status\",\"code\":404}" : body).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(body == null ? 404 : 200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        });
+        server.start();
+        client = new KubernetesClient("http://127.0.0.1:" + server.getAddress().getPort() + "/", null);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void listPods() throws IOException {
+        responses.put("/api/v1/namespaces/kube-system/pods", "{\"kind\":\"PodList\",\"items\":["
+                + "{\"metadata\":{\"name\":\"kubernetes-dashboard-5f7b999d65-x7x2p\",\"namespace\":\"kube-system\"},"
+                + "\"status\":{\"phase\":\"Running\",\"containerStatuses\":[{\"name\":\"kubernetes-dashboard\",\"ready\":true}]}},"
+                + "{\"metadata\":{\"name\":\"kube-dns-86f4d74b45-2wz7b\",\"namespace\":\"kube-system\"},"
+                + "\"status\":{\"phase\":\"Pending\"}}]}");
+
+        List<KubernetesClient.Pod> pods = client.listPods("kube-system");
+        Assert.assertEquals(2, pods.size());
+        Assert.assertEquals("kubernetes-dashboard-5f7b999d65-x7x2p", pods.get(0).metadata.name);
+        Assert.assertTrue(pods.get(0).isReady());
+        Assert.assertFalse(pods.get(1).isRunning());
+    }
+
+    @Test
+    public void getDeploymentAndNodes() throws IOException {
+        responses.put("/apis/apps/v1/namespaces/kube-system/deployments/kubernetes-dashboard",
+                "{\"metadata\":{\"name\":\"kubernetes-dashboard\"},\"spec\":{\"replicas\":1},\"status\":{\"replicas\":1,\"availableReplicas\":1}}");
+        responses.put("/api/v1/nodes", "{\"items\":[{\"metadata\":{\"name\":\"c1-k8s-master\"},"
+                + "\"status\":{\"conditions\":[{\"type\":\"DiskPressure\",\"status\":\"False\"},{\"type\":\"Ready\",\"status\":\"True\"}]}},"
+                + "{\"metadata\":{\"name\":\"c1-k8s-node-1\"},\"status\":{\"conditions\":[{\"type\":\"Ready\",\"status\":\"Unknown\"}]}}]}");
+
+        Assert.assertTrue(client.getDeployment("kube-system", "kubernetes-dashboard").isAvailable());
+        Assert.assertNull(client.getDeployment("kube-system", "heapster"));
+
+        List<KubernetesClient.Node> nodes = client.listNodes();
+        Assert.assertTrue(nodes.get(0).isReady());
+        Assert.assertFalse(nodes.get(1).isReady());
+    }
+
+    @Test
+    public void watchDeploymentsStopsOnListener() throws IOException {
+        responses.put("/apis/apps/v1/namespaces/kube-system/deployments?watch=true&timeoutSeconds=5&resourceVersion=42",
+                "{\"type\":\"MODIFIED\",\"object\":{\"metadata\":{\"name\":\"kubernetes-dashboard\"},\"status\":{\"availableReplicas\":0}}}\n"
+                + "{\"type\":\"MODIFIED\",\"object\":{\"metadata\":{\"name\":\"kubernetes-dashboard\"},\"status\":{\"availableReplicas\":1}}}\n"
+                + "{\"type\":\"MODIFIED\",\"object\":{\"metadata\":{\"name\":\"kube-dns\"},\"status\":{\"availableReplicas\":1}}}\n");
+
+        final List<String> seen = new ArrayList<String>();
+        boolean stopped = client.watchDeployments("kube-system", "42", 5, new KubernetesClient.WatchListener<KubernetesClient.Deployment>() {
+            @Override
+            public boolean onEvent(String type, KubernetesClient.Deployment deployment) {
+                seen.add(deployment.metadata.name + ":" + deployment.isAvailable());
+                return deployment.isAvailable();
+            }
+        });
+        Assert.assertTrue(stopped);
+        Assert.assertEquals(Arrays.asList("kubernetes-dashboard:false", "kubernetes-dashboard:true"), seen);
+    }
+
+    @Test
+    public void watchDeploymentsEndsOnError() throws IOException {
+        responses.put("/apis/apps/v1/namespaces/kube-system/deployments?watch=true&timeoutSeconds=5&resourceVersion=1",
+                "{\"type\":\"ERROR\",\"object\":{\"kind\":\"Status\",\"code\":410}}\n");
+        Assert.assertFalse(client.watchDeployments("kube-system", "1", 5, new KubernetesClient.WatchListener<KubernetesClient.Deployment>() {
+            @Override
+            public boolean onEvent(String type, KubernetesClient.Deployment deployment) {
+                Assert.fail("no deployment event expected");
+                return true;
+            }
+        }));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnServerError() throws IOException {
+        server.removeContext("/");
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        client.listNodes();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 ShapeBlue Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloud.containercluster;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * SimulatedApiServer stands in for the Kubernetes API servers of simulated container clusters, one local HTTP server
+ * serving the kube-system deployments of every cluster under /clusters/{id}/. The dashboard deployment of a cluster
+ * becomes available a set time after the cluster is deployed, and a watch on the deployments is held open till then,
+ * the way a real API server streams the change once the add-on is up.
+ */
+class SimulatedApiServer {
+
+    static final String DASHBOARD = "kubernetes-dashboard";
+
+    private static final Pattern DEPLOYMENTS = Pattern.compile("^/clusters/(\\d+)/apis/apps/v1/namespaces/kube-system/deployments$");
+    private static final Pattern WATCH_TIMEOUT = Pattern.compile("timeoutSeconds=(\\d+)");
+
+    // cluster id -> time at which the dashboard becomes available
+    private final Map<Long, Long> _availableAt = new ConcurrentHashMap<Long, Long>();
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+
+    SimulatedApiServer() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _executor = Executors.newCachedThreadPool(new NamedThreadFactory("Simulated-Api-Server"));
+        _server.setExecutor(_executor);
+        _server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        _server.start();
+    }
+
+    void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Deploys the add-ons of the cluster, the dashboard becoming available after the delay. Deploying the add-ons of
+     * a cluster again does not restart them.
+     */
+    void deploy(final long clusterId, final long delayMillis) {
+        _availableAt.putIfAbsent(clusterId, System.currentTimeMillis() + delayMillis);
+    }
+
+    void remove(final long clusterId) {
+        _availableAt.remove(clusterId);
+    }
+
+    KubernetesClient getClient(final long clusterId) {
+        return new KubernetesClient("http://127.0.0.1:" + _server.getAddress().getPort() + "/clusters/" + clusterId + "/", null);
+    }
+
+    private void serve(final HttpExchange exchange) throws IOException {
+        final Matcher matcher = DEPLOYMENTS.matcher(exchange.getRequestURI().getPath());
+        final Long availableAt = matcher.matches() ? _availableAt.get(Long.parseLong(matcher.group(1))) : null;
+        if (availableAt == null) {
+            // not deployed yet, or not a request the simulator knows of
+            send(exchange, 503, "{\"kind\":\"Status\",\"code\":503}");
+            return;
+        }
+
+        final String query = exchange.getRequestURI().getQuery();
+        if (query == null || !query.contains("watch=true")) {
+            send(exchange, 200, "{\"kind\":\"DeploymentList\",\"metadata\":{\"resourceVersion\":\"1\"},\"items\":["
+                    + deployment(System.currentTimeMillis() >= availableAt) + "]}");
+            return;
+        }
+
+        final Matcher timeout = WATCH_TIMEOUT.matcher(query);
+        final long watchEnd = System.currentTimeMillis() + (timeout.find() ? Long.parseLong(timeout.group(1)) * 1000 : 0);
+        try {
+            Thread.sleep(Math.max(0, Math.min(availableAt, watchEnd) - System.currentTimeMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // a watch that times out ends without any event
+        send(exchange, 200, System.currentTimeMillis() >= availableAt ? "{\"type\":\"MODIFIED\",\"object\":" + deployment(true) + "}\n" : "");
+    }
+
+    private static String deployment(final boolean available) {
+        return "{\"metadata\":{\"name\":\"" + DASHBOARD + "\",\"namespace\":\"kube-system\"},\"spec\":{\"replicas\":1},"
+                + "\"status\":{\"replicas\":1,\"availableReplicas\":" + (available ? 1 : 0) + "}}";
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}